@@ -0,0 +1,36 @@
+package com.kapp.shell;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// Needs a -PshellTrace=true build, which compiles the native benchmark in.
+@RunWith(AndroidJUnit4.class)
+public class JniCacheBenchmarkTest {
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void reportsCachedJniIdsAgainstLookupsByName() {
+        assumeTrue(BuildConfig.SHELL_TRACE);
+        System.loadLibrary("shell");
+        Context appContext = ApplicationProvider.getApplicationContext();
+
+        // Warm up both paths before measuring.
+        ShellTrace.nativeBenchJniLookups(appContext, ITERATIONS / 10);
+        long[] nanos = ShellTrace.nativeBenchJniLookups(appContext, ITERATIONS);
+
+        assertNotNull("JNI ID cache was not initialized in JNI_OnLoad", nanos);
+        // The figures are the benchmark output; wall-clock order is not
+        // asserted, as a loaded emulator can invert it.
+        Log.i("JniCacheBenchmark", "byName=" + nanos[0] + "ns cached=" + nanos[1] + "ns for "
+                + ITERATIONS + " rounds");
+    }
+}
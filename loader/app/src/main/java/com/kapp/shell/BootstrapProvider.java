@@ -21,12 +21,16 @@ public class BootstrapProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
+        ShellTrace.begin("kapp:BootstrapProvider.onCreate");
         try {
             if (getContext() != null) {
                 nativeLoadDex(getContext(), android.os.Build.VERSION.SDK_INT);
+                ShellApplication.startDeferredLanding(getContext().getClassLoader());
             }
         } catch (Throwable t) {
             Log.e(TAG, "nativeLoadDex failed", t);
+        } finally {
+            ShellTrace.end();
         }
         return true;
     }
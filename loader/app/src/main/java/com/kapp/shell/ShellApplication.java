@@ -5,7 +5,6 @@ import android.content.Context;
 import android.util.Log;
 
 import java.io.File;
-import java.util.zip.ZipFile;
 
 public class ShellApplication extends Application {
     private static final String TAG = "ShellApplication";
@@ -21,6 +20,15 @@ public class ShellApplication extends Application {
 
     private static boolean sDexLoaded = false;
 
+    // How often onCreate reports that it is still waiting for the background
+    // assets zip. The original application never starts without it.
+    private static final long ASSETS_WAIT_LOG_INTERVAL_MS = 2000L;
+
+    // Set while the deferred landing (payload dex files outside the startup
+    // profile and the protected assets zip) runs on a background thread.
+    private static final Object sDeferredLock = new Object();
+    private static boolean sDeferredPending = false;
+
     // Native method to load DEX from memory or file
     private native void nativeLoadDex(Context context, int version);
 
@@ -29,18 +37,95 @@ public class ShellApplication extends Application {
     public static native void nativeLoadDexWithAppInfo(android.content.pm.ApplicationInfo appInfo, ClassLoader cl,
             int version);
 
+    private static native boolean nativeHasDeferredLanding();
+
+    private static native void nativeRunDeferredLanding(ClassLoader cl);
+
+    private static native boolean nativeAwaitAssets(long timeoutMs);
+
     public static synchronized void ensureDexLoaded(Context context) {
         if (sDexLoaded)
             return;
-        new ShellApplication().nativeLoadDex(context, android.os.Build.VERSION.SDK_INT);
+        ShellTrace.begin("kapp:ensureDexLoaded");
+        try {
+            new ShellApplication().nativeLoadDex(context, android.os.Build.VERSION.SDK_INT);
+        } finally {
+            ShellTrace.end();
+        }
         sDexLoaded = true;
+        startDeferredLanding(context.getClassLoader());
     }
 
     public static synchronized void ensureDexLoaded(android.content.pm.ApplicationInfo appInfo, ClassLoader cl) {
         if (sDexLoaded)
             return;
-        nativeLoadDexWithAppInfo(appInfo, cl, android.os.Build.VERSION.SDK_INT);
+        ShellTrace.begin("kapp:ensureDexLoaded");
+        try {
+            nativeLoadDexWithAppInfo(appInfo, cl, android.os.Build.VERSION.SDK_INT);
+        } finally {
+            ShellTrace.end();
+        }
         sDexLoaded = true;
+        startDeferredLanding(cl);
+    }
+
+    // Lands the deferred dex set and assets off the main thread; the dex files
+    // are appended to cl.
+    static void startDeferredLanding(final ClassLoader cl) {
+        synchronized (sDeferredLock) {
+            if (sDeferredPending || !nativeHasDeferredLanding())
+                return;
+            sDeferredPending = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    nativeRunDeferredLanding(cl);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Deferred landing failed", t);
+                } finally {
+                    synchronized (sDeferredLock) {
+                        sDeferredPending = false;
+                        sDeferredLock.notifyAll();
+                    }
+                }
+            }
+        }, "shell-deferred-landing");
+        thread.start();
+    }
+
+    // Blocks only when className is not loadable yet and the deferred dex set
+    // is still landing, i.e. a deferred class was requested early.
+    public static void awaitDeferredClass(ClassLoader cl, String className) {
+        synchronized (sDeferredLock) {
+            if (!sDeferredPending)
+                return;
+        }
+        try {
+            Class.forName(className, false, cl);
+            return;
+        } catch (ClassNotFoundException e) {
+            Log.d(TAG, "awaitDeferredClass: waiting for deferred dex to load " + className);
+        }
+        boolean interrupted = false;
+        ShellTrace.begin("kapp:awaitDeferredClass");
+        try {
+            synchronized (sDeferredLock) {
+                while (sDeferredPending) {
+                    try {
+                        sDeferredLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            ShellTrace.end();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -52,6 +137,7 @@ public class ShellApplication extends Application {
 
     @Override
     public void onCreate() {
+        long onCreateStart = System.nanoTime();
         super.onCreate();
         Log.d(TAG, "onCreate: ShellApplication started");
         ensureDexLoaded(getApplicationContext());
@@ -74,25 +160,52 @@ public class ShellApplication extends Application {
             }
 
             Log.d(TAG, "onCreate: Loading original application: " + originalAppName);
-            Class<?> clazz = getClassLoader().loadClass(originalAppName);
-            originalApp = (Application) clazz.newInstance();
-
-            // Attach context
-            java.lang.reflect.Method attachMethod = Application.class.getDeclaredMethod("attach", Context.class);
-            attachMethod.setAccessible(true);
-            attachMethod.invoke(originalApp, getBaseContext());
+            awaitDeferredClass(getClassLoader(), originalAppName);
+            ShellTrace.begin("kapp:attachOriginalApp");
+            try {
+                Class<?> clazz = getClassLoader().loadClass(originalAppName);
+                originalApp = (Application) clazz.newInstance();
+
+                // Attach context
+                java.lang.reflect.Method attachMethod = Application.class.getDeclaredMethod("attach", Context.class);
+                attachMethod.setAccessible(true);
+                attachMethod.invoke(originalApp, getBaseContext());
+            } finally {
+                ShellTrace.end();
+            }
 
             // Replace ShellApplication with originalApp in the system
-            replaceApplication(getBaseContext(), originalApp);
+            ShellTrace.begin("kapp:replaceApplication");
+            try {
+                replaceApplication(getBaseContext(), originalApp);
+            } finally {
+                ShellTrace.end();
+            }
 
             // Inject extracted assets
-            injectAssets(getApplicationContext());
+            ShellTrace.begin("kapp:injectAssets");
+            try {
+                injectAssets(getApplicationContext());
+            } finally {
+                ShellTrace.end();
+            }
 
             // Initialize WorkManager via reflection if originalApp provides configuration
-            initializeWorkManager(originalApp);
+            ShellTrace.begin("kapp:initializeWorkManager");
+            try {
+                initializeWorkManager(originalApp);
+            } finally {
+                ShellTrace.end();
+            }
 
             Log.d(TAG, "onCreate: Calling original application onCreate");
-            originalApp.onCreate();
+            ShellStats.recordShellOnCreate(System.nanoTime() - onCreateStart);
+            ShellTrace.begin("kapp:originalApp.onCreate");
+            try {
+                originalApp.onCreate();
+            } finally {
+                ShellTrace.end();
+            }
 
         } catch (Exception e) {
             Log.e(TAG, "onCreate: Failed to delegate to original application", e);
@@ -102,6 +215,14 @@ public class ShellApplication extends Application {
 
     private void injectAssets(Context context) {
         try {
+            // The deferred landing clears the pending flag whether the zip
+            // landed or not, so this ends; an app started without its
+            // protected assets would fail later with no hint why.
+            long waitedMs = 0L;
+            while (!nativeAwaitAssets(ASSETS_WAIT_LOG_INTERVAL_MS)) {
+                waitedMs += ASSETS_WAIT_LOG_INTERVAL_MS;
+                Log.w(TAG, "injectAssets: kapp_assets.zip still landing after " + waitedMs + " ms, waiting");
+            }
             File assetsZip = new File(context.getFilesDir(), "kapp_assets.zip");
             if (!assetsZip.exists()) {
                 Log.w(TAG, "injectAssets: kapp_assets.zip does not exist, skipping");
@@ -111,12 +232,6 @@ public class ShellApplication extends Application {
                 Log.w(TAG, "injectAssets: kapp_assets.zip is empty, skipping");
                 return;
             }
-            try (ZipFile zipFile = new ZipFile(assetsZip)) {
-                if (zipFile.size() == 0) {
-                    Log.w(TAG, "injectAssets: kapp_assets.zip has no entries, skipping");
-                    return;
-                }
-            }
 
             android.content.res.AssetManager am = context.getAssets();
             java.lang.reflect.Method addAssetPath = android.content.res.AssetManager.class
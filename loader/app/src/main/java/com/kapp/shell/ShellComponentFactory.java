@@ -26,6 +26,7 @@ public class ShellComponentFactory extends AppComponentFactory {
         if (originalFactory != null)
             return;
 
+        ShellTrace.begin("kapp:ensureDelegate");
         try {
             String originalFactoryName = null;
 
@@ -49,6 +50,8 @@ public class ShellComponentFactory extends AppComponentFactory {
             }
         } catch (Exception e) {
             Log.e(TAG, "ensureDelegate: Failed to instantiate original factory", e);
+        } finally {
+            ShellTrace.end();
         }
     }
 
@@ -56,7 +59,12 @@ public class ShellComponentFactory extends AppComponentFactory {
     public ClassLoader instantiateClassLoader(ClassLoader cl, ApplicationInfo aInfo) {
         Log.e(TAG, "instantiateClassLoader: Triggering early DEX load");
         sAppInfo = aInfo;
-        ShellApplication.ensureDexLoaded(aInfo, cl);
+        ShellTrace.begin("kapp:instantiateClassLoader");
+        try {
+            ShellApplication.ensureDexLoaded(aInfo, cl);
+        } finally {
+            ShellTrace.end();
+        }
         return super.instantiateClassLoader(cl, aInfo);
     }
 
@@ -78,6 +86,7 @@ public class ShellComponentFactory extends AppComponentFactory {
     public Activity instantiateActivity(ClassLoader cl, String className, Intent intent)
             throws InstantiationException, IllegalAccessException, ClassNotFoundException {
         Log.e(TAG, "instantiateActivity: " + className);
+        ShellApplication.awaitDeferredClass(cl, className);
         ensureDelegate(cl);
         if (originalFactory != null) {
             return originalFactory.instantiateActivity(cl, className, intent);
@@ -89,6 +98,7 @@ public class ShellComponentFactory extends AppComponentFactory {
     public BroadcastReceiver instantiateReceiver(ClassLoader cl, String className, Intent intent)
             throws InstantiationException, IllegalAccessException, ClassNotFoundException {
         Log.e(TAG, "instantiateReceiver: " + className);
+        ShellApplication.awaitDeferredClass(cl, className);
         ensureDelegate(cl);
         if (originalFactory != null) {
             return originalFactory.instantiateReceiver(cl, className, intent);
@@ -100,6 +110,7 @@ public class ShellComponentFactory extends AppComponentFactory {
     public Service instantiateService(ClassLoader cl, String className, Intent intent)
             throws InstantiationException, IllegalAccessException, ClassNotFoundException {
         Log.e(TAG, "instantiateService: " + className);
+        ShellApplication.awaitDeferredClass(cl, className);
         ensureDelegate(cl);
         if (originalFactory != null) {
             return originalFactory.instantiateService(cl, className, intent);
@@ -111,6 +122,7 @@ public class ShellComponentFactory extends AppComponentFactory {
     public ContentProvider instantiateProvider(ClassLoader cl, String className)
             throws InstantiationException, IllegalAccessException, ClassNotFoundException {
         Log.e(TAG, "instantiateProvider: " + className);
+        ShellApplication.awaitDeferredClass(cl, className);
         ensureDelegate(cl);
         if (originalFactory != null) {
             return originalFactory.instantiateProvider(cl, className);
@@ -0,0 +1,137 @@
+package com.kapp.shell;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Startup figures of the shell for the wrapped application, e.g. an APM SDK:
+//
+//   Map<?, ?> stats = (Map<?, ?>) Class.forName("com.kapp.shell.ShellStats")
+//           .getMethod("snapshot").invoke(null);
+//
+// Durations are nanoseconds. Values are recorded with relaxed atomics in
+// libshell and are complete once the original Application.onCreate runs,
+// except deferredLandingNanos, which grows until the background landing ends,
+// and the preload figures, which grow until the last preloaded library is open.
+// verifyIntegrityNanos and landPayloadNanos overlap in time.
+public final class ShellStats {
+    private static final String TAG = "ShellStats";
+
+    // Index order of nativeSnapshot(), see stats::snapshot() in libshell.
+    private static final String[] NATIVE_KEYS = {
+            "nativeLoadNanos",
+            "verifyIntegrityNanos",
+            "landPayloadNanos",
+            "decryptNanos",
+            "loadFileLandingNanos",
+            "deferredLandingNanos",
+            "payloadBytes",
+            "entriesDecrypted",
+            "bytesLanded",
+    };
+    private static final int DECRYPT_NANOS = 3;
+    private static final int BYTES_LANDED = 8;
+    private static final int LANDING_CACHE = 9;
+    private static final int ENTRY_POINT = 10;
+    private static final int LANDED_DEX = 11;
+    private static final int OPTIMIZED_DEX = 12;
+    private static final int PRELOADED_LIBS = 13;
+    private static final int PRELOAD_LIBS_NANOS = 14;
+
+    private static volatile long sShellOnCreateNanos;
+
+    private ShellStats() {
+    }
+
+    private static native long[] nativeSnapshot();
+
+    private static native String[] nativeLibPreloads();
+
+    // Time ShellApplication.onCreate spent before handing over to the
+    // original application's onCreate.
+    static void recordShellOnCreate(long nanos) {
+        sShellOnCreateNanos = nanos;
+    }
+
+    // Keys: the NATIVE_KEYS above plus shellOnCreateNanos, decryptBytesPerSecond,
+    // landingCache ("hit", "miss" or "unknown") and entryPoint
+    // ("instantiateClassLoader", "BootstrapProvider.onCreate",
+    // "attachBaseContext" or "unknown"), landedDex and optimizedDex (landed dex
+    // files that ART had already compiled in the background; stays 0 until the
+    // first idle maintenance window after a landing), preloadedLibs and
+    // preloadLibsNanos (payload libraries opened in the background before the
+    // app loads them, and their dlopen time summed over the preload threads)
+    // and libPreloadNanos (library file name to its dlopen time). Empty when
+    // libshell is unavailable.
+    public static Map<String, Object> snapshot() {
+        long[] values;
+        try {
+            values = nativeSnapshot();
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "snapshot: native stats unavailable", e);
+            return Collections.emptyMap();
+        }
+        if (values == null || values.length <= PRELOAD_LIBS_NANOS) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (int i = 0; i < NATIVE_KEYS.length; i++) {
+            stats.put(NATIVE_KEYS[i], values[i]);
+        }
+        stats.put("shellOnCreateNanos", sShellOnCreateNanos);
+
+        long decryptNanos = values[DECRYPT_NANOS];
+        long bytesLanded = values[BYTES_LANDED];
+        long bytesPerSecond = decryptNanos > 0 ? (long) (bytesLanded * 1e9 / decryptNanos) : 0L;
+        stats.put("decryptBytesPerSecond", bytesPerSecond);
+        stats.put("landingCache", landingCacheName(values[LANDING_CACHE]));
+        stats.put("entryPoint", entryPointName(values[ENTRY_POINT]));
+        stats.put("landedDex", values[LANDED_DEX]);
+        stats.put("optimizedDex", values[OPTIMIZED_DEX]);
+        stats.put("preloadedLibs", values[PRELOADED_LIBS]);
+        stats.put("preloadLibsNanos", values[PRELOAD_LIBS_NANOS]);
+        stats.put("libPreloadNanos", libPreloadNanos(nativeLibPreloads()));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    // "name:nanos" entries from nativeLibPreloads(), in the order they finished.
+    private static Map<String, Long> libPreloadNanos(String[] entries) {
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        if (entries == null) {
+            return nanos;
+        }
+        for (String entry : entries) {
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            try {
+                nanos.put(entry.substring(0, colon), Long.parseLong(entry.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "libPreloadNanos: bad entry " + entry);
+            }
+        }
+        return Collections.unmodifiableMap(nanos);
+    }
+
+    private static String landingCacheName(long value) {
+        if (value == 1L)
+            return "hit";
+        if (value == 2L)
+            return "miss";
+        return "unknown";
+    }
+
+    private static String entryPointName(long value) {
+        if (value == 1L)
+            return "attachBaseContext";
+        if (value == 2L)
+            return "instantiateClassLoader";
+        if (value == 3L)
+            return "BootstrapProvider.onCreate";
+        return "unknown";
+    }
+}
@@ -0,0 +1,27 @@
+package com.kapp.shell;
+
+import android.content.Context;
+import android.os.Trace;
+
+// Startup trace sections for Perfetto/systrace, next to the native "kapp:"
+// sections. Built in with -PshellTrace=true; otherwise both calls are no-ops.
+final class ShellTrace {
+    private ShellTrace() {
+    }
+
+    // Trace builds only: nanoseconds spent on `iterations` rounds of startup
+    // JNI calls, as {byName, cached}, or null without the JNI ID cache.
+    static native long[] nativeBenchJniLookups(Context context, int iterations);
+
+    static void begin(String section) {
+        if (BuildConfig.SHELL_TRACE) {
+            Trace.beginSection(section);
+        }
+    }
+
+    static void end() {
+        if (BuildConfig.SHELL_TRACE) {
+            Trace.endSection();
+        }
+    }
+}
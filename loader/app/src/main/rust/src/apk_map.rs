@@ -0,0 +1,127 @@
+// Read-only mapping of a byte range inside the installed APK.
+//
+// The packer stores kapp_payload.bin uncompressed and page-aligned, so its
+// bytes sit contiguously in sourceDir and can be mapped directly instead of
+// being copied through the zip crate's reader. The range does not have to be
+// page-aligned: the mapping starts at the enclosing page and the slice skips
+// the leading bytes, so an APK re-aligned by a signer still maps fine.
+
+use std::fs::File;
+use std::io;
+use std::os::unix::io::AsRawFd;
+
+pub struct MappedRange {
+    base: *mut libc::c_void,
+    map_len: usize,
+    delta: usize,
+    len: usize,
+}
+
+// The mapping is private, read-only and owned by this value, so it can be
+// handed to the thread that lands the deferred dex set.
+unsafe impl Send for MappedRange {}
+
+fn page_size() -> u64 {
+    let size = unsafe { libc::sysconf(libc::_SC_PAGESIZE) };
+    if size > 0 {
+        size as u64
+    } else {
+        4096
+    }
+}
+
+impl MappedRange {
+    pub fn map(file: &File, offset: u64, len: usize) -> io::Result<MappedRange> {
+        if len == 0 {
+            return Err(io::Error::new(io::ErrorKind::InvalidInput, "Empty range"));
+        }
+        let file_len = file.metadata()?.len();
+        if offset.checked_add(len as u64).map_or(true, |end| end > file_len) {
+            return Err(io::Error::new(io::ErrorKind::InvalidInput, "Range outside file"));
+        }
+
+        let page_offset = offset - offset % page_size();
+        let delta = (offset - page_offset) as usize;
+        let map_len = delta + len;
+        let page_offset = libc::off_t::try_from(page_offset)
+            .map_err(|_| io::Error::new(io::ErrorKind::InvalidInput, "Offset too large"))?;
+
+        let base = unsafe {
+            libc::mmap(
+                std::ptr::null_mut(),
+                map_len,
+                libc::PROT_READ,
+                libc::MAP_PRIVATE,
+                file.as_raw_fd(),
+                page_offset,
+            )
+        };
+        if base == libc::MAP_FAILED {
+            return Err(io::Error::last_os_error());
+        }
+
+        // The payload is consumed front to back exactly once.
+        unsafe {
+            libc::madvise(base, map_len, libc::MADV_SEQUENTIAL);
+        }
+
+        Ok(MappedRange {
+            base,
+            map_len,
+            delta,
+            len,
+        })
+    }
+
+    pub fn as_slice(&self) -> &[u8] {
+        unsafe { std::slice::from_raw_parts((self.base as *const u8).add(self.delta), self.len) }
+    }
+}
+
+// Turns off readahead for the whole pages inside `bytes`, a part of the payload
+// this device never reads (another ABI's libraries). MADV_SEQUENTIAL would
+// otherwise read them in behind the segment before.
+pub fn skip_readahead(bytes: &[u8]) {
+    let page = page_size() as usize;
+    let start = bytes.as_ptr() as usize;
+    let first_page = start.div_ceil(page) * page;
+    let end_page = (start + bytes.len()) / page * page;
+    if end_page > first_page {
+        // SAFETY: the range lies inside `bytes`; advice never changes the
+        // contents of a private read-only mapping.
+        unsafe {
+            libc::madvise(first_page as *mut libc::c_void, end_page - first_page, libc::MADV_RANDOM);
+        }
+    }
+}
+
+impl Drop for MappedRange {
+    fn drop(&mut self) {
+        unsafe {
+            libc::munmap(self.base, self.map_len);
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::MappedRange;
+    use std::io::Write;
+
+    #[test]
+    fn maps_unaligned_range_and_rejects_out_of_bounds() {
+        let path = std::env::temp_dir().join(format!("shell-map-{}", std::process::id()));
+        let data: Vec<u8> = (0..10_000u32).map(|i| (i % 251) as u8).collect();
+        std::fs::File::create(&path).unwrap().write_all(&data).unwrap();
+
+        let file = std::fs::File::open(&path).unwrap();
+        let mapped = MappedRange::map(&file, 4099, 3000).unwrap();
+        assert_eq!(mapped.as_slice(), &data[4099..7099]);
+
+        assert!(MappedRange::map(&file, 9000, 2000).is_err());
+        assert!(MappedRange::map(&file, 0, 0).is_err());
+
+        drop(mapped);
+        let _ = std::fs::remove_file(&path);
+    }
+}
@@ -0,0 +1,159 @@
+// AEAD backends for v2 payload entries.
+//
+// Every entry names its cipher in the high byte of its entry flags.
+// AES-256-GCM (id 0) is the default. ChaCha20-Poly1305 (id 1) is several times
+// faster where AES runs in software: ARMv8 cores without the AES extension,
+// and 32-bit ARM, where the aes crate has no crypto-extension backend at all.
+// Both seal with 96-bit nonces and 16-byte tags, so the chunk layout is the
+// same. The packer can seal an entry under both ciphers; the loader then
+// lands the copy under preferred().
+//
+// The ChaCha20-Poly1305 key is derived from the payload key, so the two
+// ciphers never share a key.
+
+use aes_gcm::aead::generic_array::GenericArray;
+use aes_gcm::aead::{AeadInPlace, Error, KeyInit};
+use aes_gcm::Aes256Gcm;
+use chacha20poly1305::ChaCha20Poly1305;
+use sha2::{Digest, Sha256};
+
+pub const CIPHER_AES_256_GCM: u8 = 0;
+pub const CIPHER_CHACHA20_POLY1305: u8 = 1;
+
+pub fn is_supported(id: u8) -> bool {
+    id == CIPHER_AES_256_GCM || id == CIPHER_CHACHA20_POLY1305
+}
+
+pub fn chacha_key(key: &[u8; 32]) -> [u8; 32] {
+    let mut hasher = Sha256::new();
+    hasher.update(b"kapp:chacha20-poly1305");
+    hasher.update(key);
+    hasher.finalize().into()
+}
+
+// Both backends keyed for one payload.
+pub struct PayloadCipher {
+    aes: Aes256Gcm,
+    chacha: ChaCha20Poly1305,
+}
+
+impl PayloadCipher {
+    pub fn new(key: &[u8; 32]) -> Self {
+        PayloadCipher {
+            aes: Aes256Gcm::new(key.into()),
+            chacha: ChaCha20Poly1305::new(&chacha_key(key).into()),
+        }
+    }
+
+    pub fn open_in_place(&self, id: u8, nonce: &[u8; 12], data: &mut [u8], tag: &[u8]) -> Result<(), Error> {
+        let nonce = GenericArray::from_slice(nonce);
+        let tag = GenericArray::from_slice(tag);
+        match id {
+            CIPHER_AES_256_GCM => self.aes.decrypt_in_place_detached(nonce, b"", data, tag),
+            CIPHER_CHACHA20_POLY1305 => self.chacha.decrypt_in_place_detached(nonce, b"", data, tag),
+            _ => Err(Error),
+        }
+    }
+}
+
+// The cipher this device decrypts fastest.
+pub fn preferred() -> u8 {
+    if hardware_aes() {
+        CIPHER_AES_256_GCM
+    } else {
+        CIPHER_CHACHA20_POLY1305
+    }
+}
+
+#[cfg(all(target_arch = "aarch64", any(target_os = "android", target_os = "linux")))]
+fn hardware_aes() -> bool {
+    const HWCAP_AES: libc::c_ulong = 1 << 3;
+    // SAFETY: getauxval only reads the process auxiliary vector.
+    unsafe { libc::getauxval(libc::AT_HWCAP) & HWCAP_AES != 0 }
+}
+
+#[cfg(any(target_arch = "x86", target_arch = "x86_64"))]
+fn hardware_aes() -> bool {
+    is_x86_feature_detected!("aes") && is_x86_feature_detected!("pclmulqdq")
+}
+
+// 32-bit ARM included: HWCAP2_AES may be set there, but the aes crate would
+// not use it.
+#[cfg(not(any(
+    all(target_arch = "aarch64", any(target_os = "android", target_os = "linux")),
+    target_arch = "x86",
+    target_arch = "x86_64"
+)))]
+fn hardware_aes() -> bool {
+    false
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{chacha_key, PayloadCipher, CIPHER_AES_256_GCM, CIPHER_CHACHA20_POLY1305};
+    use aes_gcm::aead::{Aead, KeyInit};
+    use aes_gcm::{Aes256Gcm, Nonce};
+    use chacha20poly1305::ChaCha20Poly1305;
+
+    const KEY: [u8; 32] = [7u8; 32];
+
+    fn open(cipher: &PayloadCipher, id: u8, nonce: &[u8; 12], sealed: &[u8]) -> Option<Vec<u8>> {
+        let (data, tag) = sealed.split_at(sealed.len() - 16);
+        let mut data = data.to_vec();
+        cipher.open_in_place(id, nonce, &mut data, tag).ok().map(|_| data)
+    }
+
+    #[test]
+    fn opens_each_cipher_only_under_its_own_id() {
+        let nonce = [3u8; 12];
+        let aes = Aes256Gcm::new(&KEY.into())
+            .encrypt(Nonce::from_slice(&nonce), b"aes-entry".as_slice())
+            .unwrap();
+        let chacha = ChaCha20Poly1305::new(&chacha_key(&KEY).into())
+            .encrypt(Nonce::from_slice(&nonce), b"chacha-entry".as_slice())
+            .unwrap();
+
+        let cipher = PayloadCipher::new(&KEY);
+        assert_eq!(open(&cipher, CIPHER_AES_256_GCM, &nonce, &aes).unwrap(), b"aes-entry");
+        assert_eq!(open(&cipher, CIPHER_CHACHA20_POLY1305, &nonce, &chacha).unwrap(), b"chacha-entry");
+        assert!(open(&cipher, CIPHER_CHACHA20_POLY1305, &nonce, &aes).is_none());
+        assert!(open(&cipher, CIPHER_AES_256_GCM, &nonce, &chacha).is_none());
+        assert!(open(&cipher, 7, &nonce, &aes).is_none());
+    }
+
+    // Host or on-device (cross-compiled test binary) timing of both ciphers
+    // over payload-sized chunks:
+    //   cargo test --release -- --ignored --nocapture cipher_throughput
+    #[test]
+    #[ignore]
+    fn cipher_throughput() {
+        let chunk = vec![0x5au8; 64 * 1024];
+        let chunks = 256;
+        let nonce = [1u8; 12];
+        let aes = Aes256Gcm::new(&KEY.into()).encrypt(Nonce::from_slice(&nonce), chunk.as_slice()).unwrap();
+        let chacha = ChaCha20Poly1305::new(&chacha_key(&KEY).into())
+            .encrypt(Nonce::from_slice(&nonce), chunk.as_slice())
+            .unwrap();
+        let cipher = PayloadCipher::new(&KEY);
+
+        for (label, id, sealed) in [
+            ("aes-256-gcm", CIPHER_AES_256_GCM, &aes),
+            ("chacha20-poly1305", CIPHER_CHACHA20_POLY1305, &chacha),
+        ] {
+            let started = std::time::Instant::now();
+            for _ in 0..chunks {
+                assert!(open(&cipher, id, &nonce, sealed).is_some());
+            }
+            let elapsed = started.elapsed();
+            let mib = (chunks * chunk.len()) as f64 / (1024.0 * 1024.0);
+            println!("{:>17}: {:.1} MiB/s", label, mib / elapsed.as_secs_f64());
+        }
+        println!("preferred cipher on this device: {}", super::preferred());
+    }
+
+    #[test]
+    fn chacha_key_is_not_the_payload_key() {
+        assert_ne!(chacha_key(&KEY), KEY);
+        assert_ne!(chacha_key(&KEY), chacha_key(&[8u8; 32]));
+    }
+}
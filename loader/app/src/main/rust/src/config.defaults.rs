@@ -10,3 +10,19 @@ pub fn get_aes_key() -> [u8; 32] {
 
 pub const PAYLOAD_HASH: [u8; 32] = [0u8; 32];
 pub const EXPECTED_SIGNATURE_HASH: [u8; 32] = [0u8; 32];
+
+// Delay applied in JNI_OnLoad when built with the `debug-log` feature.
+#[allow(dead_code)]
+pub const STARTUP_LOG_DELAY_MS: u64 = 0;
+
+// Upper bound on payload decryption worker threads (also capped by core count).
+#[allow(dead_code)]
+pub const MAX_DECRYPT_THREADS: usize = 4;
+
+// Keep payload dex in native memory on API 26+ instead of landing them as files.
+#[allow(dead_code)]
+pub const IN_MEMORY_DEX: bool = false;
+
+// Load payload native libraries from memfds on API 30+ instead of landing them as files.
+#[allow(dead_code)]
+pub const IN_MEMORY_LIBS: bool = false;
@@ -0,0 +1,222 @@
+// Class, method and field IDs used by the native entry points, resolved once
+// in JNI_OnLoad instead of by name on every call.
+//
+// Public framework members are required: if one cannot be resolved the whole
+// cache is left empty and callers fall back to by-name lookups, which report
+// the real error. Hidden or API-dependent members (signingInfo, addDexPath,
+// addNativePath, the DexPathList members load_in_memory uses) are optional
+// and fall back individually.
+
+use jni::objects::{GlobalRef, JClass, JFieldID, JMethodID, JObject};
+use jni::JNIEnv;
+use std::sync::OnceLock;
+
+pub struct JniCache {
+    pub context_get_cache_dir: JMethodID,
+    pub context_get_files_dir: JMethodID,
+    pub context_get_class_loader: JMethodID,
+    pub context_get_package_code_path: JMethodID,
+    pub context_get_package_name: JMethodID,
+    pub context_get_package_manager: JMethodID,
+    pub file_get_absolute_path: JMethodID,
+    pub file_get_parent_file: JMethodID,
+    pub package_manager_get_package_info: JMethodID,
+    pub package_info_signatures: JFieldID,
+    // API 28+.
+    pub package_info_signing_info: Option<JFieldID>,
+    pub signing_info_get_apk_contents_signers: Option<JMethodID>,
+    pub signature_to_byte_array: JMethodID,
+    pub application_info_source_dir: JFieldID,
+    pub application_info_data_dir: JFieldID,
+    pub array_list: GlobalRef,
+    pub array_list_init: JMethodID,
+    pub array_list_add: JMethodID,
+    // Hidden BaseDexClassLoader members; only valid for loaders that are
+    // instances of base_dex_class_loader.
+    pub base_dex_class_loader: GlobalRef,
+    pub add_dex_path_with_flag: Option<JMethodID>,
+    pub add_dex_path: Option<JMethodID>,
+    pub add_native_path: Option<JMethodID>,
+    pub base_dex_class_loader_path_list: Option<JFieldID>,
+    // In-memory dex: direct ByteBuffers are opened through a DexPathList of
+    // the target loader, whose elements are then appended to its own.
+    pub byte_buffer: GlobalRef,
+    pub dex_path_list: Option<GlobalRef>,
+    pub dex_path_list_element: Option<GlobalRef>,
+    // DexPathList(ClassLoader, ByteBuffer[]), API 26-28.
+    pub dex_path_list_init_with_buffers: Option<JMethodID>,
+    // DexPathList(ClassLoader, String) plus initByteBufferDexPath, API 29+.
+    pub dex_path_list_init_with_library_path: Option<JMethodID>,
+    pub dex_path_list_init_byte_buffer_dex_path: Option<JMethodID>,
+    pub dex_path_list_dex_elements: Option<JFieldID>,
+}
+
+static CACHE: OnceLock<JniCache> = OnceLock::new();
+
+pub fn get() -> Option<&'static JniCache> {
+    CACHE.get()
+}
+
+// Called from JNI_OnLoad. Leaves the cache empty on failure.
+pub fn init(env: &mut JNIEnv) {
+    if CACHE.get().is_some() {
+        return;
+    }
+    match build(env) {
+        Ok(cache) => {
+            let _ = CACHE.set(cache);
+            debug!("jni_cache: class, method and field IDs cached");
+        }
+        Err(e) => {
+            let _ = env.exception_clear();
+            warn!("jni_cache: falling back to by-name JNI lookups: {:?}", e);
+        }
+    }
+}
+
+fn optional_method(env: &mut JNIEnv, class: &JClass, name: &str, sig: &str) -> Option<JMethodID> {
+    match env.get_method_id(class, name, sig) {
+        Ok(id) => Some(id),
+        Err(_) => {
+            let _ = env.exception_clear();
+            debug!("jni_cache: {}{} not available", name, sig);
+            None
+        }
+    }
+}
+
+fn optional_field(env: &mut JNIEnv, class: &JClass, name: &str, sig: &str) -> Option<JFieldID> {
+    match env.get_field_id(class, name, sig) {
+        Ok(id) => Some(id),
+        Err(_) => {
+            let _ = env.exception_clear();
+            debug!("jni_cache: field {} not available", name);
+            None
+        }
+    }
+}
+
+fn optional_class<'local>(env: &mut JNIEnv<'local>, name: &str) -> Option<JClass<'local>> {
+    match env.find_class(name) {
+        Ok(class) => Some(class),
+        Err(_) => {
+            let _ = env.exception_clear();
+            debug!("jni_cache: class {} not available", name);
+            None
+        }
+    }
+}
+
+fn optional_global(env: &mut JNIEnv, class: Option<&JClass>) -> Option<GlobalRef> {
+    env.new_global_ref(class?).ok()
+}
+
+fn build(env: &mut JNIEnv) -> Result<JniCache, jni::errors::Error> {
+    let context = env.find_class("android/content/Context")?;
+    let file = env.find_class("java/io/File")?;
+    let package_manager = env.find_class("android/content/pm/PackageManager")?;
+    let package_info = env.find_class("android/content/pm/PackageInfo")?;
+    let signature = env.find_class("android/content/pm/Signature")?;
+    let application_info = env.find_class("android/content/pm/ApplicationInfo")?;
+    let array_list = env.find_class("java/util/ArrayList")?;
+    let base_dex_class_loader = env.find_class("dalvik/system/BaseDexClassLoader")?;
+    let byte_buffer = env.find_class("java/nio/ByteBuffer")?;
+    let dex_path_list = optional_class(env, "dalvik/system/DexPathList");
+    let dex_path_list_element = optional_class(env, "dalvik/system/DexPathList$Element");
+    let (
+        dex_path_list_init_with_buffers,
+        dex_path_list_init_with_library_path,
+        dex_path_list_init_byte_buffer_dex_path,
+        dex_path_list_dex_elements,
+    ) = match &dex_path_list {
+        Some(class) => (
+            optional_method(env, class, "<init>", "(Ljava/lang/ClassLoader;[Ljava/nio/ByteBuffer;)V"),
+            optional_method(env, class, "<init>", "(Ljava/lang/ClassLoader;Ljava/lang/String;)V"),
+            optional_method(env, class, "initByteBufferDexPath", "([Ljava/nio/ByteBuffer;)V"),
+            optional_field(env, class, "dexElements", "[Ldalvik/system/DexPathList$Element;"),
+        ),
+        None => (None, None, None, None),
+    };
+
+    let (package_info_signing_info, signing_info_get_apk_contents_signers) =
+        match env.find_class("android/content/pm/SigningInfo") {
+            Ok(signing_info) => (
+                optional_field(env, &package_info, "signingInfo", "Landroid/content/pm/SigningInfo;"),
+                optional_method(
+                    env,
+                    &signing_info,
+                    "getApkContentsSigners",
+                    "()[Landroid/content/pm/Signature;",
+                ),
+            ),
+            Err(_) => {
+                let _ = env.exception_clear();
+                (None, None)
+            }
+        };
+
+    Ok(JniCache {
+        context_get_cache_dir: env.get_method_id(&context, "getCacheDir", "()Ljava/io/File;")?,
+        context_get_files_dir: env.get_method_id(&context, "getFilesDir", "()Ljava/io/File;")?,
+        context_get_class_loader: env.get_method_id(&context, "getClassLoader", "()Ljava/lang/ClassLoader;")?,
+        context_get_package_code_path: env.get_method_id(&context, "getPackageCodePath", "()Ljava/lang/String;")?,
+        context_get_package_name: env.get_method_id(&context, "getPackageName", "()Ljava/lang/String;")?,
+        context_get_package_manager: env.get_method_id(
+            &context,
+            "getPackageManager",
+            "()Landroid/content/pm/PackageManager;",
+        )?,
+        file_get_absolute_path: env.get_method_id(&file, "getAbsolutePath", "()Ljava/lang/String;")?,
+        file_get_parent_file: env.get_method_id(&file, "getParentFile", "()Ljava/io/File;")?,
+        package_manager_get_package_info: env.get_method_id(
+            &package_manager,
+            "getPackageInfo",
+            "(Ljava/lang/String;I)Landroid/content/pm/PackageInfo;",
+        )?,
+        package_info_signatures: env.get_field_id(&package_info, "signatures", "[Landroid/content/pm/Signature;")?,
+        package_info_signing_info,
+        signing_info_get_apk_contents_signers,
+        signature_to_byte_array: env.get_method_id(&signature, "toByteArray", "()[B")?,
+        application_info_source_dir: env.get_field_id(&application_info, "sourceDir", "Ljava/lang/String;")?,
+        application_info_data_dir: env.get_field_id(&application_info, "dataDir", "Ljava/lang/String;")?,
+        array_list_init: env.get_method_id(&array_list, "<init>", "()V")?,
+        array_list_add: env.get_method_id(&array_list, "add", "(Ljava/lang/Object;)Z")?,
+        array_list: env.new_global_ref(&array_list)?,
+        add_dex_path_with_flag: optional_method(
+            env,
+            &base_dex_class_loader,
+            "addDexPath",
+            "(Ljava/lang/String;Z)V",
+        ),
+        add_dex_path: optional_method(env, &base_dex_class_loader, "addDexPath", "(Ljava/lang/String;)V"),
+        add_native_path: optional_method(
+            env,
+            &base_dex_class_loader,
+            "addNativePath",
+            "(Ljava/util/Collection;)V",
+        ),
+        base_dex_class_loader_path_list: optional_field(
+            env,
+            &base_dex_class_loader,
+            "pathList",
+            "Ldalvik/system/DexPathList;",
+        ),
+        base_dex_class_loader: env.new_global_ref(&base_dex_class_loader)?,
+        byte_buffer: env.new_global_ref(&byte_buffer)?,
+        dex_path_list: optional_global(env, dex_path_list.as_ref()),
+        dex_path_list_element: optional_global(env, dex_path_list_element.as_ref()),
+        dex_path_list_init_with_buffers,
+        dex_path_list_init_with_library_path,
+        dex_path_list_init_byte_buffer_dex_path,
+        dex_path_list_dex_elements,
+    })
+}
+
+impl JniCache {
+    // The hidden addDexPath/addNativePath IDs are only usable on loaders
+    // derived from BaseDexClassLoader.
+    pub fn is_base_dex_class_loader(&self, env: &mut JNIEnv, loader: &JObject) -> bool {
+        let class: &JClass = self.base_dex_class_loader.as_obj().into();
+        env.is_instance_of(loader, class).unwrap_or(false)
+    }
+}
@@ -0,0 +1,374 @@
+// Versioned stamp for the landed payload files.
+//
+// The stamp lives next to the landed dex files and records what produced them
+// (payload hash + APK size/mtime) and what was written. When everything still
+// matches on the next start, the loader can register the existing files
+// directly instead of reading and decrypting `kapp_payload.bin` again.
+
+use std::collections::HashSet;
+use std::fs;
+use std::io::Write;
+use std::path::{Path, PathBuf};
+use std::time::UNIX_EPOCH;
+
+pub const LANDING_CACHE_VERSION: u32 = 1;
+const STAMP_FILE_NAME: &str = "landing.stamp";
+
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct CacheKey {
+    pub payload_hash: String,
+    pub apk_size: u64,
+    pub apk_mtime_ns: u128,
+}
+
+impl CacheKey {
+    // Returns None when no stable key can be built, e.g. the embedded payload
+    // hash is zero (unconfigured build) or the APK cannot be stat'ed.
+    pub fn for_apk(apk_path: &str, payload_hash: &[u8; 32]) -> Option<CacheKey> {
+        if payload_hash.iter().all(|&b| b == 0) {
+            return None;
+        }
+
+        let metadata = fs::metadata(apk_path).ok()?;
+        let apk_mtime_ns = metadata
+            .modified()
+            .ok()?
+            .duration_since(UNIX_EPOCH)
+            .ok()?
+            .as_nanos();
+
+        Some(CacheKey {
+            payload_hash: hex::encode(payload_hash),
+            apk_size: metadata.len(),
+            apk_mtime_ns,
+        })
+    }
+}
+
+#[derive(Debug, Clone, Default, PartialEq, Eq)]
+pub struct LandingStamp {
+    // (file name inside dex_landing, size)
+    pub dex_files: Vec<(String, u64)>,
+    // (file name inside native_libs, size)
+    pub lib_files: Vec<(String, u64)>,
+    // Landed libraries the packer flagged for preloading, a subset of
+    // lib_files by name.
+    pub preload_libs: Vec<String>,
+    // Size of files/kapp_assets.zip when assets were landed.
+    pub assets_zip_size: Option<u64>,
+    // The dex stayed in memory, so dex_files is empty on purpose. A landing
+    // of the other mode is never reused.
+    pub in_memory_dex: bool,
+    // Likewise for the libraries. lib_files then lists only those the linker
+    // refused to open from a memfd; they stay landed and later starts load
+    // them from native_libs instead.
+    pub in_memory_libs: bool,
+    // Only the startup set is landed; the deferred dex and the assets zip
+    // are still to come. Such a stamp is reused for the startup set, and the
+    // reusing process lands the rest unless another one did by then.
+    pub deferred_pending: bool,
+}
+
+fn stamp_path(dex_cache_dir: &str) -> String {
+    format!("{}/{}", dex_cache_dir, STAMP_FILE_NAME)
+}
+
+fn file_has_size(path: &str, expected: u64) -> bool {
+    fs::metadata(path)
+        .map(|metadata| metadata.is_file() && metadata.len() == expected)
+        .unwrap_or(false)
+}
+
+fn parse_sized_name(value: &str) -> Option<(String, u64)> {
+    let (name, size) = value.rsplit_once(':')?;
+    if name.is_empty() || name.contains('/') {
+        return None;
+    }
+    Some((name.to_string(), size.parse().ok()?))
+}
+
+fn parse_stamp(content: &str, key: &CacheKey) -> Option<LandingStamp> {
+    let mut version_ok = false;
+    let mut hash_ok = false;
+    let mut apk_ok = false;
+    let mut stamp = LandingStamp::default();
+
+    for line in content.lines() {
+        let (field, value) = match line.split_once('=') {
+            Some(pair) => pair,
+            None => continue,
+        };
+        match field {
+            "version" => version_ok = value.parse::<u32>().ok() == Some(LANDING_CACHE_VERSION),
+            "payload" => hash_ok = value == key.payload_hash,
+            "apk" => apk_ok = value == format!("{}:{}", key.apk_size, key.apk_mtime_ns),
+            "dex" => stamp.dex_files.push(parse_sized_name(value)?),
+            "lib" => stamp.lib_files.push(parse_sized_name(value)?),
+            // Written after the lib lines; anything else is not a landed library.
+            "preload" if stamp.lib_files.iter().any(|(name, _)| name == value) => {
+                stamp.preload_libs.push(value.to_string())
+            }
+            "assets" => stamp.assets_zip_size = Some(value.parse().ok()?),
+            "dex_mode" if value == "memory" => stamp.in_memory_dex = true,
+            "lib_mode" if value == "memory" => stamp.in_memory_libs = true,
+            "deferred" if value == "pending" => stamp.deferred_pending = true,
+            _ => return None,
+        }
+    }
+
+    if version_ok && hash_ok && apk_ok {
+        Some(stamp)
+    } else {
+        None
+    }
+}
+
+// Loads the stamp and checks that every file it lists is still present with
+// the recorded size. Any mismatch is treated as a miss.
+pub fn load_valid(
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip_path: &str,
+    key: &CacheKey,
+) -> Option<LandingStamp> {
+    let content = fs::read_to_string(stamp_path(dex_cache_dir)).ok()?;
+    let stamp = parse_stamp(&content, key)?;
+
+    let dex_ok = stamp
+        .dex_files
+        .iter()
+        .all(|(name, size)| file_has_size(&format!("{}/{}", dex_cache_dir, name), *size));
+    let libs_ok = stamp
+        .lib_files
+        .iter()
+        .all(|(name, size)| file_has_size(&format!("{}/{}", libs_dir, name), *size));
+    let assets_ok = match stamp.assets_zip_size {
+        Some(size) => file_has_size(assets_zip_path, size),
+        None => true,
+    };
+
+    if dex_ok && libs_ok && assets_ok {
+        Some(stamp)
+    } else {
+        None
+    }
+}
+
+// Drops the stamp before the landing files are rewritten so an interrupted
+// landing is never mistaken for a complete one.
+pub fn invalidate(dex_cache_dir: &str) {
+    let _ = fs::remove_file(stamp_path(dex_cache_dir));
+}
+
+// Removes landed dex the stamp no longer lists, together with what ART wrote
+// for them under oat/ (oat/<isa>/<name>.odex, .vdex, .art and the profiles
+// next to them). The artifacts of dex that are still landed are kept, since
+// landed dex are named after their content and those artifacts still match.
+pub fn remove_stale_dex(dex_cache_dir: &str, stamp: &LandingStamp) {
+    let kept: HashSet<&str> = stamp
+        .dex_files
+        .iter()
+        .map(|(name, _)| name.strip_suffix(".dex").unwrap_or(name))
+        .collect();
+    let is_stale = |name: &str| !kept.contains(name.split('.').next().unwrap_or_default());
+
+    let dex_dir = Path::new(dex_cache_dir);
+    for (path, name) in files_in(dex_dir) {
+        if name.ends_with(".dex") && is_stale(&name) {
+            let _ = fs::remove_file(path);
+        }
+    }
+    let oat_dir = dex_dir.join("oat");
+    let isa_dirs: Vec<PathBuf> = match fs::read_dir(&oat_dir) {
+        Ok(entries) => entries.flatten().map(|entry| entry.path()).filter(|path| path.is_dir()).collect(),
+        Err(_) => return,
+    };
+    for dir in std::iter::once(oat_dir).chain(isa_dirs) {
+        for (path, name) in files_in(&dir) {
+            if is_stale(&name) {
+                let _ = fs::remove_file(path);
+            }
+        }
+    }
+}
+
+// (path, file name) of the regular files in `dir`.
+fn files_in(dir: &Path) -> Vec<(PathBuf, String)> {
+    let entries = match fs::read_dir(dir) {
+        Ok(entries) => entries,
+        Err(_) => return Vec::new(),
+    };
+    entries
+        .flatten()
+        .filter(|entry| entry.file_type().is_ok_and(|file_type| file_type.is_file()))
+        .filter_map(|entry| Some((entry.path(), entry.file_name().into_string().ok()?)))
+        .collect()
+}
+
+// Written last, after all landing files, through a temp file + rename.
+pub fn store(dex_cache_dir: &str, key: &CacheKey, stamp: &LandingStamp) -> std::io::Result<()> {
+    let mut content = String::new();
+    content.push_str(&format!("version={}\n", LANDING_CACHE_VERSION));
+    content.push_str(&format!("payload={}\n", key.payload_hash));
+    content.push_str(&format!("apk={}:{}\n", key.apk_size, key.apk_mtime_ns));
+    for (name, size) in &stamp.dex_files {
+        content.push_str(&format!("dex={}:{}\n", name, size));
+    }
+    for (name, size) in &stamp.lib_files {
+        content.push_str(&format!("lib={}:{}\n", name, size));
+    }
+    for name in &stamp.preload_libs {
+        content.push_str(&format!("preload={}\n", name));
+    }
+    if let Some(size) = stamp.assets_zip_size {
+        content.push_str(&format!("assets={}\n", size));
+    }
+    if stamp.in_memory_dex {
+        content.push_str("dex_mode=memory\n");
+    }
+    if stamp.in_memory_libs {
+        content.push_str("lib_mode=memory\n");
+    }
+    if stamp.deferred_pending {
+        content.push_str("deferred=pending\n");
+    }
+
+    let final_path = stamp_path(dex_cache_dir);
+    let tmp_path = format!("{}.tmp", final_path);
+    {
+        let mut file = fs::File::create(&tmp_path)?;
+        file.write_all(content.as_bytes())?;
+        file.sync_all()?;
+    }
+    fs::rename(&tmp_path, Path::new(&final_path))
+}
+
+// The assets zip carries its own stamp, `<zip>.stamp`, holding a digest of
+// the sealed asset entries it was built from. A new APK whose assets did not
+// change can then keep the zip even though the landing stamp is a miss.
+fn assets_stamp_path(assets_zip_path: &str) -> String {
+    format!("{}.stamp", assets_zip_path)
+}
+
+// Returns the zip size when the zip on disk was built from `digest`.
+pub fn reusable_assets_zip(assets_zip_path: &str, digest: &str) -> Option<u64> {
+    let content = fs::read_to_string(assets_stamp_path(assets_zip_path)).ok()?;
+    let mut fields = content.trim_end().splitn(3, ':');
+    let version = fields.next()?.parse::<u32>().ok()?;
+    let stamped_digest = fields.next()?;
+    let size = fields.next()?.parse::<u64>().ok()?;
+    if version != LANDING_CACHE_VERSION || stamped_digest != digest || !file_has_size(assets_zip_path, size) {
+        return None;
+    }
+    Some(size)
+}
+
+// Written after the zip has been renamed into place.
+pub fn store_assets_stamp(assets_zip_path: &str, digest: &str, size: u64) -> std::io::Result<()> {
+    let final_path = assets_stamp_path(assets_zip_path);
+    let tmp_path = format!("{}.tmp", final_path);
+    fs::write(&tmp_path, format!("{}:{}:{}\n", LANDING_CACHE_VERSION, digest, size))?;
+    fs::rename(&tmp_path, Path::new(&final_path))
+}
+
+pub fn invalidate_assets_stamp(assets_zip_path: &str) {
+    let _ = fs::remove_file(assets_stamp_path(assets_zip_path));
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{
+        invalidate_assets_stamp, parse_stamp, reusable_assets_zip, store_assets_stamp, CacheKey,
+        LANDING_CACHE_VERSION,
+    };
+
+    fn key() -> CacheKey {
+        CacheKey {
+            payload_hash: "ab".repeat(32),
+            apk_size: 42,
+            apk_mtime_ns: 7,
+        }
+    }
+
+    #[test]
+    fn stamp_parses_when_key_matches() {
+        let content = format!(
+            "version={}\npayload={}\napk=42:7\ndex=payload_0.dex:10\nlib=libfoo.so:3\nassets=99\n",
+            LANDING_CACHE_VERSION,
+            "ab".repeat(32)
+        );
+        let stamp = parse_stamp(&content, &key()).expect("stamp should match");
+        assert_eq!(stamp.dex_files, vec![("payload_0.dex".to_string(), 10)]);
+        assert_eq!(stamp.lib_files, vec![("libfoo.so".to_string(), 3)]);
+        assert!(stamp.preload_libs.is_empty());
+        assert_eq!(stamp.assets_zip_size, Some(99));
+        let preload = content.replace("assets=99\n", "preload=libfoo.so\nassets=99\n");
+        let stamp = parse_stamp(&preload, &key()).expect("stamp should match");
+        assert_eq!(stamp.preload_libs, vec!["libfoo.so".to_string()]);
+        assert!(parse_stamp(&preload.replace("preload=libfoo.so", "preload=../libfoo.so"), &key()).is_none());
+        assert!(!stamp.in_memory_dex);
+
+        let in_memory = format!("{}dex_mode=memory\n", content.replace("dex=payload_0.dex:10\n", ""));
+        let stamp = parse_stamp(&in_memory, &key()).expect("stamp should match");
+        assert!(stamp.in_memory_dex && stamp.dex_files.is_empty() && !stamp.in_memory_libs);
+        let memfd_libs = format!("{}lib_mode=memory\n", content.replace("lib=libfoo.so:3\n", ""));
+        let stamp = parse_stamp(&memfd_libs, &key()).expect("stamp should match");
+        assert!(stamp.in_memory_libs && stamp.lib_files.is_empty() && !stamp.in_memory_dex);
+        assert!(parse_stamp(&content.replace("assets=99", "lib_mode=mapped"), &key()).is_none());
+        assert!(parse_stamp(&content.replace("assets=99", "dex_mode=mapped"), &key()).is_none());
+
+        let pending = content.replace("assets=99\n", "deferred=pending\n");
+        let stamp = parse_stamp(&pending, &key()).expect("stamp should match");
+        assert!(stamp.deferred_pending && stamp.assets_zip_size.is_none());
+        assert!(!parse_stamp(&content, &key()).unwrap().deferred_pending);
+        assert!(parse_stamp(&content.replace("assets=99", "deferred=done"), &key()).is_none());
+    }
+
+    #[test]
+    fn stamp_rejects_other_apk_or_version() {
+        let other_apk = format!(
+            "version={}\npayload={}\napk=43:7\n",
+            LANDING_CACHE_VERSION,
+            "ab".repeat(32)
+        );
+        assert!(parse_stamp(&other_apk, &key()).is_none());
+
+        let other_version = format!(
+            "version={}\npayload={}\napk=42:7\n",
+            LANDING_CACHE_VERSION + 1,
+            "ab".repeat(32)
+        );
+        assert!(parse_stamp(&other_version, &key()).is_none());
+    }
+
+    #[test]
+    fn stamp_rejects_path_traversal_names() {
+        let content = format!(
+            "version={}\npayload={}\napk=42:7\ndex=../evil.dex:1\n",
+            LANDING_CACHE_VERSION,
+            "ab".repeat(32)
+        );
+        assert!(parse_stamp(&content, &key()).is_none());
+    }
+
+    #[test]
+    fn assets_zip_is_reused_only_for_the_stamped_digest_and_size() {
+        let dir = std::env::temp_dir().join(format!("kapp-assets-stamp-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).unwrap();
+        let zip = dir.join("kapp_assets.zip").to_string_lossy().into_owned();
+        std::fs::write(&zip, b"zip-bytes").unwrap();
+
+        assert_eq!(reusable_assets_zip(&zip, "digest"), None);
+        store_assets_stamp(&zip, "digest", 9).unwrap();
+        assert_eq!(reusable_assets_zip(&zip, "digest"), Some(9));
+        assert_eq!(reusable_assets_zip(&zip, "other"), None);
+
+        std::fs::write(&zip, b"short").unwrap();
+        assert_eq!(reusable_assets_zip(&zip, "digest"), None);
+
+        invalidate_assets_stamp(&zip);
+        std::fs::write(&zip, b"zip-bytes").unwrap();
+        assert_eq!(reusable_assets_zip(&zip, "digest"), None);
+        let _ = std::fs::remove_dir_all(&dir);
+    }
+}
@@ -0,0 +1,101 @@
+// Cross-process lock around landing.
+//
+// Every process of the app (`:push`, `:remote`, ...) runs the shell and lands
+// into the same cache directory. The first process to miss the landing cache
+// takes an exclusive flock on `<cache>/landing.lock` and keeps it until the
+// stamp for its startup set is stored. Siblings block on the lock, then find
+// a valid stamp and reuse the landed files instead of decrypting the payload
+// again and replacing files the holder has mapped. The deferred entries are
+// landed under the lock again, off the main thread, so a sibling starting
+// meanwhile never waits for them.
+//
+// The lock belongs to the open file, so it is released when the LandingLock
+// is dropped or the holding process dies.
+
+use std::fs::{File, OpenOptions};
+use std::io;
+use std::os::unix::io::AsRawFd;
+
+const LOCK_FILE_NAME: &str = "landing.lock";
+
+pub struct LandingLock {
+    _file: File,
+    waited: bool,
+}
+
+impl LandingLock {
+    // True when another process held the lock at first try.
+    pub fn waited(&self) -> bool {
+        self.waited
+    }
+}
+
+fn flock(file: &File, operation: libc::c_int) -> io::Result<()> {
+    loop {
+        // SAFETY: the descriptor is owned by `file` and open for the call.
+        if unsafe { libc::flock(file.as_raw_fd(), operation) } == 0 {
+            return Ok(());
+        }
+        let err = io::Error::last_os_error();
+        if err.kind() != io::ErrorKind::Interrupted {
+            return Err(err);
+        }
+    }
+}
+
+// Blocks until the landing lock of `cache_path` is held by this process.
+pub fn acquire(cache_path: &str) -> io::Result<LandingLock> {
+    let file = OpenOptions::new()
+        .read(true)
+        .write(true)
+        .create(true)
+        .open(format!("{}/{}", cache_path, LOCK_FILE_NAME))?;
+
+    let waited = match flock(&file, libc::LOCK_EX | libc::LOCK_NB) {
+        Ok(()) => false,
+        Err(e) if e.kind() == io::ErrorKind::WouldBlock => {
+            flock(&file, libc::LOCK_EX)?;
+            true
+        }
+        Err(e) => return Err(e),
+    };
+    Ok(LandingLock { _file: file, waited })
+}
+
+#[cfg(test)]
+mod tests {
+    use super::acquire;
+    use std::sync::atomic::{AtomicBool, Ordering};
+    use std::sync::Arc;
+    use std::time::Duration;
+
+    // flock locks are per open file, so two acquires in one process contend
+    // like two processes would.
+    #[test]
+    fn second_holder_waits_until_the_first_lock_is_dropped() {
+        let dir = std::env::temp_dir().join(format!("kapp-landing-lock-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).unwrap();
+        let cache_path = dir.to_string_lossy().into_owned();
+
+        let first = acquire(&cache_path).unwrap();
+        assert!(!first.waited());
+
+        let acquired = Arc::new(AtomicBool::new(false));
+        let waiter = {
+            let cache_path = cache_path.clone();
+            let acquired = Arc::clone(&acquired);
+            std::thread::spawn(move || {
+                let lock = acquire(&cache_path).unwrap();
+                acquired.store(true, Ordering::SeqCst);
+                lock.waited()
+            })
+        };
+
+        std::thread::sleep(Duration::from_millis(50));
+        assert!(!acquired.load(Ordering::SeqCst));
+        drop(first);
+        assert!(waiter.join().unwrap());
+        assert!(acquired.load(Ordering::SeqCst));
+        let _ = std::fs::remove_dir_all(&dir);
+    }
+}
@@ -1,6 +1,7 @@
 use jni::JNIEnv;
-use jni::objects::{JClass, JObject, JString, JValue, JObjectArray, JByteArray};
-use jni::sys::{jint, JNI_VERSION_1_6};
+use jni::objects::{GlobalRef, JClass, JFieldID, JMethodID, JObject, JString, JValue, JObjectArray, JByteArray};
+use jni::signature::{Primitive, ReturnType};
+use jni::sys::{jboolean, jint, jlong, jlongArray, jobjectArray, JNI_VERSION_1_6};
 use aes_gcm::{
     aead::{Aead, KeyInit},
     Aes256Gcm, Nonce
@@ -9,13 +10,29 @@ use std::os::raw::c_void;
 use std::fs::File;
 use std::io::{Read, Write, Seek, SeekFrom};
 use std::sync::atomic::{AtomicBool, Ordering};
+use std::sync::{Condvar, Mutex};
 use zip::ZipArchive;
 
 mod config;
 mod strings_config;
 #[macro_use]
 mod obfuscate;
+mod apk_map;
+mod cipher;
+mod jni_cache;
+mod landing_cache;
+mod landing_lock;
+mod lib_preload;
+mod memfd_lib;
+mod parallel;
+mod payload;
+mod signature_gate;
+mod stats;
+#[cfg(test)]
+mod test_payload;
+mod trace;
 use config::{get_aes_key, PAYLOAD_HASH, EXPECTED_SIGNATURE_HASH};
+use signature_gate::SignatureGate;
 use sha2::{Sha256, Digest};
 
 #[macro_use]
@@ -24,6 +41,14 @@ use android_logger::Config;
 
 static DEX_LOAD_MARKER: AtomicBool = AtomicBool::new(false);
 
+// Deferred part of the current landing (dex files outside the startup set
+// and protected assets), waiting for ShellApplication's background thread.
+static DEFERRED_LANDING: Mutex<Option<DeferredLanding>> = Mutex::new(None);
+
+// True while files/kapp_assets.zip is being written in the background.
+static ASSETS_PENDING: Mutex<bool> = Mutex::new(false);
+static ASSETS_LANDED: Condvar = Condvar::new();
+
 fn try_mark_dex_load_started() -> bool {
     DEX_LOAD_MARKER
         .compare_exchange(false, true, Ordering::AcqRel, Ordering::Acquire)
@@ -39,20 +64,43 @@ fn clear_dex_load_marker_for_tests() {
     clear_dex_load_marker();
 }
 
+#[cfg(feature = "debug-log")]
+const MAX_LOG_LEVEL: log::LevelFilter = log::LevelFilter::Debug;
+#[cfg(not(feature = "debug-log"))]
+const MAX_LOG_LEVEL: log::LevelFilter = log::LevelFilter::Warn;
+
+// Debug logging profile only: optionally wait so logcat can be attached before
+// the first native lines are printed. Release builds never sleep here.
+#[cfg(feature = "debug-log")]
+fn debug_startup_delay() {
+    if config::STARTUP_LOG_DELAY_MS > 0 {
+        std::thread::sleep(std::time::Duration::from_millis(
+            config::STARTUP_LOG_DELAY_MS,
+        ));
+    }
+}
+
+#[cfg(not(feature = "debug-log"))]
+fn debug_startup_delay() {}
+
 #[no_mangle]
-pub extern "system" fn JNI_OnLoad(_vm: jni::JavaVM, _reserved: *mut c_void) -> jint {
+pub extern "system" fn JNI_OnLoad(vm: jni::JavaVM, _reserved: *mut c_void) -> jint {
     android_logger::init_once(
         Config::default()
             .with_tag(s!(strings_config::LOG_TAG))
-            .with_max_level(log::LevelFilter::Debug),
+            .with_max_level(MAX_LOG_LEVEL),
     );
-    // Sleep to allow logcat to catch up
-    std::thread::sleep(std::time::Duration::from_millis(500));
+    debug_startup_delay();
     info!("Native library loaded, JNI_OnLoad called");
 
     // Anti-Debug: Check TracerPid and Ptrace
     check_debugger();
 
+    match vm.get_env() {
+        Ok(mut env) => jni_cache::init(&mut env),
+        Err(e) => warn!("JNI_OnLoad: no JNIEnv to cache JNI IDs: {:?}", e),
+    }
+
     JNI_VERSION_1_6
 }
 
@@ -115,46 +163,166 @@ fn check_debugger() {
     }
 }
 
+// Calls an object method through its cached ID, or by name when the JNI
+// cache is unavailable. `cached` must belong to a class `obj` is an instance
+// of and match `sig`.
 fn call_object_method<'local>(
     env: &mut JNIEnv<'local>,
-    obj: &JObject<'local>,
+    obj: &JObject,
+    cached: Option<JMethodID>,
     method: &str,
     sig: &str,
+    args: &[JValue],
 ) -> Result<JObject<'local>, jni::errors::Error> {
-    env.call_method(obj, method, sig, &[])?.l()
+    match cached {
+        Some(id) => {
+            let args: Vec<jni::sys::jvalue> = args.iter().map(|arg| arg.as_jni()).collect();
+            // SAFETY: see above; the return type is an object per `sig`.
+            unsafe { env.call_method_unchecked(obj, id, ReturnType::Object, &args) }?.l()
+        }
+        None => env.call_method(obj, method, sig, args)?.l(),
+    }
 }
 
-fn call_string_method<'local>(
-    env: &mut JNIEnv<'local>,
-    obj: &JObject<'local>,
+// Void counterpart of call_object_method.
+fn call_void_method(
+    env: &mut JNIEnv,
+    obj: &JObject,
+    cached: Option<JMethodID>,
     method: &str,
     sig: &str,
-) -> Result<String, jni::errors::Error> {
-    let value = call_object_method(env, obj, method, sig)?;
-    Ok(env.get_string(&JString::from(value))?.into())
+    args: &[JValue],
+) -> Result<(), jni::errors::Error> {
+    match cached {
+        Some(id) => {
+            let args: Vec<jni::sys::jvalue> = args.iter().map(|arg| arg.as_jni()).collect();
+            // SAFETY: as for call_object_method, with a void return per `sig`.
+            unsafe { env.call_method_unchecked(obj, id, ReturnType::Primitive(Primitive::Void), &args) }?.v()
+        }
+        None => env.call_method(obj, method, sig, args)?.v(),
+    }
 }
 
-fn get_string_field<'local>(
+fn get_object_field<'local>(
     env: &mut JNIEnv<'local>,
-    obj: &JObject<'local>,
+    obj: &JObject,
+    cached: Option<JFieldID>,
     field: &str,
-) -> Result<String, jni::errors::Error> {
-    let value = env.get_field(obj, field, "Ljava/lang/String;")?.l()?;
+    sig: &str,
+) -> Result<JObject<'local>, jni::errors::Error> {
+    match cached {
+        // SAFETY: the field ID belongs to obj's class and has an object type.
+        Some(id) => unsafe { env.get_field_unchecked(obj, id, ReturnType::Object) }?.l(),
+        None => env.get_field(obj, field, sig)?.l(),
+    }
+}
+
+// Setter counterpart of get_object_field.
+fn set_object_field(
+    env: &mut JNIEnv,
+    obj: &JObject,
+    cached: Option<JFieldID>,
+    field: &str,
+    sig: &str,
+    value: &JObject,
+) -> Result<(), jni::errors::Error> {
+    match cached {
+        // SAFETY: the field ID belongs to obj's class and `value` has its type.
+        Some(id) => unsafe { env.set_field_unchecked(obj, id, JValue::Object(value)) },
+        None => env.set_field(obj, field, sig, JValue::Object(value)),
+    }
+}
+
+// Constructor counterpart of call_object_method; a cached ID must be a
+// constructor of `class`.
+fn new_object<'local>(
+    env: &mut JNIEnv<'local>,
+    class: &JClass,
+    cached: Option<JMethodID>,
+    sig: &str,
+    args: &[JValue],
+) -> Result<JObject<'local>, jni::errors::Error> {
+    match cached {
+        Some(id) => {
+            let args: Vec<jni::sys::jvalue> = args.iter().map(|arg| arg.as_jni()).collect();
+            // SAFETY: the arguments match the constructor's signature `sig`.
+            unsafe { env.new_object_unchecked(class, id, &args) }
+        }
+        None => env.new_object(class, sig, args),
+    }
+}
+
+// A local reference to the cached class, or the class looked up by name.
+fn class_ref<'local>(
+    env: &mut JNIEnv<'local>,
+    cached: Option<&GlobalRef>,
+    name: &str,
+) -> Result<JClass<'local>, jni::errors::Error> {
+    match cached {
+        Some(class) => Ok(JClass::from(env.new_local_ref(class)?)),
+        None => env.find_class(name),
+    }
+}
+
+fn jstring_to_string(env: &mut JNIEnv, value: JObject) -> Result<String, jni::errors::Error> {
     Ok(env.get_string(&JString::from(value))?.into())
 }
 
+fn get_string_field(
+    env: &mut JNIEnv,
+    obj: &JObject,
+    cached: Option<JFieldID>,
+    field: &str,
+) -> Result<String, jni::errors::Error> {
+    let value = get_object_field(env, obj, cached, field, "Ljava/lang/String;")?;
+    jstring_to_string(env, value)
+}
+
 fn get_paths_and_loader_from_context<'local>(
     env: &mut JNIEnv<'local>,
     context: &JObject<'local>,
 ) -> Result<(String, String, JObject<'local>), jni::errors::Error> {
-    let cache_dir = call_object_method(env, context, "getCacheDir", "()Ljava/io/File;")?;
-    let cache_path = call_string_method(env, &cache_dir, "getAbsolutePath", "()Ljava/lang/String;")?;
-
-    let class_loader = call_object_method(env, context, "getClassLoader", "()Ljava/lang/ClassLoader;")?;
+    let cache = jni_cache::get();
+    let get_absolute_path = cache.map(|c| c.file_get_absolute_path);
+
+    let cache_dir = call_object_method(
+        env,
+        context,
+        cache.map(|c| c.context_get_cache_dir),
+        "getCacheDir",
+        "()Ljava/io/File;",
+        &[],
+    )?;
+    let cache_path = call_object_method(env, &cache_dir, get_absolute_path, "getAbsolutePath", "()Ljava/lang/String;", &[])?;
+    let cache_path = jstring_to_string(env, cache_path)?;
+
+    let class_loader = call_object_method(
+        env,
+        context,
+        cache.map(|c| c.context_get_class_loader),
+        "getClassLoader",
+        "()Ljava/lang/ClassLoader;",
+        &[],
+    )?;
 
-    let files_dir = call_object_method(env, context, "getFilesDir", "()Ljava/io/File;")?;
-    let data_dir = call_object_method(env, &files_dir, "getParentFile", "()Ljava/io/File;")?;
-    let data_path = call_string_method(env, &data_dir, "getAbsolutePath", "()Ljava/lang/String;")?;
+    let files_dir = call_object_method(
+        env,
+        context,
+        cache.map(|c| c.context_get_files_dir),
+        "getFilesDir",
+        "()Ljava/io/File;",
+        &[],
+    )?;
+    let data_dir = call_object_method(
+        env,
+        &files_dir,
+        cache.map(|c| c.file_get_parent_file),
+        "getParentFile",
+        "()Ljava/io/File;",
+        &[],
+    )?;
+    let data_path = call_object_method(env, &data_dir, get_absolute_path, "getAbsolutePath", "()Ljava/lang/String;", &[])?;
+    let data_path = jstring_to_string(env, data_path)?;
 
     Ok((cache_path, data_path, class_loader))
 }
@@ -166,11 +334,13 @@ pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeLoadDex<'local
     context: JObject<'local>,
     sdk_int: jint,
 ) {
+    let _trace = trace::section("kapp:nativeLoadDex");
     info!("{} {}", s!(strings_config::MSG_NATIVE_LOAD_DEX).replace("{}", ""), sdk_int);
     if !try_mark_dex_load_started() {
         info!("nativeLoadDex (Application): dex already loaded in process, skipping duplicate call");
         return;
     }
+    let started = std::time::Instant::now();
     let apk_path = match get_package_code_path(&mut env, &context) {
         Ok(path) => path,
         Err(e) => {
@@ -192,28 +362,21 @@ pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeLoadDex<'local
             }
         };
 
-    if let Err(e) = verify_integrity(&mut env, &context) {
-        error!("Integrity check failed: {:?}", e);
-        let _ = env.exception_clear();
-        clear_dex_load_marker();
-        return;
-    }
-
-    let payload = match extract_payload(&apk_path, true) {
-        Ok(payload) => payload,
+    match load_dex_core(
+        &mut env,
+        &apk_path,
+        &cache_path_str,
+        &data_path_str,
+        &class_loader,
+        sdk_int,
+        Some(&context),
+    ) {
+        Ok(()) => stats::record_native_load(stats::ENTRY_POINT_APPLICATION, started),
         Err(e) => {
-            error!("Payload integrity failed: {:?}", e);
+            error!("nativeLoadDex (Application) failed: {:?}", e);
+            let _ = env.exception_clear();
             clear_dex_load_marker();
-            return;
         }
-    };
-
-    if let Err(e) =
-        load_dex_core(&mut env, &cache_path_str, &data_path_str, &class_loader, &payload, sdk_int)
-    {
-        error!("nativeLoadDex (Application) failed: {:?}", e);
-        let _ = env.exception_clear();
-        clear_dex_load_marker();
     }
 }
 
@@ -225,14 +388,17 @@ pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeLoadDexWithApp
     class_loader: JObject<'local>,
     sdk_int: jint,
 ) {
+    let _trace = trace::section("kapp:nativeLoadDexWithAppInfo");
     info!("{} {}", s!(strings_config::MSG_NATIVE_LOAD_DEX).replace("{}", ""), sdk_int);
     if !try_mark_dex_load_started() {
         info!("nativeLoadDexWithAppInfo: dex already loaded in process, skipping duplicate call");
         return;
     }
+    let started = std::time::Instant::now();
     
     // 1. Get APK path and data dir from ApplicationInfo
-    let apk_path = match get_string_field(&mut env, &app_info, "sourceDir") {
+    let cache = jni_cache::get();
+    let apk_path = match get_string_field(&mut env, &app_info, cache.map(|c| c.application_info_source_dir), "sourceDir") {
         Ok(value) => value,
         Err(e) => {
             error!("nativeLoadDexWithAppInfo: failed to read sourceDir: {:?}", e);
@@ -242,7 +408,7 @@ pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeLoadDexWithApp
         }
     };
 
-    let data_dir = match get_string_field(&mut env, &app_info, "dataDir") {
+    let data_dir = match get_string_field(&mut env, &app_info, cache.map(|c| c.application_info_data_dir), "dataDir") {
         Ok(value) => value,
         Err(e) => {
             error!("nativeLoadDexWithAppInfo: failed to read dataDir: {:?}", e);
@@ -264,27 +430,23 @@ pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeLoadDexWithApp
     // 2. Verify Integrity (Skip for now if we only have app_info, or pass JObject::null())
     // For now, we skip signature check here to avoid complexity of getting PM from app_info.
     // It will be verified in nativeLoadDex or BootstrapProvider anyway.
-    let payload = match extract_payload(&apk_path, true) {
-        Ok(payload) => payload,
-        Err(e) => {
-            error!("Payload integrity failed: {:?}", e);
-            clear_dex_load_marker();
-            return;
-        }
-    };
 
     // 3. Load DEX using the modular core
-    if let Err(e) = load_dex_core(
+    match load_dex_core(
         &mut env,
+        &apk_path,
         &cache_path_str,
         &data_dir,
         &class_loader,
-        &payload,
         sdk_int,
+        None,
     ) {
-        error!("nativeLoadDexWithAppInfo failed: {:?}", e);
-        let _ = env.exception_clear();
-        clear_dex_load_marker();
+        Ok(()) => stats::record_native_load(stats::ENTRY_POINT_CLASS_LOADER, started),
+        Err(e) => {
+            error!("nativeLoadDexWithAppInfo failed: {:?}", e);
+            let _ = env.exception_clear();
+            clear_dex_load_marker();
+        }
     }
 }
 
@@ -295,11 +457,13 @@ pub extern "system" fn Java_com_kapp_shell_BootstrapProvider_nativeLoadDex<'loca
     context: JObject<'local>,
     sdk_int: jint,
 ) {
+    let _trace = trace::section("kapp:nativeLoadDex (Provider)");
     info!("nativeLoadDex (Provider) called for SDK {}", sdk_int);
     if !try_mark_dex_load_started() {
         info!("nativeLoadDex (Provider): dex already loaded in process, skipping duplicate call");
         return;
     }
+    let started = std::time::Instant::now();
     let apk_path = match get_package_code_path(&mut env, &context) {
         Ok(path) => path,
         Err(e) => {
@@ -321,192 +485,2184 @@ pub extern "system" fn Java_com_kapp_shell_BootstrapProvider_nativeLoadDex<'loca
             }
         };
 
-    if let Err(e) = verify_integrity(&mut env, &context) {
-        error!("Integrity check failed: {:?}", e);
-        let _ = env.exception_clear();
-        clear_dex_load_marker();
-        return;
-    }
-
-    let payload = match extract_payload(&apk_path, true) {
-        Ok(payload) => payload,
+    match load_dex_core(
+        &mut env,
+        &apk_path,
+        &cache_path_str,
+        &data_path_str,
+        &class_loader,
+        sdk_int,
+        Some(&context),
+    ) {
+        Ok(()) => stats::record_native_load(stats::ENTRY_POINT_PROVIDER, started),
         Err(e) => {
-            error!("Payload integrity failed: {:?}", e);
+            error!("nativeLoadDex (Provider) failed: {:?}", e);
+            let _ = env.exception_clear();
             clear_dex_load_marker();
+        }
+    }
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeHasDeferredLanding<'local>(
+    _env: JNIEnv<'local>,
+    _class: JClass<'local>,
+) -> jboolean {
+    let pending = DEFERRED_LANDING
+        .lock()
+        .map(|slot| slot.is_some())
+        .unwrap_or(false);
+    u8::from(pending)
+}
+
+// Called from ShellApplication's background thread: writes the protected
+// assets zip and lands the deferred dex set, which is appended to the class
+// loader that already holds the startup set.
+#[no_mangle]
+pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeRunDeferredLanding<'local>(
+    mut env: JNIEnv<'local>,
+    _class: JClass<'local>,
+    class_loader: JObject<'local>,
+) {
+    let deferred = match DEFERRED_LANDING.lock() {
+        Ok(mut slot) => slot.take(),
+        Err(_) => None,
+    };
+    let deferred = match deferred {
+        Some(deferred) => deferred,
+        None => return,
+    };
+
+    let _trace = trace::section("kapp:nativeRunDeferredLanding");
+    let _timer = stats::time(&stats::STATS.deferred_landing_ns);
+    let landed = land_deferred(deferred, |dex_paths| {
+        if let Err(e) = add_dex_paths(&mut env, &class_loader, dex_paths) {
+            error!("nativeRunDeferredLanding: failed to register deferred dex: {:?}", e);
+            let _ = env.exception_clear();
             return;
         }
+        if !dex_paths.is_empty() {
+            info!("nativeRunDeferredLanding: registered {} deferred dex files", dex_paths.len());
+        }
+    });
+    if let Err(e) = landed {
+        error!("nativeRunDeferredLanding: landing failed: {:?}", e);
+    }
+}
+
+// Startup figures for ShellStats, in stats::snapshot() order. Returns null
+// only when the array cannot be allocated.
+#[no_mangle]
+pub extern "system" fn Java_com_kapp_shell_ShellStats_nativeSnapshot<'local>(
+    mut env: JNIEnv<'local>,
+    _class: JClass<'local>,
+) -> jlongArray {
+    let values: Vec<i64> = stats::snapshot()
+        .iter()
+        .map(|&value| i64::try_from(value).unwrap_or(i64::MAX))
+        .collect();
+    let array = match env.new_long_array(values.len() as i32) {
+        Ok(array) => array,
+        Err(_) => return std::ptr::null_mut(),
     };
+    if env.set_long_array_region(&array, 0, &values).is_err() {
+        return std::ptr::null_mut();
+    }
+    array.into_raw()
+}
 
-    if let Err(e) =
-        load_dex_core(&mut env, &cache_path_str, &data_path_str, &class_loader, &payload, sdk_int)
-    {
-        error!("nativeLoadDex (Provider) failed: {:?}", e);
-        let _ = env.exception_clear();
-        clear_dex_load_marker();
+// Per-library preload timings for ShellStats, as "name:nanos" in the order the
+// preloads finished. Returns null only when the array cannot be built.
+#[no_mangle]
+pub extern "system" fn Java_com_kapp_shell_ShellStats_nativeLibPreloads<'local>(
+    mut env: JNIEnv<'local>,
+    _class: JClass<'local>,
+) -> jobjectArray {
+    match lib_preload_array(&mut env, &stats::lib_preloads()) {
+        Ok(array) => array.into_raw(),
+        Err(_) => std::ptr::null_mut(),
+    }
+}
+
+fn lib_preload_array<'local>(
+    env: &mut JNIEnv<'local>,
+    preloads: &[(String, u64)],
+) -> jni::errors::Result<JObjectArray<'local>> {
+    let array = env.new_object_array(preloads.len() as i32, "java/lang/String", JObject::null())?;
+    for (i, (name, nanos)) in preloads.iter().enumerate() {
+        let entry = env.new_string(format!("{}:{}", name, nanos))?;
+        env.set_object_array_element(&array, i as i32, entry)?;
     }
+    Ok(array)
 }
 
+// Microbenchmark for the JNI ID cache, trace builds only: times `iterations`
+// rounds of the getCacheDir/getAbsolutePath/getPackageManager calls made at
+// startup, by name and through jni_cache. Returns [byNameNanos, cachedNanos],
+// or null when the cache is unavailable.
+#[cfg(feature = "trace")]
+#[no_mangle]
+pub extern "system" fn Java_com_kapp_shell_ShellTrace_nativeBenchJniLookups<'local>(
+    mut env: JNIEnv<'local>,
+    _class: JClass<'local>,
+    context: JObject<'local>,
+    iterations: jint,
+) -> jlongArray {
+    let cache = match jni_cache::get() {
+        Some(cache) => cache,
+        None => return std::ptr::null_mut(),
+    };
+    let by_name = bench_jni_lookups(&mut env, &context, iterations, None);
+    let cached = bench_jni_lookups(&mut env, &context, iterations, Some(cache));
+    let values = match (by_name, cached) {
+        (Ok(by_name), Ok(cached)) => [by_name, cached],
+        _ => {
+            let _ = env.exception_clear();
+            return std::ptr::null_mut();
+        }
+    };
+    let array = match env.new_long_array(2) {
+        Ok(array) => array,
+        Err(_) => return std::ptr::null_mut(),
+    };
+    if env.set_long_array_region(&array, 0, &values).is_err() {
+        return std::ptr::null_mut();
+    }
+    array.into_raw()
+}
+
+#[cfg(feature = "trace")]
+fn bench_jni_lookups(
+    env: &mut JNIEnv,
+    context: &JObject,
+    iterations: jint,
+    cache: Option<&jni_cache::JniCache>,
+) -> Result<i64, jni::errors::Error> {
+    let start = std::time::Instant::now();
+    for _ in 0..iterations {
+        let cache_dir = call_object_method(
+            env,
+            context,
+            cache.map(|c| c.context_get_cache_dir),
+            "getCacheDir",
+            "()Ljava/io/File;",
+            &[],
+        )?;
+        let path = call_object_method(
+            env,
+            &cache_dir,
+            cache.map(|c| c.file_get_absolute_path),
+            "getAbsolutePath",
+            "()Ljava/lang/String;",
+            &[],
+        )?;
+        let pm = call_object_method(
+            env,
+            context,
+            cache.map(|c| c.context_get_package_manager),
+            "getPackageManager",
+            "()Landroid/content/pm/PackageManager;",
+            &[],
+        )?;
+        env.delete_local_ref(cache_dir)?;
+        env.delete_local_ref(path)?;
+        env.delete_local_ref(pm)?;
+    }
+    Ok(i64::try_from(start.elapsed().as_nanos()).unwrap_or(i64::MAX))
+}
+
+// Waits up to timeout_ms for the background assets zip. Returns false when
+// it is still being written.
+#[no_mangle]
+pub extern "system" fn Java_com_kapp_shell_ShellApplication_nativeAwaitAssets<'local>(
+    _env: JNIEnv<'local>,
+    _class: JClass<'local>,
+    timeout_ms: jlong,
+) -> jboolean {
+    let timeout = std::time::Duration::from_millis(u64::try_from(timeout_ms).unwrap_or(0));
+    u8::from(await_assets(timeout))
+}
+
+fn set_assets_pending(pending: bool) {
+    if let Ok(mut guard) = ASSETS_PENDING.lock() {
+        *guard = pending;
+    }
+    if !pending {
+        ASSETS_LANDED.notify_all();
+    }
+}
+
+fn await_assets(timeout: std::time::Duration) -> bool {
+    let _trace = trace::section("kapp:await_assets");
+    let guard = match ASSETS_PENDING.lock() {
+        Ok(guard) => guard,
+        Err(_) => return true,
+    };
+    match ASSETS_LANDED.wait_timeout_while(guard, timeout, |pending| *pending) {
+        Ok((guard, _)) => !*guard,
+        Err(_) => true,
+    }
+}
+
+// Lands the payload on a worker thread while the calling thread checks the
+// APK signature through `verify_context`, which costs a binder round trip.
+// The landing decrypts into temp files meanwhile but moves nothing into place
+// before the check passed (see signature_gate), so a failed check fails
+// closed and leaves no plaintext behind.
 fn load_dex_core(
     env: &mut JNIEnv,
+    apk_path: &str,
     cache_path: &str,
     data_path: &str,
     class_loader: &JObject,
-    payload: &[(String, Vec<u8>)],
     sdk_int: jint,
+    verify_context: Option<&JObject>,
 ) -> Result<(), Box<dyn std::error::Error>> {
-    // 1. Extract Assets
-    extract_assets_core(data_path, payload)?;
+    // 1. Land assets, DEX and libs (or reuse a previous landing) and verify
+    // the signature at the same time
+    let key = get_aes_key();
+    let modes = LoadModes {
+        dex: dex_load_mode(sdk_int),
+        libs: lib_load_mode(sdk_int),
+    };
+    let gate = SignatureGate::pending();
+    let (landed, verified) = parallel::overlap(
+        || {
+            land_payload(apk_path, cache_path, data_path, &key, &PAYLOAD_HASH, modes, &gate)
+                .map_err(|e| e.to_string())
+        },
+        || {
+            let _undecided = gate.fail_unless_decided();
+            let verified = match verify_context {
+                Some(context) => verify_integrity(&mut *env, context),
+                None => Ok(()),
+            };
+            gate.decide(verified.is_ok());
+            verified
+        },
+    );
+    if let Err(e) = verified {
+        error!("Integrity check failed: {:?}", e);
+        return Err(e);
+    }
+    let mut landed = landed?;
 
     // 2. Load DEX and Libs
-    // NOTE:
-    // We intentionally use file-landing on all SDKs. In-memory mode can trigger
-    // "Attempt to register dex file ... with multiple class loaders" for some
-    // multi-process/provider startup sequences.
-    if sdk_int >= 26 {
-        info!(
-            "load_dex_core: using file-landing mode on SDK {} for class-loader compatibility",
-            sdk_int
-        );
+    if !landed.dex_buffers.is_empty() {
+        if let Err(e) = load_in_memory(env, class_loader, &landed.dex_buffers, sdk_int) {
+            let _ = env.exception_clear();
+            warn!("load_dex_core: in-memory dex failed on SDK {}, landing them: {}", sdk_int, e);
+            landed.dex_paths = land_memory_dex(cache_path, &landed.dex_buffers)?;
+            landed.dex_buffers.clear();
+        }
     }
-    load_file_landing(env, cache_path, class_loader, payload).map_err(|e| e.into())
-}
-
-fn extract_assets_core(
-    data_path: &str,
-    payload: &[(String, Vec<u8>)],
-) -> Result<(), Box<dyn std::error::Error>> {
-    let zip_path = format!("{}/files/kapp_assets.zip", data_path);
-    debug!("extract_assets_core: Landing assets in {}", zip_path);
-    
-    // Ensure parent directory (files) exists
-    if let Some(parent) = std::path::Path::new(&zip_path).parent() {
-        std::fs::create_dir_all(parent)?;
+    let dex_profile = take_dex_profile(&mut landed.dex_profiles, sdk_int);
+    if let Some(profile) = &dex_profile {
+        install_dex_profile(&landed.dex_paths, profile);
     }
-
-    let file = File::create(&zip_path)?;
-    let mut zip = zip::ZipWriter::new(file);
-    let options = zip::write::FileOptions::default()
-        .compression_method(zip::CompressionMethod::Stored); // Store uncompressed for speed/simplicity
-
-    let mut asset_count = 0;
-    for (name, data) in payload {
-        if name.starts_with("assets/") {
-            debug!("Adding asset to ZIP: {}", name);
-            zip.start_file(name, options)?;
-            zip.write_all(data)?;
-            asset_count += 1;
+    load_file_landing(env, class_loader, &landed)?;
+    // ART holds its own copy of in-memory dex by now.
+    landed.dex_buffers = Vec::new();
+    let landed_libs = load_memfd_libs(std::mem::take(&mut landed.memfd_libs), &landed.libs_dir);
+    if !landed_libs.is_empty() {
+        if let Some(deferred) = landed.deferred.as_mut() {
+            deferred.stamp.lib_files.extend(landed_libs.iter().cloned());
         }
+        spawn_stamp_landed_libs(apk_path, cache_path, data_path, landed_libs);
     }
-    
-    zip.finish()?;
-
-    if asset_count > 0 {
-        info!("Successfully packed {} protected assets into {}", asset_count, zip_path);
+    lib_preload::spawn(&landed.libs_dir, std::mem::take(&mut landed.preload_libs));
+
+    if let Some(mut deferred) = landed.deferred.take() {
+        deferred.dex_profile = dex_profile;
+        if let Ok(mut slot) = DEFERRED_LANDING.lock() {
+            // onCreate waits for the assets until land_deferred clears this,
+            // so it is only set once the landing is sure to run.
+            if !deferred.entries.assets.is_empty() {
+                set_assets_pending(true);
+            }
+            *slot = Some(deferred);
+        }
     }
     Ok(())
 }
 
-fn get_package_code_path(env: &mut JNIEnv, context: &JObject) -> Result<String, jni::errors::Error> {
-    debug!("Calling getPackageCodePath...");
-    let package_code_path = env
-        .call_method(context, "getPackageCodePath", "()Ljava/lang/String;", &[])?
-        .l()?;
-    let path_str: String = env.get_string(&package_code_path.into())?.into();
-    debug!("Package code path: {}", path_str);
-    Ok(path_str)
+#[derive(Default)]
+struct LandedPayload {
+    dex_paths: Vec<String>,
+    // Decrypted dex for DexLoadMode::Memory; dex_paths is then empty.
+    dex_buffers: Vec<Vec<u8>>,
+    libs_dir: String,
+    from_cache: bool,
+    deferred: Option<DeferredLanding>,
+    // Decrypted libraries for LibLoadMode::Memory; none is then landed,
+    // except for those in landed_libs.
+    memfd_libs: Vec<memfd_lib::MemfdLib>,
+    // Names of the libraries the stamp lists as landed. Under
+    // LibLoadMode::Memory these are the ones the linker refused from a memfd
+    // on an earlier start, and they are not decrypted again.
+    landed_libs: Vec<String>,
+    // Landed libraries the app loads at startup, see lib_preload.
+    preload_libs: Vec<String>,
+    // (entry name, bytes) of the ART profiles the packer carried for the
+    // landed dex. Only read when the dex were just landed as files.
+    dex_profiles: Vec<(String, Vec<u8>)>,
 }
 
-fn validate_signature_hash(expected: &[u8; 32], actual: &[u8; 32]) -> Result<(), String> {
-    if expected.iter().all(|&b| b == 0) {
-        warn!("Signature hash check skipped (embedded hash is zero).");
-        return Ok(());
-    }
+// A dex entry flagged as deferred by the packer's startup profile. It is left
+// sealed in the mapped payload while the startup set is registered.
+struct DeferredDex {
+    entry: payload::EntryInfo,
+    range: std::ops::Range<usize>,
+    file: PendingFile,
+}
 
-    if actual != expected {
-        return Err(format!(
-            "Signature mismatch! Expected: {}, Actual: {}",
-            hex::encode(expected),
-            hex::encode(actual)
-        ));
+// Sealed entries of a mapped payload that are landed after startup.
+#[derive(Default)]
+struct DeferredEntries {
+    chunk_size: usize,
+    dexes: Vec<DeferredDex>,
+    // Protected assets, and the digest recorded in the assets stamp.
+    assets: Vec<(payload::EntryInfo, std::ops::Range<usize>)>,
+    assets_digest: String,
+}
+
+impl DeferredEntries {
+    fn is_empty(&self) -> bool {
+        self.dexes.is_empty() && self.assets.is_empty()
     }
+}
 
-    Ok(())
+// Everything needed to finish a landing after startup. The payload hash has
+// already been checked. The stamp stored at startup covers only the startup
+// set and is marked deferred_pending, so a sibling process reuses that set
+// and an interrupted landing is resumed on the next start; the full stamp is
+// stored once the deferred files are in place. The landing lock is taken
+// again for that, on the deferred thread.
+struct DeferredLanding {
+    mapped: apk_map::MappedRange,
+    cache_path: String,
+    entries: DeferredEntries,
+    key: [u8; 32],
+    dex_cache_dir: String,
+    libs_dir: String,
+    assets_zip: String,
+    cache_key: Option<landing_cache::CacheKey>,
+    stamp: landing_cache::LandingStamp,
+    // The profile install_dex_profile seeded the startup set with.
+    dex_profile: Option<Vec<u8>>,
 }
 
-fn extract_signature_bytes(
-    env: &mut JNIEnv,
-    package_info: &JObject,
-) -> Result<Option<Vec<u8>>, Box<dyn std::error::Error>> {
-    if let Ok(signing_info_obj) = env
-        .get_field(package_info, "signingInfo", "Landroid/content/pm/SigningInfo;")
-        .and_then(|value| value.l())
-    {
-        if !signing_info_obj.is_null() {
-            let signers_obj = env
-                .call_method(
-                    &signing_info_obj,
-                    "getApkContentsSigners",
-                    "()[Landroid/content/pm/Signature;",
-                    &[],
-                )?
-                .l()?;
-            let signers_array: JObjectArray = signers_obj.into();
-            if env.get_array_length(&signers_array)? > 0 {
-                let signature = env.get_object_array_element(&signers_array, 0)?;
-                let cert_bytes_j = env.call_method(&signature, "toByteArray", "()[B", &[])?.l()?;
-                let cert_bytes: Vec<u8> = env.convert_byte_array(&JByteArray::from(cert_bytes_j))?;
-                return Ok(Some(cert_bytes));
-            }
-        }
+// How the payload dex reach the app class loader.
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+enum DexLoadMode {
+    // Landed under cache/dex_landing and added with addDexPath.
+    Files,
+    // Decrypted into native memory on every start and opened from direct
+    // ByteBuffers; never written to disk.
+    Memory,
+}
+
+// DexPathList opens ByteBuffer dex from API 26 on; older releases land files.
+fn dex_load_mode(sdk_int: jint) -> DexLoadMode {
+    if config::IN_MEMORY_DEX && sdk_int >= 26 {
+        DexLoadMode::Memory
     } else {
-        let _ = env.exception_clear();
+        DexLoadMode::Files
     }
+}
 
-    if let Ok(signatures_obj) = env
-        .get_field(package_info, "signatures", "[Landroid/content/pm/Signature;")
-        .and_then(|value| value.l())
-    {
-        let signatures_array: JObjectArray = signatures_obj.into();
-        if env.get_array_length(&signatures_array)? > 0 {
-            let signature = env.get_object_array_element(&signatures_array, 0)?;
-            let cert_bytes_j = env.call_method(&signature, "toByteArray", "()[B", &[])?.l()?;
-            let cert_bytes: Vec<u8> = env.convert_byte_array(&JByteArray::from(cert_bytes_j))?;
-            return Ok(Some(cert_bytes));
-        }
+// How the payload's native libraries reach the linker.
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+enum LibLoadMode {
+    // Landed under cache/native_libs, which is added with addNativePath.
+    Files,
+    // Decrypted into memfds on every start and opened from there; never
+    // written to disk.
+    Memory,
+}
+
+// System.loadLibrary only falls back to the linker's soname lookup from API
+// 30 on; before that it needs a file, so libraries are landed.
+fn lib_load_mode(sdk_int: jint) -> LibLoadMode {
+    if config::IN_MEMORY_LIBS && sdk_int >= 30 && memfd_lib::available() {
+        LibLoadMode::Memory
     } else {
-        let _ = env.exception_clear();
+        LibLoadMode::Files
     }
+}
 
-    Ok(None)
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+struct LoadModes {
+    dex: DexLoadMode,
+    libs: LibLoadMode,
 }
 
-fn verify_integrity(
-    env: &mut JNIEnv,
-    context: &JObject,
-) -> Result<(), Box<dyn std::error::Error>> {
-    info!("Verifying APK signature...");
-    let package_name = env.call_method(context, "getPackageName", "()Ljava/lang/String;", &[])?.l()?;
-    let pm = env.call_method(context, "getPackageManager", "()Landroid/content/pm/PackageManager;", &[])?.l()?;
+impl LoadModes {
+    fn any_in_memory(&self) -> bool {
+        self.dex == DexLoadMode::Memory || self.libs == LibLoadMode::Memory
+    }
+}
 
-    // Prefer modern flag first (API 28+), then fallback to legacy flag.
-    const GET_SIGNING_CERTIFICATES: i32 = 0x08000000;
-    const GET_SIGNATURES: i32 = 64;
-    let package_info = match env.call_method(
-        &pm,
-        "getPackageInfo",
-        "(Ljava/lang/String;I)Landroid/content/pm/PackageInfo;",
-        &[(&package_name).into(), GET_SIGNING_CERTIFICATES.into()],
-    ) {
-        Ok(value) => value.l()?,
-        Err(_) => {
-            let _ = env.exception_clear();
-            env.call_method(
-                &pm,
-                "getPackageInfo",
-                "(Ljava/lang/String;I)Landroid/content/pm/PackageInfo;",
-                &[(&package_name).into(), GET_SIGNATURES.into()],
-            )?
-            .l()?
+fn assets_zip_path(data_path: &str) -> String {
+    format!("{}/files/kapp_assets.zip", data_path)
+}
+
+// Returns the landed files when the landing stamp matches the current payload
+// hash and APK. A stamp that still waits for its deferred entries hands them
+// to this process as well; see resume_deferred.
+#[allow(clippy::too_many_arguments)]
+fn reuse_landing(
+    apk_path: &str,
+    cache_path: &str,
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    cache_key: Option<&landing_cache::CacheKey>,
+    in_memory_dex: bool,
+    in_memory_libs: bool,
+) -> Option<LandedPayload> {
+    let cache_key = cache_key?;
+    let stamp = {
+        let _trace = trace::section("kapp:landing_cache");
+        landing_cache::load_valid(dex_cache_dir, libs_dir, assets_zip, cache_key)
+            .filter(|stamp| stamp.in_memory_dex == in_memory_dex && stamp.in_memory_libs == in_memory_libs)?
+    };
+    let deferred = if stamp.deferred_pending {
+        Some(resume_deferred(
+            apk_path,
+            cache_path,
+            dex_cache_dir,
+            libs_dir,
+            assets_zip,
+            key,
+            expected_hash,
+            cache_key,
+            &stamp,
+        )?)
+    } else {
+        None
+    };
+    info!(
+        "land_payload: landing cache hit ({} dex, {} libs{})",
+        stamp.dex_files.len(),
+        stamp.lib_files.len(),
+        if deferred.is_some() { ", deferred entries pending" } else { "" }
+    );
+    record_landing_counters(&stamp);
+    stats::set(&stats::STATS.landing_cache, stats::CACHE_HIT);
+    let dex_paths = stamp
+        .dex_files
+        .iter()
+        .map(|(name, _)| format!("{}/{}", dex_cache_dir, name))
+        .collect();
+    Some(LandedPayload {
+        dex_paths,
+        dex_buffers: Vec::new(),
+        libs_dir: libs_dir.to_string(),
+        from_cache: true,
+        deferred,
+        memfd_libs: Vec::new(),
+        landed_libs: stamp.lib_files.iter().map(|(name, _)| name.clone()).collect(),
+        preload_libs: stamp.preload_libs,
+        dex_profiles: Vec::new(),
+    })
+}
+
+// The deferred part of a landing whose startup set is already stamped. The
+// process that landed that set may still be landing the rest, or may have
+// died first; land_deferred sorts that out under the landing lock. None
+// sends the caller down a full landing.
+#[allow(clippy::too_many_arguments)]
+fn resume_deferred(
+    apk_path: &str,
+    cache_path: &str,
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    cache_key: &landing_cache::CacheKey,
+    stamp: &landing_cache::LandingStamp,
+) -> Option<DeferredLanding> {
+    let _trace = trace::section("kapp:resume_deferred");
+    let mapped = map_stored_payload(apk_path)?;
+    let entries = match pending_deferred_entries(mapped.as_slice(), expected_hash, dex_cache_dir, stamp) {
+        Ok(entries) => entries,
+        Err(e) => {
+            warn!("land_payload: cannot resume the deferred landing: {}", e);
+            return None;
+        }
+    };
+    Some(DeferredLanding {
+        mapped,
+        cache_path: cache_path.to_string(),
+        entries,
+        key: *key,
+        dex_cache_dir: dex_cache_dir.to_string(),
+        libs_dir: libs_dir.to_string(),
+        assets_zip: assets_zip.to_string(),
+        cache_key: Some(cache_key.clone()),
+        stamp: stamp.clone(),
+        dex_profile: None,
+    })
+}
+
+// Locates the entries land_mapped_entries left for after startup: the
+// deferred dex unless they stay in memory, and the protected assets when the
+// stamp has no zip for them. Payloads without a commitment are hashed whole,
+// as landing them would.
+fn pending_deferred_entries(
+    bytes: &[u8],
+    expected_hash: &[u8; 32],
+    dex_cache_dir: &str,
+    stamp: &landing_cache::LandingStamp,
+) -> Result<DeferredEntries, Box<dyn std::error::Error>> {
+    let index = payload::PayloadIndex::parse(bytes, cipher::preferred())?;
+    let header = &index.header;
+    let actual: [u8; 32] = match header.commitment {
+        Some(commitment) => commitment,
+        None => Sha256::digest(bytes).into(),
+    };
+    check_payload_hash(&actual, expected_hash)?;
+    if header.commitment.is_some() && index.payload_end() != bytes.len() {
+        return Err("Trailing bytes after payload entries".into());
+    }
+
+    let abi = get_current_abi();
+    let mut deferred = DeferredEntries {
+        chunk_size: header.chunk_size,
+        ..Default::default()
+    };
+    let mut assets = Vec::new();
+    for segment in header.segments.iter().filter(|segment| segment.is_for(abi)) {
+        for i in segment.entries.clone() {
+            if !index.is_selected(i) {
+                continue;
+            }
+            let entry = &header.entries[i];
+            if entry.name.ends_with(".dex") && entry.is_deferred() && !stamp.in_memory_dex {
+                deferred.dexes.push(DeferredDex {
+                    entry: entry.clone(),
+                    range: index.range(i),
+                    file: PendingFile::dex(dex_cache_dir, i, entry),
+                });
+            } else if entry.name.starts_with("assets/") {
+                assets.push((entry.clone(), index.range(i)));
+            }
+        }
+    }
+    if let (None, Some(digest)) = (stamp.assets_zip_size, assets_digest(&header.entries)) {
+        deferred.assets = assets;
+        deferred.assets_digest = digest;
+    }
+    Ok(deferred)
+}
+
+// Takes the cross-process landing lock. Landing goes ahead unlocked when the
+// lock file cannot be used, as it did before the lock existed.
+fn acquire_landing_lock(cache_path: &str) -> Option<landing_lock::LandingLock> {
+    let _trace = trace::section("kapp:landing_lock");
+    match landing_lock::acquire(cache_path) {
+        Ok(lock) => {
+            if lock.waited() {
+                info!("land_payload: waited for another process to finish landing");
+            }
+            Some(lock)
+        }
+        Err(e) => {
+            warn!("land_payload: landing lock unavailable, landing unlocked: {}", e);
+            None
+        }
+    }
+}
+
+// Makes the payload available on disk. When the landing stamp matches the
+// current payload hash and APK, the already-landed files are reused and the
+// payload is neither read nor decrypted. Otherwise the payload is landed
+// under the landing lock; a process that waited for the lock rechecks the
+// stamp first and usually reuses what the lock holder landed. In
+// DexLoadMode::Memory the dex are decrypted from the mapped payload on every
+// start instead, and only libraries and assets are landed; LibLoadMode::Memory
+// does the same for libraries. Nothing is moved into place and no stamp is
+// stored before `gate` passes.
+#[allow(clippy::too_many_arguments)]
+fn land_payload(
+    apk_path: &str,
+    cache_path: &str,
+    data_path: &str,
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    modes: LoadModes,
+    gate: &SignatureGate,
+) -> Result<LandedPayload, Box<dyn std::error::Error>> {
+    let dex_cache_dir = format!("{}/dex_landing", cache_path);
+    let libs_dir = format!("{}/native_libs", cache_path);
+    let assets_zip = assets_zip_path(data_path);
+
+    let _trace = trace::section("kapp:land_payload");
+    let _timer = stats::time(&stats::STATS.land_payload_ns);
+    let memory_payload = if modes.any_in_memory() { map_memory_payload(apk_path) } else { None };
+    if modes.any_in_memory() && memory_payload.is_none() {
+        warn!("land_payload: payload cannot be opened in memory, landing dex and libraries");
+    }
+    let in_memory_dex = memory_payload.is_some() && modes.dex == DexLoadMode::Memory;
+    let in_memory_libs = memory_payload.is_some() && modes.libs == LibLoadMode::Memory;
+    let memory = MemoryEntries {
+        payload: memory_payload.as_ref(),
+        dex: in_memory_dex,
+        libs: in_memory_libs,
+    };
+    let cache_key = landing_cache::CacheKey::for_apk(apk_path, expected_hash);
+    let reuse = || {
+        reuse_landing(
+            apk_path,
+            cache_path,
+            &dex_cache_dir,
+            &libs_dir,
+            &assets_zip,
+            key,
+            expected_hash,
+            cache_key.as_ref(),
+            in_memory_dex,
+            in_memory_libs,
+        )
+    };
+    if let Some(landed) = reuse() {
+        return with_memory_entries(landed, &memory, key, expected_hash);
+    }
+
+    std::fs::create_dir_all(&dex_cache_dir)?;
+    std::fs::create_dir_all(&libs_dir)?;
+    let lock = acquire_landing_lock(cache_path);
+    if lock.as_ref().is_some_and(|lock| lock.waited()) {
+        if let Some(landed) = reuse() {
+            return with_memory_entries(landed, &memory, key, expected_hash);
+        }
+    }
+    if cache_key.is_some() {
+        debug!("land_payload: landing cache miss, decrypting payload");
+    }
+
+    stats::set(&stats::STATS.landing_cache, stats::CACHE_MISS);
+    landing_cache::invalidate(&dex_cache_dir);
+
+    debug!("{} {}", s!(strings_config::MSG_OPEN_APK).replace("{}", ""), apk_path);
+    let mut stamp = landing_cache::LandingStamp {
+        in_memory_dex,
+        in_memory_libs,
+        ..Default::default()
+    };
+    let mut deferred = DeferredEntries::default();
+    let mut landed = with_memory_entries(LandedPayload::default(), &memory, key, expected_hash)?;
+    let (dex_paths, mapped) = match memory_payload.or_else(|| map_stored_payload(apk_path)) {
+        Some(mapped) => {
+            debug!("land_payload: payload mapped from APK ({} bytes)", mapped.as_slice().len());
+            trace::counter("kapp:payload_bytes", mapped.as_slice().len() as i64);
+            stats::add(&stats::STATS.payload_bytes, mapped.as_slice().len() as u64);
+            let dex_paths = land_from_bytes(
+                mapped.as_slice(),
+                key,
+                expected_hash,
+                &dex_cache_dir,
+                &libs_dir,
+                &assets_zip,
+                &mut stamp,
+                &mut deferred,
+                !in_memory_dex,
+                !in_memory_libs,
+                gate,
+            )?;
+            (dex_paths, Some(mapped))
+        }
+        None => {
+            let apk_file = File::open(apk_path)?;
+            let mut apk_zip = ZipArchive::new(apk_file)?;
+            let payload_entry = apk_zip.by_name(&s!(strings_config::PAYLOAD_NAME))?;
+            let dex_paths = land_from_reader(
+                payload_entry,
+                key,
+                expected_hash,
+                &dex_cache_dir,
+                &libs_dir,
+                &assets_zip,
+                &mut stamp,
+                gate,
+            )?;
+            (dex_paths, None)
+        }
+    };
+
+    record_landing_counters(&stamp);
+    landed.dex_paths = dex_paths;
+    landed.libs_dir = libs_dir;
+    landed.preload_libs = stamp.preload_libs.clone();
+    if let Some(mapped) = mapped.as_ref().filter(|_| !in_memory_dex) {
+        landed.dex_profiles = read_dex_profiles(mapped.as_slice(), key);
+    }
+
+    // Only a mapped payload defers entries; the stream paths land all.
+    if let (Some(mapped), false) = (mapped, deferred.is_empty()) {
+        info!(
+            "land_payload: {} dex files and {} assets deferred until after startup",
+            deferred.dexes.len(),
+            deferred.assets.len()
+        );
+        // Siblings starting from here on reuse the startup set and leave
+        // the lock to the deferred landing.
+        if let Some(cache_key) = &cache_key {
+            let startup = landing_cache::LandingStamp {
+                deferred_pending: true,
+                ..stamp.clone()
+            };
+            if let Err(e) = landing_cache::store(&dex_cache_dir, cache_key, &startup) {
+                warn!("land_payload: failed to store landing stamp: {}", e);
+            }
+        }
+        drop(lock);
+        landed.deferred = Some(DeferredLanding {
+            mapped,
+            cache_path: cache_path.to_string(),
+            entries: deferred,
+            key: *key,
+            dex_cache_dir,
+            libs_dir: landed.libs_dir.clone(),
+            assets_zip,
+            cache_key,
+            stamp,
+            dex_profile: None,
+        });
+        return Ok(landed);
+    }
+
+    landing_cache::remove_stale_dex(&dex_cache_dir, &stamp);
+    if let Some(cache_key) = &cache_key {
+        if let Err(e) = landing_cache::store(&dex_cache_dir, cache_key, &stamp) {
+            warn!("land_payload: failed to store landing stamp: {}", e);
+        }
+    }
+
+    Ok(landed)
+}
+
+// The mapped payload when its dex and libraries can stay in memory: a stored
+// v2 payload with entry digests, so every entry is checked while it is
+// decrypted and the payload is never hashed as a whole.
+fn map_memory_payload(apk_path: &str) -> Option<apk_map::MappedRange> {
+    let mapped = map_stored_payload(apk_path)?;
+    let bytes = mapped.as_slice();
+    let committed = bytes.starts_with(s!(strings_config::MAGIC_PAYLOAD).as_bytes())
+        && payload::PayloadIndex::parse(bytes, cipher::preferred())
+            .is_ok_and(|index| index.header.commitment.is_some());
+    committed.then_some(mapped)
+}
+
+// Decrypts every dex entry, deferred ones included, into native memory on the
+// worker pool, in payload order.
+fn decrypt_dex_entries(
+    bytes: &[u8],
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+) -> Result<Vec<Vec<u8>>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:decrypt_dex_entries");
+    let _timer = stats::time(&stats::STATS.decrypt_ns);
+    let index = payload::PayloadIndex::parse(bytes, cipher::preferred())?;
+    let commitment = index.header.commitment.ok_or("In-memory dex need a payload with entry digests")?;
+    check_payload_hash(&commitment, expected_hash)?;
+
+    let names: Vec<&str> = index
+        .header
+        .entries
+        .iter()
+        .enumerate()
+        .filter(|(i, entry)| index.is_selected(*i) && entry.name.ends_with(".dex"))
+        .map(|(_, entry)| entry.name.as_str())
+        .collect();
+    let cipher = cipher::PayloadCipher::new(key);
+    let threads = parallel::worker_count(config::MAX_DECRYPT_THREADS, names.len());
+    debug!("decrypt_dex_entries: {} dex on {} threads", names.len(), threads);
+    let decrypted = parallel::map_indexed(names.len(), threads, |i| index.read_entry(names[i], &cipher));
+
+    let mut dex_buffers = Vec::with_capacity(decrypted.len());
+    for dex in decrypted {
+        let dex = dex?;
+        stats::record_entry(dex.len() as u64);
+        dex_buffers.push(dex);
+    }
+    trace::counter("kapp:memory_dex", dex_buffers.len() as i64);
+    Ok(dex_buffers)
+}
+
+// Decrypts each library of this ABI into its own memfd on the worker pool.
+fn decrypt_lib_entries(
+    bytes: &[u8],
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    landed_libs: &[String],
+) -> Result<Vec<memfd_lib::MemfdLib>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:decrypt_lib_entries");
+    let _timer = stats::time(&stats::STATS.decrypt_ns);
+    let index = payload::PayloadIndex::parse(bytes, cipher::preferred())?;
+    let commitment = index.header.commitment.ok_or("In-memory libraries need a payload with entry digests")?;
+    check_payload_hash(&commitment, expected_hash)?;
+
+    let lib_prefix = format!("lib/{}/", get_current_abi());
+    let libs: Vec<(usize, &str)> = index
+        .header
+        .entries
+        .iter()
+        .enumerate()
+        .filter(|(i, entry)| index.is_selected(*i) && entry.name.ends_with(".so"))
+        .filter_map(|(i, entry)| Some((i, entry.name.strip_prefix(&lib_prefix)?)))
+        .filter(|(_, name)| !landed_libs.iter().any(|landed| landed.as_str() == *name))
+        .collect();
+    let cipher = cipher::PayloadCipher::new(key);
+    let threads = parallel::worker_count(config::MAX_DECRYPT_THREADS, libs.len());
+    debug!("decrypt_lib_entries: {} libraries on {} threads", libs.len(), threads);
+    let decrypted = parallel::map_indexed(libs.len(), threads, |i| {
+        let (entry, name) = libs[i];
+        let mut lib = memfd_lib::MemfdLib::create(name)?;
+        let written = index.copy_entry_to(entry, &cipher, lib.file())?;
+        Ok::<_, std::io::Error>((lib, written))
+    });
+
+    let mut memfd_libs = Vec::with_capacity(decrypted.len());
+    for lib in decrypted {
+        let (lib, written) = lib?;
+        stats::record_entry(written);
+        memfd_libs.push(lib);
+    }
+    trace::counter("kapp:memfd_libs", memfd_libs.len() as i64);
+    Ok(memfd_libs)
+}
+
+// What land_payload decrypts from the mapped payload on every start.
+struct MemoryEntries<'a> {
+    payload: Option<&'a apk_map::MappedRange>,
+    dex: bool,
+    libs: bool,
+}
+
+fn with_memory_entries(
+    mut landed: LandedPayload,
+    memory: &MemoryEntries,
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+) -> Result<LandedPayload, Box<dyn std::error::Error>> {
+    if let Some(mapped) = memory.payload {
+        if memory.dex {
+            landed.dex_buffers = decrypt_dex_entries(mapped.as_slice(), key, expected_hash)?;
+        }
+        if memory.libs {
+            landed.memfd_libs = decrypt_lib_entries(mapped.as_slice(), key, expected_hash, &landed.landed_libs)?;
+        }
+    }
+    Ok(landed)
+}
+
+// Opens the in-memory libraries. One the linker refuses, for example where
+// SELinux keeps app memfds from being mapped executable, is landed in
+// native_libs after all, where System.loadLibrary finds it. Returns the
+// (file name, size) of those, for stamp_landed_libs.
+fn load_memfd_libs(libs: Vec<memfd_lib::MemfdLib>, libs_dir: &str) -> Vec<(String, u64)> {
+    if libs.is_empty() {
+        return Vec::new();
+    }
+    let _trace = trace::section("kapp:load_memfd_libs");
+    let count = libs.len();
+    // A landed copy would be found by path first and loaded a second time.
+    for lib in &libs {
+        let _ = std::fs::remove_file(format!("{}/{}", libs_dir, lib.name));
+    }
+    let failed = memfd_lib::dlopen_all(libs);
+    info!("load_memfd_libs: {} of {} libraries loaded from memory", count - failed.len(), count);
+    let mut landed = Vec::with_capacity(failed.len());
+    for (lib, e) in failed {
+        warn!("load_memfd_libs: {} failed to load from memory, landing it: {}", lib.name, e);
+        match land_memfd_lib(&lib, libs_dir) {
+            Ok(size) => landed.push((lib.name.clone(), size)),
+            Err(e) => error!("load_memfd_libs: failed to land {}: {}", lib.name, e),
+        }
+    }
+    landed
+}
+
+fn land_memfd_lib(lib: &memfd_lib::MemfdLib, libs_dir: &str) -> std::io::Result<u64> {
+    let file = PendingFile::new(format!("{}/{}", libs_dir, lib.name));
+    let size = lib.copy_to(&mut File::create(&file.tmp_path)?)?;
+    std::fs::rename(&file.tmp_path, &file.final_path)?;
+    Ok(size)
+}
+
+// Adds libraries load_memfd_libs landed to the landing stamp, so later starts
+// load them from native_libs rather than decrypting them into a memfd the
+// linker refuses again. Runs on its own thread, as it takes the landing lock.
+fn spawn_stamp_landed_libs(apk_path: &str, cache_path: &str, data_path: &str, libs: Vec<(String, u64)>) {
+    let cache_key = match landing_cache::CacheKey::for_apk(apk_path, &PAYLOAD_HASH) {
+        Some(cache_key) => cache_key,
+        None => return,
+    };
+    let cache_path = cache_path.to_string();
+    let assets_zip = assets_zip_path(data_path);
+    let spawned = std::thread::Builder::new()
+        .name("kapp-stamp-libs".to_string())
+        .spawn(move || stamp_landed_libs(&cache_path, &assets_zip, &cache_key, &libs));
+    if let Err(e) = spawned {
+        warn!("load_memfd_libs: cannot record the landed libraries: {}", e);
+    }
+}
+
+fn stamp_landed_libs(cache_path: &str, assets_zip: &str, cache_key: &landing_cache::CacheKey, libs: &[(String, u64)]) {
+    let dex_cache_dir = format!("{}/dex_landing", cache_path);
+    let libs_dir = format!("{}/native_libs", cache_path);
+    let _lock = acquire_landing_lock(cache_path);
+    // A stamp of another landing has no use for these.
+    let mut stamp = match landing_cache::load_valid(&dex_cache_dir, &libs_dir, assets_zip, cache_key) {
+        Some(stamp) if stamp.in_memory_libs => stamp,
+        _ => return,
+    };
+    for lib in libs {
+        if !stamp.lib_files.contains(lib) {
+            stamp.lib_files.push(lib.clone());
+        }
+    }
+    if let Err(e) = landing_cache::store(&dex_cache_dir, cache_key, &stamp) {
+        warn!("load_memfd_libs: failed to store landing stamp: {}", e);
+    }
+}
+
+// Fallback when the in-memory dex cannot be opened: lands them after all.
+fn land_memory_dex(cache_path: &str, dex_buffers: &[Vec<u8>]) -> std::io::Result<Vec<String>> {
+    let dex_cache_dir = format!("{}/dex_landing", cache_path);
+    let mut dex_paths = Vec::with_capacity(dex_buffers.len());
+    for dex in dex_buffers {
+        dex_paths.push(format!("{}/{}", dex_cache_dir, write_landed_dex(&dex_cache_dir, dex)?));
+    }
+    Ok(dex_paths)
+}
+
+// Landed entry counts and bytes, shown as counter tracks next to the sections.
+fn record_landing_counters(stamp: &landing_cache::LandingStamp) {
+    let dex_bytes: u64 = stamp.dex_files.iter().map(|(_, size)| size).sum();
+    let lib_bytes: u64 = stamp.lib_files.iter().map(|(_, size)| size).sum();
+    trace::counter("kapp:landed_dex", stamp.dex_files.len() as i64);
+    trace::counter("kapp:landed_dex_bytes", dex_bytes as i64);
+    trace::counter("kapp:landed_libs", stamp.lib_files.len() as i64);
+    trace::counter("kapp:landed_lib_bytes", lib_bytes as i64);
+    trace::counter("kapp:assets_zip_bytes", stamp.assets_zip_size.unwrap_or(0) as i64);
+}
+
+// Payload entries holding the packer's rewrite of the app's baseline profile,
+// keyed by landed dex name, in the profile version each release reads.
+// Releases before API 28 read neither, and their landed dex get no profile.
+fn dex_profile_entry_name(sdk_int: jint) -> Option<&'static str> {
+    match sdk_int {
+        28..=30 => Some("dexopt/010.prof"),
+        31.. => Some("dexopt/015.prof"),
+        _ => None,
+    }
+}
+
+// Decrypts the profile entries of a mapped v2 payload. Called once the
+// landing has checked the payload; a missing or unreadable profile only costs
+// the profile.
+fn read_dex_profiles(bytes: &[u8], key: &[u8; 32]) -> Vec<(String, Vec<u8>)> {
+    if !bytes.starts_with(s!(strings_config::MAGIC_PAYLOAD).as_bytes()) {
+        return Vec::new();
+    }
+    let index = match payload::PayloadIndex::parse(bytes, cipher::preferred()) {
+        Ok(index) => index,
+        Err(_) => return Vec::new(),
+    };
+    let cipher = cipher::PayloadCipher::new(key);
+    let mut profiles = Vec::new();
+    for name in [dex_profile_entry_name(28), dex_profile_entry_name(31)].into_iter().flatten() {
+        if index.find(name).is_none() {
+            continue;
+        }
+        match index.read_entry(name, &cipher) {
+            Ok(profile) => profiles.push((name.to_string(), profile)),
+            Err(e) => warn!("read_dex_profiles: failed to read {}: {}", name, e),
+        }
+    }
+    profiles
+}
+
+fn take_dex_profile(profiles: &mut Vec<(String, Vec<u8>)>, sdk_int: jint) -> Option<Vec<u8>> {
+    let name = dex_profile_entry_name(sdk_int)?;
+    let i = profiles.iter().position(|(entry, _)| entry == name)?;
+    Some(profiles.swap_remove(i).1)
+}
+
+// ART's current profile for a landed dex. Background dexopt compiles
+// secondary dex that have one with speed-profile instead of only verifying
+// them.
+fn current_profile_path(dex_path: &str) -> Option<String> {
+    let (dir, file_name) = dex_path.rsplit_once('/')?;
+    Some(format!("{}/oat/{}.cur.prof", dir, file_name))
+}
+
+// Seeds the current profile of each landed dex with the baseline profile,
+// before the dex are registered. A profile with content is left alone: it is
+// either this one or what ProfileSaver has recorded on the device since. The
+// profile covers all payload dex; compiling one dex only reads its own line.
+fn install_dex_profile(dex_paths: &[String], profile: &[u8]) {
+    let _trace = trace::section("kapp:install_dex_profile");
+    let mut installed = 0;
+    for path in dex_paths.iter().filter_map(|dex_path| current_profile_path(dex_path)) {
+        if std::fs::metadata(&path).is_ok_and(|metadata| metadata.len() > 0) {
+            continue;
+        }
+        match write_dex_profile(&path, profile) {
+            Ok(()) => installed += 1,
+            Err(e) => warn!("install_dex_profile: failed to write {}: {}", path, e),
+        }
+    }
+    trace::counter("kapp:installed_dex_profiles", installed as i64);
+    if installed > 0 {
+        info!("Installed the baseline profile for {} landed dex files", installed);
+    }
+}
+
+fn write_dex_profile(path: &str, profile: &[u8]) -> std::io::Result<()> {
+    if let Some((dir, _)) = path.rsplit_once('/') {
+        std::fs::create_dir_all(dir)?;
+    }
+    let pending = PendingFile::new(path.to_string());
+    std::fs::write(&pending.tmp_path, profile)?;
+    std::fs::rename(&pending.tmp_path, &pending.final_path)
+}
+
+// Lands the deferred entries from the still-mapped payload: the assets zip is
+// written on its own thread while the deferred dex files are decrypted on the
+// worker pool and handed to `register_dex`. The landing stamp, which now
+// covers the whole payload, is stored last. This runs under the landing lock;
+// when another process completed the landing meanwhile, its deferred dex are
+// registered instead and nothing is written.
+fn land_deferred<F>(deferred: DeferredLanding, register_dex: F) -> Result<(), Box<dyn std::error::Error>>
+where
+    F: FnOnce(&[String]),
+{
+    let DeferredLanding {
+        mapped,
+        cache_path,
+        entries,
+        key,
+        dex_cache_dir,
+        libs_dir,
+        assets_zip,
+        cache_key,
+        mut stamp,
+        dex_profile,
+    } = deferred;
+    let lock = acquire_landing_lock(&cache_path);
+    let completed = cache_key.as_ref().and_then(|cache_key| {
+        landing_cache::load_valid(&dex_cache_dir, &libs_dir, &assets_zip, cache_key).filter(|completed| {
+            !completed.deferred_pending
+                && completed.in_memory_dex == stamp.in_memory_dex
+                && completed.in_memory_libs == stamp.in_memory_libs
+        })
+    });
+    if let Some(completed) = completed {
+        info!("land_deferred: another process completed the landing");
+        let dex_paths: Vec<String> = completed
+            .dex_files
+            .iter()
+            .filter(|file| !stamp.dex_files.contains(*file))
+            .map(|(name, _)| format!("{}/{}", dex_cache_dir, name))
+            .collect();
+        if let Some(profile) = &dex_profile {
+            install_dex_profile(&dex_paths, profile);
+        }
+        register_dex(&dex_paths);
+        if !entries.assets.is_empty() {
+            set_assets_pending(false);
+        }
+        record_landing_counters(&completed);
+        return Ok(());
+    }
+    let DeferredEntries {
+        chunk_size,
+        dexes,
+        assets,
+        assets_digest,
+    } = entries;
+    let bytes = mapped.as_slice();
+
+    let (dex_result, assets_result) = std::thread::scope(|scope| {
+        let assets_worker = scope.spawn(|| {
+            let result = land_deferred_assets(bytes, &assets, &assets_digest, &key, chunk_size, &assets_zip);
+            if !assets.is_empty() {
+                set_assets_pending(false);
+            }
+            result.map_err(|e| e.to_string())
+        });
+        let dex_result = land_deferred_dex(bytes, dexes, &key, chunk_size).map(|(dex_paths, landed)| {
+            if let Some(profile) = &dex_profile {
+                install_dex_profile(&dex_paths, profile);
+            }
+            register_dex(&dex_paths);
+            landed
+        });
+        let assets_result = assets_worker
+            .join()
+            .unwrap_or_else(|panic| std::panic::resume_unwind(panic));
+        (dex_result, assets_result)
+    });
+
+    let landed = dex_result?;
+    if let Some(size) = assets_result? {
+        stamp.assets_zip_size = Some(size);
+    }
+    stamp.dex_files.extend(landed);
+    stamp.deferred_pending = false;
+    record_landing_counters(&stamp);
+    landing_cache::remove_stale_dex(&dex_cache_dir, &stamp);
+    if let Some(cache_key) = &cache_key {
+        if let Err(e) = landing_cache::store(&dex_cache_dir, cache_key, &stamp) {
+            warn!("land_deferred: failed to store landing stamp: {}", e);
+        }
+    }
+    drop(lock);
+    Ok(())
+}
+
+// Returns the landed dex paths and their (file name, size) stamp entries.
+#[allow(clippy::type_complexity)]
+fn land_deferred_dex(
+    bytes: &[u8],
+    dexes: Vec<DeferredDex>,
+    key: &[u8; 32],
+    chunk_size: usize,
+) -> Result<(Vec<String>, Vec<(String, u64)>), Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:land_deferred_dex");
+    let decrypted = dexes.iter().filter(|dex| !dex.file.kept).count();
+    let threads = parallel::worker_count(config::MAX_DECRYPT_THREADS, decrypted);
+    debug!("land_deferred: {} of {} dex files on {} threads", decrypted, dexes.len(), threads);
+    let results = parallel::map_indexed(dexes.len(), threads, |i| {
+        let dex = &dexes[i];
+        if dex.file.kept {
+            return Ok((dex.entry.raw_len, None));
+        }
+        land_sealed_dex(&dex.entry, &bytes[dex.range.clone()], &dex.file.tmp_path, key, chunk_size)
+            .map(|(size, digest)| (size, Some(digest)))
+    });
+
+    let mut pending = Vec::with_capacity(dexes.len());
+    let mut landed = Vec::with_capacity(dexes.len());
+    let mut failure = None;
+    for (mut dex, result) in dexes.into_iter().zip(results) {
+        match result {
+            Ok((size, Some(digest))) => landed.push((dex.file.name_by_content(&digest), size)),
+            Ok((size, None)) => landed.push((dex.file.file_name(), size)),
+            Err(e) => {
+                failure.get_or_insert(e);
+            }
+        }
+        pending.push(dex.file);
+    }
+    if let Some(e) = failure {
+        discard_pending(&pending);
+        return Err(e.into());
+    }
+
+    Ok((commit_pending(&pending)?, landed))
+}
+
+// Returns the size of the written assets zip, or None when there was nothing
+// to write. On failure no zip is left behind, so a stale one is never served.
+fn land_deferred_assets(
+    bytes: &[u8],
+    assets: &[(payload::EntryInfo, std::ops::Range<usize>)],
+    assets_digest: &str,
+    key: &[u8; 32],
+    chunk_size: usize,
+    assets_zip: &str,
+) -> Result<Option<u64>, Box<dyn std::error::Error>> {
+    if assets.is_empty() {
+        return Ok(None);
+    }
+    let _trace = trace::section("kapp:land_deferred_assets");
+    let sealed: Vec<(&payload::EntryInfo, &[u8])> = assets
+        .iter()
+        .map(|(entry, range)| (entry, &bytes[range.clone()]))
+        .collect();
+
+    let assets_pending = PendingFile::new(assets_zip.to_string());
+    let committed = match write_sealed_assets(&sealed, key, chunk_size, &assets_pending) {
+        Ok(count) => match commit_assets(&assets_pending, assets_digest) {
+            Ok(size) => Ok((count, size)),
+            Err(e) => Err(e.into()),
+        },
+        Err(e) => Err(e),
+    };
+    match committed {
+        Ok((count, size)) => {
+            info!("Successfully packed {} protected assets into {}", count, assets_zip);
+            Ok(Some(size))
+        }
+        Err(e) => {
+            let _ = std::fs::remove_file(&assets_pending.tmp_path);
+            remove_assets_zip(assets_zip);
+            Err(e)
+        }
+    }
+}
+
+// Maps the payload entry straight out of the APK when it is stored
+// uncompressed. None sends the caller down the zip reader path, which also
+// reports any real error about the entry.
+fn map_stored_payload(apk_path: &str) -> Option<apk_map::MappedRange> {
+    let apk_file = File::open(apk_path).ok()?;
+    let (offset, len) = {
+        let mut apk_zip = ZipArchive::new(&apk_file).ok()?;
+        let entry = apk_zip.by_name(&s!(strings_config::PAYLOAD_NAME)).ok()?;
+        if entry.compression() != zip::CompressionMethod::Stored {
+            debug!("land_payload: payload entry is compressed, not mapping it");
+            return None;
+        }
+        (entry.data_start(), entry.size() as usize)
+    };
+
+    match apk_map::MappedRange::map(&apk_file, offset, len) {
+        Ok(mapped) => Some(mapped),
+        Err(e) => {
+            warn!("land_payload: failed to map payload, reading it instead: {}", e);
+            None
+        }
+    }
+}
+
+// Mapped payload: v2 entries are decrypted in parallel from the mapping and
+// legacy payloads are verified and decrypted without copying them first.
+#[allow(clippy::too_many_arguments)]
+fn land_from_bytes(
+    bytes: &[u8],
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    stamp: &mut landing_cache::LandingStamp,
+    deferred: &mut DeferredEntries,
+    land_dex: bool,
+    land_libs: bool,
+    gate: &SignatureGate,
+) -> Result<Vec<String>, Box<dyn std::error::Error>> {
+    let magic = s!(strings_config::MAGIC_PAYLOAD);
+    if bytes.starts_with(magic.as_bytes()) {
+        land_mapped_entries(
+            bytes,
+            key,
+            expected_hash,
+            dex_cache_dir,
+            libs_dir,
+            assets_zip,
+            stamp,
+            deferred,
+            land_dex,
+            land_libs,
+            gate,
+        )
+    } else {
+        land_legacy_payload(bytes, key, expected_hash, dex_cache_dir, libs_dir, assets_zip, stamp, gate)
+    }
+}
+
+#[allow(clippy::too_many_arguments)]
+fn land_from_reader<R: Read>(
+    reader: R,
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    stamp: &mut landing_cache::LandingStamp,
+    gate: &SignatureGate,
+) -> Result<Vec<String>, Box<dyn std::error::Error>> {
+    let mut source = payload::HashingReader::new(reader);
+    let mut magic = [0u8; 4];
+    source.read_exact(&mut magic)?;
+
+    if magic == s!(strings_config::MAGIC_PAYLOAD).as_bytes() {
+        stream_landing_files(source, key, expected_hash, dex_cache_dir, libs_dir, assets_zip, stamp, gate)
+    } else {
+        let mut encrypted_data = magic.to_vec();
+        source.read_to_end(&mut encrypted_data)?;
+        land_legacy_payload(&encrypted_data, key, expected_hash, dex_cache_dir, libs_dir, assets_zip, stamp, gate)
+    }
+}
+
+// Legacy tail-metadata payload: buffered decrypt. Nothing is written before
+// the gate passes.
+#[allow(clippy::too_many_arguments)]
+fn land_legacy_payload(
+    encrypted_data: &[u8],
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    stamp: &mut landing_cache::LandingStamp,
+    gate: &SignatureGate,
+) -> Result<Vec<String>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:land_legacy_payload");
+    let _timer = stats::time(&stats::STATS.decrypt_ns);
+    trace::counter("kapp:payload_bytes", encrypted_data.len() as i64);
+    stats::add(&stats::STATS.payload_bytes, encrypted_data.len() as u64);
+    let payload = decrypt_verified_payload(encrypted_data, key, expected_hash)?;
+    for (_, data) in &payload {
+        stats::record_entry(data.len() as u64);
+    }
+    gate.wait()?;
+    stamp.assets_zip_size = extract_assets_core(assets_zip, &payload)?;
+    Ok(write_landing_files(dex_cache_dir, libs_dir, &payload, stamp)?)
+}
+
+fn check_payload_hash(actual: &[u8; 32], expected_hash: &[u8; 32]) -> Result<(), Box<dyn std::error::Error>> {
+    if actual != expected_hash {
+        // Check if it's all zeros (empty/dummy config)
+        if *expected_hash != [0u8; 32] {
+            error!("Payload hash mismatch! Expected: {}, Actual: {}", 
+                hex::encode(expected_hash), 
+                hex::encode(actual));
+            return Err("Payload integrity check failed".into());
+        } else {
+            warn!("Payload hash check skipped (embedded hash is zero).");
+        }
+    }
+    Ok(())
+}
+
+// Landing files are first written next to their final path and only renamed
+// into place once the whole payload hash has been verified and the APK
+// signature check passed.
+struct PendingFile {
+    tmp_path: String,
+    final_path: String,
+    // Already landed at final_path; nothing is written for it.
+    kept: bool,
+}
+
+impl PendingFile {
+    fn new(final_path: String) -> Self {
+        PendingFile {
+            tmp_path: format!("{}.tmp", final_path),
+            final_path,
+            kept: false,
+        }
+    }
+
+    // A dex is written under its position in the payload and only gets its
+    // final name, see landed_dex_name, once its content is known. When the
+    // index records that name and a file of the entry's size is already
+    // landed under it, the dex is kept instead and the entry is not
+    // decrypted at all.
+    fn dex(dex_cache_dir: &str, index: usize, entry: &payload::EntryInfo) -> Self {
+        let content_name = entry.content_name.filter(|name| name.iter().any(|&byte| byte != 0));
+        if let Some(content_name) = content_name {
+            let final_path = format!("{}/{}", dex_cache_dir, landed_dex_name(&content_name));
+            let landed = std::fs::metadata(&final_path)
+                .is_ok_and(|metadata| metadata.is_file() && metadata.len() == entry.raw_len);
+            if landed {
+                debug!("Keeping landed {} for {}", final_path, entry.name);
+                return PendingFile {
+                    kept: true,
+                    ..PendingFile::new(final_path)
+                };
+            }
+        }
+        PendingFile::new(format!("{}/payload_{}.dex", dex_cache_dir, index))
+    }
+
+    // Points the dex at its content-addressed name and returns that name.
+    fn name_by_content(&mut self, digest: &[u8; 32]) -> String {
+        let name = landed_dex_name(digest);
+        let dir = self.final_path.rsplit_once('/').map_or("", |(dir, _)| dir);
+        self.final_path = format!("{}/{}", dir, name);
+        name
+    }
+
+    fn file_name(&self) -> String {
+        self.final_path.rsplit('/').next().unwrap_or_default().to_string()
+    }
+}
+
+// Landed dex are named after the SHA-256 of their content. A dex that did not
+// change across app updates keeps its file, so the code ART compiled for it
+// under oat/ during idle maintenance stays valid instead of being thrown away
+// with a rewritten payload_{i}.dex.
+fn landed_dex_name(digest: &[u8]) -> String {
+    format!("{}.dex", hex::encode(&digest[..payload::CONTENT_NAME_LEN]))
+}
+
+fn has_same_size(path: &str, other: &str) -> bool {
+    match (std::fs::metadata(path), std::fs::metadata(other)) {
+        (Ok(a), Ok(b)) => a.is_file() && b.is_file() && a.len() == b.len(),
+        _ => false,
+    }
+}
+
+fn discard_pending(pending: &[PendingFile]) {
+    for file in pending {
+        let _ = std::fs::remove_file(&file.tmp_path);
+    }
+}
+
+// Decrypts v2 payload entries straight from the APK entry into their landing
+// files with a bounded buffer, hashing the payload in the same pass.
+#[allow(clippy::too_many_arguments)]
+fn stream_landing_files<R: Read>(
+    mut source: payload::HashingReader<R>,
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    stamp: &mut landing_cache::LandingStamp,
+    gate: &SignatureGate,
+) -> Result<Vec<String>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:stream_landing_files");
+    let _timer = stats::time(&stats::STATS.decrypt_ns);
+    let header = payload::read_header_after_magic(&mut source)?;
+    trace::counter("kapp:payload_entries", header.entries.len() as i64);
+    // With entry digests the commitment is checked before anything is
+    // written, and each entry is checked against its digest as it is read.
+    if let Some(commitment) = &header.commitment {
+        check_payload_hash(commitment, expected_hash)?;
+        source.stop_hashing();
+    }
+    let assets_pending = PendingFile::new(assets_zip.to_string());
+    let mut pending: Vec<PendingFile> = Vec::new();
+
+    // An unchanged assets zip is kept; its entries are then only hashed.
+    let digest = assets_digest(&header.entries);
+    let reused_assets = digest
+        .as_deref()
+        .and_then(|digest| landing_cache::reusable_assets_zip(assets_zip, digest));
+    let streamed = stream_entries(
+        &mut source,
+        &header,
+        key,
+        dex_cache_dir,
+        libs_dir,
+        reused_assets.is_none().then_some(&assets_pending),
+        &mut pending,
+        stamp,
+    );
+    let asset_count = match streamed {
+        Ok(count) => count,
+        Err(e) => {
+            discard_landing(&pending, &assets_pending);
+            return Err(e);
+        }
+    };
+
+    debug!("Streamed {} bytes from payload", source.bytes_read());
+    trace::counter("kapp:payload_bytes", source.bytes_read() as i64);
+    stats::add(&stats::STATS.payload_bytes, source.bytes_read());
+    if let Some(hash) = source.finalize() {
+        if let Err(e) = check_payload_hash(&hash, expected_hash) {
+            discard_landing(&pending, &assets_pending);
+            return Err(e);
+        }
+    }
+    if let Err(e) = gate.wait() {
+        discard_landing(&pending, &assets_pending);
+        return Err(e.into());
+    }
+
+    if let Some(size) = reused_assets {
+        debug!("Protected assets unchanged, keeping {}", assets_zip);
+        stamp.assets_zip_size = Some(size);
+    }
+    commit_landing(&pending, &assets_pending, asset_count, digest.as_deref(), stamp)
+}
+
+fn discard_landing(pending: &[PendingFile], assets_pending: &PendingFile) {
+    discard_pending(pending);
+    let _ = std::fs::remove_file(&assets_pending.tmp_path);
+}
+
+// Moves verified landing files into place. Dex files are made read-only
+// first, as ART requires for dex files loaded from app-writable storage. A dex
+// already landed under its content-addressed name is left untouched, whether
+// it was kept without decrypting or written again.
+fn commit_pending(pending: &[PendingFile]) -> std::io::Result<Vec<String>> {
+    let mut dex_paths = Vec::new();
+    for file in pending {
+        if file.final_path.ends_with(".dex") {
+            if !dex_paths.contains(&file.final_path) {
+                dex_paths.push(file.final_path.clone());
+            }
+            if file.kept {
+                continue;
+            }
+            if has_same_size(&file.tmp_path, &file.final_path) {
+                std::fs::remove_file(&file.tmp_path)?;
+                continue;
+            }
+            #[cfg(unix)]
+            {
+                use std::os::unix::fs::PermissionsExt;
+                std::fs::set_permissions(&file.tmp_path, std::fs::Permissions::from_mode(0o444))?;
+            }
+        }
+        std::fs::rename(&file.tmp_path, &file.final_path)?;
+    }
+    Ok(dex_paths)
+}
+
+fn commit_landing(
+    pending: &[PendingFile],
+    assets_pending: &PendingFile,
+    asset_count: usize,
+    assets_digest: Option<&str>,
+    stamp: &mut landing_cache::LandingStamp,
+) -> Result<Vec<String>, Box<dyn std::error::Error>> {
+    let dex_paths = commit_pending(pending)?;
+
+    let assets_zip = assets_pending.final_path.as_str();
+    match assets_digest {
+        Some(digest) if asset_count > 0 => {
+            stamp.assets_zip_size = Some(commit_assets(assets_pending, digest)?);
+            info!("Successfully packed {} protected assets into {}", asset_count, assets_zip);
+        }
+        Some(_) => {}
+        // No protected assets: do not leave a stale zip from an older payload.
+        None => remove_assets_zip(assets_zip),
+    }
+
+    Ok(dex_paths)
+}
+
+// Renames the written assets zip into place and stamps it with the digest of
+// the entries it holds. Returns the zip size.
+fn commit_assets(assets_pending: &PendingFile, digest: &str) -> std::io::Result<u64> {
+    let assets_zip = assets_pending.final_path.as_str();
+    landing_cache::invalidate_assets_stamp(assets_zip);
+    std::fs::rename(&assets_pending.tmp_path, assets_zip)?;
+    let size = std::fs::metadata(assets_zip)?.len();
+    if let Err(e) = landing_cache::store_assets_stamp(assets_zip, digest, size) {
+        warn!("Failed to store assets stamp: {}", e);
+    }
+    Ok(size)
+}
+
+fn remove_assets_zip(assets_zip: &str) {
+    landing_cache::invalidate_assets_stamp(assets_zip);
+    let _ = std::fs::remove_file(assets_zip);
+}
+
+// Digest of the sealed asset entries, or None when the payload has none. The
+// packer draws fresh nonces for every pack, so equal digests mean the zip was
+// built from this very payload's assets, not just from equal file names.
+fn assets_digest(entries: &[payload::EntryInfo]) -> Option<String> {
+    let mut hasher = Sha256::new();
+    let mut any = false;
+    for entry in entries.iter().filter(|entry| entry.name.starts_with("assets/")) {
+        any = true;
+        hasher.update((entry.name.len() as u64).to_le_bytes());
+        hasher.update(entry.name.as_bytes());
+        hasher.update(entry.plain_len.to_le_bytes());
+        hasher.update(entry.stored_len.to_le_bytes());
+        hasher.update(entry.nonce);
+    }
+    any.then(|| hex::encode(hasher.finalize()))
+}
+
+// A dex or .so entry of a mapped v2 payload, decrypted by a pool worker.
+struct LandingJob<'a> {
+    entry: &'a payload::EntryInfo,
+    sealed: &'a [u8],
+    file: PendingFile,
+    is_dex: bool,
+}
+
+// Mapped v2 payload: dex and .so entries are decrypted concurrently straight
+// from the mapping. With entry digests the commitment is checked up front and
+// every worker checks its entry's digest in the decrypt pass, so deferred
+// entries and assets are not read at startup at all. Older payloads have the
+// calling thread hash the whole payload meanwhile instead. Nothing is renamed
+// into place before the checks and `gate` passed. Deferred dex entries and protected
+// assets are only located here and handed back through `deferred`, unless the
+// assets zip on disk is already up to date. Without `land_dex` dex entries are
+// left alone, and so are libraries without `land_libs`; they are opened in
+// memory.
+#[allow(clippy::too_many_arguments)]
+fn land_mapped_entries(
+    bytes: &[u8],
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_zip: &str,
+    stamp: &mut landing_cache::LandingStamp,
+    deferred: &mut DeferredEntries,
+    land_dex: bool,
+    land_libs: bool,
+    gate: &SignatureGate,
+) -> Result<Vec<String>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:land_mapped_entries");
+    let _timer = stats::time(&stats::STATS.decrypt_ns);
+    let index = payload::PayloadIndex::parse(bytes, cipher::preferred())?;
+    let header = &index.header;
+    trace::counter("kapp:payload_entries", header.entries.len() as i64);
+    if let Some(commitment) = &header.commitment {
+        check_payload_hash(commitment, expected_hash)?;
+    }
+    let chunk_size = header.chunk_size;
+    deferred.chunk_size = chunk_size;
+
+    let abi = get_current_abi();
+    let lib_prefix = format!("lib/{}/", abi);
+    let mut jobs: Vec<LandingJob> = Vec::new();
+    let mut assets = Vec::new();
+
+    for segment in &header.segments {
+        if !segment.is_for(abi) {
+            debug!("land_mapped_entries: skipping {} segment, {} bytes", segment.abi, segment.len);
+            let start = segment.offset as usize;
+            apk_map::skip_readahead(&bytes[start..start + segment.len as usize]);
+            continue;
+        }
+
+        for i in segment.entries.clone() {
+            if !index.is_selected(i) {
+                continue;
+            }
+            let entry = &header.entries[i];
+            let name = entry.name.as_str();
+            if name.ends_with(".dex") && !land_dex {
+                continue;
+            } else if name.ends_with(".dex") && entry.is_deferred() {
+                deferred.dexes.push(DeferredDex {
+                    entry: entry.clone(),
+                    range: index.range(i),
+                    file: PendingFile::dex(dex_cache_dir, i, entry),
+                });
+            } else if name.ends_with(".dex") {
+                jobs.push(LandingJob {
+                    entry,
+                    sealed: index.sealed(i),
+                    file: PendingFile::dex(dex_cache_dir, i, entry),
+                    is_dex: true,
+                });
+            } else if name.starts_with(&lib_prefix) && name.ends_with(".so") && land_libs {
+                let file_name = name.strip_prefix(&lib_prefix).unwrap_or(name);
+                if entry.is_preload() {
+                    stamp.preload_libs.push(file_name.to_string());
+                }
+                jobs.push(LandingJob {
+                    entry,
+                    sealed: index.sealed(i),
+                    file: PendingFile::new(format!("{}/{}", libs_dir, file_name)),
+                    is_dex: false,
+                });
+            } else if name.starts_with("assets/") {
+                assets.push((entry.clone(), index.range(i)));
+            }
+        }
+    }
+    // Bytes after the last segment are not covered by the commitment.
+    if header.commitment.is_some() && index.payload_end() != bytes.len() {
+        return Err("Trailing bytes after payload entries".into());
+    }
+
+    let decrypted = jobs.iter().filter(|job| !job.file.kept).count();
+    let threads = parallel::worker_count(config::MAX_DECRYPT_THREADS, decrypted);
+    debug!("land_mapped_entries: {} of {} entries on {} threads", decrypted, jobs.len(), threads);
+
+    let (hash, landed) = std::thread::scope(|scope| {
+        let workers = scope.spawn(|| {
+            parallel::map_indexed(jobs.len(), threads, |i| {
+                let job = &jobs[i];
+                if job.file.kept {
+                    Ok((job.entry.raw_len, None))
+                } else if job.is_dex {
+                    land_sealed_dex(job.entry, job.sealed, &job.file.tmp_path, key, chunk_size)
+                        .map(|(size, digest)| (size, Some(digest)))
+                } else {
+                    land_sealed_entry(job.entry, job.sealed, &job.file.tmp_path, key, chunk_size)
+                        .map(|size| (size, None))
+                }
+            })
+        });
+        let hash: Option<[u8; 32]> = header.commitment.is_none().then(|| {
+            let _trace = trace::section("kapp:hash_payload");
+            Sha256::digest(bytes).into()
+        });
+        let landed = workers.join().unwrap_or_else(|panic| std::panic::resume_unwind(panic));
+        (hash, landed)
+    });
+
+    let mut pending: Vec<PendingFile> = jobs.into_iter().map(|job| job.file).collect();
+    let mut landed_entries = Vec::with_capacity(landed.len());
+    for result in landed {
+        match result {
+            Ok(entry) => landed_entries.push(entry),
+            Err(e) => {
+                discard_pending(&pending);
+                return Err(e.into());
+            }
+        }
+    }
+    if let Some(Err(e)) = hash.map(|hash| check_payload_hash(&hash, expected_hash)) {
+        discard_pending(&pending);
+        return Err(e);
+    }
+    if let Err(e) = gate.wait() {
+        discard_pending(&pending);
+        return Err(e.into());
+    }
+
+    for (file, (size, digest)) in pending.iter_mut().zip(landed_entries) {
+        match digest {
+            Some(digest) => stamp.dex_files.push((file.name_by_content(&digest), size)),
+            None if file.kept => stamp.dex_files.push((file.file_name(), size)),
+            None => stamp.lib_files.push((file.file_name(), size)),
+        }
+    }
+    let dex_paths = commit_pending(&pending)?;
+
+    match assets_digest(&header.entries) {
+        None => remove_assets_zip(assets_zip),
+        Some(digest) => match landing_cache::reusable_assets_zip(assets_zip, &digest) {
+            Some(size) => {
+                debug!("Protected assets unchanged, keeping {}", assets_zip);
+                stamp.assets_zip_size = Some(size);
+            }
+            None => {
+                // Rewritten after startup; never serve the old zip meanwhile.
+                remove_assets_zip(assets_zip);
+                deferred.assets = assets;
+                deferred.assets_digest = digest;
+            }
+        },
+    }
+    Ok(dex_paths)
+}
+
+fn land_sealed_entry(
+    entry: &payload::EntryInfo,
+    sealed: &[u8],
+    tmp_path: &str,
+    key: &[u8; 32],
+    chunk_size: usize,
+) -> std::io::Result<u64> {
+    let _ = std::fs::remove_file(tmp_path);
+    let mut out = File::create(tmp_path)?;
+    write_sealed_entry(entry, sealed, &mut out, key, chunk_size)
+}
+
+// Returns the landed size and the SHA-256 of the landed content.
+fn land_sealed_dex(
+    entry: &payload::EntryInfo,
+    sealed: &[u8],
+    tmp_path: &str,
+    key: &[u8; 32],
+    chunk_size: usize,
+) -> std::io::Result<(u64, [u8; 32])> {
+    let _ = std::fs::remove_file(tmp_path);
+    let mut out = payload::HashingWriter::new(File::create(tmp_path)?);
+    let written = write_sealed_entry(entry, sealed, &mut out, key, chunk_size)?;
+    Ok((written, out.finalize()))
+}
+
+fn write_sealed_entry<W: Write>(
+    entry: &payload::EntryInfo,
+    mut sealed: &[u8],
+    out: &mut W,
+    key: &[u8; 32],
+    chunk_size: usize,
+) -> std::io::Result<u64> {
+    let cipher = cipher::PayloadCipher::new(key);
+    let mut reader = payload::EntryReader::new(&mut sealed, &cipher, chunk_size, entry);
+    let written = payload::copy_entry(&mut reader, entry, out)?;
+    stats::record_entry(written);
+    Ok(written)
+}
+
+// Returns the number of assets written to the pending assets zip.
+fn write_sealed_assets(
+    assets: &[(&payload::EntryInfo, &[u8])],
+    key: &[u8; 32],
+    chunk_size: usize,
+    assets_pending: &PendingFile,
+) -> Result<usize, Box<dyn std::error::Error>> {
+    if assets.is_empty() {
+        return Ok(0);
+    }
+    if let Some(parent) = std::path::Path::new(&assets_pending.final_path).parent() {
+        std::fs::create_dir_all(parent)?;
+    }
+
+    let cipher = cipher::PayloadCipher::new(key);
+    let mut writer = zip::ZipWriter::new(File::create(&assets_pending.tmp_path)?);
+    let options = zip::write::FileOptions::default()
+        .compression_method(zip::CompressionMethod::Stored);
+    for (entry, sealed) in assets {
+        debug!("Adding asset to ZIP: {}", entry.name);
+        writer.start_file(entry.name.as_str(), options)?;
+        let mut sealed: &[u8] = sealed;
+        let mut reader = payload::EntryReader::new(&mut sealed, &cipher, chunk_size, entry);
+        stats::record_entry(payload::copy_entry(&mut reader, entry, &mut writer)?);
+    }
+    writer.finish()?;
+    Ok(assets.len())
+}
+
+// Returns the number of assets written to the pending assets zip. Without a
+// pending zip the asset entries are skipped like foreign ABIs.
+#[allow(clippy::too_many_arguments)]
+fn stream_entries<R: Read>(
+    source: &mut payload::HashingReader<R>,
+    header: &payload::PayloadHeader,
+    key: &[u8; 32],
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    assets_pending: Option<&PendingFile>,
+    pending: &mut Vec<PendingFile>,
+    stamp: &mut landing_cache::LandingStamp,
+) -> Result<usize, Box<dyn std::error::Error>> {
+    let cipher = cipher::PayloadCipher::new(key);
+    let selected = payload::select_entries(&header.entries, cipher::preferred());
+    let abi = get_current_abi();
+    let lib_prefix = format!("lib/{}/", abi);
+    let mut assets_writer: Option<zip::ZipWriter<File>> = None;
+    let mut asset_count = 0;
+
+    for segment in &header.segments {
+        // Padding up to the page the segment starts on.
+        let gap = segment
+            .offset
+            .checked_sub(source.bytes_read())
+            .ok_or("Payload segments out of order")?;
+        payload::skip_bytes(source, gap)?;
+        if !segment.is_for(abi) {
+            // A zip stream cannot seek, but nothing of it is decrypted.
+            debug!("stream_entries: skipping {} segment, {} bytes", segment.abi, segment.len);
+            payload::skip_bytes(source, segment.len)?;
+            continue;
+        }
+
+        for i in segment.entries.clone() {
+            let entry = &header.entries[i];
+            let name = entry.name.as_str();
+            if !selected[i] {
+                // Sealed again under the cipher this device prefers.
+                payload::skip_entry(source, entry)?;
+                continue;
+            }
+
+            if name.ends_with(".dex") {
+                let file = PendingFile::dex(dex_cache_dir, i, entry);
+                if file.kept {
+                    payload::skip_entry(source, entry)?;
+                    stamp.dex_files.push((file.file_name(), entry.raw_len));
+                    pending.push(file);
+                    continue;
+                }
+                let _ = std::fs::remove_file(&file.tmp_path);
+                let mut out = payload::HashingWriter::new(File::create(&file.tmp_path)?);
+                pending.push(file);
+                let mut reader = payload::EntryReader::new(source, &cipher, header.chunk_size, entry);
+                let written = payload::copy_entry(&mut reader, entry, &mut out)?;
+                stats::record_entry(written);
+                let digest = out.finalize();
+                if let Some(file) = pending.last_mut() {
+                    stamp.dex_files.push((file.name_by_content(&digest), written));
+                }
+            } else if name.starts_with(&lib_prefix) && name.ends_with(".so") {
+                let file_name = name.strip_prefix(&lib_prefix).unwrap_or(name).to_string();
+                let file = PendingFile::new(format!("{}/{}", libs_dir, file_name));
+                let mut out = File::create(&file.tmp_path)?;
+                pending.push(file);
+                let mut reader = payload::EntryReader::new(source, &cipher, header.chunk_size, entry);
+                let written = payload::copy_entry(&mut reader, entry, &mut out)?;
+                stats::record_entry(written);
+                if entry.is_preload() {
+                    stamp.preload_libs.push(file_name.clone());
+                }
+                stamp.lib_files.push((file_name, written));
+            } else if let Some(assets_pending) = assets_pending.filter(|_| name.starts_with("assets/")) {
+                if assets_writer.is_none() {
+                    if let Some(parent) = std::path::Path::new(&assets_pending.final_path).parent() {
+                        std::fs::create_dir_all(parent)?;
+                    }
+                    let file = File::create(&assets_pending.tmp_path)?;
+                    assets_writer = Some(zip::ZipWriter::new(file));
+                }
+                if let Some(writer) = assets_writer.as_mut() {
+                    debug!("Adding asset to ZIP: {}", name);
+                    let options = zip::write::FileOptions::default()
+                        .compression_method(zip::CompressionMethod::Stored);
+                    writer.start_file(name, options)?;
+                    let mut reader = payload::EntryReader::new(source, &cipher, header.chunk_size, entry);
+                    stats::record_entry(payload::copy_entry(&mut reader, entry, writer)?);
+                    asset_count += 1;
+                }
+            } else {
+                // Other ABIs, reused assets and unknown entries are hashed but
+                // never decrypted.
+                payload::skip_entry(source, entry)?;
+            }
+        }
+    }
+
+    if let Some(mut writer) = assets_writer.take() {
+        writer.finish()?;
+    }
+    Ok(asset_count)
+}
+
+// Returns the size of the written assets zip, or None when the payload holds
+// no protected assets.
+fn extract_assets_core(
+    zip_path: &str,
+    payload: &[(String, Vec<u8>)],
+) -> Result<Option<u64>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:extract_assets_core");
+    landing_cache::invalidate_assets_stamp(zip_path);
+    if !payload.iter().any(|(name, _)| name.starts_with("assets/")) {
+        let _ = std::fs::remove_file(zip_path);
+        return Ok(None);
+    }
+    debug!("extract_assets_core: Landing assets in {}", zip_path);
+    
+    // Ensure parent directory (files) exists
+    if let Some(parent) = std::path::Path::new(zip_path).parent() {
+        std::fs::create_dir_all(parent)?;
+    }
+
+    let file = File::create(zip_path)?;
+    let mut zip = zip::ZipWriter::new(file);
+    let options = zip::write::FileOptions::default()
+        .compression_method(zip::CompressionMethod::Stored); // Store uncompressed for speed/simplicity
+
+    let mut asset_count = 0;
+    for (name, data) in payload {
+        if name.starts_with("assets/") {
+            debug!("Adding asset to ZIP: {}", name);
+            zip.start_file(name, options)?;
+            zip.write_all(data)?;
+            asset_count += 1;
+        }
+    }
+    
+    zip.finish()?;
+
+    info!("Successfully packed {} protected assets into {}", asset_count, zip_path);
+    Ok(Some(std::fs::metadata(zip_path)?.len()))
+}
+
+// Replaces a landed file. Dex files are made read-only after landing, so the
+// old file is unlinked first instead of being truncated in place.
+fn write_landed_file(path: &str, data: &[u8], read_only: bool) -> std::io::Result<()> {
+    let _ = std::fs::remove_file(path);
+    let mut file = File::create(path)?;
+    file.write_all(data)?;
+    #[cfg(unix)]
+    {
+        use std::os::unix::fs::PermissionsExt;
+        if read_only {
+            file.set_permissions(std::fs::Permissions::from_mode(0o444))?;
+        }
+    }
+    #[cfg(not(unix))]
+    let _ = read_only;
+    Ok(())
+}
+
+// Writes a buffered dex under its content-addressed name unless it is already
+// there, and returns that name.
+fn write_landed_dex(dex_cache_dir: &str, data: &[u8]) -> std::io::Result<String> {
+    let digest: [u8; 32] = Sha256::digest(data).into();
+    let file_name = landed_dex_name(&digest);
+    let path = format!("{}/{}", dex_cache_dir, file_name);
+    let landed = std::fs::metadata(&path)
+        .is_ok_and(|metadata| metadata.is_file() && metadata.len() == data.len() as u64);
+    if !landed {
+        write_landed_file(&path, data, true)?;
+    }
+    Ok(file_name)
+}
+
+fn write_landing_files(
+    dex_cache_dir: &str,
+    libs_dir: &str,
+    file_list: &[(String, Vec<u8>)],
+    stamp: &mut landing_cache::LandingStamp,
+) -> std::io::Result<Vec<String>> {
+    let mut dex_paths = Vec::new();
+
+    let current_abi = get_current_abi();
+    let lib_prefix = format!("lib/{}/", current_abi);
+
+    for (name, data) in file_list {
+        if name.ends_with(".dex") {
+            let file_name = write_landed_dex(dex_cache_dir, data)?;
+            stamp.dex_files.push((file_name.clone(), data.len() as u64));
+            dex_paths.push(format!("{}/{}", dex_cache_dir, file_name));
+        } else if name.starts_with(&lib_prefix) && name.ends_with(".so") {
+            let filename = name.strip_prefix(&lib_prefix).unwrap_or(name);
+            let lib_path = format!("{}/{}", libs_dir, filename);
+            write_landed_file(&lib_path, data, false)?;
+            stamp.lib_files.push((filename.to_string(), data.len() as u64));
+        }
+    }
+
+    Ok(dex_paths)
+}
+
+fn get_package_code_path(env: &mut JNIEnv, context: &JObject) -> Result<String, jni::errors::Error> {
+    debug!("Calling getPackageCodePath...");
+    let package_code_path = call_object_method(
+        env,
+        context,
+        jni_cache::get().map(|c| c.context_get_package_code_path),
+        "getPackageCodePath",
+        "()Ljava/lang/String;",
+        &[],
+    )?;
+    let path_str = jstring_to_string(env, package_code_path)?;
+    debug!("Package code path: {}", path_str);
+    Ok(path_str)
+}
+
+fn validate_signature_hash(expected: &[u8; 32], actual: &[u8; 32]) -> Result<(), String> {
+    if expected.iter().all(|&b| b == 0) {
+        warn!("Signature hash check skipped (embedded hash is zero).");
+        return Ok(());
+    }
+
+    if actual != expected {
+        return Err(format!(
+            "Signature mismatch! Expected: {}, Actual: {}",
+            hex::encode(expected),
+            hex::encode(actual)
+        ));
+    }
+
+    Ok(())
+}
+
+fn extract_signature_bytes(
+    env: &mut JNIEnv,
+    package_info: &JObject,
+) -> Result<Option<Vec<u8>>, Box<dyn std::error::Error>> {
+    let cache = jni_cache::get();
+    let to_byte_array = cache.map(|c| c.signature_to_byte_array);
+    // With a cache, a missing signingInfo (API < 28) is already known and
+    // the lookup is skipped.
+    let signing_info = match cache {
+        Some(c) if c.package_info_signing_info.is_none() => None,
+        _ => match get_object_field(
+            env,
+            package_info,
+            cache.and_then(|c| c.package_info_signing_info),
+            "signingInfo",
+            "Landroid/content/pm/SigningInfo;",
+        ) {
+            Ok(value) => Some(value),
+            Err(_) => {
+                let _ = env.exception_clear();
+                None
+            }
+        },
+    };
+    if let Some(signing_info_obj) = signing_info.filter(|obj| !obj.is_null()) {
+        let signers_obj = call_object_method(
+            env,
+            &signing_info_obj,
+            cache.and_then(|c| c.signing_info_get_apk_contents_signers),
+            "getApkContentsSigners",
+            "()[Landroid/content/pm/Signature;",
+            &[],
+        )?;
+        let signers_array: JObjectArray = signers_obj.into();
+        if env.get_array_length(&signers_array)? > 0 {
+            let signature = env.get_object_array_element(&signers_array, 0)?;
+            let cert_bytes_j = call_object_method(env, &signature, to_byte_array, "toByteArray", "()[B", &[])?;
+            let cert_bytes: Vec<u8> = env.convert_byte_array(&JByteArray::from(cert_bytes_j))?;
+            return Ok(Some(cert_bytes));
+        }
+    }
+
+    match get_object_field(
+        env,
+        package_info,
+        cache.map(|c| c.package_info_signatures),
+        "signatures",
+        "[Landroid/content/pm/Signature;",
+    ) {
+        Ok(signatures_obj) => {
+            let signatures_array: JObjectArray = signatures_obj.into();
+            if env.get_array_length(&signatures_array)? > 0 {
+                let signature = env.get_object_array_element(&signatures_array, 0)?;
+                let cert_bytes_j = call_object_method(env, &signature, to_byte_array, "toByteArray", "()[B", &[])?;
+                let cert_bytes: Vec<u8> = env.convert_byte_array(&JByteArray::from(cert_bytes_j))?;
+                return Ok(Some(cert_bytes));
+            }
+        }
+        Err(_) => {
+            let _ = env.exception_clear();
+        }
+    }
+
+    Ok(None)
+}
+
+fn verify_integrity(
+    env: &mut JNIEnv,
+    context: &JObject,
+) -> Result<(), Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:verify_integrity");
+    let _timer = stats::time(&stats::STATS.verify_integrity_ns);
+    info!("Verifying APK signature...");
+    let cache = jni_cache::get();
+    let package_name = call_object_method(
+        env,
+        context,
+        cache.map(|c| c.context_get_package_name),
+        "getPackageName",
+        "()Ljava/lang/String;",
+        &[],
+    )?;
+    let pm = call_object_method(
+        env,
+        context,
+        cache.map(|c| c.context_get_package_manager),
+        "getPackageManager",
+        "()Landroid/content/pm/PackageManager;",
+        &[],
+    )?;
+
+    // Prefer modern flag first (API 28+), then fallback to legacy flag.
+    const GET_SIGNING_CERTIFICATES: i32 = 0x08000000;
+    const GET_SIGNATURES: i32 = 64;
+    let get_package_info = cache.map(|c| c.package_manager_get_package_info);
+    let package_info_sig = "(Ljava/lang/String;I)Landroid/content/pm/PackageInfo;";
+    let package_info = match call_object_method(
+        env,
+        &pm,
+        get_package_info,
+        "getPackageInfo",
+        package_info_sig,
+        &[JValue::Object(&package_name), JValue::Int(GET_SIGNING_CERTIFICATES)],
+    ) {
+        Ok(value) => value,
+        Err(_) => {
+            let _ = env.exception_clear();
+            call_object_method(
+                env,
+                &pm,
+                get_package_info,
+                "getPackageInfo",
+                package_info_sig,
+                &[JValue::Object(&package_name), JValue::Int(GET_SIGNATURES)],
+            )?
         }
     };
 
@@ -527,40 +2683,23 @@ fn verify_integrity(
     Ok(())
 }
 
-fn extract_payload(path: &str, verify: bool) -> Result<Vec<(String, Vec<u8>)>, Box<dyn std::error::Error>> {
-    debug!("{} {}", s!(strings_config::MSG_OPEN_APK).replace("{}", ""), path);
-    let apk_file = File::open(path)?;
-    let mut apk_zip = ZipArchive::new(apk_file)?;
-    debug!("Opening content...");
-    let mut payload_entry = apk_zip.by_name(&s!(strings_config::PAYLOAD_NAME))?;
-    let mut encrypted_data = Vec::new();
-    payload_entry.read_to_end(&mut encrypted_data)?;
+// Legacy (tail-metadata) payloads are verified and decrypted in memory.
+fn decrypt_verified_payload(
+    encrypted_data: &[u8],
+    key: &[u8; 32],
+    expected_hash: &[u8; 32],
+) -> Result<Vec<(String, Vec<u8>)>, Box<dyn std::error::Error>> {
     debug!("Read {} bytes from payload", encrypted_data.len());
-
-    if verify {
-        let mut hasher = Sha256::new();
-        hasher.update(&encrypted_data);
-        let hash = hasher.finalize();
-        if hash.as_slice() != PAYLOAD_HASH {
-            // Check if it's all zeros (empty/dummy config)
-            if PAYLOAD_HASH != [0u8; 32] {
-                error!("Payload hash mismatch! Expected: {}, Actual: {}", 
-                    hex::encode(PAYLOAD_HASH), 
-                    hex::encode(hash));
-                return Err("Payload integrity check failed".into());
-            } else {
-                warn!("Payload hash check skipped (embedded hash is zero).");
-            }
-        }
-    }
-
-    decrypt_payload(&encrypted_data, &get_aes_key())
+    let hash: [u8; 32] = Sha256::digest(encrypted_data).into();
+    check_payload_hash(&hash, expected_hash)?;
+    decrypt_payload(encrypted_data, key)
 }
 
 fn decrypt_payload(
     encrypted_data: &[u8],
     key: &[u8; 32],
 ) -> Result<Vec<(String, Vec<u8>)>, Box<dyn std::error::Error>> {
+    let _trace = trace::section("kapp:decrypt_payload");
     let mut file = std::io::Cursor::new(encrypted_data);
     let file_len = encrypted_data.len() as u64;
 
@@ -616,131 +2755,144 @@ fn decrypt_payload(
         cursor.read_exact(&mut iv)?;
         
         entries.push((name, size, iv));
-        total_encrypted_size += size as u64;
-    }
-
-    // Read Payloads
-    let payload_start = metadata_start
-        .checked_sub(total_encrypted_size)
-        .ok_or("Invalid payload offset")?;
-
-    file.seek(SeekFrom::Start(payload_start))?;
-    
-    let cipher = Aes256Gcm::new(key.into());
-    let mut results = Vec::new();
-
-    for (name, size, iv) in entries {
-        let mut enc_buf = vec![0u8; size as usize];
-        file.read_exact(&mut enc_buf)?;
-        
-        let nonce = Nonce::from_slice(&iv);
-        let plaintext = cipher.decrypt(nonce, enc_buf.as_ref())
-            .map_err(|e| format!("Decryption failed for {}: {:?}", name, e))?;
-        
-        results.push((name, plaintext));
+        total_encrypted_size += size as u64;
     }
-    
-    Ok(results)
-}
 
-#[allow(dead_code)]
-fn load_in_memory(env: &mut JNIEnv, cache_path: &str, target_loader: &JObject, file_list: &[(String, Vec<u8>)]) -> Result<(), jni::errors::Error> {
-    info!("load_in_memory called with {} items", file_list.len());
-    // 1. Separate DEXs and Libs
-    let mut dex_buffers = Vec::new();
-    let mut lib_buffers = Vec::new();
-    let current_abi = get_current_abi();
-    debug!("Current ABI: {}", current_abi);
-
-    let lib_prefix = format!("lib/{}/", current_abi);
+    // Read Payloads
+    let payload_start = metadata_start
+        .checked_sub(total_encrypted_size)
+        .ok_or("Invalid payload offset")?;
 
-    for (name, data) in file_list {
-        if name.ends_with(".dex") {
-             dex_buffers.push(data);
-        } else if name.starts_with(&lib_prefix) && name.ends_with(".so") {
-             let filename = name.strip_prefix(&lib_prefix).unwrap_or(name);
-             lib_buffers.push((filename, data));
-        }
+    // Entries carry their own IVs, so they are decrypted independently.
+    let mut sealed = Vec::with_capacity(entries.len());
+    let mut offset = payload_start as usize;
+    for (_, size, _) in &entries {
+        let end = offset + *size as usize;
+        sealed.push(&encrypted_data[offset..end]);
+        offset = end;
     }
 
-    debug!("Found {} DEXs and {} Libs for current ABI", dex_buffers.len(), lib_buffers.len());
-
-    // 2. Extract Libs to Cache
-    debug!("Extracting libs to cache...");
-    let libs_dir = format!("{}/native_libs", cache_path);
-    std::fs::create_dir_all(&libs_dir).unwrap_or(());
-
-    for (filename, data) in lib_buffers {
-        let lib_path = format!("{}/{}", libs_dir, filename);
-        debug!("Writing lib: {}", lib_path);
-        if let Ok(mut file) = File::create(&lib_path) {
-            let _ = file.write_all(data);
-        }
+    let threads = parallel::worker_count(config::MAX_DECRYPT_THREADS, entries.len());
+    let decrypted = parallel::map_indexed(entries.len(), threads, |i| {
+        let (name, _, iv) = &entries[i];
+        let cipher = Aes256Gcm::new(key.into());
+        cipher
+            .decrypt(Nonce::from_slice(iv), sealed[i])
+            .map_err(|e| format!("Decryption failed for {}: {:?}", name, e))
+    });
+
+    let mut results = Vec::with_capacity(entries.len());
+    for ((name, _, _), plaintext) in entries.into_iter().zip(decrypted) {
+        results.push((name, plaintext?));
     }
 
-    // 3. Create ByteBuffer[] for DEXs
-    if dex_buffers.is_empty() {
-        warn!("No DEX files to load in memory!");
-        return Ok(());
-    }
+    Ok(results)
+}
 
-    debug!("Creating ByteBuffer array for {} DEXs...", dex_buffers.len());
-    let byte_buffer_cls = env.find_class("java/nio/ByteBuffer")?;
+// Opens the decrypted dex straight from native memory. The DexPathList is
+// created with the target loader as its defining context and only its elements
+// are appended, so every dex file belongs to the target loader alone; an
+// InMemoryDexClassLoader in between would own them as well and trip "Attempt
+// to register dex file ... with multiple class loaders".
+fn load_in_memory(
+    env: &mut JNIEnv,
+    target_loader: &JObject,
+    dex_buffers: &[Vec<u8>],
+    sdk_int: jint,
+) -> Result<(), jni::errors::Error> {
+    let _trace = trace::section("kapp:load_in_memory");
+    debug!("load_in_memory: opening {} dex from native memory", dex_buffers.len());
+    let cache = jni_cache::get();
+    let byte_buffer_cls = class_ref(env, cache.map(|c| &c.byte_buffer), "java/nio/ByteBuffer")?;
     let buffer_array = env.new_object_array(dex_buffers.len() as i32, &byte_buffer_cls, JObject::null())?;
-
-    for (i, dex_data) in dex_buffers.iter().enumerate() {
-        debug!("Wrapping DEX {} ({} bytes)...", i, dex_data.len());
-        let byte_array = env.byte_array_from_slice(dex_data)?;
-        let buffer = env.call_static_method(
-            &byte_buffer_cls,
-            "wrap", 
-            "([B)Ljava/nio/ByteBuffer;", 
-            &[JValue::Object(&byte_array.into())]
-        )?.l()?;
-        
+    for (i, dex) in dex_buffers.iter().enumerate() {
+        // SAFETY: ART copies a direct buffer into its own dex mapping while the
+        // DexPathList below is created, and `dex_buffers` outlives that call.
+        // The buffer objects are not reachable from anywhere else.
+        let buffer = unsafe { env.new_direct_byte_buffer(dex.as_ptr() as *mut u8, dex.len()) }?;
         env.set_object_array_element(&buffer_array, i as i32, buffer)?;
     }
-
-    // 4. Create InMemoryDexClassLoader
-    debug!("Instantiating InMemoryDexClassLoader...");
-
-    let dex_loader_cls = env.find_class("dalvik/system/InMemoryDexClassLoader")?;
     let buffer_array_obj: JObject = buffer_array.into();
 
-    let ctor_sig_with_lib = "([Ljava/nio/ByteBuffer;Ljava/lang/String;Ljava/lang/ClassLoader;)V";
-    
-    let libs_dir_j = env.new_string(&libs_dir)?;
-    let libs_dir_obj: JObject = libs_dir_j.into();
-    
-    let loader_res = env.new_object(
-        &dex_loader_cls,
-        ctor_sig_with_lib,
-        &[
-            JValue::Object(&buffer_array_obj),
-            JValue::Object(&libs_dir_obj),
-            JValue::Object(target_loader)
-        ]
-    );
-
-    let loader = match loader_res {
-        Ok(l) => l,
-        Err(_) => {
-            let _ = env.exception_clear();
-            env.new_object(
-                &dex_loader_cls,
-                "([Ljava/nio/ByteBuffer;Ljava/lang/ClassLoader;)V",
-                &[JValue::Object(&buffer_array_obj), JValue::Object(target_loader)]
-            )?
-        }
+    // The cached DexPathList members are all or nothing, so a by-name
+    // fallback never mixes a cached ID into a class found by name.
+    let cached = cache.filter(|c| {
+        c.dex_path_list.is_some()
+            && c.dex_path_list_element.is_some()
+            && c.dex_path_list_dex_elements.is_some()
+            && c.base_dex_class_loader_path_list.is_some()
+            && c.is_base_dex_class_loader(env, target_loader)
+    });
+    let path_list_cls = class_ref(env, cached.and_then(|c| c.dex_path_list.as_ref()), "dalvik/system/DexPathList")?;
+    let path_list = if sdk_int >= 29 {
+        let no_library_path = JObject::null();
+        let path_list = new_object(
+            env,
+            &path_list_cls,
+            cached.and_then(|c| c.dex_path_list_init_with_library_path),
+            "(Ljava/lang/ClassLoader;Ljava/lang/String;)V",
+            &[JValue::Object(target_loader), JValue::Object(&no_library_path)],
+        )?;
+        call_void_method(
+            env,
+            &path_list,
+            cached.and_then(|c| c.dex_path_list_init_byte_buffer_dex_path),
+            "initByteBufferDexPath",
+            "([Ljava/nio/ByteBuffer;)V",
+            &[JValue::Object(&buffer_array_obj)],
+        )?;
+        path_list
+    } else {
+        new_object(
+            env,
+            &path_list_cls,
+            cached.and_then(|c| c.dex_path_list_init_with_buffers),
+            "(Ljava/lang/ClassLoader;[Ljava/nio/ByteBuffer;)V",
+            &[JValue::Object(target_loader), JValue::Object(&buffer_array_obj)],
+        )?
     };
 
-    // 5. Inject Dex Elements into Parent Loader (Hotfix style)
-    inject_dex_elements(env, &loader, target_loader)?;
-    
-    info!("load_in_memory: Completion successful");
+    append_dex_elements(env, &path_list, target_loader, cached)?;
+    trace::counter("kapp:added_dex", dex_buffers.len() as i64);
     Ok(())
 }
 
+// Instruction set directory ART uses under oat/ for this process.
+fn art_isa() -> &'static str {
+    #[cfg(target_arch = "aarch64")]
+    return "arm64";
+    #[cfg(target_arch = "arm")]
+    return "arm";
+    #[cfg(target_arch = "x86")]
+    return "x86";
+    #[cfg(target_arch = "x86_64")]
+    return "x86_64";
+    #[cfg(not(any(target_arch = "aarch64", target_arch = "arm", target_arch = "x86", target_arch = "x86_64")))]
+    return "unknown";
+}
+
+// Where ART's background dexopt of secondary dex puts the compiled code for a
+// landed dex.
+fn odex_path(dex_path: &str) -> Option<String> {
+    let (dir, file_name) = dex_path.rsplit_once('/')?;
+    let stem = file_name.strip_suffix(".dex")?;
+    Some(format!("{}/oat/{}/{}.odex", dir, art_isa(), stem))
+}
+
+// Counts the registered dex that come with ART-compiled code. It shows up
+// after the first idle maintenance window that followed a landing, and stays
+// as long as the dex content does.
+fn record_optimized_dex(dex_paths: &[String]) {
+    let optimized = dex_paths
+        .iter()
+        .filter(|path| odex_path(path).is_some_and(|odex| std::path::Path::new(&odex).is_file()))
+        .count();
+    stats::add(&stats::STATS.landed_dex, dex_paths.len() as u64);
+    stats::add(&stats::STATS.optimized_dex, optimized as u64);
+    trace::counter("kapp:optimized_dex", optimized as i64);
+    info!("{} of {} landed dex files have ART-compiled code", optimized, dex_paths.len());
+}
+
 fn get_current_abi() -> &'static str {
     #[cfg(target_arch = "aarch64")]
     return "arm64-v8a";
@@ -754,147 +2906,342 @@ fn get_current_abi() -> &'static str {
     return "unknown";
 }
 
-fn load_file_landing(env: &mut JNIEnv, cache_path: &str, target_loader: &JObject, file_list: &[(String, Vec<u8>)]) -> Result<(), jni::errors::Error> {
-    let dex_cache_dir = format!("{}/dex_landing", cache_path);
-    std::fs::create_dir_all(&dex_cache_dir).unwrap_or(());
-
-    let libs_dir = format!("{}/native_libs", cache_path);
-    std::fs::create_dir_all(&libs_dir).unwrap_or(());
-
-    let mut dex_paths = Vec::new();
+fn load_file_landing(
+    env: &mut JNIEnv,
+    target_loader: &JObject,
+    landed: &LandedPayload,
+) -> Result<(), jni::errors::Error> {
+    let _trace = trace::section("kapp:load_file_landing");
+    let _timer = stats::time(&stats::STATS.load_file_landing_ns);
+    if landed.dex_paths.is_empty() && landed.deferred.is_none() && landed.dex_buffers.is_empty() {
+        warn!("No dex paths extracted in load_file_landing");
+        return Ok(());
+    }
+    debug!(
+        "load_file_landing: registering {} dex files (from cache: {})",
+        landed.dex_paths.len(),
+        landed.from_cache
+    );
 
-    // 2. Extract Files
-    let current_abi = get_current_abi();
-    let lib_prefix = format!("lib/{}/", current_abi);
+    // 3. Add dex paths directly into target loader to avoid cross-classloader dex
+    // ownership conflicts.
+    add_dex_paths(env, target_loader, &landed.dex_paths)?;
 
-    for (i, (name, data)) in file_list.iter().enumerate() {
-        if name.ends_with(".dex") {
-             let dex_path = format!("{}/payload_{}.dex", dex_cache_dir, i);
-             if let Ok(mut file) = File::create(&dex_path) {
-                let _ = file.write_all(data);
-                #[cfg(unix)]
-                {
-                    use std::os::unix::fs::PermissionsExt;
-                    if let Ok(metadata) = std::fs::metadata(&dex_path) {
-                        let mut permissions = metadata.permissions();
-                        permissions.set_mode(0o444);
-                        let _ = std::fs::set_permissions(&dex_path, permissions);
-                    }
-                }
-             }
-             dex_paths.push(dex_path);
-        } else if name.starts_with(&lib_prefix) && name.ends_with(".so") {
-             let filename = name.strip_prefix(&lib_prefix).unwrap_or(name);
-             let lib_path = format!("{}/{}", libs_dir, filename);
-             if let Ok(mut file) = File::create(&lib_path) {
-                let _ = file.write_all(data);
-             }
+    // 4. Best-effort add native lib search path for extracted .so files
+    let libs_dir_j = env.new_string(&landed.libs_dir)?;
+    let libs_dir_obj: JObject = libs_dir_j.into();
+    let cache = jni_cache::get();
+    let native_paths = match cache {
+        Some(c) => {
+            let array_list: &JClass = c.array_list.as_obj().into();
+            // SAFETY: cached no-arg ArrayList constructor.
+            let list = unsafe { env.new_object_unchecked(array_list, c.array_list_init, &[]) }?;
+            let add_args = [JValue::Object(&libs_dir_obj).as_jni()];
+            // SAFETY: ArrayList.add(Object) returns a boolean.
+            unsafe {
+                env.call_method_unchecked(&list, c.array_list_add, ReturnType::Primitive(Primitive::Boolean), &add_args)
+            }?;
+            list
         }
+        None => {
+            let array_list_cls = env.find_class("java/util/ArrayList")?;
+            let list = env.new_object(&array_list_cls, "()V", &[])?;
+            env.call_method(&list, "add", "(Ljava/lang/Object;)Z", &[JValue::Object(&libs_dir_obj)])?;
+            list
+        }
+    };
+
+    let add_native_path = match cache {
+        Some(c) if c.is_base_dex_class_loader(env, target_loader) => c.add_native_path,
+        _ => None,
+    };
+    let add_native_result = call_void_method(
+        env,
+        target_loader,
+        add_native_path,
+        "addNativePath",
+        "(Ljava/util/Collection;)V",
+        &[JValue::Object(&native_paths)],
+    );
+    if add_native_result.is_err() {
+        let _ = env.exception_clear();
+        debug!("addNativePath not available on target loader, continue without it");
     }
-    
-    let joined_paths = dex_paths.join(":");
 
-    if joined_paths.is_empty() {
-        warn!("No dex paths extracted in load_file_landing");
+    Ok(())
+}
+
+// Appends dex files to the target loader's DexPathList.
+fn add_dex_paths(
+    env: &mut JNIEnv,
+    target_loader: &JObject,
+    dex_paths: &[String],
+) -> Result<(), jni::errors::Error> {
+    if dex_paths.is_empty() {
         return Ok(());
     }
-
-    // 3. Add dex paths directly into target loader to avoid cross-classloader dex
-    // ownership conflicts.
-    let dex_path_j = env.new_string(&joined_paths)?;
+    let _trace = trace::section("kapp:addDexPath");
+    trace::counter("kapp:added_dex", dex_paths.len() as i64);
+    record_optimized_dex(dex_paths);
+    let dex_path_j = env.new_string(dex_paths.join(":"))?;
     let dex_path_obj: JObject = dex_path_j.into();
 
-    let add_dex_result = env.call_method(
+    let (with_flag, without_flag) = match jni_cache::get() {
+        Some(c) if c.is_base_dex_class_loader(env, target_loader) => (c.add_dex_path_with_flag, c.add_dex_path),
+        _ => (None, None),
+    };
+    let add_dex_result = call_void_method(
+        env,
         target_loader,
+        with_flag,
         "addDexPath",
         "(Ljava/lang/String;Z)V",
         &[JValue::Object(&dex_path_obj), JValue::Bool(0)],
     );
     if add_dex_result.is_err() {
         let _ = env.exception_clear();
-        env.call_method(
+        call_void_method(
+            env,
             target_loader,
+            without_flag,
             "addDexPath",
             "(Ljava/lang/String;)V",
             &[JValue::Object(&dex_path_obj)],
         )?;
     }
-
-    // 4. Best-effort add native lib search path for extracted .so files
-    let libs_dir_j = env.new_string(&libs_dir)?;
-    let libs_dir_obj: JObject = libs_dir_j.into();
-    let array_list_cls = env.find_class("java/util/ArrayList")?;
-    let native_paths = env.new_object(&array_list_cls, "()V", &[])?;
-    env.call_method(
-        &native_paths,
-        "add",
-        "(Ljava/lang/Object;)Z",
-        &[JValue::Object(&libs_dir_obj)],
-    )?;
-
-    let add_native_result = env.call_method(
-        target_loader,
-        "addNativePath",
-        "(Ljava/util/Collection;)V",
-        &[JValue::Object(&native_paths)],
-    );
-    if add_native_result.is_err() {
-        let _ = env.exception_clear();
-        debug!("addNativePath not available on target loader, continue without it");
-    }
-
     Ok(())
 }
 
-#[allow(dead_code)]
-fn inject_dex_elements(env: &mut JNIEnv, source_loader: &JObject, target_loader: &JObject) -> Result<(), jni::errors::Error> {
-    info!("shell: inject_dex_elements starting...");
-    
-    let source_path_list = env.get_field(source_loader, "pathList", "Ldalvik/system/DexPathList;")?.l()?;
-    let target_path_list = env.get_field(target_loader, "pathList", "Ldalvik/system/DexPathList;")?.l()?;
-
-    let source_elements_obj = env.get_field(source_path_list, "dexElements", "[Ldalvik/system/DexPathList$Element;")?.l()?;
-    let source_array: JObjectArray = source_elements_obj.into();
+// Appends the dexElements of `source_path_list` to the target loader's
+// DexPathList. `cached` is set only when every DexPathList member is cached
+// and the target loader is a BaseDexClassLoader.
+fn append_dex_elements(
+    env: &mut JNIEnv,
+    source_path_list: &JObject,
+    target_loader: &JObject,
+    cached: Option<&jni_cache::JniCache>,
+) -> Result<(), jni::errors::Error> {
+    let element_array_sig = "[Ldalvik/system/DexPathList$Element;";
+    let path_list_field = cached.and_then(|c| c.base_dex_class_loader_path_list);
+    let dex_elements_field = cached.and_then(|c| c.dex_path_list_dex_elements);
+    let target_path_list =
+        get_object_field(env, target_loader, path_list_field, "pathList", "Ldalvik/system/DexPathList;")?;
+    let source_array: JObjectArray =
+        get_object_field(env, source_path_list, dex_elements_field, "dexElements", element_array_sig)?.into();
+    let target_array: JObjectArray =
+        get_object_field(env, &target_path_list, dex_elements_field, "dexElements", element_array_sig)?.into();
 
-    let target_elements_obj = env.get_field(&target_path_list, "dexElements", "[Ldalvik/system/DexPathList$Element;")?.l()?;
-    let target_array: JObjectArray = target_elements_obj.into();
-    
     let source_len = env.get_array_length(&source_array)?;
     let target_len = env.get_array_length(&target_array)?;
-    debug!("shell: Merging {} new elements into {} existing elements", source_len, target_len);
+    debug!("append_dex_elements: {} new elements after {} existing ones", source_len, target_len);
 
-    let element_cls = env.find_class("dalvik/system/DexPathList$Element")?;
-    
-    let total_len = source_len + target_len;
-    let new_array = env.new_object_array(total_len, element_cls, JObject::null())?;
-    
+    let element_cls = class_ref(
+        env,
+        cached.and_then(|c| c.dex_path_list_element.as_ref()),
+        "dalvik/system/DexPathList$Element",
+    )?;
+    let new_array = env.new_object_array(source_len + target_len, &element_cls, JObject::null())?;
     for i in 0..target_len {
         let elem = env.get_object_array_element(&target_array, i)?;
         env.set_object_array_element(&new_array, i, elem)?;
     }
-    
     for i in 0..source_len {
         let elem = env.get_object_array_element(&source_array, i)?;
         env.set_object_array_element(&new_array, target_len + i, elem)?;
     }
-    
-    let new_array_obj = JObject::from(new_array);
-    env.set_field(
-        target_path_list,
-        "dexElements",
-        "[Ldalvik/system/DexPathList$Element;",
-        JValue::Object(&new_array_obj)
-    )?;
 
-    info!("shell: inject_dex_elements completed successfully");
-    Ok(())
+    let new_array_obj = JObject::from(new_array);
+    set_object_field(env, &target_path_list, dex_elements_field, "dexElements", element_array_sig, &new_array_obj)
 }
 
 #[cfg(test)]
 mod tests {
     use super::{
-        clear_dex_load_marker_for_tests, try_mark_dex_load_started, validate_signature_hash,
+        assets_zip_path, cipher, clear_dex_load_marker_for_tests, land_deferred, landing_cache, parallel, payload,
+        try_mark_dex_load_started, validate_signature_hash, DexLoadMode, LandedPayload, LibLoadMode, LoadModes,
+        SignatureGate,
+    };
+    use crate::test_payload::{self, TestPayload};
+    use aes_gcm::{
+        aead::{Aead, KeyInit},
+        Aes256Gcm, Nonce,
+    };
+    use sha2::{Digest, Sha256};
+    use std::io::Write;
+    use std::path::{Path, PathBuf};
+    use std::time::{SystemTime, UNIX_EPOCH};
+
+    const TEST_KEY: [u8; 32] = [0x5au8; 32];
+    const FILES: LoadModes = LoadModes {
+        dex: DexLoadMode::Files,
+        libs: LibLoadMode::Files,
     };
+    const MEMORY_DEX: LoadModes = LoadModes {
+        dex: DexLoadMode::Memory,
+        libs: LibLoadMode::Files,
+    };
+    const MEMORY_LIBS: LoadModes = LoadModes {
+        dex: DexLoadMode::Files,
+        libs: LibLoadMode::Memory,
+    };
+
+    // Lands with the signature check already passed, as without a verify
+    // context.
+    fn land_payload(
+        apk_path: &str,
+        cache_path: &str,
+        data_path: &str,
+        key: &[u8; 32],
+        expected_hash: &[u8; 32],
+        modes: LoadModes,
+    ) -> Result<LandedPayload, Box<dyn std::error::Error>> {
+        super::land_payload(apk_path, cache_path, data_path, key, expected_hash, modes, &SignatureGate::passed())
+    }
+
+    struct TestDir {
+        path: PathBuf,
+    }
+
+    impl TestDir {
+        fn create(prefix: &str) -> Self {
+            let ts = SystemTime::now()
+                .duration_since(UNIX_EPOCH)
+                .expect("system clock before unix epoch")
+                .as_nanos();
+            let path = std::env::temp_dir().join(format!("shell-{prefix}-{ts}"));
+            std::fs::create_dir_all(&path).expect("failed to create temp dir");
+            Self { path }
+        }
+
+        fn join(&self, name: &str) -> String {
+            self.path.join(name).to_string_lossy().to_string()
+        }
+    }
+
+    impl Drop for TestDir {
+        fn drop(&mut self) {
+            let _ = std::fs::remove_dir_all(&self.path);
+        }
+    }
+
+    // Mirrors packer::build_payload_blob for the legacy tail-metadata layout.
+    fn build_test_payload(entries: &[(&str, &[u8])], key: &[u8; 32]) -> Vec<u8> {
+        let cipher = Aes256Gcm::new(key.into());
+        let mut data = Vec::new();
+        let mut metadata = Vec::new();
+        metadata.extend_from_slice(&(entries.len() as u32).to_le_bytes());
+
+        for (i, (name, plain)) in entries.iter().enumerate() {
+            let mut iv = [0u8; 12];
+            iv[0] = i as u8 + 1;
+            let encrypted = cipher
+                .encrypt(Nonce::from_slice(&iv), *plain)
+                .expect("test encryption failed");
+            data.extend_from_slice(&encrypted);
+
+            metadata.extend_from_slice(&(name.len() as u16).to_le_bytes());
+            metadata.extend_from_slice(name.as_bytes());
+            metadata.extend_from_slice(&(encrypted.len() as u32).to_le_bytes());
+            metadata.extend_from_slice(&iv);
+        }
+
+        data.extend_from_slice(&metadata);
+        data.extend_from_slice(&(metadata.len() as u32).to_le_bytes());
+        data.extend_from_slice(b"SHELL");
+        data
+    }
+
+    // Mirrors packer::build_payload_blob for the chunked v2 layout.
+    fn build_test_payload_v2(entries: &[(&str, &[u8])], key: &[u8; 32], chunk_size: usize) -> Vec<u8> {
+        build_test_payload_v2_with_flags(entries, key, chunk_size, None)
+    }
+
+    fn build_test_payload_v2_with_flags(
+        entries: &[(&str, &[u8])],
+        key: &[u8; 32],
+        chunk_size: usize,
+        entry_flags: Option<&[u16]>,
+    ) -> Vec<u8> {
+        let header_flags = if entry_flags.is_some() { payload::FLAG_ENTRY_FLAGS } else { 0 };
+        sealed_test_payload(header_flags, entries, key, chunk_size, entry_flags).build()
+    }
+
+    // Payload with entry digests and its commitment, the hash pack.py bakes
+    // into libshell for it.
+    fn build_test_payload_v2_committed(
+        entries: &[(&str, &[u8])],
+        key: &[u8; 32],
+        chunk_size: usize,
+    ) -> (Vec<u8>, [u8; 32]) {
+        let payload = sealed_test_payload(payload::FLAG_ENTRY_DIGESTS, entries, key, chunk_size, None);
+        (payload.build(), payload.commitment())
+    }
+
+    fn sealed_test_payload(
+        header_flags: u16,
+        entries: &[(&str, &[u8])],
+        key: &[u8; 32],
+        chunk_size: usize,
+        entry_flags: Option<&[u16]>,
+    ) -> TestPayload {
+        let mut payload = TestPayload::new(header_flags, chunk_size as u32);
+        for (i, (name, plain)) in entries.iter().enumerate() {
+            let mut iv = [0u8; 12];
+            iv[0] = i as u8 + 1;
+            let flags = entry_flags.map_or(0, |flags| flags[i]);
+            payload = payload.sealed(key, name, flags, plain, plain.len() as u64, iv);
+        }
+        payload
+    }
+
+    fn write_test_apk(path: &Path, payload: &[u8], extra: &[u8]) {
+        write_test_apk_with(path, payload, extra, zip::CompressionMethod::Stored);
+    }
+
+    fn write_test_apk_with(
+        path: &Path,
+        payload: &[u8],
+        extra: &[u8],
+        payload_method: zip::CompressionMethod,
+    ) {
+        let file = std::fs::File::create(path).expect("failed to create apk");
+        let mut writer = zip::ZipWriter::new(file);
+        let options = zip::write::FileOptions::default()
+            .compression_method(zip::CompressionMethod::Stored);
+        writer
+            .start_file("res/raw/extra.bin", options)
+            .expect("failed to start extra entry");
+        writer.write_all(extra).expect("failed to write extra");
+        writer
+            .start_file(
+                "assets/kapp_payload.bin",
+                options.compression_method(payload_method),
+            )
+            .expect("failed to start payload entry");
+        writer.write_all(payload).expect("failed to write payload");
+        writer.finish().expect("failed to finish apk");
+    }
+
+    fn test_lib_name() -> String {
+        format!("lib/{}/libfoo.so", super::get_current_abi())
+    }
+
+    fn payload_hash(payload: &[u8]) -> [u8; 32] {
+        Sha256::digest(payload).into()
+    }
+
+    fn content_name(dex: &[u8]) -> String {
+        super::landed_dex_name(&Sha256::digest(dex))
+    }
+
+    fn landed_dex_files(cache: &str) -> Vec<String> {
+        let mut names: Vec<String> = std::fs::read_dir(format!("{}/dex_landing", cache))
+            .map(|dir| dir.filter_map(|e| e.ok()).filter_map(|e| e.file_name().into_string().ok()).collect())
+            .unwrap_or_default();
+        names.retain(|name| name.ends_with(".dex"));
+        names.sort();
+        names
+    }
 
     #[test]
     fn dex_load_marker_allows_only_first_call() {
@@ -927,4 +3274,790 @@ mod tests {
         let actual = [3u8; 32];
         assert!(validate_signature_hash(&expected, &actual).is_ok());
     }
+
+    #[test]
+    fn land_payload_reuses_landing_without_decrypting_on_second_run() {
+        let temp = TestDir::create("landing-cache");
+        let apk = temp.path.join("base.apk");
+        let lib_name = test_lib_name();
+        let payload = build_test_payload(
+            &[
+                ("classes.dex", b"dex-one"),
+                ("classes2.dex", b"dex-two"),
+                (lib_name.as_str(), b"native-lib"),
+                ("assets/secret.txt", b"secret-asset"),
+            ],
+            &TEST_KEY,
+        );
+        let hash = payload_hash(&payload);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+
+        let first = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES)
+            .expect("first landing failed");
+        assert!(!first.from_cache);
+        assert_eq!(first.dex_paths.len(), 2);
+        assert_eq!(std::fs::read(&first.dex_paths[0]).unwrap(), b"dex-one");
+        assert_eq!(
+            std::fs::read(format!("{}/libfoo.so", first.libs_dir)).unwrap(),
+            b"native-lib"
+        );
+        assert!(Path::new(&format!("{}/files/kapp_assets.zip", data)).exists());
+
+        // A wrong key makes any decryption attempt fail, so success here
+        // proves the second run never touched the payload.
+        let wrong_key = [0xa5u8; 32];
+        let second = land_payload(&apk_path, &cache, &data, &wrong_key, &hash, FILES)
+            .expect("cached landing failed");
+        assert!(second.from_cache);
+        assert_eq!(second.dex_paths, first.dex_paths);
+    }
+
+    #[test]
+    fn land_payload_relands_when_apk_or_landed_files_change() {
+        let temp = TestDir::create("landing-cache-miss");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload(&[("classes.dex", b"dex-one")], &TEST_KEY);
+        let hash = payload_hash(&payload);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+
+        let first = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(!first.from_cache);
+
+        // Updated APK (different size) must miss the cache.
+        write_test_apk(&apk, &payload, b"v2-longer");
+        let wrong_key = [0xa5u8; 32];
+        assert!(land_payload(&apk_path, &cache, &data, &wrong_key, &hash, FILES).is_err());
+        let relanded = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(!relanded.from_cache);
+
+        // A landed file that disappeared must miss the cache too.
+        std::fs::remove_file(&relanded.dex_paths[0]).unwrap();
+        let repaired = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(!repaired.from_cache);
+        assert_eq!(std::fs::read(&repaired.dex_paths[0]).unwrap(), b"dex-one");
+    }
+
+    #[test]
+    fn land_payload_keeps_unchanged_dex_and_their_art_artifacts_across_updates() {
+        let temp = TestDir::create("landing-content-names");
+        let apk = temp.path.join("base.apk");
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        let v1 = build_test_payload_v2(&[("classes.dex", b"kept-dex"), ("classes2.dex", b"old-dex")], &TEST_KEY, 4);
+        write_test_apk(&apk, &v1, b"v1");
+        let first = land_payload(&apk_path, &cache, &data, &TEST_KEY, &payload_hash(&v1), FILES).unwrap();
+        assert!(first.dex_paths[0].ends_with(&content_name(b"kept-dex")));
+
+        // What ART's background dexopt leaves next to secondary dex.
+        let oat_dir = format!("{}/dex_landing/oat/{}", cache, super::art_isa());
+        std::fs::create_dir_all(&oat_dir).unwrap();
+        let kept_odex = super::odex_path(&first.dex_paths[0]).unwrap();
+        let old_odex = super::odex_path(&first.dex_paths[1]).unwrap();
+        std::fs::write(&kept_odex, b"odex").unwrap();
+        std::fs::write(&old_odex, b"odex").unwrap();
+        let kept_mtime = std::fs::metadata(&first.dex_paths[0]).unwrap().modified().unwrap();
+
+        // An update with a fresh pack (new nonces) and one changed dex.
+        let v2 = build_test_payload_v2(&[("classes.dex", b"kept-dex"), ("classes2.dex", b"new-dex")], &TEST_KEY, 4);
+        write_test_apk(&apk, &v2, b"v2-longer");
+        std::thread::sleep(std::time::Duration::from_millis(20));
+        let second = land_payload(&apk_path, &cache, &data, &TEST_KEY, &payload_hash(&v2), FILES).unwrap();
+        assert!(!second.from_cache);
+        assert_eq!(second.dex_paths[0], first.dex_paths[0]);
+        assert_eq!(std::fs::metadata(&second.dex_paths[0]).unwrap().modified().unwrap(), kept_mtime);
+        assert_eq!(std::fs::read(&second.dex_paths[1]).unwrap(), b"new-dex");
+        assert!(Path::new(&kept_odex).exists());
+        assert!(!Path::new(&old_odex).exists());
+
+        let mut expected = vec![content_name(b"kept-dex"), content_name(b"new-dex")];
+        expected.sort();
+        assert_eq!(landed_dex_files(&cache), expected);
+    }
+
+    #[test]
+    fn land_payload_does_not_decrypt_dex_already_landed_under_their_content_name() {
+        let header_flags = payload::FLAG_ENTRY_DIGESTS | payload::FLAG_CONTENT_NAMES;
+        for method in [zip::CompressionMethod::Stored, zip::CompressionMethod::Deflated] {
+            let temp = TestDir::create("landing-kept-dex");
+            let apk = temp.path.join("base.apk");
+            let apk_path = apk.to_string_lossy().to_string();
+            let cache = temp.join("cache");
+            let data = temp.join("data");
+            let v1 = sealed_test_payload(header_flags, &[("classes.dex", b"kept-dex")], &TEST_KEY, 4, None);
+            write_test_apk_with(&apk, &v1.build(), b"v1", method);
+            let first = land_payload(&apk_path, &cache, &data, &TEST_KEY, &v1.commitment(), FILES).unwrap();
+
+            // The update seals the kept dex again, but its stored bytes are
+            // garbage: only the index says what it lands as.
+            let entries = [("classes.dex", b"kept-dex".as_slice()), ("classes2.dex", b"new-dex".as_slice())];
+            let v2 = sealed_test_payload(header_flags, &entries, &TEST_KEY, 4, None);
+            let mut payload = v2.build();
+            let data_start = 20 + u32::from_le_bytes(payload[16..20].try_into().unwrap()) as usize;
+            payload[data_start] ^= 0xff;
+            write_test_apk_with(&apk, &payload, b"v2-longer", method);
+            let second = land_payload(&apk_path, &cache, &data, &TEST_KEY, &v2.commitment(), FILES).unwrap();
+            assert!(!second.from_cache);
+            assert_eq!(second.dex_paths[0], first.dex_paths[0]);
+            assert_eq!(std::fs::read(&second.dex_paths[0]).unwrap(), b"kept-dex");
+            assert_eq!(std::fs::read(&second.dex_paths[1]).unwrap(), b"new-dex");
+
+            // Without the landed file the same payload has to decrypt it.
+            std::fs::remove_file(&second.dex_paths[0]).unwrap();
+            assert!(land_payload(&apk_path, &cache, &data, &TEST_KEY, &v2.commitment(), FILES).is_err());
+        }
+    }
+
+    #[test]
+    fn land_payload_carries_dex_profiles_that_seed_art_current_profiles_once() {
+        let temp = TestDir::create("landing-dex-profiles");
+        let apk = temp.path.join("base.apk");
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        let (payload, commitment) = build_test_payload_v2_committed(
+            &[("classes.dex", b"dex-one"), ("dexopt/010.prof", b"pro-010"), ("dexopt/015.prof", b"pro-015")],
+            &TEST_KEY,
+            4,
+        );
+        write_test_apk(&apk, &payload, b"v1");
+
+        let mut landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES).unwrap();
+        assert_eq!(landed.dex_paths.len(), 1);
+        assert_eq!(landed.dex_profiles.len(), 2);
+        assert_eq!(super::take_dex_profile(&mut landed.dex_profiles.clone(), 27), None);
+        assert_eq!(super::take_dex_profile(&mut landed.dex_profiles.clone(), 30).unwrap(), b"pro-010");
+        let profile = super::take_dex_profile(&mut landed.dex_profiles, 34).unwrap();
+        assert_eq!(profile, b"pro-015");
+
+        // ART's current profile next to the landed dex, empty as DexLoadReporter
+        // creates it, is filled; one with recorded content is kept.
+        let current = format!("{}/dex_landing/oat/{}.cur.prof", cache, content_name(b"dex-one"));
+        std::fs::create_dir_all(Path::new(&current).parent().unwrap()).unwrap();
+        std::fs::write(&current, b"").unwrap();
+        super::install_dex_profile(&landed.dex_paths, &profile);
+        assert_eq!(std::fs::read(&current).unwrap(), b"pro-015");
+        std::fs::write(&current, b"recorded").unwrap();
+        super::install_dex_profile(&landed.dex_paths, &profile);
+        assert_eq!(std::fs::read(&current).unwrap(), b"recorded");
+
+        // A reused landing neither decrypts nor installs the profile again.
+        let reused = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES).unwrap();
+        assert!(reused.from_cache);
+        assert!(reused.dex_profiles.is_empty());
+        assert!(Path::new(&current).exists());
+    }
+
+    #[test]
+    fn land_payload_skips_cache_when_payload_hash_is_unset() {
+        let temp = TestDir::create("landing-cache-unset");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload(&[("classes.dex", b"dex-one")], &TEST_KEY);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        let zero_hash = [0u8; 32];
+
+        assert!(!land_payload(&apk_path, &cache, &data, &TEST_KEY, &zero_hash, FILES).unwrap().from_cache);
+        assert!(!land_payload(&apk_path, &cache, &data, &TEST_KEY, &zero_hash, FILES).unwrap().from_cache);
+    }
+
+    #[test]
+    fn land_payload_streams_v2_entries_across_chunks() {
+        let temp = TestDir::create("landing-v2");
+        let apk = temp.path.join("base.apk");
+        let lib_name = test_lib_name();
+        let dex: Vec<u8> = (0..1000u32).map(|i| (i % 251) as u8).collect();
+        let payload = build_test_payload_v2(
+            &[
+                ("classes.dex", dex.as_slice()),
+                ("lib/other-abi/libbar.so", b"foreign-lib"),
+                (lib_name.as_str(), b"native-lib"),
+                ("assets/secret.txt", b"secret-asset"),
+            ],
+            &TEST_KEY,
+            64,
+        );
+        let hash = payload_hash(&payload);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+
+        let mut landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES)
+            .expect("v2 landing failed");
+        assert!(!landed.from_cache);
+        assert_eq!(landed.dex_paths.len(), 1);
+        land_deferred(landed.deferred.take().expect("assets not deferred"), |_| {}).expect("assets landing failed");
+        assert_eq!(std::fs::read(&landed.dex_paths[0]).unwrap(), dex);
+        assert_eq!(
+            std::fs::read(format!("{}/libfoo.so", landed.libs_dir)).unwrap(),
+            b"native-lib"
+        );
+        assert!(!Path::new(&format!("{}/libbar.so", landed.libs_dir)).exists());
+
+        let assets_zip = std::fs::File::open(format!("{}/files/kapp_assets.zip", data)).unwrap();
+        let mut assets = zip::ZipArchive::new(assets_zip).unwrap();
+        let mut secret = Vec::new();
+        std::io::Read::read_to_end(&mut assets.by_name("assets/secret.txt").unwrap(), &mut secret).unwrap();
+        assert_eq!(secret, b"secret-asset");
+    }
+
+    #[test]
+    fn land_payload_checks_committed_entry_digests_mapped_and_streamed() {
+        let temp = TestDir::create("landing-committed");
+        let lib_name = test_lib_name();
+        let entries = [
+            ("classes.dex", b"committed-dex".as_slice()),
+            (lib_name.as_str(), b"native-lib".as_slice()),
+        ];
+        let (payload, commitment) = build_test_payload_v2_committed(&entries, &TEST_KEY, 4);
+        assert_ne!(commitment, payload_hash(&payload));
+
+        for method in [zip::CompressionMethod::Stored, zip::CompressionMethod::Deflated] {
+            let name = format!("{:?}", method);
+            let apk = temp.path.join(format!("{}.apk", name));
+            let apk_path = apk.to_string_lossy().to_string();
+            let cache = temp.join(&format!("cache-{}", name));
+            let data = temp.join(&format!("data-{}", name));
+
+            // The whole-payload hash is not the commitment.
+            write_test_apk_with(&apk, &payload, b"v1", method);
+            assert!(
+                land_payload(&apk_path, &cache, &data, &TEST_KEY, &payload_hash(&payload), FILES).is_err()
+            );
+
+            let landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES)
+                .expect("landing failed");
+            assert_eq!(std::fs::read(&landed.dex_paths[0]).unwrap(), b"committed-dex");
+
+            // A flipped byte in the .so fails the landing, and nothing from
+            // the payload is committed.
+            let mut tampered = payload.clone();
+            let last = tampered.len() - 1;
+            tampered[last] ^= 0x01;
+            write_test_apk_with(&apk, &tampered, b"v2-tampered", method);
+            let cache = temp.join(&format!("cache-{}-tampered", name));
+            assert!(land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES).is_err());
+            assert!(landed_dex_files(&cache).is_empty());
+        }
+    }
+
+    #[test]
+    fn land_payload_keeps_dex_in_memory_and_lands_only_libs() {
+        let temp = TestDir::create("landing-memory");
+        let lib_name = test_lib_name();
+        let entries = [
+            ("classes.dex", b"memory-dex".as_slice()),
+            ("classes2.dex", b"memory-dex-2".as_slice()),
+            (lib_name.as_str(), b"native-lib".as_slice()),
+        ];
+        let (payload, commitment) = build_test_payload_v2_committed(&entries, &TEST_KEY, 4);
+        let apk = temp.path.join("base.apk");
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        write_test_apk_with(&apk, &payload, b"v1", zip::CompressionMethod::Stored);
+
+        let landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, MEMORY_DEX)
+            .expect("in-memory landing failed");
+        assert!(landed.dex_paths.is_empty());
+        assert_eq!(landed.dex_buffers, vec![b"memory-dex".to_vec(), b"memory-dex-2".to_vec()]);
+        assert_eq!(std::fs::read(format!("{}/libfoo.so", landed.libs_dir)).unwrap(), b"native-lib");
+        assert!(landed_dex_files(&cache).is_empty());
+
+        // The libraries are reused, the dex are decrypted again.
+        let reused = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, MEMORY_DEX).unwrap();
+        assert!(reused.from_cache);
+        assert_eq!(reused.dex_buffers.len(), 2);
+
+        // A landing without dex files is never reused in file mode.
+        let files = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES).unwrap();
+        assert!(!files.from_cache);
+        assert!(files.dex_buffers.is_empty());
+        assert_eq!(std::fs::read(&files.dex_paths[1]).unwrap(), b"memory-dex-2");
+
+        // A payload only readable through the zip stream falls back to files.
+        write_test_apk_with(&apk, &payload, b"v2", zip::CompressionMethod::Deflated);
+        let streamed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, MEMORY_DEX).unwrap();
+        assert!(streamed.dex_buffers.is_empty());
+        assert_eq!(std::fs::read(&streamed.dex_paths[0]).unwrap(), b"memory-dex");
+    }
+
+    #[test]
+    fn land_payload_keeps_libs_in_memfds_and_lands_refused_ones() {
+        let temp = TestDir::create("landing-memfd");
+        let lib_name = test_lib_name();
+        let entries = [("classes.dex", b"memfd-dex".as_slice()), (lib_name.as_str(), b"native-lib".as_slice())];
+        let (payload, commitment) = build_test_payload_v2_committed(&entries, &TEST_KEY, 4);
+        let apk = temp.path.join("base.apk");
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        write_test_apk_with(&apk, &payload, b"v1", zip::CompressionMethod::Stored);
+
+        let landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, MEMORY_LIBS)
+            .expect("memfd landing failed");
+        assert_eq!(std::fs::read(&landed.dex_paths[0]).unwrap(), b"memfd-dex");
+        assert_eq!(landed.memfd_libs.len(), 1);
+        assert_eq!(landed.memfd_libs[0].name, "libfoo.so");
+        let mut lib = Vec::new();
+        landed.memfd_libs[0].copy_to(&mut lib).unwrap();
+        assert_eq!(lib, b"native-lib");
+        let lib_path = format!("{}/libfoo.so", landed.libs_dir);
+        assert!(!Path::new(&lib_path).exists());
+
+        // The dex are reused, the libraries are decrypted again.
+        let reused = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, MEMORY_LIBS).unwrap();
+        assert!(reused.from_cache);
+        assert_eq!(reused.memfd_libs.len(), 1);
+
+        // The linker refuses this one, so it is landed where loadLibrary looks.
+        let landed_libs = super::load_memfd_libs(reused.memfd_libs, &reused.libs_dir);
+        assert_eq!(landed_libs, vec![("libfoo.so".to_string(), 10)]);
+        assert_eq!(std::fs::read(&lib_path).unwrap(), b"native-lib");
+
+        // Once stamped, it stays landed and is no longer decrypted.
+        let cache_key = landing_cache::CacheKey::for_apk(&apk_path, &commitment).unwrap();
+        super::stamp_landed_libs(&cache, &assets_zip_path(&data), &cache_key, &landed_libs);
+        let refused = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, MEMORY_LIBS).unwrap();
+        assert!(refused.from_cache);
+        assert_eq!(refused.landed_libs, vec!["libfoo.so".to_string()]);
+        assert!(refused.memfd_libs.is_empty());
+        assert!(super::load_memfd_libs(refused.memfd_libs, &refused.libs_dir).is_empty());
+        assert_eq!(std::fs::read(&lib_path).unwrap(), b"native-lib");
+
+        // A landing without library files is never reused in file mode.
+        let files = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES).unwrap();
+        assert!(!files.from_cache);
+        assert!(files.memfd_libs.is_empty());
+        assert_eq!(std::fs::read(&lib_path).unwrap(), b"native-lib");
+    }
+
+    #[test]
+    fn land_payload_lists_preload_libs_and_the_stamp_keeps_them() {
+        let temp = TestDir::create("landing-preload");
+        let lib_name = test_lib_name();
+        let other_lib = lib_name.replace("libfoo.so", "libbar.so");
+        let entries = [
+            ("classes.dex", b"preload-dex".as_slice()),
+            (lib_name.as_str(), b"native-lib".as_slice()),
+            (other_lib.as_str(), b"other-lib".as_slice()),
+        ];
+        let flags = [0, payload::ENTRY_FLAG_PRELOAD, 0];
+        let payload = build_test_payload_v2_with_flags(&entries, &TEST_KEY, 4, Some(flags.as_slice()));
+        let apk = temp.path.join("base.apk");
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        write_test_apk_with(&apk, &payload, b"v1", zip::CompressionMethod::Stored);
+        let hash = payload_hash(&payload);
+
+        let landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).expect("landing failed");
+        assert_eq!(landed.preload_libs, vec!["libfoo.so".to_string()]);
+        assert_eq!(std::fs::read(format!("{}/libbar.so", landed.libs_dir)).unwrap(), b"other-lib");
+
+        let reused = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(reused.from_cache);
+        assert_eq!(reused.preload_libs, vec!["libfoo.so".to_string()]);
+    }
+
+    #[test]
+    fn land_payload_never_reads_segments_of_other_abis() {
+        let temp = TestDir::create("landing-segments");
+        let lib_name = test_lib_name();
+        let other_abi = if super::get_current_abi() == "x86_64" { "armeabi-v7a" } else { "x86_64" };
+        let other_lib = format!("lib/{}/libfoo.so", other_abi);
+        let entries = [
+            ("classes.dex", b"segmented-dex".as_slice()),
+            (lib_name.as_str(), b"own-lib".as_slice()),
+            (other_lib.as_str(), b"other-lib".as_slice()),
+        ];
+        // Every segment after the first starts on a fresh page, as the packer
+        // lays them out.
+        let segmented = sealed_test_payload(payload::FLAG_ENTRY_DIGESTS, &entries, &TEST_KEY, 4, None)
+            .segment("", 1)
+            .segment(super::get_current_abi(), 1)
+            .segment(other_abi, 1);
+        let (mut payload, commitment) = (segmented.build(), segmented.commitment());
+        // Every byte of the other ABI's segment is garbage now; landing still
+        // succeeds because none of it is decrypted or checked.
+        let last = payload.len();
+        for byte in &mut payload[last - 5..] {
+            *byte ^= 0xff;
+        }
+
+        for method in [zip::CompressionMethod::Stored, zip::CompressionMethod::Deflated] {
+            let name = format!("{:?}", method);
+            let apk = temp.path.join(format!("{}.apk", name));
+            let apk_path = apk.to_string_lossy().to_string();
+            let cache = temp.join(&format!("cache-{}", name));
+            let data = temp.join(&format!("data-{}", name));
+            write_test_apk_with(&apk, &payload, b"v1", method);
+
+            let landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &commitment, FILES)
+                .expect("landing failed");
+            assert_eq!(std::fs::read(&landed.dex_paths[0]).unwrap(), b"segmented-dex");
+            assert_eq!(std::fs::read(format!("{}/libfoo.so", landed.libs_dir)).unwrap(), b"own-lib");
+        }
+    }
+
+    #[test]
+    fn land_payload_discards_v2_files_when_hash_mismatches() {
+        let temp = TestDir::create("landing-v2-hash");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload_v2(&[("classes.dex", b"dex-one")], &TEST_KEY, 64);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        let wrong_hash = [0x11u8; 32];
+
+        assert!(land_payload(&apk_path, &cache, &data, &TEST_KEY, &wrong_hash, FILES).is_err());
+        let dex_dir = format!("{}/dex_landing", cache);
+        let leftovers: Vec<_> = std::fs::read_dir(&dex_dir)
+            .map(|dir| dir.filter_map(|e| e.ok()).map(|e| e.file_name()).collect())
+            .unwrap_or_default();
+        assert!(leftovers.is_empty(), "unexpected files: {:?}", leftovers);
+    }
+
+    #[test]
+    fn land_payload_defers_flagged_dex_until_land_deferred() {
+        let temp = TestDir::create("landing-deferred");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload_v2_with_flags(
+            &[("classes.dex", b"startup-dex"), ("classes2.dex", b"deferred-dex")],
+            &TEST_KEY,
+            4,
+            Some([0, payload::ENTRY_FLAG_DEFERRED].as_slice()),
+        );
+        let hash = payload_hash(&payload);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+
+        let mut landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES)
+            .expect("startup landing failed");
+        assert_eq!(landed.dex_paths.len(), 1);
+        assert_eq!(std::fs::read(&landed.dex_paths[0]).unwrap(), b"startup-dex");
+        let deferred = landed.deferred.take().expect("no deferred dex set");
+        let deferred_path = format!("{}/{}", deferred.dex_cache_dir, content_name(b"deferred-dex"));
+        assert!(!Path::new(&deferred_path).exists());
+        // As if the process died before its deferred landing ran.
+        drop(deferred);
+
+        // The startup set is stamped: the next start reuses it without
+        // decrypting and resumes the deferred landing, which needs the key.
+        let wrong_key = [0xa5u8; 32];
+        let mut resumed = land_payload(&apk_path, &cache, &data, &wrong_key, &hash, FILES).unwrap();
+        assert!(resumed.from_cache);
+        assert_eq!(resumed.dex_paths, landed.dex_paths);
+        assert!(land_deferred(resumed.deferred.take().expect("deferred landing not resumed"), |_| {}).is_err());
+
+        let mut landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(landed.from_cache);
+        let mut deferred_paths = Vec::new();
+        land_deferred(landed.deferred.take().unwrap(), |paths| deferred_paths.extend_from_slice(paths))
+            .expect("deferred landing failed");
+        assert_eq!(deferred_paths, vec![deferred_path.clone()]);
+        assert_eq!(std::fs::read(&deferred_path).unwrap(), b"deferred-dex");
+
+        let cached = land_payload(&apk_path, &cache, &data, &wrong_key, &hash, FILES)
+            .expect("cached landing failed");
+        assert!(cached.from_cache);
+        assert_eq!(cached.dex_paths.len(), 2);
+        assert!(cached.deferred.is_none());
+    }
+
+    #[test]
+    fn land_payload_reuses_the_startup_set_while_another_landing_is_deferred() {
+        let temp = TestDir::create("landing-deferred-sibling");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload_v2_with_flags(
+            &[
+                ("classes.dex", b"startup-dex"),
+                ("classes2.dex", b"deferred-dex"),
+                ("assets/secret.txt", b"secret-asset"),
+            ],
+            &TEST_KEY,
+            4,
+            Some([0, payload::ENTRY_FLAG_DEFERRED, 0].as_slice()),
+        );
+        let hash = payload_hash(&payload);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        let assets_zip = format!("{}/files/kapp_assets.zip", data);
+
+        let mut first = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        let first_deferred = first.deferred.take().expect("no deferred landing");
+        let deferred_path = format!("{}/{}", first_deferred.dex_cache_dir, content_name(b"deferred-dex"));
+
+        // A sibling starting while the first process still holds its deferred
+        // landing neither blocks on the lock nor lands the startup set again.
+        let mut second = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(second.from_cache);
+        assert_eq!(second.dex_paths, first.dex_paths);
+        let second_deferred = second.deferred.take().expect("sibling has no deferred landing");
+        assert_eq!(second_deferred.entries.dexes.len(), 1);
+        assert_eq!(second_deferred.entries.assets.len(), 1);
+
+        let mut first_paths = Vec::new();
+        land_deferred(first_deferred, |paths| first_paths.extend_from_slice(paths)).unwrap();
+        let written = std::fs::metadata(&assets_zip).expect("assets zip missing").modified().unwrap();
+        // The sibling finds the landing completed and only registers its dex.
+        let mut second_paths = Vec::new();
+        land_deferred(second_deferred, |paths| second_paths.extend_from_slice(paths)).unwrap();
+        assert_eq!(first_paths, vec![deferred_path.clone()]);
+        assert_eq!(second_paths, first_paths);
+        assert_eq!(std::fs::read(&deferred_path).unwrap(), b"deferred-dex");
+        assert_eq!(std::fs::metadata(&assets_zip).unwrap().modified().unwrap(), written);
+
+        let wrong_key = [0xa5u8; 32];
+        let cached = land_payload(&apk_path, &cache, &data, &wrong_key, &hash, FILES).unwrap();
+        assert!(cached.from_cache);
+        assert_eq!(cached.dex_paths.len(), 2);
+        assert!(cached.deferred.is_none());
+    }
+
+    #[test]
+    fn land_payload_writes_assets_after_startup_and_keeps_unchanged_zip() {
+        let temp = TestDir::create("landing-assets");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload_v2(
+            &[("classes.dex", b"dex-one"), ("assets/secret.txt", b"secret-asset")],
+            &TEST_KEY,
+            64,
+        );
+        let hash = payload_hash(&payload);
+        write_test_apk(&apk, &payload, b"v1");
+
+        let apk_path = apk.to_string_lossy().to_string();
+        let cache = temp.join("cache");
+        let data = temp.join("data");
+        let assets_zip = format!("{}/files/kapp_assets.zip", data);
+
+        let mut landed = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(!Path::new(&assets_zip).exists());
+        land_deferred(landed.deferred.take().expect("assets not deferred"), |_| {}).unwrap();
+        let written = std::fs::metadata(&assets_zip).expect("assets zip missing").modified().unwrap();
+
+        // A new APK with the same payload misses the landing cache but keeps
+        // the assets zip, so nothing is left for after startup.
+        write_test_apk(&apk, &payload, b"v2-longer");
+        let relanded = land_payload(&apk_path, &cache, &data, &TEST_KEY, &hash, FILES).unwrap();
+        assert!(!relanded.from_cache);
+        assert!(relanded.deferred.is_none());
+        assert_eq!(std::fs::metadata(&assets_zip).unwrap().modified().unwrap(), written);
+
+        let wrong_key = [0xa5u8; 32];
+        assert!(land_payload(&apk_path, &cache, &data, &wrong_key, &hash, FILES).unwrap().from_cache);
+    }
+
+    #[test]
+    fn land_payload_reads_compressed_payload_entries_without_mapping() {
+        let temp = TestDir::create("landing-deflated");
+        let v2 = build_test_payload_v2(&[("classes.dex", b"dex-v2")], &TEST_KEY, 4);
+        let legacy = build_test_payload(&[("classes.dex", b"dex-legacy")], &TEST_KEY);
+
+        for (name, payload, expected) in [("v2", &v2, b"dex-v2".as_slice()), ("legacy", &legacy, b"dex-legacy".as_slice())] {
+            let apk = temp.path.join(format!("{}.apk", name));
+            write_test_apk_with(&apk, payload, b"v1", zip::CompressionMethod::Deflated);
+            assert!(super::map_stored_payload(&apk.to_string_lossy()).is_none());
+
+            let landed = land_payload(
+                &apk.to_string_lossy(),
+                &temp.join(&format!("cache-{}", name)),
+                &temp.join(&format!("data-{}", name)),
+                &TEST_KEY,
+                &payload_hash(payload),
+                FILES,
+            )
+            .expect("landing from compressed entry failed");
+            assert_eq!(std::fs::read(&landed.dex_paths[0]).unwrap(), expected);
+        }
+    }
+
+    #[test]
+    fn land_payload_leaves_no_plaintext_when_the_signature_check_fails() {
+        let temp = TestDir::create("landing-gate");
+        let lib_name = test_lib_name();
+        let entries = [
+            ("classes.dex", b"gated-dex".as_slice()),
+            (lib_name.as_str(), b"gated-lib".as_slice()),
+            ("assets/secret.txt", b"gated-asset".as_slice()),
+        ];
+        let v2 = build_test_payload_v2(&entries, &TEST_KEY, 4);
+        let legacy = build_test_payload(&entries, &TEST_KEY);
+        let cases = [
+            ("mapped", &v2, zip::CompressionMethod::Stored),
+            ("streamed", &v2, zip::CompressionMethod::Deflated),
+            ("legacy", &legacy, zip::CompressionMethod::Deflated),
+        ];
+
+        for (name, payload, method) in cases {
+            let apk = temp.path.join(format!("{}.apk", name));
+            write_test_apk_with(&apk, payload, b"v1", method);
+            let cache = temp.join(&format!("cache-{}", name));
+            let data = temp.join(&format!("data-{}", name));
+
+            // The check fails while the landing is already decrypting.
+            let gate = SignatureGate::pending();
+            let landed = std::thread::scope(|scope| {
+                let landing = scope.spawn(|| {
+                    let hash = payload_hash(payload);
+                    super::land_payload(&apk.to_string_lossy(), &cache, &data, &TEST_KEY, &hash, FILES, &gate)
+                        .map_err(|e| e.to_string())
+                });
+                std::thread::sleep(std::time::Duration::from_millis(20));
+                gate.decide(false);
+                landing.join().unwrap()
+            });
+            assert!(landed.is_err(), "{} landing went ahead", name);
+            for dir in [format!("{}/dex_landing", cache), format!("{}/native_libs", cache)] {
+                let left: Vec<PathBuf> = std::fs::read_dir(&dir)
+                    .map(|entries| entries.flatten().map(|entry| entry.path()).collect())
+                    .unwrap_or_default();
+                assert!(left.is_empty(), "{} left {:?}", name, left);
+            }
+            assert!(!Path::new(&assets_zip_path(&data)).exists(), "{} left the assets zip", name);
+        }
+    }
+
+    #[test]
+    fn stored_payload_is_mapped_at_its_data_offset() {
+        let temp = TestDir::create("landing-mapped");
+        let apk = temp.path.join("base.apk");
+        let payload = build_test_payload_v2(&[("classes.dex", b"dex-one")], &TEST_KEY, 64);
+        write_test_apk(&apk, &payload, b"leading-entry");
+
+        let mapped = super::map_stored_payload(&apk.to_string_lossy()).expect("payload not mapped");
+        assert_eq!(mapped.as_slice(), payload.as_slice());
+    }
+
+    fn status_kb(field: &str) -> u64 {
+        let status = std::fs::read_to_string("/proc/self/status").unwrap();
+        status
+            .lines()
+            .find_map(|line| line.strip_prefix(field))
+            .and_then(|rest| rest.trim().trim_end_matches("kB").trim().parse().ok())
+            .unwrap_or(0)
+    }
+
+    // Peak RSS of one landing run above the RSS it started from, in kB.
+    fn landing_peak_rss_kb(apk_path: &str, cache: &str, data: &str, hash: &[u8; 32]) -> u64 {
+        // "5" resets VmHWM to the current RSS.
+        std::fs::write("/proc/self/clear_refs", "5").expect("clear_refs not writable");
+        let before = status_kb("VmRSS:");
+        land_payload(apk_path, cache, data, &TEST_KEY, hash, FILES).expect("landing failed");
+        status_kb("VmHWM:").saturating_sub(before)
+    }
+
+    // Measures process-wide counters, so run it on its own:
+    //   cargo test -- --ignored --test-threads=1 landing_peak_rss
+    #[test]
+    #[ignore]
+    fn landing_peak_rss_streaming_vs_buffered() {
+        let temp = TestDir::create("landing-rss");
+        let dex: Vec<u8> = (0..32 * 1024 * 1024u32).map(|i| (i.wrapping_mul(2654435761) >> 24) as u8).collect();
+
+        let legacy_apk = temp.path.join("legacy.apk");
+        let legacy = build_test_payload(&[("classes.dex", dex.as_slice())], &TEST_KEY);
+        let legacy_hash = payload_hash(&legacy);
+        write_test_apk(&legacy_apk, &legacy, b"v1");
+        drop(legacy);
+
+        let stream_apk = temp.path.join("stream.apk");
+        let streamed = build_test_payload_v2(&[("classes.dex", dex.as_slice())], &TEST_KEY, 64 * 1024);
+        let stream_hash = payload_hash(&streamed);
+        write_test_apk(&stream_apk, &streamed, b"v1");
+        drop(streamed);
+        drop(dex);
+
+        let buffered_kb = landing_peak_rss_kb(
+            &legacy_apk.to_string_lossy(),
+            &temp.join("cache-legacy"),
+            &temp.join("data-legacy"),
+            &legacy_hash,
+        );
+        let streaming_kb = landing_peak_rss_kb(
+            &stream_apk.to_string_lossy(),
+            &temp.join("cache-stream"),
+            &temp.join("data-stream"),
+            &stream_hash,
+        );
+
+        println!("peak RSS over baseline: buffered {} kB, streaming {} kB", buffered_kb, streaming_kb);
+        assert!(streaming_kb < buffered_kb / 4);
+    }
+
+    // Host timing of pooled vs serial entry decryption as the entry count grows:
+    //   cargo test --release -- --ignored --nocapture decrypt_scaling
+    #[test]
+    #[ignore]
+    fn decrypt_scaling_with_entry_count() {
+        let chunk_size = 64 * 1024;
+        let plain = vec![0x42u8; 4 * 1024 * 1024];
+
+        for count in [1usize, 2, 4, 8, 16] {
+            let entries: Vec<(payload::EntryInfo, Vec<u8>)> = (0..count)
+                .map(|i| {
+                    let nonce = [i as u8; 12];
+                    let sealed = test_payload::seal(&TEST_KEY, 0, &nonce, &plain, chunk_size);
+                    let info = payload::EntryInfo {
+                        name: format!("classes{}.dex", i),
+                        flags: 0,
+                        plain_len: plain.len() as u64,
+                        stored_len: sealed.len() as u64,
+                        raw_len: plain.len() as u64,
+                        nonce,
+                        digest: None,
+                        content_name: None,
+                    };
+                    (info, sealed)
+                })
+                .collect();
+
+            let decrypt_all = |threads: usize| {
+                let started = std::time::Instant::now();
+                let sizes = parallel::map_indexed(entries.len(), threads, |i| {
+                    let (info, sealed) = &entries[i];
+                    let cipher = cipher::PayloadCipher::new(&TEST_KEY);
+                    let mut source = sealed.as_slice();
+                    let mut reader = payload::EntryReader::new(&mut source, &cipher, chunk_size, info);
+                    std::io::copy(&mut reader, &mut std::io::sink()).unwrap()
+                });
+                assert!(sizes.iter().all(|&size| size == plain.len() as u64));
+                started.elapsed()
+            };
+
+            let serial = decrypt_all(1);
+            let threads = parallel::worker_count(8, count);
+            let pooled = decrypt_all(threads);
+            println!(
+                "{:>2} entries x 4 MiB: serial {:?}, {} threads {:?} ({:.2}x)",
+                count,
+                serial,
+                threads,
+                pooled,
+                serial.as_secs_f64() / pooled.as_secs_f64()
+            );
+        }
+    }
 }
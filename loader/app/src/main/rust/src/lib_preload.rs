@@ -0,0 +1,89 @@
+// Background dlopen of the payload libraries the app loads at startup.
+//
+// The packer flags them (--preload-lib) and the landing stamp lists them.
+// Once load_file_landing has put native_libs on the class loader's path they
+// are opened here, on worker threads, while the app goes on starting. The
+// app's own System.loadLibrary later resolves the same landed path, and the
+// linker hands back the library it already relocated and ran the constructors
+// of; ART then only calls JNI_OnLoad. A System.loadLibrary racing a preload
+// waits on the linker's lock rather than loading the library twice.
+
+use crate::{config, memfd_lib, parallel, stats, trace};
+use std::ffi::CString;
+use std::time::Instant;
+
+// Opens `libs` (file names inside `libs_dir`) on a detached thread.
+pub fn spawn(libs_dir: &str, libs: Vec<String>) {
+    if libs.is_empty() {
+        return;
+    }
+    let libs_dir = libs_dir.to_string();
+    let spawned = std::thread::Builder::new()
+        .name("kapp-preload".to_string())
+        .spawn(move || preload(&libs_dir, libs));
+    if let Err(e) = spawned {
+        warn!("lib_preload: cannot start the preload thread: {}", e);
+    }
+}
+
+// Payload order says nothing about dependencies: the linker only resolves a
+// DT_NEEDED under native_libs once that library is loaded, so what fails is
+// retried after every round that loaded something.
+fn preload(libs_dir: &str, libs: Vec<String>) {
+    let _trace = trace::section("kapp:preload_libs");
+    let mut pending = libs;
+    loop {
+        let threads = parallel::worker_count(config::MAX_DECRYPT_THREADS, pending.len());
+        let opened = parallel::map_indexed(pending.len(), threads, |i| open(libs_dir, &pending[i]));
+        let mut failed = Vec::new();
+        for (name, result) in pending.iter().zip(opened) {
+            match result {
+                Ok(nanos) => {
+                    debug!("lib_preload: {} loaded in {} us", name, nanos / 1000);
+                    stats::record_lib_preload(name, nanos);
+                }
+                Err(e) => failed.push((name.clone(), e)),
+            }
+        }
+        if failed.is_empty() {
+            return;
+        }
+        if failed.len() == pending.len() {
+            // The app's System.loadLibrary reports these itself.
+            for (name, e) in failed {
+                warn!("lib_preload: {} not preloaded: {}", name, e);
+            }
+            return;
+        }
+        pending = failed.into_iter().map(|(name, _)| name).collect();
+    }
+}
+
+// dlopen time of the library, in nanoseconds.
+fn open(libs_dir: &str, name: &str) -> Result<u64, String> {
+    let path = CString::new(format!("{}/{}", libs_dir, name)).map_err(|e| e.to_string())?;
+    let start = Instant::now();
+    // SAFETY: path is a valid C string; the handle is kept for the process.
+    let handle = unsafe { libc::dlopen(path.as_ptr(), libc::RTLD_NOW) };
+    if handle.is_null() {
+        return Err(memfd_lib::dlerror());
+    }
+    Ok(u64::try_from(start.elapsed().as_nanos()).unwrap_or(u64::MAX))
+}
+
+#[cfg(test)]
+mod tests {
+    use super::preload;
+    use crate::stats;
+
+    #[test]
+    fn preload_skips_what_the_linker_refuses() {
+        let dir = std::env::temp_dir().join(format!("kapp-preload-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).unwrap();
+        std::fs::write(dir.join("libbroken.so"), b"not an elf file").unwrap();
+
+        preload(&dir.to_string_lossy(), vec!["libbroken.so".to_string(), "libmissing.so".to_string()]);
+        assert!(stats::lib_preloads().iter().all(|(name, _)| name != "libbroken.so"));
+        let _ = std::fs::remove_dir_all(&dir);
+    }
+}
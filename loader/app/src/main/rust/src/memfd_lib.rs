@@ -0,0 +1,179 @@
+// Native libraries loaded from anonymous memory.
+//
+// In LibLoadMode::Memory a decrypted library goes into a memfd instead of
+// cache/native_libs and is opened with android_dlopen_ext and
+// ANDROID_DLEXT_USE_LIBRARY_FD. The linker registers it under its DT_SONAME
+// in the caller's namespace, which is the app class loader's. From API 30 on,
+// Runtime.loadLibrary0 passes a library the class loader cannot find to the
+// linker by soname, and the linker answers with the library already loaded,
+// so the app's System.loadLibrary calls end up at these handles without a
+// file on disk.
+
+use std::ffi::{CStr, CString};
+use std::fs::File;
+use std::io::{self, Seek, SeekFrom};
+use std::os::unix::io::{AsRawFd, FromRawFd};
+
+const MFD_CLOEXEC: libc::c_uint = 0x0001;
+
+pub struct MemfdLib {
+    // File name under lib/<abi>/, e.g. "libfoo.so".
+    pub name: String,
+    file: File,
+}
+
+impl MemfdLib {
+    pub fn create(name: &str) -> io::Result<MemfdLib> {
+        let c_name = CString::new(name).map_err(|_| io::Error::new(io::ErrorKind::InvalidInput, "NUL in name"))?;
+        // A raw syscall: bionic only exports memfd_create from API 30 on.
+        // SAFETY: c_name is a valid C string for the duration of the call.
+        let fd = unsafe { libc::syscall(libc::SYS_memfd_create, c_name.as_ptr(), MFD_CLOEXEC) };
+        if fd < 0 {
+            return Err(io::Error::last_os_error());
+        }
+        Ok(MemfdLib {
+            name: name.to_string(),
+            // SAFETY: the kernel just handed out this fd and nothing else owns it.
+            file: unsafe { File::from_raw_fd(fd as libc::c_int) },
+        })
+    }
+
+    pub fn file(&mut self) -> &mut File {
+        &mut self.file
+    }
+
+    // Copies the library out, for landing it as a file after all.
+    pub fn copy_to<W: io::Write>(&self, out: &mut W) -> io::Result<u64> {
+        let mut file = &self.file;
+        file.seek(SeekFrom::Start(0))?;
+        io::copy(&mut file, out)
+    }
+
+    // Loads the library for the rest of the process. The memfd is closed when
+    // this value is dropped; the linker keeps its own mappings.
+    pub fn dlopen(&self) -> io::Result<()> {
+        let c_name = CString::new(self.name.as_str())
+            .map_err(|_| io::Error::new(io::ErrorKind::InvalidInput, "NUL in name"))?;
+        dlopen_fd(&c_name, self.file.as_raw_fd())
+    }
+}
+
+// Whether memfds can be created at all; kernels before 3.17 lack the syscall.
+pub fn available() -> bool {
+    MemfdLib::create("kapp-probe").is_ok()
+}
+
+// Opens every library and returns the ones the linker refused. Payload order
+// says nothing about dependencies, so a library whose DT_NEEDED are not
+// loaded yet is retried after each round that loaded something.
+pub fn dlopen_all(libs: Vec<MemfdLib>) -> Vec<(MemfdLib, io::Error)> {
+    let mut pending = libs;
+    loop {
+        let attempted = pending.len();
+        let mut failed = Vec::new();
+        for lib in pending {
+            if let Err(e) = lib.dlopen() {
+                failed.push((lib, e));
+            }
+        }
+        if failed.is_empty() || failed.len() == attempted {
+            return failed;
+        }
+        pending = failed.into_iter().map(|(lib, _)| lib).collect();
+    }
+}
+
+// <android/dlext.h>
+#[cfg(target_os = "android")]
+#[repr(C)]
+struct AndroidDlextinfo {
+    flags: u64,
+    reserved_addr: *mut libc::c_void,
+    reserved_size: libc::size_t,
+    relro_fd: libc::c_int,
+    library_fd: libc::c_int,
+    library_fd_offset: i64,
+    library_namespace: *mut libc::c_void,
+}
+
+#[cfg(target_os = "android")]
+const ANDROID_DLEXT_USE_LIBRARY_FD: u64 = 0x10;
+
+#[cfg(target_os = "android")]
+extern "C" {
+    fn android_dlopen_ext(
+        filename: *const libc::c_char,
+        flags: libc::c_int,
+        extinfo: *const AndroidDlextinfo,
+    ) -> *mut libc::c_void;
+}
+
+#[cfg(target_os = "android")]
+fn dlopen_fd(name: &CStr, fd: libc::c_int) -> io::Result<()> {
+    let info = AndroidDlextinfo {
+        flags: ANDROID_DLEXT_USE_LIBRARY_FD,
+        reserved_addr: std::ptr::null_mut(),
+        reserved_size: 0,
+        relro_fd: -1,
+        library_fd: fd,
+        library_fd_offset: 0,
+        library_namespace: std::ptr::null_mut(),
+    };
+    // SAFETY: name and info outlive the call; the handle is never closed.
+    let handle = unsafe { android_dlopen_ext(name.as_ptr(), libc::RTLD_NOW, &info) };
+    if handle.is_null() {
+        return Err(io::Error::new(io::ErrorKind::Other, dlerror()));
+    }
+    Ok(())
+}
+
+// Host builds: the same through /proc/self/fd, so the round logic can run in
+// tests.
+#[cfg(not(target_os = "android"))]
+fn dlopen_fd(_name: &CStr, fd: libc::c_int) -> io::Result<()> {
+    let path = CString::new(format!("/proc/self/fd/{}", fd)).expect("no NUL in fd path");
+    // SAFETY: path is a valid C string; the handle is never closed.
+    let handle = unsafe { libc::dlopen(path.as_ptr(), libc::RTLD_NOW) };
+    if handle.is_null() {
+        return Err(io::Error::new(io::ErrorKind::Other, dlerror()));
+    }
+    Ok(())
+}
+
+// The calling thread's last dlopen error.
+pub fn dlerror() -> String {
+    // SAFETY: dlerror returns null or a NUL-terminated thread-local message.
+    let message = unsafe { libc::dlerror() };
+    if message.is_null() {
+        return "dlopen failed".to_string();
+    }
+    // SAFETY: checked for null above.
+    unsafe { CStr::from_ptr(message) }.to_string_lossy().into_owned()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{available, dlopen_all, MemfdLib};
+    use std::io::Write;
+
+    #[test]
+    fn memfd_holds_the_library_bytes_off_disk() {
+        assert!(available());
+        let mut lib = MemfdLib::create("libfoo.so").unwrap();
+        lib.file().write_all(b"\x7fELF-not-really").unwrap();
+
+        let mut copied = Vec::new();
+        assert_eq!(lib.copy_to(&mut copied).unwrap(), 15);
+        assert_eq!(copied, b"\x7fELF-not-really");
+    }
+
+    #[test]
+    fn dlopen_all_hands_back_what_the_linker_refuses() {
+        let mut lib = MemfdLib::create("libbroken.so").unwrap();
+        lib.file().write_all(b"not an elf file").unwrap();
+        let failed = dlopen_all(vec![lib]);
+        assert_eq!(failed.len(), 1);
+        assert_eq!(failed[0].0.name, "libbroken.so");
+        assert!(dlopen_all(Vec::new()).is_empty());
+    }
+}
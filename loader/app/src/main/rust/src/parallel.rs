@@ -0,0 +1,120 @@
+// Bounded worker pool for independent payload entries.
+//
+// Entries are handed out through a shared counter, so one large dex does not
+// hold up the small ones queued behind it. The pool never starts more threads
+// than config::MAX_DECRYPT_THREADS, the number of cores, or the number of jobs.
+
+use std::sync::atomic::{AtomicUsize, Ordering};
+
+pub fn worker_count(max_threads: usize, jobs: usize) -> usize {
+    let cores = std::thread::available_parallelism()
+        .map(|n| n.get())
+        .unwrap_or(1);
+    max_threads.min(cores).min(jobs).max(1)
+}
+
+// Runs `work` for every index in 0..count on at most `threads` scoped threads
+// and returns the results in index order. With one thread the work runs on the
+// calling thread.
+pub fn map_indexed<R, F>(count: usize, threads: usize, work: F) -> Vec<R>
+where
+    R: Send,
+    F: Fn(usize) -> R + Sync,
+{
+    if threads <= 1 || count <= 1 {
+        return (0..count).map(&work).collect();
+    }
+
+    let next = AtomicUsize::new(0);
+    let mut slots: Vec<Option<R>> = (0..count).map(|_| None).collect();
+
+    std::thread::scope(|scope| {
+        let handles: Vec<_> = (0..threads.min(count))
+            .map(|_| {
+                scope.spawn(|| {
+                    let mut done = Vec::new();
+                    loop {
+                        let i = next.fetch_add(1, Ordering::Relaxed);
+                        if i >= count {
+                            break;
+                        }
+                        done.push((i, work(i)));
+                    }
+                    done
+                })
+            })
+            .collect();
+
+        for handle in handles {
+            let done = handle
+                .join()
+                .unwrap_or_else(|panic| std::panic::resume_unwind(panic));
+            for (i, result) in done {
+                slots[i] = Some(result);
+            }
+        }
+    });
+
+    slots
+        .into_iter()
+        .map(|slot| slot.expect("every index is claimed by exactly one worker"))
+        .collect()
+}
+
+// Runs `background` on a scoped thread while `foreground` runs on the calling
+// thread, and returns both results once both are done. Only `background` has
+// to be Send, so `foreground` may hold thread-bound state such as a JNIEnv.
+pub fn overlap<A, B, FA, FB>(background: FA, foreground: FB) -> (A, B)
+where
+    A: Send,
+    FA: FnOnce() -> A + Send,
+    FB: FnOnce() -> B,
+{
+    std::thread::scope(|scope| {
+        let handle = scope.spawn(background);
+        let foreground_result = foreground();
+        let background_result = handle
+            .join()
+            .unwrap_or_else(|panic| std::panic::resume_unwind(panic));
+        (background_result, foreground_result)
+    })
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{map_indexed, overlap, worker_count};
+    use std::sync::Barrier;
+
+    #[test]
+    fn map_indexed_keeps_index_order_across_threads() {
+        let results = map_indexed(100, 4, |i| i * 2);
+        assert_eq!(results, (0..100).map(|i| i * 2).collect::<Vec<_>>());
+        assert!(map_indexed(0, 4, |i| i).is_empty());
+    }
+
+    #[test]
+    fn overlap_runs_both_sides_at_the_same_time() {
+        // Each side waits for the other, so running them one after the other
+        // would never return.
+        let barrier = Barrier::new(2);
+        let (background, foreground) = overlap(
+            || {
+                barrier.wait();
+                "landed"
+            },
+            || {
+                barrier.wait();
+                "verified"
+            },
+        );
+        assert_eq!((background, foreground), ("landed", "verified"));
+    }
+
+    #[test]
+    fn worker_count_is_capped_by_config_and_jobs() {
+        assert_eq!(worker_count(1, 10), 1);
+        assert_eq!(worker_count(8, 0), 1);
+        assert!(worker_count(2, 10) <= 2);
+        assert!(worker_count(64, 3) <= 3);
+    }
+}
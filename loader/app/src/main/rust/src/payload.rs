@@ -0,0 +1,1162 @@
+// Streaming reader for the v2 payload format written by
+// packer::build_payload_blob.
+//
+// Layout (all integers little endian):
+//   Header: [Magic "KAPP" (4)] [Version (2)] [Flags (2)] [ChunkSize (4)]
+//           [EntryCount (4)] [IndexLen (4)]
+//   Index:  [ [NameLen(2)] [Name] [EntryFlags(2)]? [PlainLen(8)] [StoredLen(8)]
+//             [RawLen(8)]? [Nonce(12)] [Digest(32)]? [ContentName(16)]? ] * N
+//           [SegmentCount(2)] [ [AbiLen(2)] [Abi] [EntryCount(4)]
+//             [DataOffset(8)] [DataLen(8)] ] * S                    (segments)
+//   Data:   entries in index order
+//
+// EntryFlags is only present when the header has FLAG_ENTRY_FLAGS set. The
+// packer sets it when a startup profile deferred some dex entries, a library
+// is to be preloaded (ENTRY_FLAG_PRELOAD) or an entry is not sealed with
+// AES-256-GCM. The high byte of EntryFlags is the cipher id
+// (see cipher.rs); one name may then appear once per cipher, and the loader
+// lands only the copy it decrypts fastest.
+//
+// RawLen is present when the header has FLAG_ENTRY_CODECS set. Bits 4..7 of
+// EntryFlags then name the codec the entry was compressed with before it was
+// sealed: LZ4 frames for startup dex and libs, zstd for cold entries. PlainLen
+// is the length of the sealed (compressed) bytes, RawLen the length of the
+// landed file. Entries the codec did not shrink are stored with CODEC_NONE.
+//
+// Digest is present when the header has FLAG_ENTRY_DIGESTS set: the SHA-256
+// of the entry's stored bytes. The payload hash baked into libshell is then
+// the SHA-256 of the header and index after the magic (the commitment), so
+// the whole payload is covered without hashing it in one pass: each entry is
+// checked against its digest while it is decrypted. Without the flag the
+// payload hash is the SHA-256 of the whole payload.
+//
+// ContentName is present when the header has FLAG_CONTENT_NAMES set: the
+// first 16 bytes of the SHA-256 of a dex entry's landed content, which is
+// the name the loader lands it under (see landed_dex_name in lib.rs), and
+// zero for every other entry. A dex already landed under that name with
+// RawLen bytes is kept without decrypting the entry again.
+//
+// The segment table is present when the header has FLAG_SEGMENTS set. It
+// splits the entries, in index order, into runs that share an ABI: the
+// ABI-independent run (empty Abi: dex, assets) first, then one run of
+// `lib/<abi>/` entries per ABI. DataOffset is relative to the magic; the
+// packer starts every ABI run on a fresh page and zero-fills the gap, so the
+// loader can skip other ABIs' libraries without reading a byte of them. The
+// table is part of the index, so the commitment covers it. Payloads without
+// the flag read as a single ABI-independent segment.
+//
+// Each entry is split into ChunkSize plaintext segments that are sealed
+// independently with the entry's AEAD, so every chunk is stored as
+// [Ciphertext] [Tag(16)]. The nonce of chunk i is the entry nonce with its
+// last four bytes XORed with i (big endian). Because the index comes first,
+// the loader can decrypt an entry while it is being read from the APK and
+// never holds more than one chunk in memory. When the payload is mapped,
+// PayloadIndex resolves every entry to its byte range instead, so entries can
+// be opened by name, one at a time, in any order.
+
+use crate::cipher::{self, PayloadCipher};
+use sha2::{Digest, Sha256};
+use std::collections::hash_map::{Entry, HashMap};
+use std::io::{self, Read, Write};
+use std::ops::Range;
+
+pub const FORMAT_VERSION: u16 = 2;
+pub const TAG_LEN: usize = 16;
+pub const FLAG_ENTRY_FLAGS: u16 = 0x0001;
+pub const FLAG_ENTRY_DIGESTS: u16 = 0x0002;
+pub const FLAG_ENTRY_CODECS: u16 = 0x0004;
+pub const FLAG_SEGMENTS: u16 = 0x0008;
+pub const FLAG_CONTENT_NAMES: u16 = 0x0010;
+pub const CONTENT_NAME_LEN: usize = 16;
+pub const ENTRY_FLAG_DEFERRED: u16 = 0x0001;
+pub const ENTRY_FLAG_PRELOAD: u16 = 0x0002;
+pub const ENTRY_CODEC_SHIFT: u32 = 4;
+pub const ENTRY_CIPHER_SHIFT: u32 = 8;
+pub const CODEC_NONE: u8 = 0;
+pub const CODEC_LZ4: u8 = 1;
+pub const CODEC_ZSTD: u8 = 2;
+const MAX_CHUNK_SIZE: u32 = 16 * 1024 * 1024;
+const MAX_INDEX_LEN: u32 = 16 * 1024 * 1024;
+pub const HEADER_LEN: u64 = 20;
+const MAX_READ_PREALLOC: u64 = 64 * 1024 * 1024;
+
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct EntryInfo {
+    pub name: String,
+    pub flags: u16,
+    pub plain_len: u64,
+    pub stored_len: u64,
+    // Landed size: plain_len unless the entry is compressed.
+    pub raw_len: u64,
+    pub nonce: [u8; 12],
+    // SHA-256 of the stored bytes, with FLAG_ENTRY_DIGESTS.
+    pub digest: Option<[u8; 32]>,
+    // Leading bytes of the SHA-256 of the landed dex, with FLAG_CONTENT_NAMES.
+    pub content_name: Option<[u8; CONTENT_NAME_LEN]>,
+}
+
+impl EntryInfo {
+    // Dex outside the startup set: landed after the class loader is set up.
+    pub fn is_deferred(&self) -> bool {
+        self.flags & ENTRY_FLAG_DEFERRED != 0
+    }
+
+    // Library the app loads at startup: opened in the background once landed.
+    pub fn is_preload(&self) -> bool {
+        self.flags & ENTRY_FLAG_PRELOAD != 0
+    }
+
+    pub fn codec(&self) -> u8 {
+        ((self.flags >> ENTRY_CODEC_SHIFT) & 0x0f) as u8
+    }
+
+    pub fn cipher(&self) -> u8 {
+        (self.flags >> ENTRY_CIPHER_SHIFT) as u8
+    }
+}
+
+// A run of entries stored back to back.
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct Segment {
+    // Empty for the ABI-independent segment.
+    pub abi: String,
+    pub entries: Range<usize>,
+    // Relative to the magic.
+    pub offset: u64,
+    pub len: u64,
+}
+
+impl Segment {
+    // Whether a device running `abi` needs anything from this segment.
+    pub fn is_for(&self, abi: &str) -> bool {
+        self.abi.is_empty() || self.abi == abi
+    }
+}
+
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct PayloadHeader {
+    pub chunk_size: usize,
+    pub entries: Vec<EntryInfo>,
+    // Covers every entry, in index order.
+    pub segments: Vec<Segment>,
+    // SHA-256 of the header and index after the magic, with
+    // FLAG_ENTRY_DIGESTS. Compared with the baked-in payload hash.
+    pub commitment: Option<[u8; 32]>,
+}
+
+fn invalid(message: &str) -> io::Error {
+    io::Error::new(io::ErrorKind::InvalidData, message.to_string())
+}
+
+pub fn chunk_count(plain_len: u64, chunk_size: usize) -> u64 {
+    let chunk_size = chunk_size as u64;
+    plain_len / chunk_size + u64::from(plain_len % chunk_size != 0)
+}
+
+pub fn chunk_nonce(base: &[u8; 12], index: u32) -> [u8; 12] {
+    let mut nonce = *base;
+    for (byte, counter) in nonce[8..].iter_mut().zip(index.to_be_bytes()) {
+        *byte ^= counter;
+    }
+    nonce
+}
+
+fn read_u16<R: Read>(reader: &mut R) -> io::Result<u16> {
+    let mut bytes = [0u8; 2];
+    reader.read_exact(&mut bytes)?;
+    Ok(u16::from_le_bytes(bytes))
+}
+
+fn read_u32<R: Read>(reader: &mut R) -> io::Result<u32> {
+    let mut bytes = [0u8; 4];
+    reader.read_exact(&mut bytes)?;
+    Ok(u32::from_le_bytes(bytes))
+}
+
+fn read_u64<R: Read>(reader: &mut R) -> io::Result<u64> {
+    let mut bytes = [0u8; 8];
+    reader.read_exact(&mut bytes)?;
+    Ok(u64::from_le_bytes(bytes))
+}
+
+// Reads the header and index. The magic has already been consumed by the
+// caller, which uses it to tell v2 payloads from legacy ones.
+pub fn read_header_after_magic<R: Read>(reader: &mut R) -> io::Result<PayloadHeader> {
+    let mut fixed = [0u8; 16];
+    reader.read_exact(&mut fixed)?;
+    let mut fields = io::Cursor::new(&fixed);
+    let version = read_u16(&mut fields)?;
+    if version != FORMAT_VERSION {
+        return Err(invalid("Unsupported payload format version"));
+    }
+    let header_flags = read_u16(&mut fields)?;
+    let chunk_size = read_u32(&mut fields)?;
+    if chunk_size == 0 || chunk_size > MAX_CHUNK_SIZE {
+        return Err(invalid("Invalid payload chunk size"));
+    }
+    let entry_count = read_u32(&mut fields)?;
+    let index_len = read_u32(&mut fields)?;
+    if index_len > MAX_INDEX_LEN {
+        return Err(invalid("Invalid payload index size"));
+    }
+
+    let mut index = vec![0u8; index_len as usize];
+    reader.read_exact(&mut index)?;
+    let with_digests = header_flags & FLAG_ENTRY_DIGESTS != 0;
+    let commitment: Option<[u8; 32]> = with_digests.then(|| {
+        let mut hasher = Sha256::new();
+        hasher.update(fixed);
+        hasher.update(&index);
+        hasher.finalize().into()
+    });
+    let mut cursor = io::Cursor::new(&index);
+
+    let mut entries = Vec::new();
+    for _ in 0..entry_count {
+        let name_len = read_u16(&mut cursor)? as usize;
+        let mut name_bytes = vec![0u8; name_len];
+        cursor.read_exact(&mut name_bytes)?;
+        let name = String::from_utf8(name_bytes).map_err(|_| invalid("Invalid entry name"))?;
+        let flags = if header_flags & FLAG_ENTRY_FLAGS != 0 {
+            read_u16(&mut cursor)?
+        } else {
+            0
+        };
+
+        let plain_len = read_u64(&mut cursor)?;
+        let stored_len = read_u64(&mut cursor)?;
+        let raw_len = if header_flags & FLAG_ENTRY_CODECS != 0 {
+            read_u64(&mut cursor)?
+        } else {
+            plain_len
+        };
+        let mut nonce = [0u8; 12];
+        cursor.read_exact(&mut nonce)?;
+        let digest = if with_digests {
+            let mut digest = [0u8; 32];
+            cursor.read_exact(&mut digest)?;
+            Some(digest)
+        } else {
+            None
+        };
+        let content_name = if header_flags & FLAG_CONTENT_NAMES != 0 {
+            let mut content_name = [0u8; CONTENT_NAME_LEN];
+            cursor.read_exact(&mut content_name)?;
+            Some(content_name)
+        } else {
+            None
+        };
+
+        let expected_stored = chunk_count(plain_len, chunk_size as usize)
+            .checked_mul(TAG_LEN as u64)
+            .and_then(|tags| tags.checked_add(plain_len));
+        if expected_stored != Some(stored_len) {
+            return Err(invalid("Entry size does not match its chunk layout"));
+        }
+
+        entries.push(EntryInfo {
+            name,
+            flags,
+            plain_len,
+            stored_len,
+            raw_len,
+            nonce,
+            digest,
+            content_name,
+        });
+        let entry = &entries[entries.len() - 1];
+        if !cipher::is_supported(entry.cipher()) {
+            return Err(invalid("Unsupported payload entry cipher"));
+        }
+        match entry.codec() {
+            CODEC_NONE if entry.raw_len != entry.plain_len => {
+                return Err(invalid("Uncompressed entry with a different raw size"));
+            }
+            CODEC_NONE | CODEC_LZ4 | CODEC_ZSTD => {}
+            _ => return Err(invalid("Unsupported payload entry codec")),
+        }
+    }
+
+    let data_start = HEADER_LEN + u64::from(index_len);
+    let segments = if header_flags & FLAG_SEGMENTS != 0 {
+        read_segments(&mut cursor, &entries, data_start)?
+    } else {
+        let len = entries
+            .iter()
+            .try_fold(0u64, |len, entry| len.checked_add(entry.stored_len))
+            .ok_or_else(|| invalid("Payload too large"))?;
+        vec![Segment {
+            abi: String::new(),
+            entries: 0..entries.len(),
+            offset: data_start,
+            len,
+        }]
+    };
+
+    if cursor.position() != index_len as u64 {
+        return Err(invalid("Trailing bytes in payload index"));
+    }
+
+    Ok(PayloadHeader {
+        chunk_size: chunk_size as usize,
+        entries,
+        segments,
+        commitment,
+    })
+}
+
+// Segments must cover the entries in order, lie in order after the index, hold
+// exactly their entries' bytes, and only hold `lib/<abi>/` entries when they
+// name an ABI: a device skips every segment of another ABI unread.
+fn read_segments<R: Read>(cursor: &mut R, entries: &[EntryInfo], data_start: u64) -> io::Result<Vec<Segment>> {
+    let count = read_u16(cursor)?;
+    let mut segments = Vec::with_capacity(count as usize);
+    let mut next_entry = 0usize;
+    let mut data_end = data_start;
+    for _ in 0..count {
+        let abi_len = read_u16(cursor)? as usize;
+        let mut abi_bytes = vec![0u8; abi_len];
+        cursor.read_exact(&mut abi_bytes)?;
+        let abi = String::from_utf8(abi_bytes).map_err(|_| invalid("Invalid segment ABI"))?;
+        let entry_count = read_u32(cursor)? as usize;
+        let offset = read_u64(cursor)?;
+        let len = read_u64(cursor)?;
+
+        let range = next_entry..next_entry.saturating_add(entry_count);
+        let members = entries.get(range.clone()).ok_or_else(|| invalid("Segment past the last entry"))?;
+        let stored = members
+            .iter()
+            .try_fold(0u64, |len, entry| len.checked_add(entry.stored_len));
+        if offset < data_end || stored != Some(len) {
+            return Err(invalid("Segment does not match its entries"));
+        }
+        if !abi.is_empty() {
+            let prefix = format!("lib/{}/", abi);
+            if abi.contains('/') || !members.iter().all(|entry| entry.name.starts_with(&prefix)) {
+                return Err(invalid("Segment holds entries of another ABI"));
+            }
+        }
+
+        data_end = offset.checked_add(len).ok_or_else(|| invalid("Payload too large"))?;
+        next_entry = range.end;
+        segments.push(Segment {
+            abi,
+            entries: range,
+            offset,
+            len,
+        });
+    }
+    if next_entry != entries.len() {
+        return Err(invalid("Segments do not cover every entry"));
+    }
+    Ok(segments)
+}
+
+// Hashes everything that is read through it, so the whole-payload SHA-256 is
+// computed in the same pass that decrypts the entries. Payloads with entry
+// digests stop the hashing once their header has been read.
+pub struct HashingReader<R: Read> {
+    inner: R,
+    hasher: Option<Sha256>,
+    bytes_read: u64,
+}
+
+impl<R: Read> HashingReader<R> {
+    pub fn new(inner: R) -> Self {
+        HashingReader {
+            inner,
+            hasher: Some(Sha256::new()),
+            bytes_read: 0,
+        }
+    }
+
+    pub fn bytes_read(&self) -> u64 {
+        self.bytes_read
+    }
+
+    pub fn stop_hashing(&mut self) {
+        self.hasher = None;
+    }
+
+    // None after stop_hashing.
+    pub fn finalize(self) -> Option<[u8; 32]> {
+        self.hasher.map(|hasher| hasher.finalize().into())
+    }
+}
+
+impl<R: Read> Read for HashingReader<R> {
+    fn read(&mut self, buf: &mut [u8]) -> io::Result<usize> {
+        let n = self.inner.read(buf)?;
+        if let Some(hasher) = self.hasher.as_mut() {
+            hasher.update(&buf[..n]);
+        }
+        self.bytes_read += n as u64;
+        Ok(n)
+    }
+}
+
+// Hashes everything written through it. Landed dex are named after the
+// SHA-256 of their content, which is only known once they are written.
+pub struct HashingWriter<W: Write> {
+    inner: W,
+    hasher: Sha256,
+}
+
+impl<W: Write> HashingWriter<W> {
+    pub fn new(inner: W) -> Self {
+        HashingWriter {
+            inner,
+            hasher: Sha256::new(),
+        }
+    }
+
+    pub fn finalize(self) -> [u8; 32] {
+        self.hasher.finalize().into()
+    }
+}
+
+impl<W: Write> Write for HashingWriter<W> {
+    fn write(&mut self, buf: &[u8]) -> io::Result<usize> {
+        let n = self.inner.write(buf)?;
+        self.hasher.update(&buf[..n]);
+        Ok(n)
+    }
+
+    fn flush(&mut self) -> io::Result<()> {
+        self.inner.flush()
+    }
+}
+
+// Decrypts one entry chunk by chunk while it is read from `source`. Only one
+// chunk (plus its tag) is buffered at a time. An entry digest is checked in
+// the same pass: the last chunk is only returned once the stored bytes hashed
+// to the digest.
+pub struct EntryReader<'a, R: Read> {
+    source: &'a mut R,
+    cipher: &'a PayloadCipher,
+    cipher_id: u8,
+    nonce: [u8; 12],
+    chunk_size: usize,
+    chunk_index: u32,
+    remaining: u64,
+    buf: Vec<u8>,
+    pos: usize,
+    filled: usize,
+    digest: Option<([u8; 32], Sha256)>,
+}
+
+impl<'a, R: Read> EntryReader<'a, R> {
+    pub fn new(
+        source: &'a mut R,
+        cipher: &'a PayloadCipher,
+        chunk_size: usize,
+        entry: &EntryInfo,
+    ) -> Self {
+        EntryReader {
+            source,
+            cipher,
+            cipher_id: entry.cipher(),
+            nonce: entry.nonce,
+            chunk_size,
+            chunk_index: 0,
+            remaining: entry.plain_len,
+            buf: Vec::with_capacity(chunk_size.min(entry.plain_len as usize) + TAG_LEN),
+            pos: 0,
+            filled: 0,
+            digest: entry.digest.map(|digest| (digest, Sha256::new())),
+        }
+    }
+
+    // Keeps failing on later calls, so a mismatch never turns into an EOF.
+    fn check_digest(&mut self) -> io::Result<()> {
+        if let Some((expected, hasher)) = &self.digest {
+            let actual: [u8; 32] = hasher.clone().finalize().into();
+            if actual != *expected {
+                return Err(invalid("Payload entry digest mismatch"));
+            }
+            self.digest = None;
+        }
+        Ok(())
+    }
+
+    fn fill_next_chunk(&mut self) -> io::Result<()> {
+        let plain = (self.chunk_size as u64).min(self.remaining) as usize;
+        self.buf.resize(plain + TAG_LEN, 0);
+        self.source.read_exact(&mut self.buf[..plain + TAG_LEN])?;
+        if let Some((_, hasher)) = self.digest.as_mut() {
+            hasher.update(&self.buf[..plain + TAG_LEN]);
+        }
+
+        let nonce = chunk_nonce(&self.nonce, self.chunk_index);
+        let (data, tag) = self.buf[..plain + TAG_LEN].split_at_mut(plain);
+        self.cipher
+            .open_in_place(self.cipher_id, &nonce, data, tag)
+            .map_err(|_| invalid("Payload chunk authentication failed"))?;
+
+        self.chunk_index += 1;
+        self.remaining -= plain as u64;
+        if self.remaining == 0 {
+            self.check_digest()?;
+        }
+        self.pos = 0;
+        self.filled = plain;
+        Ok(())
+    }
+}
+
+impl<'a, R: Read> Read for EntryReader<'a, R> {
+    fn read(&mut self, out: &mut [u8]) -> io::Result<usize> {
+        if self.pos == self.filled {
+            if self.remaining == 0 {
+                // Empty entries have no chunk to check the digest after.
+                self.check_digest()?;
+                return Ok(0);
+            }
+            if out.is_empty() {
+                return Ok(0);
+            }
+            self.fill_next_chunk()?;
+        }
+        let n = out.len().min(self.filled - self.pos);
+        out[..n].copy_from_slice(&self.buf[self.pos..self.pos + n]);
+        self.pos += n;
+        Ok(n)
+    }
+}
+
+// Consumes an entry's stored bytes without decrypting them.
+pub fn skip_entry<R: Read>(source: &mut R, entry: &EntryInfo) -> io::Result<()> {
+    skip_bytes(source, entry.stored_len)
+}
+
+pub fn skip_bytes<R: Read>(source: &mut R, len: u64) -> io::Result<()> {
+    let skipped = io::copy(&mut source.take(len), &mut io::sink())?;
+    if skipped != len {
+        return Err(invalid("Payload truncated"));
+    }
+    Ok(())
+}
+
+// Lands one entry: decrypts it through `reader` and, for compressed entries,
+// decompresses it straight into `out`. The entry is always read to its end, so
+// a streamed payload stays aligned on the next entry and the entry digest is
+// checked. Returns the landed size, which must match the index.
+pub fn copy_entry<R: Read, W: Write + ?Sized>(
+    reader: &mut EntryReader<'_, R>,
+    entry: &EntryInfo,
+    out: &mut W,
+) -> io::Result<u64> {
+    // One byte over the recorded size is enough to tell that it is wrong.
+    let limit = entry.raw_len.saturating_add(1);
+    let written = match entry.codec() {
+        CODEC_LZ4 => io::copy(&mut lz4_flex::frame::FrameDecoder::new(&mut *reader).take(limit), out)?,
+        CODEC_ZSTD => {
+            let decoder = ruzstd::StreamingDecoder::new(&mut *reader)
+                .map_err(|e| invalid(&format!("Invalid zstd frame: {:?}", e)))?;
+            io::copy(&mut decoder.take(limit), out)?
+        }
+        _ => io::copy(&mut *reader, out)?,
+    };
+    if io::copy(&mut *reader, &mut io::sink())? != 0 {
+        return Err(invalid("Trailing bytes after compressed entry"));
+    }
+    if written != entry.raw_len {
+        return Err(invalid("Entry size does not match its index"));
+    }
+    Ok(written)
+}
+
+// Picks one entry per name. A name sealed under several ciphers resolves to
+// its copy under `preferred`, or to its first copy when there is none.
+pub fn select_entries(entries: &[EntryInfo], preferred: u8) -> Vec<bool> {
+    let mut picked: HashMap<&str, usize> = HashMap::new();
+    for (i, entry) in entries.iter().enumerate() {
+        match picked.entry(entry.name.as_str()) {
+            Entry::Vacant(slot) => {
+                slot.insert(i);
+            }
+            Entry::Occupied(mut slot) => {
+                if entries[*slot.get()].cipher() != preferred && entry.cipher() == preferred {
+                    slot.insert(i);
+                }
+            }
+        }
+    }
+
+    let mut selected = vec![false; entries.len()];
+    for i in picked.into_values() {
+        selected[i] = true;
+    }
+    selected
+}
+
+// Random access to a payload held in memory, usually the mapping of the APK
+// entry. The index is parsed once; every entry can then be decrypted on its
+// own and in any order, without touching the bytes of the other entries.
+// Nothing here checks the commitment: callers compare header.commitment with
+// the baked-in payload hash (or hash the whole payload) before they trust what
+// they open.
+pub struct PayloadIndex<'a> {
+    bytes: &'a [u8],
+    pub header: PayloadHeader,
+    // Byte range of every entry's stored bytes, relative to the magic.
+    ranges: Vec<Range<usize>>,
+    selected: Vec<bool>,
+    by_name: HashMap<String, usize>,
+    end: usize,
+}
+
+impl<'a> PayloadIndex<'a> {
+    // `bytes` starts at the magic, which the caller has already checked. A
+    // name sealed under several ciphers resolves to its copy under
+    // `preferred_cipher`, as in select_entries.
+    pub fn parse(bytes: &'a [u8], preferred_cipher: u8) -> io::Result<Self> {
+        let mut cursor = io::Cursor::new(bytes.get(4..).ok_or_else(|| invalid("Payload truncated"))?);
+        let header = read_header_after_magic(&mut cursor)?;
+
+        let mut ranges = Vec::with_capacity(header.entries.len());
+        let mut end = 4 + cursor.position() as usize;
+        for segment in &header.segments {
+            let start = usize::try_from(segment.offset).map_err(|_| invalid("Payload truncated"))?;
+            let segment_end = usize::try_from(segment.len)
+                .ok()
+                .and_then(|len| start.checked_add(len))
+                .filter(|&segment_end| segment_end <= bytes.len())
+                .ok_or_else(|| invalid("Payload truncated"))?;
+            // The segment length is the sum of its entries' stored lengths.
+            let mut offset = start;
+            for entry in &header.entries[segment.entries.clone()] {
+                let entry_end = offset + entry.stored_len as usize;
+                ranges.push(offset..entry_end);
+                offset = entry_end;
+            }
+            end = segment_end;
+        }
+
+        let selected = select_entries(&header.entries, preferred_cipher);
+        let mut by_name = HashMap::new();
+        for (i, entry) in header.entries.iter().enumerate() {
+            if selected[i] {
+                by_name.insert(entry.name.clone(), i);
+            }
+        }
+        Ok(PayloadIndex {
+            bytes,
+            header,
+            ranges,
+            selected,
+            by_name,
+            end,
+        })
+    }
+
+    // The selected entry landed under `name`.
+    pub fn find(&self, name: &str) -> Option<usize> {
+        self.by_name.get(name).copied()
+    }
+
+    pub fn is_selected(&self, i: usize) -> bool {
+        self.selected[i]
+    }
+
+    pub fn range(&self, i: usize) -> Range<usize> {
+        self.ranges[i].clone()
+    }
+
+    pub fn sealed(&self, i: usize) -> &'a [u8] {
+        &self.bytes[self.ranges[i].clone()]
+    }
+
+    // End of the last segment. Bytes after it are not covered by the
+    // commitment.
+    pub fn payload_end(&self) -> usize {
+        self.end
+    }
+
+    // Decrypts entry `i` into `out` and returns its landed size. Only the
+    // entry's own bytes are read.
+    pub fn copy_entry_to<W: Write + ?Sized>(&self, i: usize, cipher: &PayloadCipher, out: &mut W) -> io::Result<u64> {
+        let entry = &self.header.entries[i];
+        let mut sealed = self.sealed(i);
+        let mut reader = EntryReader::new(&mut sealed, cipher, self.header.chunk_size, entry);
+        copy_entry(&mut reader, entry, out)
+    }
+
+    // Decrypts the entry landed under `name` into memory.
+    pub fn read_entry(&self, name: &str, cipher: &PayloadCipher) -> io::Result<Vec<u8>> {
+        let i = self
+            .find(name)
+            .ok_or_else(|| io::Error::new(io::ErrorKind::NotFound, format!("No payload entry {}", name)))?;
+        // The landed size is only trusted once the entry was decrypted.
+        let capacity = self.header.entries[i].raw_len.min(MAX_READ_PREALLOC);
+        let mut out = Vec::with_capacity(capacity as usize);
+        self.copy_entry_to(i, cipher, &mut out)?;
+        Ok(out)
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{
+        chunk_count, chunk_nonce, copy_entry, read_header_after_magic, select_entries, EntryInfo, EntryReader,
+        PayloadIndex, CODEC_LZ4, CODEC_NONE, CODEC_ZSTD, CONTENT_NAME_LEN, ENTRY_CIPHER_SHIFT, ENTRY_CODEC_SHIFT,
+        ENTRY_FLAG_DEFERRED, FLAG_CONTENT_NAMES, FLAG_ENTRY_CODECS, FLAG_ENTRY_DIGESTS, FLAG_ENTRY_FLAGS, TAG_LEN,
+    };
+    use crate::cipher::{PayloadCipher, CIPHER_AES_256_GCM, CIPHER_CHACHA20_POLY1305};
+    use crate::test_payload::{seal, TestEntry, TestPayload};
+    use sha2::{Digest, Sha256};
+    use std::io::{Read, Write};
+
+    const KEY: [u8; 32] = [9u8; 32];
+
+    fn seal_chunks(base: &[u8; 12], data: &[u8], chunk: usize) -> Vec<u8> {
+        seal(&KEY, 0, base, data, chunk)
+    }
+
+    fn header_bytes(chunk: u32, name: &str, plain_len: u64, stored_len: u64, nonce: &[u8; 12]) -> Vec<u8> {
+        TestPayload::new(0, chunk)
+            .entry(&TestEntry::new(name, plain_len, stored_len, *nonce))
+            .after_magic()
+    }
+
+    #[test]
+    fn chunk_nonce_only_touches_counter_bytes() {
+        let base = [1u8; 12];
+        assert_eq!(chunk_nonce(&base, 0), base);
+        let nonce = chunk_nonce(&base, 0x0102);
+        assert_eq!(&nonce[..10], &base[..10]);
+        assert_eq!(nonce[10], 1 ^ 0x01);
+        assert_eq!(nonce[11], 1 ^ 0x02);
+    }
+
+    #[test]
+    fn entry_reader_decrypts_across_chunk_boundaries() {
+        let opener = PayloadCipher::new(&KEY);
+        let base = [3u8; 12];
+        let data: Vec<u8> = (0..1000u32).map(|i| (i % 251) as u8).collect();
+        let sealed = seal_chunks(&base, &data, 64);
+        assert_eq!(sealed.len() as u64, data.len() as u64 + chunk_count(1000, 64) * TAG_LEN as u64);
+
+        let mut stream = header_bytes(64, "classes.dex", 1000, sealed.len() as u64, &base);
+        stream.extend_from_slice(&sealed);
+
+        let mut source = std::io::Cursor::new(stream);
+        let header = read_header_after_magic(&mut source).unwrap();
+        assert_eq!(header.entries[0].name, "classes.dex");
+
+        let mut plain = Vec::new();
+        EntryReader::new(&mut source, &opener, header.chunk_size, &header.entries[0])
+            .read_to_end(&mut plain)
+            .unwrap();
+        assert_eq!(plain, data);
+    }
+
+    #[test]
+    fn entry_reader_rejects_tampered_chunk() {
+        let opener = PayloadCipher::new(&KEY);
+        let base = [4u8; 12];
+        let data = vec![7u8; 200];
+        let mut sealed = seal_chunks(&base, &data, 64);
+        sealed[100] ^= 0xff;
+
+        let mut stream = header_bytes(64, "classes.dex", 200, sealed.len() as u64, &base);
+        stream.extend_from_slice(&sealed);
+
+        let mut source = std::io::Cursor::new(stream);
+        let header = read_header_after_magic(&mut source).unwrap();
+        let mut plain = Vec::new();
+        assert!(EntryReader::new(&mut source, &opener, header.chunk_size, &header.entries[0])
+            .read_to_end(&mut plain)
+            .is_err());
+    }
+
+    #[test]
+    fn header_reads_entry_flags_only_when_the_header_announces_them() {
+        let mut stream = TestPayload::new(FLAG_ENTRY_FLAGS, 64)
+            .entry(&TestEntry::new("classes.dex", 0, 0, [0u8; 12]))
+            .entry(&TestEntry {
+                flags: ENTRY_FLAG_DEFERRED,
+                ..TestEntry::new("classes2.dex", 0, 0, [0u8; 12])
+            })
+            .after_magic();
+
+        let header = read_header_after_magic(&mut std::io::Cursor::new(&stream)).unwrap();
+        assert!(!header.entries[0].is_deferred());
+        assert!(header.entries[1].is_deferred());
+
+        // The same index without the header flag does not parse.
+        stream[2..4].copy_from_slice(&0u16.to_le_bytes());
+        assert!(read_header_after_magic(&mut std::io::Cursor::new(&stream)).is_err());
+    }
+
+    fn digest_header_bytes(chunk: u32, name: &str, plain_len: u64, sealed: &[u8], nonce: &[u8; 12]) -> Vec<u8> {
+        let entry = TestEntry {
+            digest: Sha256::digest(sealed).into(),
+            ..TestEntry::new(name, plain_len, sealed.len() as u64, *nonce)
+        };
+        TestPayload::new(FLAG_ENTRY_DIGESTS, chunk).entry(&entry).after_magic()
+    }
+
+    #[test]
+    fn header_commits_to_entry_digests() {
+        let base = [5u8; 12];
+        let sealed = seal_chunks(&base, &[1u8; 100], 64);
+        let stream = digest_header_bytes(64, "classes.dex", 100, &sealed, &base);
+
+        let header = read_header_after_magic(&mut std::io::Cursor::new(&stream)).unwrap();
+        let expected: [u8; 32] = Sha256::digest(&stream).into();
+        assert_eq!(header.commitment, Some(expected));
+        assert_eq!(header.entries[0].digest, Some(Sha256::digest(&sealed).into()));
+
+        // Plain v2 payloads are committed to by the whole-payload hash.
+        let plain = header_bytes(64, "classes.dex", 100, sealed.len() as u64, &base);
+        assert_eq!(read_header_after_magic(&mut std::io::Cursor::new(&plain)).unwrap().commitment, None);
+    }
+
+    #[test]
+    fn header_reads_content_names_after_the_digests() {
+        let payload = TestPayload::new(FLAG_ENTRY_DIGESTS | FLAG_CONTENT_NAMES, 64)
+            .sealed(&KEY, "classes.dex", 0, b"dex", 3, [1u8; 12])
+            .sealed(&KEY, "assets/a.bin", 0, b"asset", 5, [2u8; 12]);
+        let stream = payload.after_magic();
+        let header = read_header_after_magic(&mut std::io::Cursor::new(&stream)).unwrap();
+        let expected: [u8; CONTENT_NAME_LEN] = Sha256::digest(b"dex")[..CONTENT_NAME_LEN].try_into().unwrap();
+        assert_eq!(header.entries[0].content_name, Some(expected));
+        assert_eq!(header.entries[1].content_name, Some([0u8; CONTENT_NAME_LEN]));
+        assert!(header.entries[1].digest.is_some());
+
+        // Dropping the flag leaves the names as unread index bytes.
+        let mut stream = stream;
+        stream[2..4].copy_from_slice(&FLAG_ENTRY_DIGESTS.to_le_bytes());
+        assert!(read_header_after_magic(&mut std::io::Cursor::new(&stream)).is_err());
+    }
+
+    #[test]
+    fn entry_reader_checks_the_entry_digest_before_the_last_chunk() {
+        let opener = PayloadCipher::new(&KEY);
+        let base = [6u8; 12];
+        let data: Vec<u8> = (0..300u32).map(|i| i as u8).collect();
+        let sealed = seal_chunks(&base, &data, 64);
+
+        let mut stream = digest_header_bytes(64, "classes.dex", 300, &sealed, &base);
+        stream.extend_from_slice(&sealed);
+        let mut source = std::io::Cursor::new(&stream);
+        let header = read_header_after_magic(&mut source).unwrap();
+        let mut plain = Vec::new();
+        EntryReader::new(&mut source, &opener, header.chunk_size, &header.entries[0])
+            .read_to_end(&mut plain)
+            .unwrap();
+        assert_eq!(plain, data);
+
+        // Validly sealed chunks that do not match the committed digest, e.g.
+        // an entry swapped in from another pack with the same key.
+        let other = seal_chunks(&base, &vec![0u8; 300], 64);
+        let mut stream = digest_header_bytes(64, "classes.dex", 300, &sealed, &base);
+        stream.extend_from_slice(&other);
+        let mut source = std::io::Cursor::new(&stream);
+        let header = read_header_after_magic(&mut source).unwrap();
+        let mut reader = EntryReader::new(&mut source, &opener, header.chunk_size, &header.entries[0]);
+        let mut plain = Vec::new();
+        assert!(reader.read_to_end(&mut plain).is_err());
+        assert!(plain.len() < 300);
+        assert!(reader.read(&mut [0u8; 16]).is_err());
+    }
+
+    fn flagged_header_bytes(
+        chunk: u32,
+        name: &str,
+        flags: u16,
+        plain_len: u64,
+        stored_len: u64,
+        nonce: &[u8; 12],
+    ) -> Vec<u8> {
+        let entry = TestEntry {
+            flags,
+            ..TestEntry::new(name, plain_len, stored_len, *nonce)
+        };
+        TestPayload::new(FLAG_ENTRY_FLAGS, chunk).entry(&entry).after_magic()
+    }
+
+    #[test]
+    fn entry_reader_opens_chacha_entries_with_the_derived_key() {
+        let base = [8u8; 12];
+        let data: Vec<u8> = (0..500u32).map(|i| (i % 239) as u8).collect();
+        let flags = u16::from(CIPHER_CHACHA20_POLY1305) << ENTRY_CIPHER_SHIFT;
+        let sealed = seal(&KEY, flags, &base, &data, 64);
+
+        let mut stream = flagged_header_bytes(64, "classes.dex", flags, 500, sealed.len() as u64, &base);
+        stream.extend_from_slice(&sealed);
+        let mut source = std::io::Cursor::new(&stream);
+        let header = read_header_after_magic(&mut source).unwrap();
+        assert_eq!(header.entries[0].cipher(), CIPHER_CHACHA20_POLY1305);
+        assert!(!header.entries[0].is_deferred());
+
+        let opener = PayloadCipher::new(&KEY);
+        let mut plain = Vec::new();
+        EntryReader::new(&mut source, &opener, header.chunk_size, &header.entries[0])
+            .read_to_end(&mut plain)
+            .unwrap();
+        assert_eq!(plain, data);
+
+        let unknown = flagged_header_bytes(64, "classes.dex", 2 << ENTRY_CIPHER_SHIFT, 0, 0, &base);
+        assert!(read_header_after_magic(&mut std::io::Cursor::new(unknown)).is_err());
+    }
+
+    #[test]
+    fn select_entries_prefers_the_device_cipher_per_name() {
+        let entry = |name: &str, cipher: u8| EntryInfo {
+            name: name.to_string(),
+            flags: u16::from(cipher) << ENTRY_CIPHER_SHIFT,
+            plain_len: 0,
+            stored_len: 0,
+            raw_len: 0,
+            nonce: [0u8; 12],
+            digest: None,
+            content_name: None,
+        };
+        let entries = [
+            entry("classes.dex", CIPHER_AES_256_GCM),
+            entry("classes.dex", CIPHER_CHACHA20_POLY1305),
+            entry("lib/arm64-v8a/libapp.so", CIPHER_AES_256_GCM),
+            entry("lib/armeabi-v7a/libapp.so", CIPHER_CHACHA20_POLY1305),
+        ];
+        assert_eq!(select_entries(&entries, CIPHER_AES_256_GCM), [true, false, true, true]);
+        assert_eq!(select_entries(&entries, CIPHER_CHACHA20_POLY1305), [false, true, true, true]);
+    }
+
+    fn compressed_entry_stream(codec: u8, packed: &[u8], raw_len: u64) -> Vec<u8> {
+        let flags = u16::from(codec) << ENTRY_CODEC_SHIFT;
+        TestPayload::new(FLAG_ENTRY_FLAGS | FLAG_ENTRY_CODECS, 64)
+            .sealed(&KEY, "classes.dex", flags, packed, raw_len, [5u8; 12])
+            .after_magic()
+    }
+
+    fn land(stream: &[u8]) -> std::io::Result<(Vec<u8>, u64)> {
+        let opener = PayloadCipher::new(&KEY);
+        let mut source = std::io::Cursor::new(stream);
+        let header = read_header_after_magic(&mut source)?;
+        let mut landed = Vec::new();
+        let mut reader = EntryReader::new(&mut source, &opener, header.chunk_size, &header.entries[0]);
+        copy_entry(&mut reader, &header.entries[0], &mut landed)?;
+        Ok((landed, source.position()))
+    }
+
+    #[test]
+    fn copy_entry_decompresses_lz4_and_zstd_entries_to_their_end() {
+        let raw: Vec<u8> = (0..20_000u32).map(|i| (i % 17) as u8).collect();
+        let mut lz4 = lz4_flex::frame::FrameEncoder::new(Vec::new());
+        lz4.write_all(&raw).unwrap();
+        let lz4 = lz4.finish().unwrap();
+        let zstd = zstd::bulk::compress(&raw, 3).unwrap();
+
+        for (codec, packed) in [(CODEC_LZ4, lz4), (CODEC_ZSTD, zstd)] {
+            assert!(packed.len() < raw.len() / 4);
+            let stream = compressed_entry_stream(codec, &packed, raw.len() as u64);
+            let (landed, position) = land(&stream).unwrap();
+            assert_eq!(landed, raw);
+            // The whole sealed entry was consumed, so a streamed payload
+            // would continue on the next entry.
+            assert_eq!(position, stream.len() as u64);
+
+            // A recorded size that does not match what the frame expands to.
+            let stream = compressed_entry_stream(codec, &packed, raw.len() as u64 - 1);
+            assert!(land(&stream).is_err());
+
+            // Garbage after the frame.
+            let mut padded = packed.clone();
+            padded.extend_from_slice(b"trailing");
+            let stream = compressed_entry_stream(codec, &padded, raw.len() as u64);
+            assert!(land(&stream).is_err());
+        }
+    }
+
+    #[test]
+    fn header_rejects_unknown_codecs_and_resized_plain_entries() {
+        let parses = |codec: u8, raw_len: u64| {
+            let stream = compressed_entry_stream(codec, b"abc", raw_len);
+            read_header_after_magic(&mut std::io::Cursor::new(stream)).is_ok()
+        };
+        assert!(parses(CODEC_NONE, 3));
+        assert!(!parses(CODEC_NONE, 4));
+        assert!(!parses(7, 3));
+    }
+
+    fn segmented_header_bytes(names: &[&str], segments: &[(&str, u32, u64)]) -> Vec<u8> {
+        let mut payload = TestPayload::new(0, 64);
+        for name in names {
+            payload = payload.entry(&TestEntry::new(name, 0, 0, [0u8; 12]));
+        }
+        for (abi, count, offset) in segments {
+            payload = payload.segment_at(abi, *count, *offset, 0);
+        }
+        payload.after_magic()
+    }
+
+    #[test]
+    fn header_reads_segments_and_rejects_misplaced_entries() {
+        let names = ["classes.dex", "lib/arm64-v8a/liba.so", "lib/x86_64/liba.so"];
+        let parse = |segments: &[(&str, u32, u64)]| {
+            read_header_after_magic(&mut std::io::Cursor::new(segmented_header_bytes(&names, segments)))
+        };
+
+        let header = parse(&[("", 1, 4096), ("arm64-v8a", 1, 8192), ("x86_64", 1, 12288)]).unwrap();
+        assert_eq!(header.segments.len(), 3);
+        assert_eq!(header.segments[1].entries, 1..2);
+        assert_eq!(header.segments[2].offset, 12288);
+        assert!(header.segments[0].is_for("arm64-v8a"));
+        assert!(header.segments[1].is_for("arm64-v8a"));
+        assert!(!header.segments[2].is_for("arm64-v8a"));
+
+        // An x86_64 library in the arm64-v8a segment would be skipped by the
+        // devices that need it and landed by none.
+        assert!(parse(&[("", 1, 4096), ("arm64-v8a", 2, 8192)]).is_err());
+        // Entries left over, segments out of order, or inside the index.
+        assert!(parse(&[("", 1, 4096), ("arm64-v8a", 1, 8192)]).is_err());
+        assert!(parse(&[("", 1, 8192), ("arm64-v8a", 1, 4096), ("x86_64", 1, 12288)]).is_err());
+        assert!(parse(&[("", 1, 0), ("arm64-v8a", 1, 8192), ("x86_64", 1, 12288)]).is_err());
+    }
+
+    #[test]
+    fn header_rejects_inconsistent_entry_sizes() {
+        let stream = header_bytes(64, "classes.dex", 100, 100, &[0u8; 12]);
+        assert!(read_header_after_magic(&mut std::io::Cursor::new(stream)).is_err());
+    }
+
+    // Every header flag at once: LZ4 and zstd entries, one name sealed under
+    // both ciphers, a deferred dex, and a page-aligned ABI segment.
+    fn indexed_payload() -> Vec<u8> {
+        let raw: Vec<u8> = (0..600u32).map(|i| (i % 13) as u8).collect();
+        let mut lz4 = lz4_flex::frame::FrameEncoder::new(Vec::new());
+        lz4.write_all(&raw).unwrap();
+        let lz4 = lz4.finish().unwrap();
+        let zstd = zstd::bulk::compress(&raw, 3).unwrap();
+        let chacha = u16::from(CIPHER_CHACHA20_POLY1305) << ENTRY_CIPHER_SHIFT;
+        let entries: [(&str, u16, Vec<u8>, u64); 5] = [
+            ("classes.dex", u16::from(CODEC_LZ4) << ENTRY_CODEC_SHIFT, lz4, 600),
+            ("classes.dex", chacha, raw.clone(), 600),
+            ("classes2.dex", ENTRY_FLAG_DEFERRED | (u16::from(CODEC_ZSTD) << ENTRY_CODEC_SHIFT), zstd, 600),
+            ("assets/config.json", 0, b"{}".to_vec(), 2),
+            ("lib/arm64-v8a/libapp.so", chacha, vec![0x7f; 300], 300),
+        ];
+
+        let flags = FLAG_ENTRY_FLAGS | FLAG_ENTRY_DIGESTS | FLAG_ENTRY_CODECS;
+        let mut payload = TestPayload::new(flags, 64);
+        for (i, (name, flags, packed, raw_len)) in entries.iter().enumerate() {
+            payload = payload.sealed(&KEY, name, *flags, packed, *raw_len, [i as u8 + 1; 12]);
+        }
+        payload.segment("", 4).segment("arm64-v8a", 1).build()
+    }
+
+    #[test]
+    fn payload_index_opens_entries_by_name_in_any_order() {
+        let payload = indexed_payload();
+        let raw: Vec<u8> = (0..600u32).map(|i| (i % 13) as u8).collect();
+        let opener = PayloadCipher::new(&KEY);
+
+        let index = PayloadIndex::parse(&payload, CIPHER_CHACHA20_POLY1305).unwrap();
+        assert_eq!(index.payload_end(), payload.len());
+        let index_end = 20 + u32::from_le_bytes(payload[16..20].try_into().unwrap()) as usize;
+        let commitment: [u8; 32] = Sha256::digest(&payload[4..index_end]).into();
+        assert_eq!(index.header.commitment, Some(commitment));
+        assert_eq!(index.find("classes.dex"), Some(1));
+        assert_eq!(PayloadIndex::parse(&payload, CIPHER_AES_256_GCM).unwrap().find("classes.dex"), Some(0));
+
+        assert_eq!(index.read_entry("lib/arm64-v8a/libapp.so", &opener).unwrap(), vec![0x7f; 300]);
+        assert_eq!(index.read_entry("assets/config.json", &opener).unwrap(), b"{}");
+        assert_eq!(index.read_entry("classes2.dex", &opener).unwrap(), raw);
+        assert_eq!(index.read_entry("classes.dex", &opener).unwrap(), raw);
+        assert_eq!(
+            index.read_entry("classes3.dex", &opener).unwrap_err().kind(),
+            std::io::ErrorKind::NotFound
+        );
+
+        // Entries are opened independently: a damaged library does not keep
+        // the dex from being read.
+        let mut damaged = payload.clone();
+        let lib = index.range(4);
+        damaged[lib.start] ^= 1;
+        let index = PayloadIndex::parse(&damaged, CIPHER_AES_256_GCM).unwrap();
+        assert!(index.read_entry("lib/arm64-v8a/libapp.so", &opener).is_err());
+        assert_eq!(index.read_entry("classes.dex", &opener).unwrap(), raw);
+
+        assert!(PayloadIndex::parse(&payload[..payload.len() - 1], CIPHER_AES_256_GCM).is_err());
+    }
+
+    // Seeded mutation fuzzing of the index parser: bit flips, truncation,
+    // inserted bytes, and fields overwritten with extreme values, all aimed at
+    // the header and index. Nothing may panic, and whatever still parses must
+    // describe entries that lie inside the payload.
+    #[test]
+    fn payload_index_parser_survives_mutated_indexes() {
+        let seed = indexed_payload();
+        let index_end = 20 + u32::from_le_bytes(seed[16..20].try_into().unwrap()) as usize;
+        let opener = PayloadCipher::new(&KEY);
+        let mut state = 0x9e37_79b9_7f4a_7c15u64;
+        let mut next = move |bound: usize| {
+            state ^= state << 13;
+            state ^= state >> 7;
+            state ^= state << 17;
+            (state % bound.max(1) as u64) as usize
+        };
+
+        let mut parsed = 0;
+        for _ in 0..5_000 {
+            let mut bytes = seed.clone();
+            for _ in 0..1 + next(3) {
+                let at = next(index_end.min(bytes.len()));
+                match next(4) {
+                    0 => {
+                        let bit = next(8);
+                        if let Some(byte) = bytes.get_mut(at) {
+                            *byte ^= 1 << bit;
+                        }
+                    }
+                    1 => bytes.truncate(at),
+                    2 => {
+                        let width = [2, 4, 8][next(3)];
+                        let value = [0, 1, u64::MAX, 4096, bytes.len() as u64][next(5)];
+                        for (k, byte) in value.to_le_bytes()[..width].iter().enumerate() {
+                            if let Some(slot) = bytes.get_mut(at + k) {
+                                *slot = *byte;
+                            }
+                        }
+                    }
+                    _ => bytes.insert(at, next(256) as u8),
+                }
+            }
+
+            let streamed = read_header_after_magic(&mut std::io::Cursor::new(bytes.get(4..).unwrap_or(&[])));
+            let index = match PayloadIndex::parse(&bytes, CIPHER_AES_256_GCM) {
+                Ok(index) => index,
+                Err(_) => continue,
+            };
+            parsed += 1;
+            let header = &index.header;
+            assert_eq!(streamed.as_ref().ok(), Some(header));
+            assert!(index.payload_end() <= bytes.len());
+
+            let mut covered = 0;
+            let mut last_end = 0;
+            for segment in &header.segments {
+                assert_eq!(segment.entries.start, covered);
+                covered = segment.entries.end;
+                for i in segment.entries.clone() {
+                    let range = index.range(i);
+                    assert!(range.start >= last_end && range.end <= index.payload_end());
+                    assert_eq!((range.end - range.start) as u64, header.entries[i].stored_len);
+                    last_end = range.end;
+                }
+            }
+            assert_eq!(covered, header.entries.len());
+
+            for entry in &header.entries {
+                let i = index.find(&entry.name).unwrap();
+                assert!(index.is_selected(i));
+                assert_eq!(header.entries[i].name, entry.name);
+                let _ = index.read_entry(&entry.name, &opener);
+            }
+        }
+        // Most mutations hit names, nonces and digests, which still parse.
+        assert!(parsed > 100, "only {} mutated payloads parsed", parsed);
+    }
+}
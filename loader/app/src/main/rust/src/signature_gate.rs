@@ -0,0 +1,108 @@
+// Holds a landing back until the APK signature check is decided.
+//
+// load_dex_core lands the payload on a worker thread while the calling
+// thread checks the signature. The landing decrypts into PendingFile temp
+// files as it goes, but waits here before renaming anything to its final
+// name or storing the landing stamp. When the check fails, the landing
+// discards its temp files instead, so a re-signed APK never leaves plaintext
+// under dex_landing, native_libs or files.
+
+use std::sync::{Condvar, Mutex};
+
+pub struct SignatureGate {
+    // None until decided; the first decision sticks.
+    verdict: Mutex<Option<bool>>,
+    decided: Condvar,
+}
+
+impl SignatureGate {
+    pub const fn pending() -> SignatureGate {
+        SignatureGate {
+            verdict: Mutex::new(None),
+            decided: Condvar::new(),
+        }
+    }
+
+    // For landings that have nothing to wait for.
+    pub const fn passed() -> SignatureGate {
+        SignatureGate {
+            verdict: Mutex::new(Some(true)),
+            decided: Condvar::new(),
+        }
+    }
+
+    pub fn decide(&self, passed: bool) {
+        let mut verdict = self.verdict.lock().unwrap_or_else(|poisoned| poisoned.into_inner());
+        if verdict.is_none() {
+            *verdict = Some(passed);
+            self.decided.notify_all();
+        }
+    }
+
+    // Fails the gate when dropped undecided, so a check that unwinds does
+    // not leave the landing waiting.
+    pub fn fail_unless_decided(&self) -> UndecidedGuard<'_> {
+        UndecidedGuard { gate: self }
+    }
+
+    // Blocks until the check is decided; Err when it failed.
+    pub fn wait(&self) -> Result<(), &'static str> {
+        let mut verdict = self.verdict.lock().unwrap_or_else(|poisoned| poisoned.into_inner());
+        loop {
+            match *verdict {
+                Some(true) => return Ok(()),
+                Some(false) => return Err("APK signature check failed, landing discarded"),
+                None => {
+                    verdict = self
+                        .decided
+                        .wait(verdict)
+                        .unwrap_or_else(|poisoned| poisoned.into_inner());
+                }
+            }
+        }
+    }
+}
+
+pub struct UndecidedGuard<'a> {
+    gate: &'a SignatureGate,
+}
+
+impl Drop for UndecidedGuard<'_> {
+    fn drop(&mut self) {
+        self.gate.decide(false);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::SignatureGate;
+    use std::time::Duration;
+
+    #[test]
+    fn wait_blocks_until_the_first_decision() {
+        let gate = SignatureGate::pending();
+        std::thread::scope(|scope| {
+            let waiter = scope.spawn(|| gate.wait());
+            std::thread::sleep(Duration::from_millis(20));
+            assert!(!waiter.is_finished());
+            gate.decide(true);
+            gate.decide(false);
+            assert!(waiter.join().unwrap().is_ok());
+        });
+        assert!(SignatureGate::passed().wait().is_ok());
+    }
+
+    #[test]
+    fn an_undecided_gate_fails_when_its_guard_drops() {
+        let gate = SignatureGate::pending();
+        drop(gate.fail_unless_decided());
+        assert!(gate.wait().is_err());
+
+        let gate = SignatureGate::pending();
+        {
+            let _guard = gate.fail_unless_decided();
+            gate.decide(true);
+        }
+        assert!(gate.wait().is_ok());
+    }
+}
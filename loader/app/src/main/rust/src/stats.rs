@@ -0,0 +1,183 @@
+// Startup figures for com.kapp.shell.ShellStats.
+//
+// Every value is a relaxed atomic bumped once per phase or per landed entry,
+// so recording never takes a lock and never allocates. The wrapped app reads
+// them through ShellStats.snapshot(), which copies them in SNAPSHOT order.
+// Only the per-library preload timings are kept in a locked list; they are
+// recorded on the preload threads, never on the main thread.
+
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::Mutex;
+use std::time::Instant;
+
+pub const ENTRY_POINT_APPLICATION: u64 = 1;
+pub const ENTRY_POINT_CLASS_LOADER: u64 = 2;
+pub const ENTRY_POINT_PROVIDER: u64 = 3;
+
+pub const CACHE_HIT: u64 = 1;
+pub const CACHE_MISS: u64 = 2;
+
+pub struct Stats {
+    // Wall time of the native load that succeeded, entry to return. Failed
+    // attempts by other entry points are not counted.
+    pub native_load_ns: AtomicU64,
+    // Runs alongside land_payload, so the two can add up to more than
+    // native_load_ns.
+    pub verify_integrity_ns: AtomicU64,
+    pub land_payload_ns: AtomicU64,
+    // Part of land_payload spent reading and decrypting payload entries.
+    pub decrypt_ns: AtomicU64,
+    pub load_file_landing_ns: AtomicU64,
+    pub deferred_landing_ns: AtomicU64,
+    pub payload_bytes: AtomicU64,
+    pub entries_decrypted: AtomicU64,
+    pub bytes_landed: AtomicU64,
+    // 0 until land_payload ran, then CACHE_HIT or CACHE_MISS.
+    pub landing_cache: AtomicU64,
+    // 0 until a native load succeeded, then one of the ENTRY_POINT_* values.
+    pub entry_point: AtomicU64,
+    // Landed dex registered with the class loader, and how many of them ART
+    // had already compiled (oat/<isa>/<name>.odex next to the dex).
+    pub landed_dex: AtomicU64,
+    pub optimized_dex: AtomicU64,
+    // Libraries lib_preload opened in the background, and the dlopen time
+    // they took together; the threads overlap, so this exceeds wall time.
+    pub preloaded_libs: AtomicU64,
+    pub preload_libs_ns: AtomicU64,
+}
+
+pub static STATS: Stats = Stats {
+    native_load_ns: AtomicU64::new(0),
+    verify_integrity_ns: AtomicU64::new(0),
+    land_payload_ns: AtomicU64::new(0),
+    decrypt_ns: AtomicU64::new(0),
+    load_file_landing_ns: AtomicU64::new(0),
+    deferred_landing_ns: AtomicU64::new(0),
+    payload_bytes: AtomicU64::new(0),
+    entries_decrypted: AtomicU64::new(0),
+    bytes_landed: AtomicU64::new(0),
+    landing_cache: AtomicU64::new(0),
+    entry_point: AtomicU64::new(0),
+    landed_dex: AtomicU64::new(0),
+    optimized_dex: AtomicU64::new(0),
+    preloaded_libs: AtomicU64::new(0),
+    preload_libs_ns: AtomicU64::new(0),
+};
+
+// (library file name, dlopen nanoseconds) per preloaded library, in the order
+// they finished.
+static LIB_PRELOADS: Mutex<Vec<(String, u64)>> = Mutex::new(Vec::new());
+
+// Adds the elapsed time to its slot when dropped.
+pub struct PhaseTimer {
+    slot: &'static AtomicU64,
+    start: Instant,
+}
+
+pub fn time(slot: &'static AtomicU64) -> PhaseTimer {
+    PhaseTimer {
+        slot,
+        start: Instant::now(),
+    }
+}
+
+impl Drop for PhaseTimer {
+    fn drop(&mut self) {
+        self.slot.fetch_add(elapsed_ns(self.start), Ordering::Relaxed);
+    }
+}
+
+fn elapsed_ns(start: Instant) -> u64 {
+    u64::try_from(start.elapsed().as_nanos()).unwrap_or(u64::MAX)
+}
+
+// Called once load_dex_core returned Ok; only one load per process gets there.
+pub fn record_native_load(entry_point: u64, start: Instant) {
+    set(&STATS.native_load_ns, elapsed_ns(start));
+    set(&STATS.entry_point, entry_point);
+}
+
+pub fn add(slot: &AtomicU64, value: u64) {
+    slot.fetch_add(value, Ordering::Relaxed);
+}
+
+pub fn set(slot: &AtomicU64, value: u64) {
+    slot.store(value, Ordering::Relaxed);
+}
+
+pub fn record_entry(bytes: u64) {
+    add(&STATS.entries_decrypted, 1);
+    add(&STATS.bytes_landed, bytes);
+}
+
+pub fn record_lib_preload(name: &str, nanos: u64) {
+    add(&STATS.preloaded_libs, 1);
+    add(&STATS.preload_libs_ns, nanos);
+    if let Ok(mut preloads) = LIB_PRELOADS.lock() {
+        preloads.push((name.to_string(), nanos));
+    }
+}
+
+pub fn lib_preloads() -> Vec<(String, u64)> {
+    LIB_PRELOADS.lock().map(|preloads| preloads.clone()).unwrap_or_default()
+}
+
+// Order of the values returned to ShellStats.nativeSnapshot(); keep in sync
+// with the index constants there.
+pub fn snapshot() -> [u64; 15] {
+    let s = &STATS;
+    [
+        s.native_load_ns.load(Ordering::Relaxed),
+        s.verify_integrity_ns.load(Ordering::Relaxed),
+        s.land_payload_ns.load(Ordering::Relaxed),
+        s.decrypt_ns.load(Ordering::Relaxed),
+        s.load_file_landing_ns.load(Ordering::Relaxed),
+        s.deferred_landing_ns.load(Ordering::Relaxed),
+        s.payload_bytes.load(Ordering::Relaxed),
+        s.entries_decrypted.load(Ordering::Relaxed),
+        s.bytes_landed.load(Ordering::Relaxed),
+        s.landing_cache.load(Ordering::Relaxed),
+        s.entry_point.load(Ordering::Relaxed),
+        s.landed_dex.load(Ordering::Relaxed),
+        s.optimized_dex.load(Ordering::Relaxed),
+        s.preloaded_libs.load(Ordering::Relaxed),
+        s.preload_libs_ns.load(Ordering::Relaxed),
+    ]
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{lib_preloads, record_lib_preload, record_native_load, time, ENTRY_POINT_PROVIDER, STATS};
+    use std::sync::atomic::{AtomicU64, Ordering};
+
+    #[test]
+    fn phase_timer_accumulates_elapsed_time_on_drop() {
+        static SLOT: AtomicU64 = AtomicU64::new(0);
+        for _ in 0..2 {
+            let _timer = time(&SLOT);
+            std::thread::sleep(std::time::Duration::from_millis(2));
+        }
+        assert!(SLOT.load(Ordering::Relaxed) >= 4_000_000);
+    }
+
+    #[test]
+    fn native_load_keeps_only_the_successful_attempt() {
+        let start = std::time::Instant::now();
+        std::thread::sleep(std::time::Duration::from_millis(2));
+        record_native_load(ENTRY_POINT_PROVIDER, start);
+        let first = STATS.native_load_ns.load(Ordering::Relaxed);
+        assert!(first >= 2_000_000);
+        assert_eq!(STATS.entry_point.load(Ordering::Relaxed), ENTRY_POINT_PROVIDER);
+
+        record_native_load(ENTRY_POINT_PROVIDER, std::time::Instant::now());
+        assert!(STATS.native_load_ns.load(Ordering::Relaxed) < first);
+    }
+
+    #[test]
+    fn lib_preloads_keep_per_library_timings() {
+        record_lib_preload("libstats-test.so", 1_500);
+        assert!(lib_preloads().contains(&("libstats-test.so".to_string(), 1_500)));
+        assert!(STATS.preloaded_libs.load(Ordering::Relaxed) >= 1);
+        assert!(STATS.preload_libs_ns.load(Ordering::Relaxed) >= 1_500);
+    }
+}
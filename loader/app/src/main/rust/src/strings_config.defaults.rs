@@ -11,6 +11,7 @@ pub const ERR_INVALID_CHECKSUM: &[u8] = b"Invalid checksum";
 pub const MSG_NATIVE_LOAD_DEX: &[u8] = b"nativeLoadDex (Application) called for SDK {}";
 pub const MSG_OPEN_APK: &[u8] = b"Opening APK at {}";
 pub const MAGIC_SHELL: &[u8] = b"SHELL";
+pub const MAGIC_PAYLOAD: &[u8] = b"KAPP";
 pub const DEBUG_DETECTED: &[u8] = b"Debugger detected";
 pub const EXITING: &[u8] = b"Exiting...";
 pub const PTRACE_FAILED: &[u8] = b"ptrace failed with errno {}";
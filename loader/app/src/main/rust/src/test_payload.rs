@@ -0,0 +1,245 @@
+// Builds v2 payloads for the payload.rs and lib.rs tests, mirroring
+// packer::build_payload_blob.
+//
+// The header flags decide which optional index fields are written for every
+// entry, so a test can also describe an index the packer would never emit:
+// sizes that do not add up, a digest over other bytes, or segments placed
+// anywhere. Sealed entries go through `sealed`; `entry` and `data` write the
+// index and the data section independently.
+
+use crate::cipher::{chacha_key, CIPHER_CHACHA20_POLY1305};
+use crate::payload::{
+    chunk_nonce, CONTENT_NAME_LEN, ENTRY_CIPHER_SHIFT, FLAG_CONTENT_NAMES, FLAG_ENTRY_CODECS, FLAG_ENTRY_DIGESTS,
+    FLAG_ENTRY_FLAGS, FLAG_SEGMENTS, FORMAT_VERSION, HEADER_LEN,
+};
+use aes_gcm::{
+    aead::{generic_array::GenericArray, Aead, KeyInit},
+    Aes256Gcm,
+};
+use chacha20poly1305::ChaCha20Poly1305;
+use sha2::{Digest, Sha256};
+
+const PAGE_SIZE: usize = 4096;
+const INDEX_START: usize = HEADER_LEN as usize;
+
+pub struct TestEntry<'a> {
+    pub name: &'a str,
+    pub flags: u16,
+    pub plain_len: u64,
+    pub stored_len: u64,
+    pub raw_len: u64,
+    pub nonce: [u8; 12],
+    pub digest: [u8; 32],
+    pub content_name: [u8; CONTENT_NAME_LEN],
+}
+
+impl<'a> TestEntry<'a> {
+    pub fn new(name: &'a str, plain_len: u64, stored_len: u64, nonce: [u8; 12]) -> Self {
+        TestEntry {
+            name,
+            flags: 0,
+            plain_len,
+            stored_len,
+            raw_len: plain_len,
+            nonce,
+            digest: [0u8; 32],
+            content_name: [0u8; CONTENT_NAME_LEN],
+        }
+    }
+}
+
+struct TestSegment {
+    abi: String,
+    entries: u32,
+    // None: laid out by `build` after the entries before it, on a fresh page
+    // unless it is the first segment.
+    placement: Option<(u64, u64)>,
+}
+
+pub struct TestPayload {
+    header_flags: u16,
+    chunk_size: u32,
+    entry_count: u32,
+    index: Vec<u8>,
+    stored_lens: Vec<u64>,
+    segments: Vec<TestSegment>,
+    data: Vec<u8>,
+}
+
+// Seals `data` in `chunk`-sized pieces under the cipher named by the entry
+// flags, as the packer does.
+pub fn seal(key: &[u8; 32], entry_flags: u16, nonce: &[u8; 12], data: &[u8], chunk: usize) -> Vec<u8> {
+    let mut out = Vec::new();
+    for (i, part) in data.chunks(chunk).enumerate() {
+        let nonce = chunk_nonce(nonce, i as u32);
+        let nonce = GenericArray::from_slice(&nonce);
+        let sealed = if (entry_flags >> ENTRY_CIPHER_SHIFT) as u8 == CIPHER_CHACHA20_POLY1305 {
+            ChaCha20Poly1305::new(&chacha_key(key).into()).encrypt(nonce, part)
+        } else {
+            Aes256Gcm::new(key.into()).encrypt(nonce, part)
+        };
+        out.extend_from_slice(&sealed.expect("test encryption failed"));
+    }
+    out
+}
+
+impl TestPayload {
+    pub fn new(header_flags: u16, chunk_size: u32) -> Self {
+        TestPayload {
+            header_flags,
+            chunk_size,
+            entry_count: 0,
+            index: Vec::new(),
+            stored_lens: Vec::new(),
+            segments: Vec::new(),
+            data: Vec::new(),
+        }
+    }
+
+    // Writes an index entry without touching the data section.
+    pub fn entry(mut self, entry: &TestEntry) -> Self {
+        self.index.extend_from_slice(&(entry.name.len() as u16).to_le_bytes());
+        self.index.extend_from_slice(entry.name.as_bytes());
+        if self.header_flags & FLAG_ENTRY_FLAGS != 0 {
+            self.index.extend_from_slice(&entry.flags.to_le_bytes());
+        }
+        self.index.extend_from_slice(&entry.plain_len.to_le_bytes());
+        self.index.extend_from_slice(&entry.stored_len.to_le_bytes());
+        if self.header_flags & FLAG_ENTRY_CODECS != 0 {
+            self.index.extend_from_slice(&entry.raw_len.to_le_bytes());
+        }
+        self.index.extend_from_slice(&entry.nonce);
+        if self.header_flags & FLAG_ENTRY_DIGESTS != 0 {
+            self.index.extend_from_slice(&entry.digest);
+        }
+        if self.header_flags & FLAG_CONTENT_NAMES != 0 {
+            self.index.extend_from_slice(&entry.content_name);
+        }
+        self.entry_count += 1;
+        self.stored_lens.push(entry.stored_len);
+        self
+    }
+
+    pub fn data(mut self, bytes: &[u8]) -> Self {
+        self.data.extend_from_slice(bytes);
+        self
+    }
+
+    // Seals `packed` (the entry after its codec, if any) and appends the
+    // entry with the digest of what was sealed. A dex is given the content
+    // name of `packed`, which is only its landed name without a codec.
+    pub fn sealed(
+        self,
+        key: &[u8; 32],
+        name: &str,
+        flags: u16,
+        packed: &[u8],
+        raw_len: u64,
+        nonce: [u8; 12],
+    ) -> Self {
+        let sealed = seal(key, flags, &nonce, packed, self.chunk_size as usize);
+        let mut content_name = [0u8; CONTENT_NAME_LEN];
+        if name.ends_with(".dex") {
+            content_name.copy_from_slice(&Sha256::digest(packed)[..CONTENT_NAME_LEN]);
+        }
+        let entry = TestEntry {
+            flags,
+            raw_len,
+            digest: Sha256::digest(&sealed).into(),
+            content_name,
+            ..TestEntry::new(name, packed.len() as u64, sealed.len() as u64, nonce)
+        };
+        self.entry(&entry).data(&sealed)
+    }
+
+    // A segment over the next `entries` entries, placed by `build`.
+    pub fn segment(mut self, abi: &str, entries: u32) -> Self {
+        self.segments.push(TestSegment {
+            abi: abi.to_string(),
+            entries,
+            placement: None,
+        });
+        self
+    }
+
+    // A segment written exactly as given, for parser tests.
+    pub fn segment_at(mut self, abi: &str, entries: u32, offset: u64, len: u64) -> Self {
+        self.segments.push(TestSegment {
+            abi: abi.to_string(),
+            entries,
+            placement: Some((offset, len)),
+        });
+        self
+    }
+
+    // The payload from its version field on, as read_header_after_magic
+    // expects it.
+    pub fn after_magic(&self) -> Vec<u8> {
+        self.build()[4..].to_vec()
+    }
+
+    pub fn build(&self) -> Vec<u8> {
+        let mut header_flags = self.header_flags;
+        let mut index = self.index.clone();
+        let mut data = self.data.clone();
+        if !self.segments.is_empty() {
+            header_flags |= FLAG_SEGMENTS;
+            index.extend_from_slice(&self.segment_table(index.len(), &mut data));
+        }
+
+        let mut out = b"KAPP".to_vec();
+        out.extend_from_slice(&FORMAT_VERSION.to_le_bytes());
+        out.extend_from_slice(&header_flags.to_le_bytes());
+        out.extend_from_slice(&self.chunk_size.to_le_bytes());
+        out.extend_from_slice(&self.entry_count.to_le_bytes());
+        out.extend_from_slice(&(index.len() as u32).to_le_bytes());
+        out.extend_from_slice(&index);
+        out.extend_from_slice(&data);
+        out
+    }
+
+    // The hash pack.py bakes into libshell for a payload with entry digests.
+    pub fn commitment(&self) -> [u8; 32] {
+        let payload = self.build();
+        let index_len = u32::from_le_bytes(payload[16..20].try_into().unwrap()) as usize;
+        Sha256::digest(&payload[4..INDEX_START + index_len]).into()
+    }
+
+    // Lays the data section out segment by segment, padding `data` so every
+    // segment after the first starts on a fresh page.
+    fn segment_table(&self, index_len: usize, data: &mut Vec<u8>) -> Vec<u8> {
+        let table_len: usize = 2 + self.segments.iter().map(|s| 2 + s.abi.len() + 4 + 8 + 8).sum::<usize>();
+        let data_start = INDEX_START + index_len + table_len;
+
+        let mut table = (self.segments.len() as u16).to_le_bytes().to_vec();
+        let mut laid_out = Vec::new();
+        let mut source = 0usize;
+        let mut next_entry = 0usize;
+        for (i, segment) in self.segments.iter().enumerate() {
+            let end = (next_entry + segment.entries as usize).min(self.stored_lens.len());
+            let len: u64 = self.stored_lens[next_entry.min(end)..end].iter().sum();
+            next_entry += segment.entries as usize;
+            let (offset, len) = match segment.placement {
+                Some(placement) => placement,
+                None => {
+                    if i > 0 {
+                        laid_out.resize((data_start + laid_out.len()).next_multiple_of(PAGE_SIZE) - data_start, 0);
+                    }
+                    let offset = (data_start + laid_out.len()) as u64;
+                    let end = (source + len as usize).min(data.len());
+                    laid_out.extend_from_slice(&data[source..end]);
+                    source = end;
+                    (offset, len)
+                }
+            };
+            table.extend_from_slice(&(segment.abi.len() as u16).to_le_bytes());
+            table.extend_from_slice(segment.abi.as_bytes());
+            table.extend_from_slice(&segment.entries.to_le_bytes());
+            table.extend_from_slice(&offset.to_le_bytes());
+            table.extend_from_slice(&len.to_le_bytes());
+        }
+        laid_out.extend_from_slice(&data[source..]);
+        *data = laid_out;
+        table
+    }
+}
@@ -0,0 +1,112 @@
+// Startup trace sections and counters for Perfetto/systrace.
+//
+// Built with the `trace` feature, sections go to ATrace through libandroid.so.
+// The symbols are resolved once with dlsym because ATrace_setCounter only
+// exists from API 29. Without the feature every function here is an empty
+// inline stub, so release builds carry neither the calls nor the names.
+//
+// Sections nest per thread: keep the returned guard alive for the span to
+// measure, e.g. `let _trace = trace::section("kapp:land_payload");`.
+
+#[cfg(all(feature = "trace", target_os = "android"))]
+mod imp {
+    use std::ffi::CString;
+    use std::os::raw::{c_char, c_void};
+    use std::sync::OnceLock;
+
+    struct ATrace {
+        is_enabled: unsafe extern "C" fn() -> bool,
+        begin_section: unsafe extern "C" fn(*const c_char),
+        end_section: unsafe extern "C" fn(),
+        set_counter: Option<unsafe extern "C" fn(*const c_char, i64)>,
+    }
+
+    fn atrace() -> Option<&'static ATrace> {
+        static ATRACE: OnceLock<Option<ATrace>> = OnceLock::new();
+        ATRACE.get_or_init(load).as_ref()
+    }
+
+    fn load() -> Option<ATrace> {
+        // SAFETY: libandroid.so is already loaded in every app process and the
+        // symbols are cast to their NDK signatures.
+        unsafe {
+            let lib = libc::dlopen(b"libandroid.so\0".as_ptr().cast(), libc::RTLD_NOW);
+            if lib.is_null() {
+                return None;
+            }
+            let is_enabled = libc::dlsym(lib, b"ATrace_isEnabled\0".as_ptr().cast());
+            let begin_section = libc::dlsym(lib, b"ATrace_beginSection\0".as_ptr().cast());
+            let end_section = libc::dlsym(lib, b"ATrace_endSection\0".as_ptr().cast());
+            let set_counter = libc::dlsym(lib, b"ATrace_setCounter\0".as_ptr().cast());
+            if is_enabled.is_null() || begin_section.is_null() || end_section.is_null() {
+                return None;
+            }
+            Some(ATrace {
+                is_enabled: std::mem::transmute::<*mut c_void, unsafe extern "C" fn() -> bool>(is_enabled),
+                begin_section: std::mem::transmute::<*mut c_void, unsafe extern "C" fn(*const c_char)>(
+                    begin_section,
+                ),
+                end_section: std::mem::transmute::<*mut c_void, unsafe extern "C" fn()>(end_section),
+                set_counter: (!set_counter.is_null()).then(|| {
+                    std::mem::transmute::<*mut c_void, unsafe extern "C" fn(*const c_char, i64)>(set_counter)
+                }),
+            })
+        }
+    }
+
+    fn enabled() -> Option<&'static ATrace> {
+        // SAFETY: resolved from libandroid.so with the NDK signature.
+        atrace().filter(|atrace| unsafe { (atrace.is_enabled)() })
+    }
+
+    pub struct Section {
+        active: bool,
+    }
+
+    pub fn section(name: &str) -> Section {
+        let active = match (enabled(), CString::new(name)) {
+            (Some(atrace), Ok(name)) => {
+                // SAFETY: name is a valid NUL-terminated string.
+                unsafe { (atrace.begin_section)(name.as_ptr()) };
+                true
+            }
+            _ => false,
+        };
+        Section { active }
+    }
+
+    impl Drop for Section {
+        fn drop(&mut self) {
+            if let (true, Some(atrace)) = (self.active, atrace()) {
+                // SAFETY: closes the section this guard opened on this thread.
+                unsafe { (atrace.end_section)() };
+            }
+        }
+    }
+
+    pub fn counter(name: &str, value: i64) {
+        let set_counter = match enabled().and_then(|atrace| atrace.set_counter) {
+            Some(set_counter) => set_counter,
+            None => return,
+        };
+        if let Ok(name) = CString::new(name) {
+            // SAFETY: name is a valid NUL-terminated string.
+            unsafe { set_counter(name.as_ptr(), value) };
+        }
+    }
+}
+
+#[cfg(not(all(feature = "trace", target_os = "android")))]
+mod imp {
+    pub struct Section;
+
+    #[inline(always)]
+    pub fn section(_name: &str) -> Section {
+        Section
+    }
+
+    #[inline(always)]
+    pub fn counter(_name: &str, _value: i64) {}
+}
+
+pub use imp::{counter, section};
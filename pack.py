@@ -22,6 +22,7 @@ TOOLCHAIN_SUBDIR = "crabshell-toolchain"
 BUNDLETOOL_VERSION = os.environ.get("BUNDLETOOL_VERSION", "1.17.2")
 APKTOOL_VERSION = os.environ.get("APKTOOL_VERSION", "2.11.1")
 UBER_APK_SIGNER_VERSION = os.environ.get("UBER_APK_SIGNER_VERSION", "1.3.0")
+SMALI_VERSION = os.environ.get("SMALI_VERSION", "2.5.2")
 BUNDLETOOL_JAR_URL = (
     f"https://github.com/google/bundletool/releases/download/{BUNDLETOOL_VERSION}/bundletool-all-{BUNDLETOOL_VERSION}.jar"
 )
@@ -31,6 +32,8 @@ APKTOOL_JAR_URL = (
 UBER_APK_SIGNER_JAR_URL = (
     f"https://github.com/patrickfav/uber-apk-signer/releases/download/v{UBER_APK_SIGNER_VERSION}/uber-apk-signer-{UBER_APK_SIGNER_VERSION}.jar"
 )
+SMALI_JAR_URL = f"https://bitbucket.org/JesusFreke/smali/downloads/smali-{SMALI_VERSION}.jar"
+BAKSMALI_JAR_URL = f"https://bitbucket.org/JesusFreke/smali/downloads/baksmali-{SMALI_VERSION}.jar"
 TOOL_DOWNLOAD_RETRIES = int(os.environ.get("TOOL_DOWNLOAD_RETRIES", "3"))
 TOOL_DOWNLOAD_TIMEOUT = int(os.environ.get("TOOL_DOWNLOAD_TIMEOUT", "60"))
 ANDROID_NS = "http://schemas.android.com/apk/res/android"
@@ -48,6 +51,19 @@ DEFAULT_ORIGINAL_APP_META_KEY = "kapp.original_application"
 DEFAULT_ORIGINAL_FACTORY_META_KEY = "kapp.original_factory"
 DEFAULT_MANIFEST_CACHE_MAX_ENTRIES = 40
 DEFAULT_MANIFEST_CACHE_TTL_DAYS = 14
+LOG_PROFILES = ("release", "debug")
+DEFAULT_LOG_PROFILE = "release"
+DEFAULT_DECRYPT_THREADS = 4
+PAYLOAD_CIPHERS = ("aes-256-gcm", "chacha20-poly1305", "both", "per-abi")
+DEFAULT_PAYLOAD_CIPHER = "aes-256-gcm"
+DEX_LOAD_MODES = ("file", "memory")
+DEFAULT_DEX_LOAD_MODE = "file"
+LIB_LOAD_MODES = ("file", "memory")
+DEFAULT_LIB_LOAD_MODE = "file"
+# v2 payload header written by the packer, see packer/src/main.rs.
+PAYLOAD_MAGIC = b"KAPP"
+PAYLOAD_HEADER_LEN = 20
+PAYLOAD_FLAG_ENTRY_DIGESTS = 0x0002
 
 
 
@@ -557,6 +573,20 @@ def find_bundletool() -> str:
     return ensure_downloaded_file(resolve_download_urls(BUNDLETOOL_JAR_URL, "CRABSHELL_BUNDLETOOL_URLS"), bundletool_jar)
 
 
+def find_smali_jars() -> Tuple[str, str]:
+    """Find smali and baksmali jars from managed toolchain, downloading if needed."""
+    toolchain_dir = get_toolchain_dir()
+    smali_jar = ensure_downloaded_file(
+        resolve_download_urls(SMALI_JAR_URL, "CRABSHELL_SMALI_URLS"),
+        os.path.join(toolchain_dir, f"smali-{SMALI_VERSION}.jar"),
+    )
+    baksmali_jar = ensure_downloaded_file(
+        resolve_download_urls(BAKSMALI_JAR_URL, "CRABSHELL_BAKSMALI_URLS"),
+        os.path.join(toolchain_dir, f"baksmali-{SMALI_VERSION}.jar"),
+    )
+    return smali_jar, baksmali_jar
+
+
 def find_uber_apk_signer() -> str:
     """Find uber-apk-signer jar from managed toolchain, downloading if needed."""
     toolchain_dir = get_toolchain_dir()
@@ -687,7 +717,16 @@ def convert_apk_to_aab(apk_path: str, output_aab: str, original_aab: str, temp_d
     return output_aab
 
 
-def generate_config(config_path: str, key_bytes: bytes, payload_hash: bytes = None, signature_hash: bytes = None):
+def generate_config(
+    config_path: str,
+    key_bytes: bytes,
+    payload_hash: bytes = None,
+    signature_hash: bytes = None,
+    log_delay_ms: int = 0,
+    decrypt_threads: int = DEFAULT_DECRYPT_THREADS,
+    dex_load_mode: str = DEFAULT_DEX_LOAD_MODE,
+    lib_load_mode: str = DEFAULT_LIB_LOAD_MODE,
+):
     # key_bytes is the real key (32 bytes)
     # Generate a random mask (KEY_PART_1)
     mask_bytes = os.urandom(32)
@@ -716,6 +755,7 @@ def generate_config(config_path: str, key_bytes: bytes, payload_hash: bytes = No
         "MSG_NATIVE_LOAD_DEX": "nativeLoadDex (Application) called for SDK {}",
         "MSG_OPEN_APK": "Opening APK at {}",
         "MAGIC_SHELL": "SHELL",
+        "MAGIC_PAYLOAD": "KAPP",
         # New strings for better protection
         "DEBUG_DETECTED": "Debugger detected",
         "EXITING": "Exiting...",
@@ -762,6 +802,22 @@ pub fn get_aes_key() -> [u8; 32] {{
 
 pub const PAYLOAD_HASH: [u8; 32] = [{payload_hash_str}];
 pub const EXPECTED_SIGNATURE_HASH: [u8; 32] = [{signature_hash_str}];
+
+// Delay applied in JNI_OnLoad when built with the `debug-log` feature.
+#[allow(dead_code)]
+pub const STARTUP_LOG_DELAY_MS: u64 = {int(log_delay_ms)};
+
+// Upper bound on payload decryption worker threads (also capped by core count).
+#[allow(dead_code)]
+pub const MAX_DECRYPT_THREADS: usize = {int(decrypt_threads)};
+
+// Keep payload dex in native memory on API 26+ instead of landing them as files.
+#[allow(dead_code)]
+pub const IN_MEMORY_DEX: bool = {'true' if dex_load_mode == 'memory' else 'false'};
+
+// Load payload native libraries from memfds on API 30+ instead of landing them as files.
+#[allow(dead_code)]
+pub const IN_MEMORY_LIBS: bool = {'true' if lib_load_mode == 'memory' else 'false'};
 """
     output_dir = os.path.dirname(config_path)
     os.makedirs(output_dir, exist_ok=True)
@@ -838,6 +894,26 @@ def calculate_sha256(file_path: str) -> bytes:
     return bytes.fromhex(compute_sha256(file_path))
 
 
+def calculate_payload_hash(payload_path: str) -> bytes:
+    """Hash baked into libshell as PAYLOAD_HASH.
+
+    Payloads with entry digests are committed to by the SHA-256 of their
+    header and index after the magic; the loader checks every entry against
+    its digest while decrypting it. Other payloads use the whole-file hash.
+    """
+    with open(payload_path, "rb") as file:
+        header = file.read(PAYLOAD_HEADER_LEN)
+        if len(header) == PAYLOAD_HEADER_LEN and header[:4] == PAYLOAD_MAGIC:
+            flags = int.from_bytes(header[6:8], "little")
+            if flags & PAYLOAD_FLAG_ENTRY_DIGESTS:
+                index_len = int.from_bytes(header[16:20], "little")
+                index = file.read(index_len)
+                if len(index) != index_len:
+                    raise ValueError(f"Truncated payload index in {payload_path}")
+                return hashlib.sha256(header[4:] + index).digest()
+    return calculate_sha256(payload_path)
+
+
 def ensure_tool_exists(tool: str):
     if shutil.which(tool) is None:
         raise RuntimeError(f"Required tool not found: {tool}")
@@ -962,8 +1038,20 @@ def patch_shell_loader_constants(original_app: str, original_factory: str):
         f.write(content)
 
 
-def build_shell():
-    print("Building Shell (Native)...")
+def cargo_log_profile_args(log_profile: str) -> list[str]:
+    if log_profile not in LOG_PROFILES:
+        raise ValueError(f"Unknown log profile: {log_profile} (expected one of {', '.join(LOG_PROFILES)})")
+    if log_profile == "debug":
+        return ["--no-default-features", "--features", "debug-log"]
+    return []
+
+
+def build_shell(log_profile: str = DEFAULT_LOG_PROFILE, trace: bool = False):
+    profile_args = cargo_log_profile_args(log_profile)
+    if trace:
+        # ATrace/android.os.Trace startup sections for Perfetto captures.
+        profile_args += ["--features", "trace"]
+    print(f"Building Shell (Native, {log_profile} logging{', startup tracing' if trace else ''})...")
     env = os.environ.copy()
 
     java_cmd = find_java_cmd()
@@ -1024,7 +1112,8 @@ def build_shell():
             )
 
     run_checked_command(
-        ["cargo", "ndk", "-t", "arm64-v8a", "-t", "armeabi-v7a", "-o", "../jniLibs", "build", "--release"],
+        ["cargo", "ndk", "-t", "arm64-v8a", "-t", "armeabi-v7a", "-o", "../jniLibs", "build", "--release"]
+        + profile_args,
         "Build Shell (Native)",
         cwd=RUST_SHELL_DIR,
         env=env,
@@ -1033,7 +1122,7 @@ def build_shell():
     print("Building Shell (APK)...")
     gradlew = "./gradlew" if os.path.exists(os.path.join(SHELL_PROJECT_DIR, "gradlew")) else "gradle"
     gradle_result = subprocess.run(
-        [gradlew, "assembleRelease"],
+        [gradlew, "assembleRelease", f"-PshellLogProfile={log_profile}", f"-PshellTrace={str(trace).lower()}"],
         cwd=SHELL_PROJECT_DIR,
         env=env,
         capture_output=True,
@@ -1348,6 +1437,125 @@ def extract_keep_prefixes(keep_classes: list[str]) -> list[str]:
     return prefixes
 
 
+SMALI_CLASS_RE = re.compile(r"^\.class\b[^\n]*?(L[^;\s]+;)", re.MULTILINE)
+SMALI_TYPE_RE = re.compile(r"L[^\s;()\[\]:,\"'{}<>]+;")
+DEX_ENTRY_RE = re.compile(r"classes\d*\.dex")
+# A dex entry name or the smali directory it is disassembled into.
+DEX_NAME_RE = re.compile(r"classes(\d*)(?:\.dex)?")
+
+
+def class_name_to_descriptor(class_name: str) -> str:
+    trimmed = class_name.strip()
+    if trimmed.startswith("L") and trimmed.endswith(";"):
+        return trimmed
+    return f"L{trimmed.replace('.', '/')};"
+
+
+def dex_class_path_order(name: str) -> int:
+    """Position of classes.dex, classes2.dex, ... (or their smali directory) on the class path."""
+    match = DEX_NAME_RE.fullmatch(name)
+    if not match:
+        raise ValueError(f"not a dex name: {name}")
+    return int(match.group(1) or 1)
+
+
+def index_smali_classes(smali_root: str) -> dict[str, tuple[str, set[str]]]:
+    """Map each class descriptor to its smali file and the types it references.
+
+    The per-dex directories under smali_root are read in class-path order, so a
+    class defined in several dex files maps to the copy the runtime loads.
+    """
+    classes: dict[str, tuple[str, set[str]]] = {}
+    dex_dirs = [name for name in os.listdir(smali_root) if DEX_NAME_RE.fullmatch(name)]
+    for dex_dir in sorted(dex_dirs, key=dex_class_path_order):
+        for dirpath, dirnames, filenames in os.walk(os.path.join(smali_root, dex_dir)):
+            dirnames.sort()
+            for filename in sorted(filenames):
+                if not filename.endswith(".smali"):
+                    continue
+                path = os.path.join(dirpath, filename)
+                with open(path, "r", encoding="utf-8", errors="replace") as smali_file:
+                    text = smali_file.read()
+                match = SMALI_CLASS_RE.search(text)
+                if not match:
+                    continue
+                descriptor = match.group(1)
+                if descriptor not in classes:
+                    classes[descriptor] = (path, set(SMALI_TYPE_RE.findall(text)))
+    return classes
+
+
+def compute_keep_class_closure(
+    class_refs: dict[str, set[str]], keep_classes: list[str], keep_prefixes: list[str]
+) -> set[str]:
+    """Keep classes, classes under keep prefixes, and every app class they reach."""
+    descriptor_prefixes = [f"L{prefix.strip().strip('.').replace('.', '/')}/" for prefix in keep_prefixes]
+    roots = [class_name_to_descriptor(name) for name in keep_classes]
+    roots.extend(d for d in class_refs if any(d.startswith(prefix) for prefix in descriptor_prefixes))
+
+    closure: set[str] = set()
+    stack = [d for d in roots if d in class_refs]
+    while stack:
+        descriptor = stack.pop()
+        if descriptor in closure:
+            continue
+        closure.add(descriptor)
+        stack.extend(ref for ref in class_refs[descriptor] if ref in class_refs and ref not in closure)
+    return closure
+
+
+def build_keep_class_dex(
+    target_apk: str, keep_classes: list[str], keep_prefixes: list[str], temp_dir: str
+) -> Optional[str]:
+    """Assemble only the keep classes and their closure into one plaintext dex.
+
+    The original dex files then go into the encrypted payload whole; the
+    plaintext copies come first in the class path and shadow them. Returns None
+    (whole-dex keep) when the split cannot be done.
+    """
+    work_dir = os.path.join(temp_dir, "keep_split")
+    smali_root = os.path.join(work_dir, "smali")
+    keep_smali_dir = os.path.join(work_dir, "keep_smali")
+    keep_dex = os.path.join(work_dir, "keep.dex")
+
+    try:
+        java = find_java_cmd()
+        smali_jar, baksmali_jar = find_smali_jars()
+
+        with zipfile.ZipFile(target_apk, "r") as apk_zip:
+            dex_names = sorted(
+                (name for name in apk_zip.namelist() if DEX_ENTRY_RE.fullmatch(name)), key=dex_class_path_order
+            )
+            for dex_name in dex_names:
+                dex_path = os.path.join(work_dir, "dex", dex_name)
+                os.makedirs(os.path.dirname(dex_path), exist_ok=True)
+                with apk_zip.open(dex_name) as source, open(dex_path, "wb") as out:
+                    shutil.copyfileobj(source, out)
+                run_checked_command(
+                    [java, "-jar", baksmali_jar, "d", dex_path, "-o", os.path.join(smali_root, dex_name[:-4])],
+                    f"baksmali {dex_name}",
+                )
+
+        classes = index_smali_classes(smali_root)
+        closure = compute_keep_class_closure(
+            {descriptor: refs for descriptor, (_, refs) in classes.items()}, keep_classes, keep_prefixes
+        )
+        if not closure:
+            print("Warning: no keep classes are defined in the target dex files, skipping class-level split.")
+            return None
+
+        os.makedirs(keep_smali_dir, exist_ok=True)
+        for index, descriptor in enumerate(sorted(closure)):
+            shutil.copy2(classes[descriptor][0], os.path.join(keep_smali_dir, f"{index}.smali"))
+        run_checked_command([java, "-jar", smali_jar, "a", keep_smali_dir, "-o", keep_dex], "smali keep classes")
+    except (RuntimeError, OSError, zipfile.BadZipFile) as split_error:
+        print(f"Warning: class-level dex split failed, keeping whole dex files instead. reason={split_error}")
+        return None
+
+    print(f"Split {len(closure)} of {len(classes)} classes into the plaintext keep dex")
+    return keep_dex
+
+
 def pack_apk(
     target_apk: str,
     output_apk: str,
@@ -1360,6 +1568,16 @@ def pack_apk(
     signing_config: Tuple[str, str, str],
     key_bytes: bytes,
     resources_arsc: Optional[str] = None,
+    log_profile: str = DEFAULT_LOG_PROFILE,
+    log_delay_ms: int = 0,
+    decrypt_threads: int = DEFAULT_DECRYPT_THREADS,
+    keep_dex: Optional[str] = None,
+    startup_profile: Optional[str] = None,
+    trace: bool = False,
+    payload_cipher: str = DEFAULT_PAYLOAD_CIPHER,
+    dex_load_mode: str = DEFAULT_DEX_LOAD_MODE,
+    lib_load_mode: str = DEFAULT_LIB_LOAD_MODE,
+    preload_libs: Optional[list[str]] = None,
 ):
     packer_bin = os.path.join(PACKER_DIR, "target", "release", "packer")
     bootstrap_lib_dir = os.path.join(SHELL_PROJECT_DIR, "app", "src", "main", "jniLibs")
@@ -1380,6 +1598,8 @@ def pack_apk(
         bootstrap_lib_dir,
         "--patched-manifest",
         patched_manifest,
+        "--cipher",
+        payload_cipher,
     ]
 
     if resources_arsc:
@@ -1394,6 +1614,15 @@ def pack_apk(
     for keep_lib in keep_libs:
         cmd.extend(["--keep-lib", keep_lib])
 
+    for preload_lib in preload_libs or []:
+        cmd.extend(["--preload-lib", preload_lib])
+
+    if keep_dex:
+        cmd.extend(["--keep-dex", keep_dex])
+
+    if startup_profile:
+        cmd.extend(["--startup-profile", startup_profile])
+
     if encrypt_assets:
         for asset_pattern in encrypt_assets:
             cmd.extend(["--encrypt-asset", asset_pattern])
@@ -1405,7 +1634,7 @@ def pack_apk(
     payload_cmd = cmd + ["--payload-out", payload_path]
     run_checked_command(payload_cmd, "Generate payload")
     
-    payload_hash = calculate_sha256(payload_path)
+    payload_hash = calculate_payload_hash(payload_path)
     print(f"Payload hash: {payload_hash.hex()}")
     
     # Get signing config hash
@@ -1436,11 +1665,29 @@ def pack_apk(
         signature_hash = b'\x00' * 32
 
     # Re-generate configs with hashes
-    generate_config(os.path.join(RUST_SHELL_DIR, "src", "config.rs"), key_bytes, payload_hash, signature_hash)
-    generate_config(os.path.join(PACKER_DIR, "src", "config.rs"), key_bytes, payload_hash, signature_hash)
+    generate_config(
+        os.path.join(RUST_SHELL_DIR, "src", "config.rs"),
+        key_bytes,
+        payload_hash,
+        signature_hash,
+        log_delay_ms,
+        decrypt_threads,
+        dex_load_mode,
+        lib_load_mode,
+    )
+    generate_config(
+        os.path.join(PACKER_DIR, "src", "config.rs"),
+        key_bytes,
+        payload_hash,
+        signature_hash,
+        log_delay_ms,
+        decrypt_threads,
+        dex_load_mode,
+        lib_load_mode,
+    )
     
     # Re-build shell with new config
-    build_shell()
+    build_shell(log_profile, trace)
     
     # Phase 2: Final pack using pre-generated payload
     print("Phase 2: Final packing...")
@@ -1679,6 +1926,61 @@ def build_arg_parser() -> argparse.ArgumentParser:
     parser.add_argument(
         "--encrypt-asset", action="append", help="Pattern of assets to encrypt (e.g. assets/*.js)"
     )
+    parser.add_argument(
+        "--log-profile",
+        choices=list(LOG_PROFILES),
+        default=None,
+        help="Native shell logging profile (release=Warn only, no startup delay; debug=Debug logging)",
+    )
+    parser.add_argument(
+        "--trace",
+        action="store_true",
+        help="Build the shell with startup trace sections (ATrace/android.os.Trace) for Perfetto captures",
+    )
+    parser.add_argument(
+        "--log-delay-ms",
+        type=int,
+        default=None,
+        help="Debug log profile only: delay in JNI_OnLoad so logcat can attach (default: 0)",
+    )
+    parser.add_argument(
+        "--decrypt-threads",
+        type=int,
+        default=None,
+        help=f"Max worker threads the shell uses to decrypt payload entries (default: {DEFAULT_DECRYPT_THREADS})",
+    )
+    parser.add_argument(
+        "--startup-profile",
+        default=None,
+        help="Startup class profile (e.g. baseline-prof.txt); payload dex files outside it load after startup",
+    )
+    parser.add_argument(
+        "--preload-lib",
+        action="append",
+        help="Payload library the app loads at startup (e.g. mmkv or libmmkv.so); the shell opens it on a background "
+        "thread once the payload is landed (can be specified multiple times)",
+    )
+    parser.add_argument(
+        "--payload-cipher",
+        choices=PAYLOAD_CIPHERS,
+        default=None,
+        help="AEAD for payload entries; both/per-abi also seal entries with ChaCha20-Poly1305 for devices "
+        f"without AES instructions (default: {DEFAULT_PAYLOAD_CIPHER})",
+    )
+    parser.add_argument(
+        "--dex-load-mode",
+        choices=DEX_LOAD_MODES,
+        default=None,
+        help="How the shell loads payload dex on API 26+: landed files, or decrypted into memory on every start "
+        f"(default: {DEFAULT_DEX_LOAD_MODE})",
+    )
+    parser.add_argument(
+        "--lib-load-mode",
+        choices=LIB_LOAD_MODES,
+        default=None,
+        help="How the shell loads payload native libraries on API 30+: landed files, or decrypted into memfds on "
+        f"every start (default: {DEFAULT_LIB_LOAD_MODE})",
+    )
     parser.add_argument(
         "--output-format",
         choices=["auto", "apk", "aab"],
@@ -1731,6 +2033,56 @@ def collect_runtime_lists(args, config: dict, decoded_dir: str) -> tuple[list[st
     return keep_classes, keep_prefixes, keep_libs, encrypt_assets
 
 
+def resolve_log_options(args, config: dict) -> tuple[str, int]:
+    log_profile = args.log_profile or config.get("log_profile") or DEFAULT_LOG_PROFILE
+    if log_profile not in LOG_PROFILES:
+        raise ValueError(f"Unknown log profile: {log_profile} (expected one of {', '.join(LOG_PROFILES)})")
+
+    raw_delay = args.log_delay_ms if args.log_delay_ms is not None else config.get("log_delay_ms")
+    log_delay_ms = parse_non_negative_int(None if raw_delay is None else str(raw_delay), 0)
+    if log_delay_ms and log_profile != "debug":
+        print("Warning: --log-delay-ms only applies to the debug log profile, ignoring it.")
+        log_delay_ms = 0
+    return log_profile, log_delay_ms
+
+
+def resolve_decrypt_threads(args, config: dict) -> int:
+    raw_threads = args.decrypt_threads if args.decrypt_threads is not None else config.get("decrypt_threads")
+    threads = parse_non_negative_int(None if raw_threads is None else str(raw_threads), DEFAULT_DECRYPT_THREADS)
+    return threads or DEFAULT_DECRYPT_THREADS
+
+
+def resolve_payload_cipher(args, config: dict) -> str:
+    payload_cipher = args.payload_cipher or config.get("payload_cipher") or DEFAULT_PAYLOAD_CIPHER
+    if payload_cipher not in PAYLOAD_CIPHERS:
+        raise ValueError(f"Unknown payload cipher: {payload_cipher} (expected one of {', '.join(PAYLOAD_CIPHERS)})")
+    return payload_cipher
+
+
+def resolve_dex_load_mode(args, config: dict) -> str:
+    dex_load_mode = args.dex_load_mode or config.get("dex_load_mode") or DEFAULT_DEX_LOAD_MODE
+    if dex_load_mode not in DEX_LOAD_MODES:
+        raise ValueError(f"Unknown dex load mode: {dex_load_mode} (expected one of {', '.join(DEX_LOAD_MODES)})")
+    return dex_load_mode
+
+
+def resolve_lib_load_mode(args, config: dict) -> str:
+    lib_load_mode = args.lib_load_mode or config.get("lib_load_mode") or DEFAULT_LIB_LOAD_MODE
+    if lib_load_mode not in LIB_LOAD_MODES:
+        raise ValueError(f"Unknown lib load mode: {lib_load_mode} (expected one of {', '.join(LIB_LOAD_MODES)})")
+    return lib_load_mode
+
+
+def resolve_startup_profile(args, config: dict) -> Optional[str]:
+    startup_profile = args.startup_profile or config.get("startup_profile")
+    if not startup_profile:
+        return None
+    if not os.path.isfile(startup_profile):
+        print(f"Warning: startup profile {startup_profile} not found, loading all dex files at startup.")
+        return None
+    return os.path.abspath(startup_profile)
+
+
 def maybe_build_toolchain(skip_build: bool, original_app: str, original_factory: str):
     if skip_build:
         return
@@ -1776,6 +2128,14 @@ def main():
     key_alias = args.key_alias or config.get("key_alias")
     no_sign = args.no_sign or config.get("no_sign", False)
     skip_build = args.skip_build or config.get("skip_build", False)
+    log_profile, log_delay_ms = resolve_log_options(args, config)
+    trace = args.trace or config.get("trace", False)
+    decrypt_threads = resolve_decrypt_threads(args, config)
+    startup_profile = resolve_startup_profile(args, config)
+    payload_cipher = resolve_payload_cipher(args, config)
+    dex_load_mode = resolve_dex_load_mode(args, config)
+    lib_load_mode = resolve_lib_load_mode(args, config)
+    preload_libs = normalize_cli_list(args.preload_lib or config.get("preload_lib"))
 
     if not target:
         print("Error: Target APK not specified (use --target or config file).")
@@ -1791,8 +2151,22 @@ def main():
     packer_config_path = os.path.join(PACKER_DIR, "src", "config.rs")
     key_bytes = select_key_bytes(skip_build, packer_config_path)
     # Initial config generation for packer build
-    generate_config(os.path.join(RUST_SHELL_DIR, "src", "config.rs"), key_bytes)
-    generate_config(packer_config_path, key_bytes)
+    generate_config(
+        os.path.join(RUST_SHELL_DIR, "src", "config.rs"),
+        key_bytes,
+        log_delay_ms=log_delay_ms,
+        decrypt_threads=decrypt_threads,
+        dex_load_mode=dex_load_mode,
+        lib_load_mode=lib_load_mode,
+    )
+    generate_config(
+        packer_config_path,
+        key_bytes,
+        log_delay_ms=log_delay_ms,
+        decrypt_threads=decrypt_threads,
+        dex_load_mode=dex_load_mode,
+        lib_load_mode=lib_load_mode,
+    )
     emit_progress("init.keys.prepare", 12, "Runtime keys and config prepared")
 
     is_aab_input, output_format, output = resolve_output_format_and_extension(
@@ -1824,6 +2198,13 @@ def main():
         )
         emit_progress("init.rules.resolve", 27, "Runtime include/exclude rules resolved")
 
+        keep_dex = None
+        if keep_classes or keep_prefixes:
+            keep_dex = build_keep_class_dex(target, keep_classes, keep_prefixes, temp_dir)
+            if keep_dex:
+                # Keep classes now live in their own dex, so every original dex is encrypted.
+                keep_classes, keep_prefixes = [], []
+
         signing_keystore, signing_ks_pass, signing_alias = resolve_signing(keystore, ks_pass, key_alias)
         emit_progress("init.signing.resolve", 30, "Signing configuration resolved")
 
@@ -1845,6 +2226,16 @@ def main():
             (signing_keystore, signing_ks_pass, signing_alias),
             key_bytes,
             resources_arsc,
+            log_profile,
+            log_delay_ms,
+            decrypt_threads,
+            keep_dex,
+            startup_profile,
+            trace,
+            payload_cipher,
+            dex_load_mode,
+            lib_load_mode,
+            preload_libs,
         )
 
         if no_sign:
@@ -0,0 +1,251 @@
+// Minimal DEX reader for keep-class decisions.
+//
+// Only the header, string_ids, type_ids and class_defs sections are read, which
+// is enough to list the classes a dex file defines. Strings are decoded lazily,
+// so a multi-megabyte dex costs one pass over its class_defs rather than a
+// byte scan per keep rule.
+
+use anyhow::{bail, Context};
+use std::collections::HashSet;
+
+const HEADER_SIZE: usize = 0x70;
+const ENDIAN_CONSTANT: u32 = 0x1234_5678;
+const CLASS_DEF_SIZE: usize = 32;
+
+pub struct DexFile<'a> {
+    bytes: &'a [u8],
+    checksum: u32,
+    method_ids_size: u32,
+    string_ids_size: usize,
+    string_ids_off: usize,
+    type_ids_size: usize,
+    type_ids_off: usize,
+    class_defs_size: usize,
+    class_defs_off: usize,
+}
+
+fn read_u32(bytes: &[u8], offset: usize) -> anyhow::Result<u32> {
+    let end = offset.checked_add(4).context("dex offset overflow")?;
+    let slice = bytes
+        .get(offset..end)
+        .with_context(|| format!("dex read out of bounds at {:#x}", offset))?;
+    Ok(u32::from_le_bytes(slice.try_into().unwrap()))
+}
+
+fn read_uleb128(bytes: &[u8], mut offset: usize) -> anyhow::Result<(u32, usize)> {
+    let mut result = 0u32;
+    for shift in (0..35).step_by(7) {
+        let byte = *bytes
+            .get(offset)
+            .with_context(|| format!("dex uleb128 out of bounds at {:#x}", offset))?;
+        offset += 1;
+        result |= u32::from(byte & 0x7f) << shift;
+        if byte & 0x80 == 0 {
+            return Ok((result, offset));
+        }
+    }
+    bail!("dex uleb128 too long")
+}
+
+impl<'a> DexFile<'a> {
+    pub fn parse(bytes: &'a [u8]) -> anyhow::Result<DexFile<'a>> {
+        if bytes.len() < HEADER_SIZE || !bytes.starts_with(b"dex\n") {
+            bail!("not a dex file");
+        }
+        if read_u32(bytes, 0x28)? != ENDIAN_CONSTANT {
+            bail!("unsupported dex endianness");
+        }
+
+        let section = |size_at: usize, off_at: usize, item_size: usize| -> anyhow::Result<(usize, usize)> {
+            let size = read_u32(bytes, size_at)? as usize;
+            let off = read_u32(bytes, off_at)? as usize;
+            let end = size
+                .checked_mul(item_size)
+                .and_then(|len| len.checked_add(off))
+                .context("dex section overflow")?;
+            if size > 0 && end > bytes.len() {
+                bail!("dex section at {:#x} runs past end of file", off);
+            }
+            Ok((size, off))
+        };
+
+        let (string_ids_size, string_ids_off) = section(0x38, 0x3c, 4)?;
+        let (type_ids_size, type_ids_off) = section(0x40, 0x44, 4)?;
+        let (class_defs_size, class_defs_off) = section(0x60, 0x64, CLASS_DEF_SIZE)?;
+
+        Ok(DexFile {
+            bytes,
+            checksum: read_u32(bytes, 0x08)?,
+            method_ids_size: read_u32(bytes, 0x58)?,
+            string_ids_size,
+            string_ids_off,
+            type_ids_size,
+            type_ids_off,
+            class_defs_size,
+            class_defs_off,
+        })
+    }
+
+    // Adler-32 of the file from the header. ART profiles name the dex they
+    // belong to by it.
+    pub fn checksum(&self) -> u32 {
+        self.checksum
+    }
+
+    pub fn type_ids_size(&self) -> u32 {
+        self.type_ids_size as u32
+    }
+
+    pub fn method_ids_size(&self) -> u32 {
+        self.method_ids_size
+    }
+
+    // MUTF-8 bytes of string `idx`, without the trailing NUL.
+    pub fn string_bytes(&self, idx: u32) -> anyhow::Result<&'a [u8]> {
+        let idx = idx as usize;
+        if idx >= self.string_ids_size {
+            bail!("dex string index {} out of range", idx);
+        }
+        let data_off = read_u32(self.bytes, self.string_ids_off + idx * 4)? as usize;
+        let (_utf16_len, start) = read_uleb128(self.bytes, data_off)?;
+        let rest = self
+            .bytes
+            .get(start..)
+            .context("dex string data out of bounds")?;
+        let len = rest
+            .iter()
+            .position(|&b| b == 0)
+            .context("unterminated dex string")?;
+        Ok(&rest[..len])
+    }
+
+    pub fn type_descriptor(&self, type_idx: u32) -> anyhow::Result<&'a [u8]> {
+        let type_idx = type_idx as usize;
+        if type_idx >= self.type_ids_size {
+            bail!("dex type index {} out of range", type_idx);
+        }
+        let descriptor_idx = read_u32(self.bytes, self.type_ids_off + type_idx * 4)?;
+        self.string_bytes(descriptor_idx)
+    }
+
+    pub fn class_def_type_idx(&self, class_def: usize) -> anyhow::Result<u32> {
+        if class_def >= self.class_defs_size {
+            bail!("dex class_def index {} out of range", class_def);
+        }
+        read_u32(self.bytes, self.class_defs_off + class_def * CLASS_DEF_SIZE)
+    }
+
+    // Descriptors (e.g. "Lcom/example/App;") of every class defined here.
+    pub fn defined_classes(&self) -> anyhow::Result<DefinedClasses> {
+        let mut descriptors = HashSet::with_capacity(self.class_defs_size);
+        for i in 0..self.class_defs_size {
+            let descriptor = self.type_descriptor(self.class_def_type_idx(i)?)?;
+            descriptors.insert(String::from_utf8_lossy(descriptor).into_owned());
+        }
+        Ok(DefinedClasses { descriptors })
+    }
+}
+
+pub struct DefinedClasses {
+    descriptors: HashSet<String>,
+}
+
+impl DefinedClasses {
+    pub fn contains(&self, descriptor: &str) -> bool {
+        self.descriptors.contains(descriptor)
+    }
+
+    pub fn any_with_prefix(&self, prefix: &str) -> bool {
+        self.descriptors.iter().any(|descriptor| descriptor.starts_with(prefix))
+    }
+}
+
+// Builds a structurally valid dex holding only string_ids, type_ids and empty
+// class_defs for `classes`, plus `extra_strings` that are referenced nowhere.
+#[cfg(test)]
+pub fn build_test_dex(classes: &[&str], extra_strings: &[&str]) -> Vec<u8> {
+    let mut strings: Vec<&str> = classes.iter().chain(extra_strings).copied().collect();
+    strings.sort_unstable();
+    strings.dedup();
+
+    let string_ids_off = HEADER_SIZE;
+    let type_ids_off = string_ids_off + strings.len() * 4;
+    let class_defs_off = type_ids_off + classes.len() * 4;
+    let data_off = class_defs_off + classes.len() * CLASS_DEF_SIZE;
+
+    fn put(out: &mut [u8], at: usize, value: usize) {
+        out[at..at + 4].copy_from_slice(&(value as u32).to_le_bytes());
+    }
+
+    let mut out = vec![0u8; data_off];
+    out[..8].copy_from_slice(b"dex\n035\0");
+    put(&mut out, 0x24, HEADER_SIZE);
+    put(&mut out, 0x28, ENDIAN_CONSTANT as usize);
+    put(&mut out, 0x38, strings.len());
+    put(&mut out, 0x3c, string_ids_off);
+    put(&mut out, 0x40, classes.len());
+    put(&mut out, 0x44, type_ids_off);
+    put(&mut out, 0x60, classes.len());
+    put(&mut out, 0x64, class_defs_off);
+
+    for (i, string) in strings.iter().enumerate() {
+        let offset = out.len();
+        put(&mut out, string_ids_off + i * 4, offset);
+        // ASCII test strings, so the utf16 length is the byte length.
+        let mut len = string.len();
+        loop {
+            let byte = (len & 0x7f) as u8;
+            len >>= 7;
+            if len == 0 {
+                out.push(byte);
+                break;
+            }
+            out.push(byte | 0x80);
+        }
+        out.extend_from_slice(string.as_bytes());
+        out.push(0);
+    }
+
+    for (i, class) in classes.iter().enumerate() {
+        let string_idx = strings.binary_search(class).unwrap();
+        put(&mut out, type_ids_off + i * 4, string_idx);
+        put(&mut out, class_defs_off + i * CLASS_DEF_SIZE, i);
+        // access_flags, superclass (NO_INDEX) and the remaining offsets.
+        put(&mut out, class_defs_off + i * CLASS_DEF_SIZE + 8, 0xffff_ffff);
+    }
+
+    let file_size = out.len();
+    put(&mut out, 0x20, file_size);
+    out
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{build_test_dex, DexFile};
+
+    #[test]
+    fn defined_classes_ignore_strings_that_only_mention_a_class() {
+        let dex = build_test_dex(
+            &["Lcom/example/App;", "Lcom/example/ui/Main;"],
+            &["Lcom/example/Other;", "const-string Lcom/example/Ref;"],
+        );
+        let parsed = DexFile::parse(&dex).unwrap();
+        let classes = parsed.defined_classes().unwrap();
+
+        assert!(classes.contains("Lcom/example/App;"));
+        assert!(!classes.contains("Lcom/example/Other;"));
+        assert!(classes.any_with_prefix("Lcom/example/ui/"));
+        assert!(!classes.any_with_prefix("Lcom/other/"));
+    }
+
+    #[test]
+    fn parse_rejects_truncated_sections() {
+        let mut dex = build_test_dex(&["Lcom/example/App;"], &[]);
+        assert!(DexFile::parse(b"original-main-dex").is_err());
+
+        // class_defs_off pointing past the end of the file.
+        let len = dex.len() as u32;
+        dex[0x64..0x68].copy_from_slice(&len.to_le_bytes());
+        assert!(DexFile::parse(&dex).is_err());
+    }
+}
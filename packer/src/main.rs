@@ -1,18 +1,149 @@
 use aes_gcm::{
-    aead::{Aead, KeyInit},
-    Aes256Gcm, Nonce,
+    aead::{generic_array::GenericArray, Aead, KeyInit},
+    Aes256Gcm,
 };
-use clap::Parser;
+use chacha20poly1305::ChaCha20Poly1305;
+use clap::{Parser, ValueEnum};
 use rand::Rng;
+use rayon::prelude::*;
+use sha2::{Digest, Sha256};
 use std::collections::HashSet;
 use std::fs::File;
 use std::io::{Read, Write};
+use std::ops::Range;
 use std::path::{Path, PathBuf};
 use zip::{write::FileOptions, CompressionMethod, ZipArchive, ZipWriter};
 
 mod config;
+mod dex;
+mod profile;
 use config::get_aes_key;
 
+// v2 payload layout, read by the loader's payload module:
+//   Header: [Magic "KAPP" (4)] [Version (2)] [Flags (2)] [ChunkSize (4)]
+//           [EntryCount (4)] [IndexLen (4)]
+//   Index:  [ [NameLen(2)] [Name] [EntryFlags(2)]? [PlainLen(8)] [StoredLen(8)]
+//             [RawLen(8)]? [Nonce(12)] [Digest(32)] [ContentName(16)]? ] * N
+//           [SegmentCount(2)] [ [AbiLen(2)] [Abi] [EntryCount(4)]
+//             [DataOffset(8)] [DataLen(8)] ] * S  (PAYLOAD_FLAG_SEGMENTS)
+//   Data:   entries in index order, each a run of [Ciphertext] [Tag(16)] chunks
+// EntryFlags is only present when the header has PAYLOAD_FLAG_ENTRY_FLAGS set.
+// Bit 0 marks a deferred dex and bit 1 a library the loader preloads.
+// Its high byte is the entry's cipher; an entry sealed under both ciphers is
+// stored twice under the same name and the loader picks one. Bits 4..7 are
+// the codec the entry was compressed with before sealing; PlainLen is then the
+// compressed length and RawLen (PAYLOAD_FLAG_ENTRY_CODECS) the original one.
+// Segments (PAYLOAD_FLAG_SEGMENTS, set when there are native libraries) split
+// the entries into the ABI-independent run and one run per ABI. DataOffset is
+// relative to the magic; each ABI run starts on a fresh page after zero fill.
+// Digest is the SHA-256 of the entry's stored bytes (PAYLOAD_FLAG_ENTRY_DIGESTS,
+// always set). The payload hash pack.py bakes into libshell is the commitment:
+// the SHA-256 of the header and index after the magic.
+// ContentName (PAYLOAD_FLAG_CONTENT_NAMES, set when there are dex entries) is
+// the first 16 bytes of the SHA-256 of a dex entry's original content, the
+// name the loader lands it under, and zero for other entries. The loader
+// keeps a dex already landed under that name instead of decrypting it again.
+const PAYLOAD_MAGIC: &[u8; 4] = b"KAPP";
+const PAYLOAD_FORMAT_VERSION: u16 = 2;
+const PAYLOAD_FLAG_ENTRY_FLAGS: u16 = 0x0001;
+const PAYLOAD_FLAG_ENTRY_DIGESTS: u16 = 0x0002;
+const PAYLOAD_FLAG_ENTRY_CODECS: u16 = 0x0004;
+const PAYLOAD_FLAG_SEGMENTS: u16 = 0x0008;
+const PAYLOAD_FLAG_CONTENT_NAMES: u16 = 0x0010;
+const PAYLOAD_DIGEST_LEN: usize = 32;
+const PAYLOAD_CONTENT_NAME_LEN: usize = 16;
+const ENTRY_FLAG_DEFERRED: u16 = 0x0001;
+const ENTRY_FLAG_PRELOAD: u16 = 0x0002;
+const ENTRY_CODEC_SHIFT: u32 = 4;
+const ENTRY_CIPHER_SHIFT: u32 = 8;
+const PAYLOAD_CODEC_NONE: u8 = 0;
+const PAYLOAD_CODEC_LZ4: u8 = 1;
+const PAYLOAD_CODEC_ZSTD: u8 = 2;
+// zstd decodes at the same speed whatever the level, so cold entries get the
+// smallest output the packer can afford.
+const ZSTD_LEVEL: i32 = 19;
+const PAYLOAD_CIPHER_AES_256_GCM: u8 = 0;
+const PAYLOAD_CIPHER_CHACHA20_POLY1305: u8 = 1;
+const PAYLOAD_CHUNK_SIZE: usize = 64 * 1024;
+const PAYLOAD_TAG_LEN: usize = 16;
+const PAYLOAD_ALIGNMENT: u16 = 4096;
+
+// An entry of the target APK, read and decompressed once and shared by the
+// payload and repack phases.
+struct TargetEntry {
+    name: String,
+    compression: CompressionMethod,
+    is_dir: bool,
+    data: Vec<u8>,
+}
+
+enum PayloadDecision {
+    NotPayload,
+    KeepPlaintext,
+    // One entry per cipher the entry is sealed under.
+    Encrypt(Vec<PayloadEntry>),
+}
+
+struct PayloadEntry {
+    name: String,
+    // Sealed chunks, stored back to back.
+    data: Vec<u8>,
+    nonce: [u8; 12],
+    // Length of the sealed bytes, compressed when codec is not NONE.
+    plain_len: u64,
+    raw_len: u64,
+    codec: u8,
+    // Dex outside the startup set, landed by the loader after startup.
+    deferred: bool,
+    // Native library the app loads at startup, opened by the loader in the
+    // background once the payload is landed.
+    preload: bool,
+    cipher: u8,
+    // Dex only: see dex_content_name.
+    content_name: Option<[u8; PAYLOAD_CONTENT_NAME_LEN]>,
+}
+
+// Which AEAD the payload entries are sealed with. The loader prefers
+// AES-256-GCM where the CPU has AES instructions and ChaCha20-Poly1305
+// elsewhere; sealing under both lets every device pick, at the cost of a
+// larger payload.
+#[derive(ValueEnum, Clone, Copy, Debug, Default, PartialEq, Eq)]
+enum CipherMode {
+    #[default]
+    #[value(name = "aes-256-gcm")]
+    Aes256Gcm,
+    #[value(name = "chacha20-poly1305")]
+    Chacha20Poly1305,
+    Both,
+    /// ChaCha20-Poly1305 for armeabi-v7a libs, AES-256-GCM for x86 libs,
+    /// both for arm64-v8a libs (not every ARMv8 core has the AES extension)
+    /// and for ABI-independent entries.
+    PerAbi,
+}
+
+impl CipherMode {
+    fn ciphers_for(self, name: &str) -> &'static [u8] {
+        const AES: &[u8] = &[PAYLOAD_CIPHER_AES_256_GCM];
+        const CHACHA: &[u8] = &[PAYLOAD_CIPHER_CHACHA20_POLY1305];
+        const BOTH: &[u8] = &[PAYLOAD_CIPHER_AES_256_GCM, PAYLOAD_CIPHER_CHACHA20_POLY1305];
+        match self {
+            CipherMode::Aes256Gcm => AES,
+            CipherMode::Chacha20Poly1305 => CHACHA,
+            CipherMode::Both => BOTH,
+            CipherMode::PerAbi if name.starts_with("lib/armeabi-v7a/") => CHACHA,
+            CipherMode::PerAbi if name.starts_with("lib/x86/") || name.starts_with("lib/x86_64/") => AES,
+            CipherMode::PerAbi => BOTH,
+        }
+    }
+}
+
+// How payload entries are sealed.
+#[derive(Clone, Copy, Debug, Default)]
+struct SealOptions {
+    cipher: CipherMode,
+    compress: bool,
+}
+
 #[derive(Parser, Debug)]
 #[command(author, version, about, long_about = None)]
 struct Args {
@@ -40,9 +171,24 @@ struct Args {
     #[arg(long = "keep-lib")]
     keep_lib: Vec<String>,
 
+    /// Plaintext dex holding only the keep classes, placed right after the
+    /// bootstrap dex so it shadows the encrypted originals.
+    #[arg(long = "keep-dex")]
+    keep_dex: Option<PathBuf>,
+
     #[arg(long = "encrypt-asset")]
     encrypt_asset: Vec<String>,
 
+    /// Startup class profile (ART baseline-prof.txt rules or class names).
+    /// Payload dex files that define none of its classes are deferred.
+    #[arg(long = "startup-profile")]
+    startup_profile: Option<PathBuf>,
+
+    /// Payload native library the app loads at startup (libfoo.so or foo).
+    /// The loader opens it on a background thread once the payload is landed.
+    #[arg(long = "preload-lib")]
+    preload_lib: Vec<String>,
+
     #[arg(long)]
     resources: Option<PathBuf>,
 
@@ -51,11 +197,27 @@ struct Args {
 
     #[arg(long)]
     payload_in: Option<PathBuf>,
+
+    /// Worker threads for reading and encrypting entries (default: all cores).
+    #[arg(long)]
+    jobs: Option<usize>,
+
+    /// AEAD the payload entries are sealed with.
+    #[arg(long, value_enum, default_value_t = CipherMode::Aes256Gcm)]
+    cipher: CipherMode,
+
+    /// Seal payload entries uncompressed.
+    #[arg(long)]
+    no_compress: bool,
 }
 
 fn main() -> anyhow::Result<()> {
     let args = Args::parse();
 
+    if let Some(jobs) = args.jobs {
+        rayon::ThreadPoolBuilder::new().num_threads(jobs).build_global()?;
+    }
+
     println!(
         "Packing target {} -> {}",
         args.target.display(),
@@ -83,6 +245,17 @@ fn main() -> anyhow::Result<()> {
     println!("Keep prefixes: {:?}", keep_prefixes);
     println!("Keep libs: {:?}", keep_libs);
 
+    let startup_classes = match &args.startup_profile {
+        Some(path) => {
+            let classes = parse_startup_profile(&std::fs::read_to_string(path)?);
+            println!("Startup profile {}: {} classes", path.display(), classes.len());
+            classes
+        }
+        None => HashSet::new(),
+    };
+
+    let target_entries = read_target_entries(&args.target)?;
+
     let payload_blob = if let Some(path) = &args.payload_in {
         println!("Using pre-generated payload from {}", path.display());
         let mut f = File::open(path)?;
@@ -90,34 +263,55 @@ fn main() -> anyhow::Result<()> {
         f.read_to_end(&mut b)?;
         b
     } else {
-        let entries = collect_and_encrypt_payload_entries(
-            &args.target, 
+        let mut entries = collect_and_encrypt_payload_entries(
+            &target_entries,
             &keep_descriptors, 
             &keep_prefixes, 
             &keep_libs,
-            &args.encrypt_asset
+            &args.encrypt_asset,
+            &startup_classes,
+            SealOptions {
+                cipher: args.cipher,
+                compress: !args.no_compress,
+            },
         )?;
         if entries.is_empty() {
             anyhow::bail!("No classes*.dex or lib/**/*.so found in target APK");
         }
+        mark_preload_libs(&mut entries, &args.preload_lib);
         build_payload_blob(&entries)
     };
 
     if let Some(path) = &args.payload_out {
         println!("Saving payload blob to {}", path.display());
+        if let Some(commitment) = payload_commitment(&payload_blob) {
+            println!("Payload commitment: {}", hex::encode(commitment));
+        }
+        let index = read_payload_index(&payload_blob)?;
+        let sealed: usize = index.iter().map(|entry| entry.range.len()).sum();
+        println!("Payload index: {} entries, {} sealed bytes", index.len(), sealed);
         let mut f = File::create(path)?;
         f.write_all(&payload_blob)?;
         return Ok(());
     }
 
-    let encrypted_entry_names = get_encrypted_names_from_blob(&payload_blob);
+    let encrypted_entry_names = get_encrypted_names_from_blob(&payload_blob)?;
+
+    let keep_dex = match &args.keep_dex {
+        Some(path) => {
+            println!("Using class-level keep dex from {}", path.display());
+            Some(std::fs::read(path)?)
+        }
+        None => None,
+    };
 
     repack_target_with_bootstrap(
-        &args.target,
+        &target_entries,
         &args.bootstrap_apk,
         &args.bootstrap_lib_dir,
         args.patched_manifest.as_deref(),
         args.resources.as_deref(),
+        keep_dex.as_deref(),
         &encrypted_entry_names,
         &args.output,
         &payload_blob,
@@ -164,32 +358,88 @@ fn dex_name_for_index(index: usize) -> String {
     }
 }
 
-fn should_keep_dex(_name: &str, dex_bytes: &[u8], keep_descriptors: &[String]) -> bool {
-    for descriptor in keep_descriptors {
-        if dex_bytes.windows(descriptor.len()).any(|window| window == descriptor.as_bytes()) {
-            return true;
+// A dex stays in plaintext when it defines a keep class or a class under a
+// keep prefix. Only class_defs count: a dex that merely references a keep
+// class in its string table is still encrypted.
+fn should_keep_dex(
+    name: &str,
+    dex_bytes: &[u8],
+    keep_descriptors: &[String],
+    keep_prefixes: &[String],
+) -> bool {
+    if keep_descriptors.is_empty() && keep_prefixes.is_empty() {
+        return false;
+    }
+
+    let defined = dex::DexFile::parse(dex_bytes).and_then(|dex| dex.defined_classes());
+    match defined {
+        Ok(classes) => {
+            keep_descriptors.iter().any(|descriptor| classes.contains(descriptor))
+                || keep_prefixes.iter().any(|prefix| classes.any_with_prefix(prefix))
+        }
+        Err(e) => {
+            println!("Warning: cannot index classes of {} ({}), falling back to a byte scan", name, e);
+            keep_descriptors
+                .iter()
+                .chain(keep_prefixes)
+                .any(|pattern| contains_bytes(dex_bytes, pattern.as_bytes()))
         }
     }
-    false
 }
 
-fn matches_keep_prefix(dex_bytes: &[u8], keep_prefixes: &[String]) -> bool {
-    for prefix in keep_prefixes {
-        if dex_bytes.windows(prefix.len()).any(|window| window == prefix.as_bytes()) {
-            return true;
+// Class descriptors named by a startup profile, one rule per line. ART
+// baseline profile rules ("HSPLcom/example/App;->onCreate()V",
+// "Lcom/example/App;") and plain class names are accepted; wildcard rules and
+// '#' comments are skipped.
+fn parse_startup_profile(text: &str) -> HashSet<String> {
+    let mut classes = HashSet::new();
+    for line in text.lines() {
+        let line = line.trim();
+        if line.is_empty() || line.starts_with('#') || line.contains('*') {
+            continue;
+        }
+        if !line.contains(|c: char| c == ';' || c == '(' || c.is_whitespace()) {
+            classes.insert(to_dex_descriptor(line));
+            continue;
+        }
+        let rule = line.trim_start_matches(|c: char| matches!(c, 'H' | 'S' | 'P'));
+        if rule.starts_with('L') {
+            if let Some(end) = rule.find(';') {
+                classes.insert(rule[..=end].to_string());
+            }
         }
     }
+    classes
+}
 
-    false
+// With a startup profile, a payload dex that defines none of the profiled
+// classes is landed after startup. classes.dex always stays in the startup
+// set, and so does any dex that cannot be indexed.
+fn is_deferred_dex(name: &str, dex_bytes: &[u8], startup_classes: &HashSet<String>) -> bool {
+    if startup_classes.is_empty() || name == "classes.dex" {
+        return false;
+    }
+    match dex::DexFile::parse(dex_bytes).and_then(|dex| dex.defined_classes()) {
+        Ok(classes) => !startup_classes.iter().any(|descriptor| classes.contains(descriptor)),
+        Err(e) => {
+            println!("Warning: cannot index classes of {} ({}), keeping it in the startup set", name, e);
+            false
+        }
+    }
 }
 
-fn should_keep_lib(name: &str, keep_libs: &[String]) -> bool {
+fn contains_bytes(haystack: &[u8], needle: &[u8]) -> bool {
+    haystack.windows(needle.len()).any(|window| window == needle)
+}
+
+// Whether a lib/<abi>/ entry is one of `libs`, given as libfoo.so, foo.so or foo.
+fn matches_lib(name: &str, libs: &[String]) -> bool {
     let filename = Path::new(name).file_name()
         .and_then(|n| n.to_str())
         .unwrap_or("");
     
-    for kept in keep_libs {
-        if filename == kept || filename == format!("lib{}.so", kept) || filename == format!("{}.so", kept) {
+    for lib in libs {
+        if filename == lib || filename == format!("lib{}.so", lib) || filename == format!("{}.so", lib) {
             return true;
         }
     }
@@ -224,130 +474,539 @@ fn should_encrypt_asset(name: &str, encrypt_asset_patterns: &[String]) -> bool {
     false
 }
 
-fn collect_and_encrypt_payload_entries(
-    target_apk: &Path,
+// Decompresses every entry of the target APK on the rayon pool. Each worker
+// keeps its own archive handle; the result is in central directory order.
+fn read_target_entries(target_apk: &Path) -> anyhow::Result<Vec<TargetEntry>> {
+    let count = ZipArchive::new(File::open(target_apk)?)?.len();
+
+    (0..count)
+        .into_par_iter()
+        .map_init(
+            || -> anyhow::Result<ZipArchive<File>> { Ok(ZipArchive::new(File::open(target_apk)?)?) },
+            |zip, i| -> anyhow::Result<TargetEntry> {
+                let zip = zip
+                    .as_mut()
+                    .map_err(|e| anyhow::anyhow!("Failed to open {}: {}", target_apk.display(), e))?;
+                let mut file = zip.by_index(i)?;
+                let mut data = Vec::with_capacity(file.size() as usize);
+                if !file.is_dir() {
+                    file.read_to_end(&mut data)?;
+                }
+                Ok(TargetEntry {
+                    name: file.name().to_string(),
+                    compression: file.compression(),
+                    is_dir: file.is_dir(),
+                    data,
+                })
+            },
+        )
+        .collect()
+}
+
+fn classify_payload_entry(
+    entry: &TargetEntry,
     keep_descriptors: &[String],
     keep_prefixes: &[String],
     keep_libs: &[String],
     encrypt_asset_patterns: &[String],
-) -> anyhow::Result<Vec<(String, Vec<u8>, [u8; 12])>> {
-    let target_file = File::open(target_apk)?;
-    let mut zip = ZipArchive::new(target_file)?;
+    startup_classes: &HashSet<String>,
+    options: SealOptions,
+) -> anyhow::Result<PayloadDecision> {
+    let name = entry.name.as_str();
+    if !is_payload_entry(name) {
+        return Ok(PayloadDecision::NotPayload);
+    }
 
-    let mut entries: Vec<(String, Vec<u8>, [u8; 12])> = Vec::new();
+    if name.ends_with(".dex") && should_keep_dex(name, &entry.data, keep_descriptors, keep_prefixes) {
+        return Ok(PayloadDecision::KeepPlaintext);
+    }
 
-    for i in 0..zip.len() {
-        let file = zip.by_index(i)?;
-        let name = file.name().to_string();
+    if name.ends_with(".so") && matches_lib(name, keep_libs) {
+        return Ok(PayloadDecision::KeepPlaintext);
+    }
 
-        if is_payload_entry(&name) {
-            drop(file);
-            let mut file = zip.by_index(i)?;
-            let mut buffer = Vec::new();
-            file.read_to_end(&mut buffer)?;
-
-            if name.ends_with(".dex")
-                && (should_keep_dex(&name, &buffer, keep_descriptors)
-                    || matches_keep_prefix(&buffer, keep_prefixes))
-            {
-                println!("Keeping {} in plaintext for startup compatibility", name);
-                continue;
-            }
+    if name.starts_with("assets/") && !should_encrypt_asset(name, encrypt_asset_patterns) {
+        // It's an asset but not marked for encryption
+        return Ok(PayloadDecision::NotPayload);
+    }
 
-            if name.ends_with(".so") && should_keep_lib(&name, keep_libs) {
-                println!("Keeping {} in plaintext for startup compatibility", name);
-                continue;
-            }
+    let deferred = name.ends_with(".dex") && is_deferred_dex(name, &entry.data, startup_classes);
+    Ok(PayloadDecision::Encrypt(seal_entry(name, &entry.data, deferred, options)?))
+}
 
-            if name.starts_with("assets/") {
-                if !should_encrypt_asset(&name, encrypt_asset_patterns) {
-                    // It's an asset but not marked for encryption
-                    continue;
+// Compresses `data` when that pays off and seals it under every cipher the
+// entry is meant for.
+fn seal_entry(name: &str, data: &[u8], deferred: bool, options: SealOptions) -> anyhow::Result<Vec<PayloadEntry>> {
+    let (codec, packed) = if options.compress {
+        compress_entry(data, entry_codec(name, deferred))?
+    } else {
+        (PAYLOAD_CODEC_NONE, None)
+    };
+    let plain = packed.as_deref().unwrap_or(data);
+    let content_name = name.ends_with(".dex").then(|| dex_content_name(data));
+    options
+        .cipher
+        .ciphers_for(name)
+        .iter()
+        .map(|&cipher| {
+            let (encrypted, nonce) = encrypt_payload(plain, cipher)?;
+            Ok(PayloadEntry {
+                name: name.to_string(),
+                data: encrypted,
+                nonce,
+                plain_len: plain.len() as u64,
+                raw_len: data.len() as u64,
+                codec,
+                deferred,
+                preload: false,
+                cipher,
+                content_name,
+            })
+        })
+        .collect()
+}
+
+// The loader names a landed dex after the leading bytes of the SHA-256 of its
+// content, so a dex that did not change across updates keeps its file and
+// the code ART compiled for it.
+fn dex_content_name(data: &[u8]) -> [u8; PAYLOAD_CONTENT_NAME_LEN] {
+    let mut name = [0u8; PAYLOAD_CONTENT_NAME_LEN];
+    name.copy_from_slice(&Sha256::digest(data)[..PAYLOAD_CONTENT_NAME_LEN]);
+    name
+}
+
+fn landed_dex_name(data: &[u8]) -> String {
+    format!("{}.dex", hex::encode(dex_content_name(data)))
+}
+
+// Payload entry the loader installs as ART profile for the landed dex on the
+// releases that read `version`.
+fn dex_profile_entry_name(version: &[u8; 4]) -> String {
+    format!("dexopt/{}.prof", String::from_utf8_lossy(&version[..3]))
+}
+
+// The app's baseline profile rewritten for the landed payload dex, sealed
+// once per ART profile version. Empty when the APK ships no profile or none
+// of its lines belongs to a payload dex. A profile the packer cannot read
+// only costs the profile, not the pack.
+fn seal_dex_profiles(
+    target_entries: &[TargetEntry],
+    payload_entries: &[PayloadEntry],
+    options: SealOptions,
+) -> anyhow::Result<Vec<PayloadEntry>> {
+    let baseline = match target_entries.iter().find(|entry| entry.name == profile::BASELINE_PROFILE_ENTRY) {
+        Some(entry) => entry,
+        None => return Ok(Vec::new()),
+    };
+    let profiles = match profile::parse(&baseline.data) {
+        Ok(profiles) => profiles,
+        Err(e) => {
+            println!("Not carrying {}: {}", baseline.name, e);
+            return Ok(Vec::new());
+        }
+    };
+
+    // Payload dex land under the name the loader derives from their content.
+    let landed = |name: &str| -> Option<profile::LandedDex> {
+        if !payload_entries.iter().any(|entry| entry.name == name) {
+            return None;
+        }
+        let target = target_entries.iter().find(|entry| entry.name == name)?;
+        let dex = dex::DexFile::parse(&target.data).ok()?;
+        Some(profile::LandedDex {
+            name: landed_dex_name(&target.data),
+            checksum: dex.checksum(),
+            num_type_ids: dex.type_ids_size(),
+            num_method_ids: dex.method_ids_size(),
+        })
+    };
+    let (profiles, dropped) = profile::retarget(profiles, landed);
+    for key in dropped {
+        println!("Baseline profile line {} matches no payload dex, dropping it", key);
+    }
+    if profiles.is_empty() {
+        return Ok(Vec::new());
+    }
+
+    let mut sealed = Vec::new();
+    for (version, data) in [
+        (profile::VERSION_P, profile::write_p(&profiles)?),
+        (profile::VERSION_S, profile::write_s(&profiles)?),
+    ] {
+        sealed.extend(seal_entry(&dex_profile_entry_name(version), &data, false, options)?);
+    }
+    Ok(sealed)
+}
+
+// Entries are classified and encrypted on the rayon pool; collecting keeps
+// them in target order, so the payload layout does not depend on scheduling.
+fn collect_and_encrypt_payload_entries(
+    target_entries: &[TargetEntry],
+    keep_descriptors: &[String],
+    keep_prefixes: &[String],
+    keep_libs: &[String],
+    encrypt_asset_patterns: &[String],
+    startup_classes: &HashSet<String>,
+    options: SealOptions,
+) -> anyhow::Result<Vec<PayloadEntry>> {
+    let decisions = target_entries
+        .par_iter()
+        .map(|entry| {
+            classify_payload_entry(
+                entry,
+                keep_descriptors,
+                keep_prefixes,
+                keep_libs,
+                encrypt_asset_patterns,
+                startup_classes,
+                options,
+            )
+        })
+        .collect::<anyhow::Result<Vec<_>>>()?;
+
+    let mut entries: Vec<PayloadEntry> = Vec::new();
+    for (target, decision) in target_entries.iter().zip(decisions) {
+        match decision {
+            PayloadDecision::NotPayload => {}
+            PayloadDecision::KeepPlaintext => {
+                println!("Keeping {} in plaintext for startup compatibility", target.name);
+            }
+            PayloadDecision::Encrypt(sealed) => {
+                for entry in sealed {
+                    println!("Encrypting {} ({})...", entry.name, seal_notes(&entry));
+                    entries.push(entry);
                 }
             }
-
-            println!("Encrypting {}...", name);
-            let (encrypted, nonce) = encrypt_payload(&buffer)?;
-            entries.push((name, encrypted, nonce));
         }
     }
+    // The profile names the payload dex by their landed name, so it is built
+    // once they are known.
+    for entry in seal_dex_profiles(target_entries, &entries, options)? {
+        println!("Encrypting {} ({})...", entry.name, seal_notes(&entry));
+        entries.push(entry);
+    }
 
     println!("Encrypted {} entries total", entries.len());
     Ok(entries)
 }
 
-fn build_payload_blob(entries: &[(String, Vec<u8>, [u8; 12])]) -> Vec<u8> {
-    let mut payload_blob = Vec::new();
+// Flags the payload libraries named by --preload-lib, for every ABI. A name
+// that matches none is reported, since the app then loads it on its own.
+fn mark_preload_libs(entries: &mut [PayloadEntry], preload_libs: &[String]) {
+    for entry in entries.iter_mut() {
+        if entry_abi(&entry.name).is_some() && entry.name.ends_with(".so") && matches_lib(&entry.name, preload_libs) {
+            entry.preload = true;
+        }
+    }
+    for lib in preload_libs {
+        let matched = entries
+            .iter()
+            .any(|entry| entry.preload && matches_lib(&entry.name, std::slice::from_ref(lib)));
+        if matched {
+            println!("Preloading {} in the background at startup", lib);
+        } else {
+            println!("Warning: --preload-lib {} matches no payload library", lib);
+        }
+    }
+}
 
-    for (_, enc_data, _) in entries {
-        payload_blob.extend_from_slice(enc_data);
+fn seal_notes(entry: &PayloadEntry) -> String {
+    let mut notes = vec![cipher_label(entry.cipher)];
+    if entry.codec != PAYLOAD_CODEC_NONE {
+        notes.push(codec_label(entry.codec));
+    }
+    if entry.deferred {
+        notes.push("deferred");
     }
+    notes.join(", ")
+}
 
-    let mut metadata = Vec::new();
-    metadata.extend_from_slice(&(entries.len() as u32).to_le_bytes());
+// ABI of a native library entry, None for ABI-independent entries.
+fn entry_abi(name: &str) -> Option<&str> {
+    let (abi, file) = name.strip_prefix("lib/")?.split_once('/')?;
+    (!abi.is_empty() && !file.is_empty()).then_some(abi)
+}
 
-    for (name, enc_data, nonce) in entries {
-        let name_bytes = name.as_bytes();
-        metadata.extend_from_slice(&(name_bytes.len() as u16).to_le_bytes());
-        metadata.extend_from_slice(name_bytes);
-        metadata.extend_from_slice(&(enc_data.len() as u32).to_le_bytes());
-        metadata.extend_from_slice(nonce);
+fn build_payload_blob(entries: &[PayloadEntry]) -> Vec<u8> {
+    // ABI-independent entries first, then one segment per ABI in order of
+    // first appearance, so a device can skip the other ABIs' libraries.
+    let mut abis: Vec<&str> = Vec::new();
+    for abi in entries.iter().filter_map(|entry| entry_abi(&entry.name)) {
+        if !abis.contains(&abi) {
+            abis.push(abi);
+        }
+    }
+    let segments: Vec<(&str, Vec<&PayloadEntry>)> = std::iter::once("")
+        .chain(abis.iter().copied())
+        .map(|abi| {
+            let members = entries
+                .iter()
+                .filter(|entry| entry_abi(&entry.name).unwrap_or("") == abi)
+                .collect();
+            (abi, members)
+        })
+        .collect();
+    let entries: Vec<&PayloadEntry> = segments.iter().flat_map(|(_, members)| members.iter().copied()).collect();
+
+    // Entry flags, raw sizes and segments are only written when some entry
+    // needs them, so uncompressed AES-only payloads without a startup profile
+    // or native libraries keep the plain v2 index.
+    let with_codecs = entries.iter().any(|entry| entry.codec != PAYLOAD_CODEC_NONE);
+    let with_entry_flags = with_codecs
+        || entries
+            .iter()
+            .any(|entry| entry.deferred || entry.preload || entry.cipher != PAYLOAD_CIPHER_AES_256_GCM);
+    let with_segments = !abis.is_empty();
+    let with_content_names = entries.iter().any(|entry| entry.content_name.is_some());
+    let digests: Vec<[u8; PAYLOAD_DIGEST_LEN]> = entries
+        .par_iter()
+        .map(|entry| Sha256::digest(&entry.data).into())
+        .collect();
+    let mut index = Vec::new();
+    for (entry, digest) in entries.iter().zip(&digests) {
+        let name_bytes = entry.name.as_bytes();
+        index.extend_from_slice(&(name_bytes.len() as u16).to_le_bytes());
+        index.extend_from_slice(name_bytes);
+        if with_entry_flags {
+            let mut flags =
+                (u16::from(entry.cipher) << ENTRY_CIPHER_SHIFT) | (u16::from(entry.codec) << ENTRY_CODEC_SHIFT);
+            if entry.deferred {
+                flags |= ENTRY_FLAG_DEFERRED;
+            }
+            if entry.preload {
+                flags |= ENTRY_FLAG_PRELOAD;
+            }
+            index.extend_from_slice(&flags.to_le_bytes());
+        }
+        index.extend_from_slice(&entry.plain_len.to_le_bytes());
+        index.extend_from_slice(&(entry.data.len() as u64).to_le_bytes());
+        if with_codecs {
+            index.extend_from_slice(&entry.raw_len.to_le_bytes());
+        }
+        index.extend_from_slice(&entry.nonce);
+        index.extend_from_slice(digest);
+        if with_content_names {
+            index.extend_from_slice(&entry.content_name.unwrap_or_default());
+        }
     }
 
-    payload_blob.extend_from_slice(&metadata);
-    payload_blob.extend_from_slice(&(metadata.len() as u32).to_le_bytes());
-    payload_blob.extend_from_slice(b"SHELL");
+    // Every ABI segment starts on a fresh page of the (page-aligned) payload,
+    // so no page the loader reads holds another ABI's bytes.
+    let mut segment_offsets = Vec::with_capacity(segments.len());
+    if with_segments {
+        let table_len: usize = 2 + segments.iter().map(|(abi, _)| 2 + abi.len() + 4 + 8 + 8).sum::<usize>();
+        let mut offset = 20 + index.len() + table_len;
+        index.extend_from_slice(&(segments.len() as u16).to_le_bytes());
+        for (i, (abi, members)) in segments.iter().enumerate() {
+            if i > 0 {
+                offset = offset.next_multiple_of(PAYLOAD_ALIGNMENT as usize);
+            }
+            let len: usize = members.iter().map(|entry| entry.data.len()).sum();
+            index.extend_from_slice(&(abi.len() as u16).to_le_bytes());
+            index.extend_from_slice(abi.as_bytes());
+            index.extend_from_slice(&(members.len() as u32).to_le_bytes());
+            index.extend_from_slice(&(offset as u64).to_le_bytes());
+            index.extend_from_slice(&(len as u64).to_le_bytes());
+            segment_offsets.push(offset);
+            offset += len;
+        }
+    }
+
+    let data_len: usize = entries.iter().map(|entry| entry.data.len()).sum();
+    let mut payload_blob = Vec::with_capacity(20 + index.len() + data_len);
+    payload_blob.extend_from_slice(PAYLOAD_MAGIC);
+    payload_blob.extend_from_slice(&PAYLOAD_FORMAT_VERSION.to_le_bytes());
+    let mut header_flags = PAYLOAD_FLAG_ENTRY_DIGESTS;
+    if with_entry_flags {
+        header_flags |= PAYLOAD_FLAG_ENTRY_FLAGS;
+    }
+    if with_codecs {
+        header_flags |= PAYLOAD_FLAG_ENTRY_CODECS;
+    }
+    if with_segments {
+        header_flags |= PAYLOAD_FLAG_SEGMENTS;
+    }
+    if with_content_names {
+        header_flags |= PAYLOAD_FLAG_CONTENT_NAMES;
+    }
+    payload_blob.extend_from_slice(&header_flags.to_le_bytes());
+    payload_blob.extend_from_slice(&(PAYLOAD_CHUNK_SIZE as u32).to_le_bytes());
+    payload_blob.extend_from_slice(&(entries.len() as u32).to_le_bytes());
+    payload_blob.extend_from_slice(&(index.len() as u32).to_le_bytes());
+    payload_blob.extend_from_slice(&index);
+
+    for (i, (_, members)) in segments.iter().enumerate() {
+        if let Some(&offset) = segment_offsets.get(i) {
+            payload_blob.resize(offset, 0);
+        }
+        for entry in members {
+            payload_blob.extend_from_slice(&entry.data);
+        }
+    }
 
     payload_blob
 }
 
-fn get_encrypted_names_from_blob(blob: &[u8]) -> HashSet<String> {
-    let mut names = HashSet::new();
-    if blob.len() < 9 || !blob.ends_with(b"SHELL") {
-        return names;
+// The hash the loader checks a payload with entry digests against, or None
+// for payloads that are checked by their whole-blob hash.
+fn payload_commitment(blob: &[u8]) -> Option<[u8; 32]> {
+    if blob.len() < 20 || !blob.starts_with(PAYLOAD_MAGIC) {
+        return None;
+    }
+    let header_flags = u16::from_le_bytes(blob[6..8].try_into().ok()?);
+    if header_flags & PAYLOAD_FLAG_ENTRY_DIGESTS == 0 {
+        return None;
+    }
+    let index_len = u32::from_le_bytes(blob[16..20].try_into().ok()?) as usize;
+    let header_end = 20usize.checked_add(index_len).filter(|&end| end <= blob.len())?;
+    Some(Sha256::digest(&blob[4..header_end]).into())
+}
+
+// One entry of a v2 payload, located the way the loader's PayloadIndex does.
+#[derive(Debug, PartialEq, Eq)]
+struct PayloadIndexEntry {
+    name: String,
+    // The entry's stored bytes, relative to the magic.
+    range: Range<usize>,
+}
+
+// Little-endian fields of a payload index, read front to back.
+struct IndexFields<'a> {
+    index: &'a [u8],
+    pos: usize,
+}
+
+impl<'a> IndexFields<'a> {
+    fn bytes(&mut self, len: usize) -> anyhow::Result<&'a [u8]> {
+        let end = self
+            .pos
+            .checked_add(len)
+            .filter(|&end| end <= self.index.len())
+            .ok_or_else(|| anyhow::anyhow!("Payload index truncated"))?;
+        let bytes = &self.index[self.pos..end];
+        self.pos = end;
+        Ok(bytes)
     }
 
-    let metadata_len = u32::from_le_bytes(blob[blob.len()-9..blob.len()-5].try_into().unwrap()) as usize;
-    if blob.len() < 9 + metadata_len {
-        return names;
+    fn u16(&mut self) -> anyhow::Result<u16> {
+        Ok(u16::from_le_bytes(self.bytes(2)?.try_into()?))
     }
 
-    let metadata = &blob[blob.len()-9-metadata_len..blob.len()-9];
-    let mut pos = 0;
-    
-    if metadata.len() < 4 { return names; }
-    let count = u32::from_le_bytes(metadata[0..4].try_into().unwrap()) as usize;
-    pos += 4;
+    fn u32(&mut self) -> anyhow::Result<u32> {
+        Ok(u32::from_le_bytes(self.bytes(4)?.try_into()?))
+    }
+
+    fn u64(&mut self) -> anyhow::Result<u64> {
+        Ok(u64::from_le_bytes(self.bytes(8)?.try_into()?))
+    }
+}
 
+// Parses the header, index and segment table of a v2 payload with the same
+// rules as the loader: entry sizes match their chunk layout, and segments
+// cover every entry in order, after the index and inside the blob.
+fn read_payload_index(blob: &[u8]) -> anyhow::Result<Vec<PayloadIndexEntry>> {
+    anyhow::ensure!(blob.len() >= 20 && blob.starts_with(PAYLOAD_MAGIC), "Not a v2 payload");
+    let version = u16::from_le_bytes(blob[4..6].try_into()?);
+    anyhow::ensure!(version == PAYLOAD_FORMAT_VERSION, "Unsupported payload format version {}", version);
+    let header_flags = u16::from_le_bytes(blob[6..8].try_into()?);
+    let chunk_size = u64::from(u32::from_le_bytes(blob[8..12].try_into()?));
+    anyhow::ensure!(chunk_size > 0, "Invalid payload chunk size");
+    let count = u32::from_le_bytes(blob[12..16].try_into()?);
+    let data_start = 20 + u32::from_le_bytes(blob[16..20].try_into()?) as usize;
+    let index = blob
+        .get(20..data_start)
+        .ok_or_else(|| anyhow::anyhow!("Payload index truncated"))?;
+    let mut fields = IndexFields { index, pos: 0 };
+
+    let mut entries: Vec<(String, u64)> = Vec::new();
     for _ in 0..count {
-        if pos + 2 > metadata.len() { break; }
-        let name_len = u16::from_le_bytes(metadata[pos..pos+2].try_into().unwrap()) as usize;
-        pos += 2;
-        if pos + name_len > metadata.len() { break; }
-        let name = String::from_utf8_lossy(&metadata[pos..pos+name_len]).to_string();
-        names.insert(name);
-        pos += name_len;
-        
-        if pos + 4 + 12 > metadata.len() { break; }
-        pos += 4 + 12; // skip data_len and nonce
+        let name_len = fields.u16()? as usize;
+        let name = String::from_utf8(fields.bytes(name_len)?.to_vec())?;
+        if header_flags & PAYLOAD_FLAG_ENTRY_FLAGS != 0 {
+            fields.u16()?;
+        }
+        let plain_len = fields.u64()?;
+        let stored_len = fields.u64()?;
+        if header_flags & PAYLOAD_FLAG_ENTRY_CODECS != 0 {
+            fields.u64()?;
+        }
+        fields.bytes(12)?;
+        if header_flags & PAYLOAD_FLAG_ENTRY_DIGESTS != 0 {
+            fields.bytes(PAYLOAD_DIGEST_LEN)?;
+        }
+        if header_flags & PAYLOAD_FLAG_CONTENT_NAMES != 0 {
+            fields.bytes(PAYLOAD_CONTENT_NAME_LEN)?;
+        }
+        let expected_stored = plain_len
+            .div_ceil(chunk_size)
+            .checked_mul(PAYLOAD_TAG_LEN as u64)
+            .and_then(|tags| tags.checked_add(plain_len));
+        anyhow::ensure!(
+            expected_stored == Some(stored_len),
+            "Payload entry {} does not match its chunk layout",
+            name
+        );
+        entries.push((name, stored_len));
     }
 
-    names
+    // (entry count, data offset, data length) per segment.
+    let mut segments: Vec<(usize, u64, u64)> = Vec::new();
+    if header_flags & PAYLOAD_FLAG_SEGMENTS != 0 {
+        for _ in 0..fields.u16()? {
+            let abi_len = fields.u16()? as usize;
+            fields.bytes(abi_len)?;
+            segments.push((fields.u32()? as usize, fields.u64()?, fields.u64()?));
+        }
+    } else {
+        let len = entries
+            .iter()
+            .try_fold(0u64, |len, (_, stored_len)| len.checked_add(*stored_len))
+            .ok_or_else(|| anyhow::anyhow!("Payload too large"))?;
+        segments.push((entries.len(), data_start as u64, len));
+    }
+    anyhow::ensure!(fields.pos == index.len(), "Trailing bytes in payload index");
+
+    let mut located = Vec::with_capacity(entries.len());
+    let mut remaining = entries.into_iter();
+    let mut data_end = data_start;
+    for (members, offset, len) in segments {
+        let start = usize::try_from(offset)?;
+        anyhow::ensure!(start >= data_end, "Payload segments out of order");
+        let mut pos = start;
+        for _ in 0..members {
+            let (name, stored_len) = remaining
+                .next()
+                .ok_or_else(|| anyhow::anyhow!("Payload segment past the last entry"))?;
+            let end = usize::try_from(stored_len)
+                .ok()
+                .and_then(|stored_len| pos.checked_add(stored_len))
+                .filter(|&end| end <= blob.len())
+                .ok_or_else(|| anyhow::anyhow!("Payload entry {} truncated", name))?;
+            located.push(PayloadIndexEntry { name, range: pos..end });
+            pos = end;
+        }
+        anyhow::ensure!((pos - start) as u64 == len, "Payload segment does not match its entries");
+        data_end = pos;
+    }
+    anyhow::ensure!(remaining.next().is_none(), "Payload segments do not cover every entry");
+    Ok(located)
+}
+
+fn get_encrypted_names_from_blob(blob: &[u8]) -> anyhow::Result<HashSet<String>> {
+    Ok(read_payload_index(blob)?.into_iter().map(|entry| entry.name).collect())
 }
 
 fn repack_target_with_bootstrap(
-    target_apk: &Path,
+    target_entries: &[TargetEntry],
     bootstrap_apk: &Path,
     bootstrap_lib_dir: &Path,
     patched_manifest: Option<&Path>,
     resources_arsc: Option<&Path>,
+    keep_dex: Option<&[u8]>,
     encrypted_entry_names: &HashSet<String>,
     output_apk: &Path,
     payload_blob: &[u8],
 ) -> anyhow::Result<()> {
-    let target_file = File::open(target_apk)?;
-    let mut target_zip = ZipArchive::new(target_file)?;
-
     let output_file = File::create(output_apk)?;
     let mut writer = ZipWriter::new(output_file);
 
@@ -367,19 +1026,18 @@ fn repack_target_with_bootstrap(
         None
     };
 
-    let mut retained_dex_entries: Vec<(usize, Vec<u8>)> = Vec::new();
+    let mut retained_dex_entries: Vec<(usize, &[u8])> = Vec::new();
 
-    for i in 0..target_zip.len() {
-        let mut file = target_zip.by_index(i)?;
-        let name = file.name().to_string();
+    for entry in target_entries {
+        let name = entry.name.as_str();
 
-        if name == "assets/kapp_payload.bin" || encrypted_entry_names.contains(&name) {
+        if name == "assets/kapp_payload.bin" || encrypted_entry_names.contains(name) {
             continue;
         }
 
         if name == "AndroidManifest.xml" {
             if let Some(bytes) = &patched_manifest_bytes {
-                let options = FileOptions::default().compression_method(file.compression());
+                let options = FileOptions::default().compression_method(entry.compression);
                 writer.start_file(name, options)?;
                 writer.write_all(bytes)?;
                 continue;
@@ -388,25 +1046,23 @@ fn repack_target_with_bootstrap(
 
         if name == "resources.arsc" {
             if let Some(bytes) = &resources_arsc_bytes {
-                let options = FileOptions::default().compression_method(file.compression());
+                let options = FileOptions::default().compression_method(entry.compression);
                 writer.start_file(name, options)?;
                 writer.write_all(bytes)?;
                 continue;
             }
         }
 
-        let options = FileOptions::default().compression_method(file.compression());
-        if file.is_dir() {
+        let options = FileOptions::default().compression_method(entry.compression);
+        if entry.is_dir {
             writer.add_directory(name, options)?;
         } else {
-            if let Some(index) = class_index(&name) {
-                let mut dex_bytes = Vec::new();
-                file.read_to_end(&mut dex_bytes)?;
-                retained_dex_entries.push((index, dex_bytes));
+            if let Some(index) = class_index(name) {
+                retained_dex_entries.push((index, entry.data.as_slice()));
                 continue;
             }
             writer.start_file(name, options)?;
-            std::io::copy(&mut file, &mut writer)?;
+            writer.write_all(&entry.data)?;
         }
     }
 
@@ -423,18 +1079,29 @@ fn repack_target_with_bootstrap(
         writer.write_all(&dex_bytes)?;
     }
 
-    // 2. Write Retained DEXs starting from the next index
+    // 2. Class-level keep dex, if any, ahead of the retained DEXs
+    let mut next_index = num_bootstrap_dexes + 1;
+    if let Some(dex_bytes) = keep_dex {
+        writer.start_file(dex_name_for_index(next_index), dex_options)?;
+        writer.write_all(dex_bytes)?;
+        next_index += 1;
+    }
+
+    // 3. Write Retained DEXs starting from the next index
     for (i, (_, dex_bytes)) in retained_dex_entries.iter().enumerate() {
-        let dex_name = dex_name_for_index(num_bootstrap_dexes + i + 1);
+        let dex_name = dex_name_for_index(next_index + i);
         writer.start_file(dex_name, dex_options)?;
         writer.write_all(dex_bytes)?;
     }
 
     inject_bootstrap_libs(bootstrap_lib_dir, &mut writer)?;
 
-    writer.start_file(
+    // Stored and page-aligned so the loader can mmap the payload straight out
+    // of the installed APK.
+    writer.start_file_aligned(
         "assets/kapp_payload.bin",
         FileOptions::default().compression_method(CompressionMethod::Stored),
+        PAYLOAD_ALIGNMENT,
     )?;
     writer.write_all(payload_blob)?;
 
@@ -507,24 +1174,98 @@ fn inject_bootstrap_libs(bootstrap_lib_dir: &Path, writer: &mut ZipWriter<File>)
     Ok(())
 }
 
-fn encrypt_payload(data: &[u8]) -> anyhow::Result<(Vec<u8>, [u8; 12])> {
+fn chunk_nonce(base: &[u8; 12], index: u32) -> [u8; 12] {
+    let mut nonce = *base;
+    for (byte, counter) in nonce[8..].iter_mut().zip(index.to_be_bytes()) {
+        *byte ^= counter;
+    }
+    nonce
+}
+
+// LZ4 for what the loader lands at startup, where decode speed counts; zstd
+// for deferred dex and assets, which are landed after startup.
+fn entry_codec(name: &str, deferred: bool) -> u8 {
+    if deferred || name.starts_with("assets/") {
+        PAYLOAD_CODEC_ZSTD
+    } else {
+        PAYLOAD_CODEC_LZ4
+    }
+}
+
+// The compressed entry, or None with PAYLOAD_CODEC_NONE when compression
+// saves less than 1/16 of it (already compressed assets and the like).
+fn compress_entry(data: &[u8], codec: u8) -> anyhow::Result<(u8, Option<Vec<u8>>)> {
+    let packed = match codec {
+        PAYLOAD_CODEC_ZSTD => zstd::bulk::compress(data, ZSTD_LEVEL)?,
+        _ => {
+            let mut encoder = lz4_flex::frame::FrameEncoder::new(Vec::with_capacity(data.len() / 2));
+            encoder.write_all(data)?;
+            encoder.finish()?
+        }
+    };
+    if packed.len() + data.len() / 16 < data.len() {
+        Ok((codec, Some(packed)))
+    } else {
+        Ok((PAYLOAD_CODEC_NONE, None))
+    }
+}
+
+fn codec_label(codec: u8) -> &'static str {
+    match codec {
+        PAYLOAD_CODEC_LZ4 => "lz4",
+        PAYLOAD_CODEC_ZSTD => "zstd",
+        _ => "stored",
+    }
+}
+
+fn cipher_label(cipher: u8) -> &'static str {
+    match cipher {
+        PAYLOAD_CIPHER_CHACHA20_POLY1305 => "chacha20-poly1305",
+        _ => "aes-256-gcm",
+    }
+}
+
+// Must match the loader's cipher::chacha_key.
+fn chacha_key(key: &[u8; 32]) -> [u8; 32] {
+    let mut hasher = Sha256::new();
+    hasher.update(b"kapp:chacha20-poly1305");
+    hasher.update(key);
+    hasher.finalize().into()
+}
+
+// Seals the data in PAYLOAD_CHUNK_SIZE pieces so the loader can decrypt it
+// while streaming. Chunk i uses the entry nonce with its counter bytes XORed
+// with i.
+fn encrypt_payload(data: &[u8], cipher: u8) -> anyhow::Result<(Vec<u8>, [u8; 12])> {
     let key = get_aes_key();
-    let cipher = Aes256Gcm::new(&key.into());
+    match cipher {
+        PAYLOAD_CIPHER_CHACHA20_POLY1305 => seal_chunks(&ChaCha20Poly1305::new(&chacha_key(&key).into()), data),
+        _ => seal_chunks(&Aes256Gcm::new(&key.into()), data),
+    }
+}
 
+fn seal_chunks<C: Aead>(cipher: &C, data: &[u8]) -> anyhow::Result<(Vec<u8>, [u8; 12])> {
     let mut nonce_bytes = [0u8; 12];
     rand::thread_rng().fill(&mut nonce_bytes);
-    let nonce = Nonce::from_slice(&nonce_bytes);
 
-    let ciphertext = cipher
-        .encrypt(nonce, data)
-        .map_err(|e| anyhow::anyhow!("Encryption failure: {:?}", e))?;
+    let chunks = data.len().div_ceil(PAYLOAD_CHUNK_SIZE);
+    anyhow::ensure!(chunks <= u32::MAX as usize, "Payload entry too large");
+    let mut sealed = Vec::with_capacity(data.len() + chunks * PAYLOAD_TAG_LEN);
+    for (i, chunk) in data.chunks(PAYLOAD_CHUNK_SIZE).enumerate() {
+        let nonce = chunk_nonce(&nonce_bytes, i as u32);
+        let ciphertext = cipher
+            .encrypt(GenericArray::from_slice(&nonce), chunk)
+            .map_err(|e| anyhow::anyhow!("Encryption failure: {:?}", e))?;
+        sealed.extend_from_slice(&ciphertext);
+    }
 
-    Ok((ciphertext, nonce_bytes))
+    Ok((sealed, nonce_bytes))
 }
 
 #[cfg(test)]
 mod tests {
     use super::*;
+    use aes_gcm::Nonce;
     use std::time::{SystemTime, UNIX_EPOCH};
 
     struct TestDir {
@@ -589,15 +1330,18 @@ mod tests {
         let empty: Vec<String> = Vec::new();
         let encrypt_assets = vec!["assets/*".to_string()];
 
+        let target_entries = read_target_entries(&target_apk)?;
         let entries = collect_and_encrypt_payload_entries(
-            &target_apk,
+            &target_entries,
             &empty,
             &empty,
             &empty,
             &encrypt_assets,
+            &HashSet::new(),
+            SealOptions::default(),
         )?;
         let payload_blob = build_payload_blob(&entries);
-        let encrypted_entry_names = get_encrypted_names_from_blob(&payload_blob);
+        let encrypted_entry_names = get_encrypted_names_from_blob(&payload_blob)?;
 
         assert!(encrypted_entry_names.contains("classes.dex"));
         assert!(encrypted_entry_names.contains("classes2.dex"));
@@ -605,11 +1349,12 @@ mod tests {
         assert!(encrypted_entry_names.contains("assets/secret.txt"));
 
         repack_target_with_bootstrap(
-            &target_apk,
+            &target_entries,
             &bootstrap_apk,
             &bootstrap_lib_dir,
             None,
             None,
+            None,
             &encrypted_entry_names,
             &output_apk,
             &payload_blob,
@@ -617,8 +1362,12 @@ mod tests {
 
         let mut out = ZipArchive::new(File::open(&output_apk)?)?;
 
-        // Encrypted payload blob must exist.
-        assert!(out.by_name("assets/kapp_payload.bin").is_ok());
+        // Encrypted payload blob must exist, stored and page-aligned.
+        {
+            let payload_entry = out.by_name("assets/kapp_payload.bin")?;
+            assert_eq!(payload_entry.compression(), CompressionMethod::Stored);
+            assert_eq!(payload_entry.data_start() % u64::from(PAYLOAD_ALIGNMENT), 0);
+        }
 
         // DEX is replaced by bootstrap DEX, not original target DEX bytes.
         let mut dex = Vec::new();
@@ -642,4 +1391,754 @@ mod tests {
 
         Ok(())
     }
+
+    #[test]
+    fn payload_blob_v2_seals_entries_in_chunks_behind_a_leading_index() -> anyhow::Result<()> {
+        let big: Vec<u8> = (0..PAYLOAD_CHUNK_SIZE * 2 + 10).map(|i| (i % 251) as u8).collect();
+        let mut entries = Vec::new();
+        for (name, data) in [("classes.dex", big.clone()), ("assets/empty.bin", Vec::new())] {
+            let (sealed, nonce) = encrypt_payload(&data, PAYLOAD_CIPHER_AES_256_GCM)?;
+            entries.push(PayloadEntry {
+                name: name.to_string(),
+                data: sealed,
+                nonce,
+                plain_len: data.len() as u64,
+                raw_len: data.len() as u64,
+                codec: PAYLOAD_CODEC_NONE,
+                deferred: false,
+                preload: false,
+                cipher: PAYLOAD_CIPHER_AES_256_GCM,
+                content_name: None,
+            });
+        }
+
+        let blob = build_payload_blob(&entries);
+        assert_eq!(&blob[0..4], PAYLOAD_MAGIC);
+        assert_eq!(u16::from_le_bytes(blob[4..6].try_into()?), PAYLOAD_FORMAT_VERSION);
+        assert_eq!(u16::from_le_bytes(blob[6..8].try_into()?), PAYLOAD_FLAG_ENTRY_DIGESTS);
+        assert_eq!(u32::from_le_bytes(blob[8..12].try_into()?) as usize, PAYLOAD_CHUNK_SIZE);
+        assert_eq!(u32::from_le_bytes(blob[12..16].try_into()?), 2);
+
+        let names = get_encrypted_names_from_blob(&blob)?;
+        assert!(names.contains("classes.dex"));
+        assert!(names.contains("assets/empty.bin"));
+
+        // Three chunks for the dex, none for the empty asset.
+        assert_eq!(entries[0].data.len(), big.len() + 3 * PAYLOAD_TAG_LEN);
+        assert!(entries[1].data.is_empty());
+
+        let index_len = u32::from_le_bytes(blob[16..20].try_into()?) as usize;
+        let data_start = 20 + index_len;
+
+        // The index ends with each entry's digest; the commitment covers the
+        // header and index after the magic.
+        let dex_digest_end = 20 + 2 + "classes.dex".len() + 8 + 8 + 12 + PAYLOAD_DIGEST_LEN;
+        assert_eq!(
+            &blob[dex_digest_end - PAYLOAD_DIGEST_LEN..dex_digest_end],
+            Sha256::digest(&entries[0].data).as_slice()
+        );
+        let commitment: [u8; 32] = Sha256::digest(&blob[4..data_start]).into();
+        assert_eq!(payload_commitment(&blob), Some(commitment));
+
+        let cipher = Aes256Gcm::new(&get_aes_key().into());
+        let mut plain = Vec::new();
+        let mut pos = data_start;
+        for (i, chunk) in big.chunks(PAYLOAD_CHUNK_SIZE).enumerate() {
+            let sealed_len = chunk.len() + PAYLOAD_TAG_LEN;
+            let nonce = chunk_nonce(&entries[0].nonce, i as u32);
+            let opened = cipher
+                .decrypt(Nonce::from_slice(&nonce), &blob[pos..pos + sealed_len])
+                .map_err(|e| anyhow::anyhow!("Decryption failure: {:?}", e))?;
+            plain.extend_from_slice(&opened);
+            pos += sealed_len;
+        }
+        assert_eq!(plain, big);
+        assert_eq!(pos, blob.len());
+
+        Ok(())
+    }
+
+    #[test]
+    fn payload_blob_groups_native_libs_into_page_aligned_abi_segments() -> anyhow::Result<()> {
+        // `len` stored bytes: one chunk and its tag.
+        let entry = |name: &str, len: usize| PayloadEntry {
+            name: name.to_string(),
+            data: vec![name.len() as u8; len],
+            nonce: [0u8; 12],
+            plain_len: (len - PAYLOAD_TAG_LEN) as u64,
+            raw_len: (len - PAYLOAD_TAG_LEN) as u64,
+            codec: PAYLOAD_CODEC_NONE,
+            deferred: false,
+            preload: false,
+            cipher: PAYLOAD_CIPHER_AES_256_GCM,
+            content_name: None,
+        };
+        // Target order interleaves the ABIs.
+        let entries = vec![
+            entry("lib/arm64-v8a/liba.so", 100),
+            entry("classes.dex", 50),
+            entry("lib/x86_64/liba.so", 70),
+            entry("lib/arm64-v8a/libb.so", 30),
+            entry("assets/a.bin", 20),
+        ];
+        let blob = build_payload_blob(&entries);
+        assert_eq!(
+            u16::from_le_bytes(blob[6..8].try_into()?),
+            PAYLOAD_FLAG_ENTRY_DIGESTS | PAYLOAD_FLAG_SEGMENTS
+        );
+
+        let index_len = u32::from_le_bytes(blob[16..20].try_into()?) as usize;
+        let index = &blob[20..20 + index_len];
+        let mut pos = 0;
+        let mut names = Vec::new();
+        for _ in 0..entries.len() {
+            let name_len = u16::from_le_bytes(index[pos..pos + 2].try_into()?) as usize;
+            names.push(std::str::from_utf8(&index[pos + 2..pos + 2 + name_len])?.to_string());
+            pos += 2 + name_len + 8 + 8 + 12 + PAYLOAD_DIGEST_LEN;
+        }
+        assert_eq!(
+            names,
+            ["classes.dex", "assets/a.bin", "lib/arm64-v8a/liba.so", "lib/arm64-v8a/libb.so", "lib/x86_64/liba.so"]
+        );
+
+        let mut segments = Vec::new();
+        let count = u16::from_le_bytes(index[pos..pos + 2].try_into()?);
+        pos += 2;
+        for _ in 0..count {
+            let abi_len = u16::from_le_bytes(index[pos..pos + 2].try_into()?) as usize;
+            let abi = std::str::from_utf8(&index[pos + 2..pos + 2 + abi_len])?.to_string();
+            pos += 2 + abi_len;
+            let members = u32::from_le_bytes(index[pos..pos + 4].try_into()?);
+            let offset = u64::from_le_bytes(index[pos + 4..pos + 12].try_into()?) as usize;
+            let len = u64::from_le_bytes(index[pos + 12..pos + 20].try_into()?) as usize;
+            pos += 20;
+            segments.push((abi, members, offset, len));
+        }
+        assert_eq!(pos, index.len());
+        let data_start = 20 + index_len;
+        assert_eq!(
+            segments,
+            vec![
+                (String::new(), 2, data_start, 70),
+                ("arm64-v8a".to_string(), 2, 4096, 130),
+                ("x86_64".to_string(), 1, 8192, 70),
+            ]
+        );
+        assert!(blob[data_start + 70..4096].iter().all(|&byte| byte == 0));
+        assert_eq!(&blob[4096..4196], vec![b"lib/arm64-v8a/liba.so".len() as u8; 100].as_slice());
+        assert_eq!(blob.len(), 8192 + 70);
+        assert_eq!(get_encrypted_names_from_blob(&blob)?.len(), 5);
+
+        let located = read_payload_index(&blob)?;
+        assert_eq!(
+            located[2],
+            PayloadIndexEntry {
+                name: "lib/arm64-v8a/liba.so".to_string(),
+                range: 4096..4196,
+            }
+        );
+        assert_eq!(located[4].range, 8192..8262);
+
+        Ok(())
+    }
+
+    // Seeded mutation fuzzing of read_payload_index over a payload with every
+    // header flag: bit flips, truncation and inserted bytes in the header and
+    // index. Nothing may panic, and whatever still parses must only locate
+    // entries inside the blob, in order.
+    #[test]
+    fn payload_index_parser_survives_mutated_indexes() -> anyhow::Result<()> {
+        let target_entries: Vec<TargetEntry> = ["classes.dex", "lib/arm64-v8a/libapp.so", "lib/x86_64/libapp.so"]
+            .iter()
+            .map(|name| TargetEntry {
+                name: name.to_string(),
+                compression: CompressionMethod::Stored,
+                is_dir: false,
+                data: vec![0x22; 3000],
+            })
+            .collect();
+        let empty: Vec<String> = Vec::new();
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions {
+                cipher: CipherMode::Both,
+                compress: true,
+            },
+        )?;
+        let seed = build_payload_blob(&entries);
+        assert_eq!(
+            u16::from_le_bytes(seed[6..8].try_into()?),
+            PAYLOAD_FLAG_ENTRY_FLAGS
+                | PAYLOAD_FLAG_ENTRY_DIGESTS
+                | PAYLOAD_FLAG_ENTRY_CODECS
+                | PAYLOAD_FLAG_SEGMENTS
+                | PAYLOAD_FLAG_CONTENT_NAMES
+        );
+        assert_eq!(read_payload_index(&seed)?.len(), 6);
+        let index_end = 20 + u32::from_le_bytes(seed[16..20].try_into()?) as usize;
+
+        let mut state = 0x9e37_79b9_7f4a_7c15u64;
+        let mut next = move |bound: usize| {
+            state ^= state << 13;
+            state ^= state >> 7;
+            state ^= state << 17;
+            (state % bound.max(1) as u64) as usize
+        };
+        for _ in 0..5_000 {
+            let mut blob = seed.clone();
+            let at = next(index_end);
+            match next(3) {
+                0 => blob[at] ^= 1 << next(8),
+                1 => blob.truncate(at),
+                _ => blob.insert(at, next(256) as u8),
+            }
+            if let Ok(located) = read_payload_index(&blob) {
+                let mut last_end = 20 + u32::from_le_bytes(blob[16..20].try_into()?) as usize;
+                for entry in &located {
+                    assert!(entry.range.start >= last_end && entry.range.end <= blob.len());
+                    last_end = entry.range.end;
+                }
+            }
+        }
+        Ok(())
+    }
+
+    #[test]
+    fn parallel_payload_entries_follow_target_order() -> anyhow::Result<()> {
+        let temp = TestDir::create("parallel-order");
+        let target_apk = temp.path.join("target.apk");
+        let names: Vec<String> = (0..32).map(|i| format!("lib/arm64-v8a/lib{:02}.so", i)).collect();
+        let bodies: Vec<Vec<u8>> = (0..32).map(|i| vec![i as u8; 1000 + i * 37]).collect();
+        let zip_entries: Vec<(&str, &[u8])> = names
+            .iter()
+            .zip(&bodies)
+            .map(|(name, body)| (name.as_str(), body.as_slice()))
+            .collect();
+        write_zip(&target_apk, &zip_entries)?;
+
+        let target_entries = read_target_entries(&target_apk)?;
+        let read_names: Vec<&str> = target_entries.iter().map(|entry| entry.name.as_str()).collect();
+        assert_eq!(read_names, names.iter().map(String::as_str).collect::<Vec<_>>());
+
+        let empty: Vec<String> = Vec::new();
+        let keep_libs = vec!["05".to_string()];
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &keep_libs,
+            &empty,
+            &HashSet::new(),
+            SealOptions::default(),
+        )?;
+        let encrypted_names: Vec<&str> = entries.iter().map(|entry| entry.name.as_str()).collect();
+        let expected: Vec<&str> = names
+            .iter()
+            .map(String::as_str)
+            .filter(|name| !name.ends_with("lib05.so"))
+            .collect();
+        assert_eq!(encrypted_names, expected);
+        for entry in &entries {
+            let index: usize = entry.name[17..19].parse()?;
+            assert_eq!(entry.plain_len, bodies[index].len() as u64);
+        }
+
+        Ok(())
+    }
+
+    // Timing of serial vs pooled encryption over many entries:
+    //   cargo test --release -- --ignored --nocapture encrypt_scaling
+    #[test]
+    #[ignore]
+    fn encrypt_scaling_with_jobs() -> anyhow::Result<()> {
+        let target_entries: Vec<TargetEntry> = (0..48)
+            .map(|i| TargetEntry {
+                name: format!("lib/arm64-v8a/lib{}.so", i),
+                compression: CompressionMethod::Stored,
+                is_dir: false,
+                data: vec![i as u8; 3 * 1024 * 1024],
+            })
+            .collect();
+        let empty: Vec<String> = Vec::new();
+
+        for jobs in [1usize, 2, 4, 8] {
+            let pool = rayon::ThreadPoolBuilder::new().num_threads(jobs).build()?;
+            let started = std::time::Instant::now();
+            let entries = pool.install(|| {
+                collect_and_encrypt_payload_entries(
+                    &target_entries,
+                    &empty,
+                    &empty,
+                    &empty,
+                    &empty,
+                    &HashSet::new(),
+                    SealOptions::default(),
+                )
+            })?;
+            assert_eq!(entries.len(), target_entries.len());
+            println!("--jobs {}: {:?}", jobs, started.elapsed());
+        }
+
+        Ok(())
+    }
+
+    #[test]
+    fn keep_dex_matches_defined_classes_only() {
+        let dex = dex::build_test_dex(
+            &["Lcom/example/App;", "Lcom/example/boot/Loader;"],
+            &["Lcom/example/OnlyReferenced;"],
+        );
+        fn keep(dex: &[u8], descriptors: &[&str], prefixes: &[&str]) -> bool {
+            let descriptors: Vec<String> = descriptors.iter().map(|d| d.to_string()).collect();
+            let prefixes: Vec<String> = prefixes.iter().map(|p| p.to_string()).collect();
+            should_keep_dex("classes.dex", dex, &descriptors, &prefixes)
+        }
+
+        assert!(keep(&dex, &["Lcom/example/App;"], &[]));
+        assert!(keep(&dex, &[], &["Lcom/example/boot/"]));
+        assert!(!keep(&dex, &["Lcom/example/OnlyReferenced;"], &[]));
+        assert!(!keep(&dex, &[], &["Lcom/other/"]));
+        assert!(!keep(&dex, &[], &[]));
+    }
+
+    // Index lookup vs the old byte-window scan. Point PACKER_BENCH_DEX at a
+    // real classes.dex, otherwise a synthetic dex with 40k classes is used:
+    //   cargo test --release -- --ignored --nocapture keep_dex_lookup
+    #[test]
+    #[ignore]
+    fn keep_dex_lookup_vs_byte_scan() {
+        let dex_bytes = match std::env::var("PACKER_BENCH_DEX") {
+            Ok(path) => std::fs::read(path).expect("failed to read PACKER_BENCH_DEX"),
+            Err(_) => {
+                let names: Vec<String> = (0..40_000).map(|i| format!("Lcom/example/gen/C{};", i)).collect();
+                let classes: Vec<&str> = names.iter().map(String::as_str).collect();
+                dex::build_test_dex(&classes, &[])
+            }
+        };
+        let keep_descriptors: Vec<String> = (0..40).map(|i| format!("Lcom/missing/Keep{};", i)).collect();
+        let keep_prefixes = vec!["Lcom/missing/prefix/".to_string()];
+
+        let started = std::time::Instant::now();
+        let scanned = keep_descriptors
+            .iter()
+            .chain(&keep_prefixes)
+            .any(|pattern| contains_bytes(&dex_bytes, pattern.as_bytes()));
+        let scan_time = started.elapsed();
+
+        let started = std::time::Instant::now();
+        let indexed = should_keep_dex("classes.dex", &dex_bytes, &keep_descriptors, &keep_prefixes);
+        let index_time = started.elapsed();
+
+        assert_eq!(scanned, indexed);
+        println!(
+            "{} bytes, {} keep rules: byte scan {:?}, class index {:?}",
+            dex_bytes.len(),
+            keep_descriptors.len() + keep_prefixes.len(),
+            scan_time,
+            index_time
+        );
+    }
+
+    #[test]
+    fn repack_places_keep_dex_after_bootstrap_and_encrypts_all_original_dex() -> anyhow::Result<()> {
+        let temp = TestDir::create("keep-dex");
+        let target_apk = temp.path.join("target.apk");
+        let bootstrap_apk = temp.path.join("bootstrap.apk");
+        let output_apk = temp.path.join("output.apk");
+        let bootstrap_lib_dir = temp.path.join("bootstrap-libs");
+        std::fs::create_dir_all(bootstrap_lib_dir.join("arm64-v8a"))?;
+        std::fs::write(bootstrap_lib_dir.join("arm64-v8a/libshell.so"), b"shell-lib")?;
+
+        write_zip(
+            &target_apk,
+            &[("classes.dex", b"original-main-dex"), ("classes2.dex", b"original-second-dex")],
+        )?;
+        write_zip(&bootstrap_apk, &[("classes.dex", b"bootstrap-dex")])?;
+
+        let empty: Vec<String> = Vec::new();
+        let target_entries = read_target_entries(&target_apk)?;
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions::default(),
+        )?;
+        let payload_blob = build_payload_blob(&entries);
+        let encrypted_entry_names = get_encrypted_names_from_blob(&payload_blob)?;
+        assert_eq!(encrypted_entry_names.len(), 2);
+
+        repack_target_with_bootstrap(
+            &target_entries,
+            &bootstrap_apk,
+            &bootstrap_lib_dir,
+            None,
+            None,
+            Some(b"keep-classes-dex".as_slice()),
+            &encrypted_entry_names,
+            &output_apk,
+            &payload_blob,
+        )?;
+
+        let mut out = ZipArchive::new(File::open(&output_apk)?)?;
+        let mut read = |name: &str| -> anyhow::Result<Vec<u8>> {
+            let mut bytes = Vec::new();
+            out.by_name(name)?.read_to_end(&mut bytes)?;
+            Ok(bytes)
+        };
+        assert_eq!(read("classes.dex")?, b"bootstrap-dex");
+        assert_eq!(read("classes2.dex")?, b"keep-classes-dex");
+        assert!(read("classes3.dex").is_err());
+
+        Ok(())
+    }
+
+    #[test]
+    fn per_abi_cipher_mode_seals_entries_for_the_devices_that_load_them() -> anyhow::Result<()> {
+        let entry = |name: &str| TargetEntry {
+            name: name.to_string(),
+            compression: CompressionMethod::Stored,
+            is_dir: false,
+            data: vec![0x11; PAYLOAD_CHUNK_SIZE + 5],
+        };
+        let target_entries = vec![
+            entry("classes.dex"),
+            entry("lib/armeabi-v7a/libapp.so"),
+            entry("lib/arm64-v8a/libapp.so"),
+            entry("lib/x86_64/libapp.so"),
+        ];
+
+        let empty: Vec<String> = Vec::new();
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions {
+                cipher: CipherMode::PerAbi,
+                compress: false,
+            },
+        )?;
+        let sealed: Vec<(&str, u8)> = entries.iter().map(|entry| (entry.name.as_str(), entry.cipher)).collect();
+        assert_eq!(
+            sealed,
+            vec![
+                ("classes.dex", PAYLOAD_CIPHER_AES_256_GCM),
+                ("classes.dex", PAYLOAD_CIPHER_CHACHA20_POLY1305),
+                ("lib/armeabi-v7a/libapp.so", PAYLOAD_CIPHER_CHACHA20_POLY1305),
+                ("lib/arm64-v8a/libapp.so", PAYLOAD_CIPHER_AES_256_GCM),
+                ("lib/arm64-v8a/libapp.so", PAYLOAD_CIPHER_CHACHA20_POLY1305),
+                ("lib/x86_64/libapp.so", PAYLOAD_CIPHER_AES_256_GCM),
+            ]
+        );
+
+        // ChaCha20-Poly1305 entries open under the derived key, and the index
+        // carries the cipher in the high byte of the entry flags.
+        let chacha = ChaCha20Poly1305::new(&chacha_key(&get_aes_key()).into());
+        let first_chunk = &entries[1].data[..PAYLOAD_CHUNK_SIZE + PAYLOAD_TAG_LEN];
+        let opened = chacha
+            .decrypt(Nonce::from_slice(&entries[1].nonce), first_chunk)
+            .map_err(|e| anyhow::anyhow!("Decryption failure: {:?}", e))?;
+        assert_eq!(opened, vec![0x11; PAYLOAD_CHUNK_SIZE]);
+
+        let blob = build_payload_blob(&entries);
+        assert_eq!(
+            u16::from_le_bytes(blob[6..8].try_into()?),
+            PAYLOAD_FLAG_ENTRY_FLAGS | PAYLOAD_FLAG_ENTRY_DIGESTS | PAYLOAD_FLAG_SEGMENTS | PAYLOAD_FLAG_CONTENT_NAMES
+        );
+        let first_entry_len = 2 + "classes.dex".len() + 2 + 8 + 8 + 12 + PAYLOAD_DIGEST_LEN + PAYLOAD_CONTENT_NAME_LEN;
+        let second_entry = 20 + first_entry_len;
+        let flags_at = second_entry + 2 + "classes.dex".len();
+        assert_eq!(
+            u16::from_le_bytes(blob[flags_at..flags_at + 2].try_into()?),
+            u16::from(PAYLOAD_CIPHER_CHACHA20_POLY1305) << ENTRY_CIPHER_SHIFT
+        );
+        assert_eq!(get_encrypted_names_from_blob(&blob)?.len(), 4);
+
+        Ok(())
+    }
+
+    #[test]
+    fn compression_picks_lz4_for_startup_entries_and_zstd_for_cold_ones() -> anyhow::Result<()> {
+        let entry = |name: &str, data: Vec<u8>| TargetEntry {
+            name: name.to_string(),
+            compression: CompressionMethod::Stored,
+            is_dir: false,
+            data,
+        };
+        let repetitive: Vec<u8> = (0..50_000u32).map(|i| (i % 13) as u8).collect();
+        let mut state = 0x9e37_79b9_7f4a_7c15u64;
+        let noise: Vec<u8> = (0..50_000)
+            .map(|_| {
+                state ^= state << 13;
+                state ^= state >> 7;
+                state ^= state << 17;
+                (state >> 32) as u8
+            })
+            .collect();
+        let target_entries = vec![
+            entry("classes.dex", repetitive.clone()),
+            entry("lib/arm64-v8a/libapp.so", repetitive.clone()),
+            entry("assets/data.bin", repetitive.clone()),
+            entry("assets/photo.jpg", noise.clone()),
+        ];
+
+        let empty: Vec<String> = Vec::new();
+        let asset_patterns = vec!["assets/*".to_string()];
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &asset_patterns,
+            &HashSet::new(),
+            SealOptions {
+                cipher: CipherMode::Aes256Gcm,
+                compress: true,
+            },
+        )?;
+        let codecs: Vec<u8> = entries.iter().map(|entry| entry.codec).collect();
+        assert_eq!(
+            codecs,
+            vec![PAYLOAD_CODEC_LZ4, PAYLOAD_CODEC_LZ4, PAYLOAD_CODEC_ZSTD, PAYLOAD_CODEC_NONE]
+        );
+        assert!(entries.iter().all(|entry| entry.raw_len == 50_000));
+        assert!(entries[0].plain_len < 50_000 / 4);
+        assert_eq!(entries[3].plain_len, 50_000);
+
+        // The sealed bytes open to the compressed frame, which expands to the
+        // original entry.
+        let cipher = Aes256Gcm::new(&get_aes_key().into());
+        let open = |entry: &PayloadEntry| -> anyhow::Result<Vec<u8>> {
+            let mut plain = Vec::new();
+            for (i, sealed) in entry.data.chunks(PAYLOAD_CHUNK_SIZE + PAYLOAD_TAG_LEN).enumerate() {
+                let nonce = chunk_nonce(&entry.nonce, i as u32);
+                let opened = cipher
+                    .decrypt(Nonce::from_slice(&nonce), sealed)
+                    .map_err(|e| anyhow::anyhow!("Decryption failure: {:?}", e))?;
+                plain.extend_from_slice(&opened);
+            }
+            Ok(plain)
+        };
+        let mut lz4 = Vec::new();
+        lz4_flex::frame::FrameDecoder::new(open(&entries[0])?.as_slice()).read_to_end(&mut lz4)?;
+        assert_eq!(lz4, repetitive);
+        assert_eq!(zstd::bulk::decompress(&open(&entries[2])?, 50_000)?, repetitive);
+
+        let blob = build_payload_blob(&entries);
+        assert_eq!(
+            u16::from_le_bytes(blob[6..8].try_into()?),
+            PAYLOAD_FLAG_ENTRY_FLAGS
+                | PAYLOAD_FLAG_ENTRY_DIGESTS
+                | PAYLOAD_FLAG_ENTRY_CODECS
+                | PAYLOAD_FLAG_SEGMENTS
+                | PAYLOAD_FLAG_CONTENT_NAMES
+        );
+        let raw_len_at = 20 + 2 + "classes.dex".len() + 2 + 8 + 8;
+        assert_eq!(u64::from_le_bytes(blob[raw_len_at..raw_len_at + 8].try_into()?), 50_000);
+        assert_eq!(get_encrypted_names_from_blob(&blob)?.len(), 4);
+
+        Ok(())
+    }
+
+    #[test]
+    fn startup_profile_defers_dex_without_profiled_classes() -> anyhow::Result<()> {
+        let startup_classes = parse_startup_profile(
+            "# startup\nHSPLcom/example/App;->onCreate()V\nLcom/example/ui/Main;\ncom.example.Plain\nLcom/example/gen/**;\n",
+        );
+        let mut expected: Vec<&str> = vec!["Lcom/example/App;", "Lcom/example/ui/Main;", "Lcom/example/Plain;"];
+        expected.sort_unstable();
+        let mut parsed: Vec<&str> = startup_classes.iter().map(String::as_str).collect();
+        parsed.sort_unstable();
+        assert_eq!(parsed, expected);
+
+        let dex_entry = |name: &str, data: Vec<u8>| TargetEntry {
+            name: name.to_string(),
+            compression: CompressionMethod::Stored,
+            is_dir: false,
+            data,
+        };
+        let target_entries = vec![
+            dex_entry("classes.dex", dex::build_test_dex(&["Lcom/example/Other;"], &[])),
+            dex_entry("classes2.dex", dex::build_test_dex(&["Lcom/example/ui/Main;"], &[])),
+            // Only mentions a startup class, does not define one.
+            dex_entry("classes3.dex", dex::build_test_dex(&["Lcom/example/Lazy;"], &["Lcom/example/App;"])),
+        ];
+
+        let empty: Vec<String> = Vec::new();
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &startup_classes,
+            SealOptions::default(),
+        )?;
+        let deferred: Vec<bool> = entries.iter().map(|entry| entry.deferred).collect();
+        assert_eq!(deferred, vec![false, false, true]);
+
+        let blob = build_payload_blob(&entries);
+        assert_eq!(
+            u16::from_le_bytes(blob[6..8].try_into()?),
+            PAYLOAD_FLAG_ENTRY_FLAGS | PAYLOAD_FLAG_ENTRY_DIGESTS | PAYLOAD_FLAG_CONTENT_NAMES
+        );
+        let index_len = u32::from_le_bytes(blob[16..20].try_into()?) as usize;
+        let expected_index_len: usize = entries
+            .iter()
+            .map(|entry| 2 + entry.name.len() + 2 + 8 + 8 + 12 + PAYLOAD_DIGEST_LEN + PAYLOAD_CONTENT_NAME_LEN)
+            .sum();
+        assert_eq!(index_len, expected_index_len);
+        assert_eq!(get_encrypted_names_from_blob(&blob)?.len(), 3);
+
+        // Without a profile nothing is deferred and the index has no flags.
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions::default(),
+        )?;
+        assert!(entries.iter().all(|entry| !entry.deferred));
+        assert_eq!(
+            u16::from_le_bytes(build_payload_blob(&entries)[6..8].try_into()?),
+            PAYLOAD_FLAG_ENTRY_DIGESTS | PAYLOAD_FLAG_CONTENT_NAMES
+        );
+
+        Ok(())
+    }
+
+    #[test]
+    fn preload_libs_are_flagged_for_every_abi() -> anyhow::Result<()> {
+        let entry = |name: &str| TargetEntry {
+            name: name.to_string(),
+            compression: CompressionMethod::Stored,
+            is_dir: false,
+            data: name.as_bytes().to_vec(),
+        };
+        let target_entries = vec![
+            entry("classes.dex"),
+            entry("lib/arm64-v8a/libmmkv.so"),
+            entry("lib/arm64-v8a/libother.so"),
+            entry("lib/x86_64/libmmkv.so"),
+        ];
+        let empty: Vec<String> = Vec::new();
+        let mut entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions::default(),
+        )?;
+        assert_eq!(
+            u16::from_le_bytes(build_payload_blob(&entries)[6..8].try_into()?) & PAYLOAD_FLAG_ENTRY_FLAGS,
+            0
+        );
+
+        mark_preload_libs(&mut entries, &["mmkv".to_string(), "libmissing.so".to_string()]);
+        let preload: Vec<bool> = entries.iter().map(|entry| entry.preload).collect();
+        assert_eq!(preload, vec![false, true, false, true]);
+
+        let blob = build_payload_blob(&entries);
+        assert_ne!(u16::from_le_bytes(blob[6..8].try_into()?) & PAYLOAD_FLAG_ENTRY_FLAGS, 0);
+        for (name, flags) in [("lib/arm64-v8a/libmmkv.so", ENTRY_FLAG_PRELOAD), ("lib/arm64-v8a/libother.so", 0)] {
+            let at = blob
+                .windows(name.len())
+                .position(|window| window == name.as_bytes())
+                .expect("entry in index")
+                + name.len();
+            assert_eq!(u16::from_le_bytes(blob[at..at + 2].try_into()?) & ENTRY_FLAG_PRELOAD, flags);
+        }
+
+        Ok(())
+    }
+
+    #[test]
+    fn baseline_profile_follows_payload_dex_to_their_landed_names() -> anyhow::Result<()> {
+        let entry = |name: &str, data: Vec<u8>| TargetEntry {
+            name: name.to_string(),
+            compression: CompressionMethod::Stored,
+            is_dir: false,
+            data,
+        };
+        let mut app_dex = dex::build_test_dex(&["Lcom/example/App;", "Lcom/example/Main;", "Lcom/example/Ui;"], &[]);
+        app_dex[0x08..0x0c].copy_from_slice(&11u32.to_le_bytes());
+        app_dex[0x58..0x5c].copy_from_slice(&8u32.to_le_bytes());
+        let baseline = profile::write_p(&[
+            profile::test_profile("classes.dex", 11, 8),
+            // Stays in the APK.
+            profile::test_profile("classes9.dex", 99, 8),
+        ])?;
+        let target_entries = vec![
+            entry("classes.dex", app_dex.clone()),
+            entry("assets/dexopt/baseline.prof", baseline),
+        ];
+
+        let empty: Vec<String> = Vec::new();
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries,
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions {
+                cipher: CipherMode::Aes256Gcm,
+                compress: false,
+            },
+        )?;
+        let names: Vec<&str> = entries.iter().map(|entry| entry.name.as_str()).collect();
+        assert_eq!(names, vec!["classes.dex", "dexopt/010.prof", "dexopt/015.prof"]);
+
+        let cipher = Aes256Gcm::new(&get_aes_key().into());
+        let open = |entry: &PayloadEntry| -> anyhow::Result<Vec<u8>> {
+            let mut plain = Vec::new();
+            for (i, sealed) in entry.data.chunks(PAYLOAD_CHUNK_SIZE + PAYLOAD_TAG_LEN).enumerate() {
+                let nonce = chunk_nonce(&entry.nonce, i as u32);
+                let opened = cipher
+                    .decrypt(Nonce::from_slice(&nonce), sealed)
+                    .map_err(|e| anyhow::anyhow!("Decryption failure: {:?}", e))?;
+                plain.extend_from_slice(&opened);
+            }
+            Ok(plain)
+        };
+        let landed_name = format!("{}.dex", hex::encode(&Sha256::digest(&app_dex)[..16]));
+        // The index records the same name for the loader to find the dex by.
+        assert_eq!(entries[0].content_name.map(hex::encode), landed_name.strip_suffix(".dex").map(str::to_string));
+        assert_eq!(entries[1].content_name, None);
+        let mut expected = profile::test_profile(&landed_name, 11, 8);
+        let p = profile::parse(&open(&entries[1])?)?;
+        assert_eq!(p, vec![expected.clone()]);
+
+        // 015 also records the type ids of the landed dex.
+        expected.num_type_ids = 3;
+        assert_eq!(open(&entries[2])?, profile::write_s(&[expected])?);
+
+        // No profile in the APK, no profile entries.
+        let entries = collect_and_encrypt_payload_entries(
+            &target_entries[..1],
+            &empty,
+            &empty,
+            &empty,
+            &empty,
+            &HashSet::new(),
+            SealOptions::default(),
+        )?;
+        assert_eq!(entries.len(), 1);
+
+        Ok(())
+    }
 }
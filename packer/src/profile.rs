@@ -0,0 +1,516 @@
+// ART baseline profiles for the payload dex.
+//
+// AGP ships the app's baseline profile as assets/dexopt/baseline.prof in ART's
+// 010 format, keyed by the APK's dex names (classes.dex, classes2.dex, ...).
+// Once those dex move into the payload the profile matches nothing ART
+// compiles, so its lines are rewritten for the secondary dex the loader lands:
+// keyed by their landed file name and written in the version each Android
+// release reads, 010 on API 28-30 and 015 from API 31 on. Like
+// androidx.profileinstaller, inline caches are dropped; classes and the
+// hot/startup/post-startup method flags are kept.
+
+use anyhow::{bail, Context};
+use flate2::read::ZlibDecoder;
+use flate2::write::ZlibEncoder;
+use flate2::Compression;
+use std::collections::BTreeMap;
+use std::io::{Read, Write};
+
+pub const BASELINE_PROFILE_ENTRY: &str = "assets/dexopt/baseline.prof";
+
+const MAGIC: &[u8; 4] = b"pro\0";
+pub const VERSION_P: &[u8; 4] = b"010\0";
+pub const VERSION_S: &[u8; 4] = b"015\0";
+
+const FLAG_HOT: u16 = 1 << 0;
+const FLAG_STARTUP: u16 = 1 << 1;
+const FLAG_POST_STARTUP: u16 = 1 << 2;
+
+const INLINE_CACHE_MISSING_TYPES: u8 = 6;
+const INLINE_CACHE_MEGAMORPHIC: u8 = 7;
+
+// Section types of the 015 format.
+const SECTION_DEX_FILES: u32 = 0;
+const SECTION_CLASSES: u32 = 2;
+const SECTION_METHODS: u32 = 3;
+
+// Inflated 010 bodies are a few hundred KiB at most; this only bounds what a
+// corrupt size field can make the packer allocate.
+const MAX_BODY_SIZE: usize = 64 * 1024 * 1024;
+
+// The profile of one dex file.
+#[derive(Clone, Debug, PartialEq, Eq)]
+pub struct DexProfile {
+    pub key: String,
+    pub checksum: u32,
+    // Not recorded by 010 profiles; 015 needs it, see retarget.
+    pub num_type_ids: u32,
+    pub num_method_ids: u32,
+    // Sorted type indexes.
+    pub classes: Vec<u16>,
+    // Method index -> FLAG_* bits.
+    pub methods: BTreeMap<u16, u16>,
+}
+
+// The ids of a payload dex that profile lines are checked against.
+pub struct LandedDex {
+    pub name: String,
+    pub checksum: u32,
+    pub num_type_ids: u32,
+    pub num_method_ids: u32,
+}
+
+struct Fields<'a> {
+    bytes: &'a [u8],
+    pos: usize,
+}
+
+impl<'a> Fields<'a> {
+    fn bytes(&mut self, len: usize) -> anyhow::Result<&'a [u8]> {
+        let end = self.pos.checked_add(len).context("ART profile offset overflow")?;
+        let slice = self
+            .bytes
+            .get(self.pos..end)
+            .with_context(|| format!("ART profile truncated at {:#x}", self.pos))?;
+        self.pos = end;
+        Ok(slice)
+    }
+
+    fn u8(&mut self) -> anyhow::Result<u8> {
+        Ok(self.bytes(1)?[0])
+    }
+
+    fn u16(&mut self) -> anyhow::Result<u16> {
+        Ok(u16::from_le_bytes(self.bytes(2)?.try_into().unwrap()))
+    }
+
+    fn u32(&mut self) -> anyhow::Result<u32> {
+        Ok(u32::from_le_bytes(self.bytes(4)?.try_into().unwrap()))
+    }
+
+    fn is_empty(&self) -> bool {
+        self.pos >= self.bytes.len()
+    }
+}
+
+// The key ART reads for a dex, without the APK or dex location in front of
+// it: "base.apk!classes2.dex" and "classes2.dex" both name classes2.dex.
+pub fn dex_name(key: &str) -> &str {
+    key.rsplit(|c| c == '!' || c == ':').next().unwrap_or(key)
+}
+
+fn method_bitmap_len(num_method_ids: u32) -> usize {
+    (num_method_ids as usize * 2 + 7) / 8
+}
+
+fn bit(bitmap: &[u8], index: usize) -> bool {
+    bitmap[index / 8] & (1 << (index % 8)) != 0
+}
+
+fn set_bit(bitmap: &mut [u8], index: usize) {
+    bitmap[index / 8] |= 1 << (index % 8);
+}
+
+// Parses a 010 profile as AGP writes it.
+pub fn parse(bytes: &[u8]) -> anyhow::Result<Vec<DexProfile>> {
+    let mut header = Fields { bytes, pos: 0 };
+    if header.bytes(4)? != MAGIC {
+        bail!("not an ART profile");
+    }
+    let version = header.bytes(4)?;
+    if version != VERSION_P {
+        bail!("unsupported ART profile version {:?}", String::from_utf8_lossy(&version[..3]));
+    }
+    let dex_count = header.u8()? as usize;
+    let inflated_size = header.u32()? as usize;
+    let compressed_size = header.u32()? as usize;
+    if inflated_size > MAX_BODY_SIZE {
+        bail!("ART profile body of {} bytes is too large", inflated_size);
+    }
+    let mut body = Vec::with_capacity(inflated_size);
+    ZlibDecoder::new(header.bytes(compressed_size)?).read_to_end(&mut body)?;
+    if body.len() != inflated_size {
+        bail!("ART profile body is {} bytes, header says {}", body.len(), inflated_size);
+    }
+
+    // All line headers come first, then the data of each line in the same
+    // order.
+    let mut fields = Fields { bytes: &body, pos: 0 };
+    let mut lines = Vec::with_capacity(dex_count);
+    for _ in 0..dex_count {
+        let key_size = fields.u16()? as usize;
+        let class_count = fields.u16()? as usize;
+        let method_region_size = fields.u32()? as usize;
+        let checksum = fields.u32()?;
+        let num_method_ids = fields.u32()?;
+        let key = String::from_utf8(fields.bytes(key_size)?.to_vec()).context("ART profile key is not UTF-8")?;
+        lines.push((key, class_count, method_region_size, checksum, num_method_ids));
+    }
+
+    let mut profiles = Vec::with_capacity(dex_count);
+    for (key, class_count, method_region_size, checksum, num_method_ids) in lines {
+        let mut methods = BTreeMap::new();
+        let mut region = Fields {
+            bytes: fields.bytes(method_region_size)?,
+            pos: 0,
+        };
+        let mut method = 0u16;
+        while !region.is_empty() {
+            method = method.checked_add(region.u16()?).context("ART profile method index overflow")?;
+            methods.insert(method, FLAG_HOT);
+            for _ in 0..region.u16()? {
+                skip_inline_cache(&mut region)?;
+            }
+        }
+
+        let mut classes = Vec::with_capacity(class_count);
+        let mut class = 0u16;
+        for _ in 0..class_count {
+            class = class.checked_add(fields.u16()?).context("ART profile class index overflow")?;
+            classes.push(class);
+        }
+
+        let bitmap = fields.bytes(method_bitmap_len(num_method_ids))?;
+        let count = num_method_ids as usize;
+        for index in 0..count.min(usize::from(u16::MAX) + 1) {
+            let mut flags = 0;
+            if bit(bitmap, index) {
+                flags |= FLAG_STARTUP;
+            }
+            if bit(bitmap, count + index) {
+                flags |= FLAG_POST_STARTUP;
+            }
+            if flags != 0 {
+                *methods.entry(index as u16).or_insert(0) |= flags;
+            }
+        }
+
+        profiles.push(DexProfile {
+            key,
+            checksum,
+            num_type_ids: 0,
+            num_method_ids,
+            classes,
+            methods,
+        });
+    }
+    Ok(profiles)
+}
+
+fn skip_inline_cache(region: &mut Fields) -> anyhow::Result<()> {
+    let _dex_pc = region.u16()?;
+    let dex_map_size = region.u8()?;
+    if dex_map_size == INLINE_CACHE_MISSING_TYPES || dex_map_size == INLINE_CACHE_MEGAMORPHIC {
+        return Ok(());
+    }
+    for _ in 0..dex_map_size {
+        let _profile_index = region.u8()?;
+        let class_count = region.u8()? as usize;
+        region.bytes(class_count * 2)?;
+    }
+    Ok(())
+}
+
+// Keeps the lines of payload dex and keys them by landed name. `landed` maps
+// an APK dex name to the dex it lands as. Lines of dex that stay in the APK
+// are dropped, and so are lines recorded for a different build of a dex:
+// ART would reject their checksum anyway.
+pub fn retarget<F>(profiles: Vec<DexProfile>, landed: F) -> (Vec<DexProfile>, Vec<String>)
+where
+    F: Fn(&str) -> Option<LandedDex>,
+{
+    let mut kept = Vec::new();
+    let mut dropped = Vec::new();
+    for mut profile in profiles {
+        let target = match landed(dex_name(&profile.key)) {
+            Some(target) if target.checksum == profile.checksum && target.num_method_ids == profile.num_method_ids => {
+                target
+            }
+            _ => {
+                dropped.push(profile.key);
+                continue;
+            }
+        };
+        profile.key = target.name;
+        profile.num_type_ids = target.num_type_ids;
+        profile.classes.retain(|&class| u32::from(class) < target.num_type_ids);
+        kept.push(profile);
+    }
+    (kept, dropped)
+}
+
+fn zlib(data: &[u8]) -> anyhow::Result<Vec<u8>> {
+    let mut encoder = ZlibEncoder::new(Vec::new(), Compression::best());
+    encoder.write_all(data)?;
+    Ok(encoder.finish()?)
+}
+
+fn put_u16(out: &mut Vec<u8>, value: u16) {
+    out.extend_from_slice(&value.to_le_bytes());
+}
+
+fn put_u32(out: &mut Vec<u8>, value: u32) {
+    out.extend_from_slice(&value.to_le_bytes());
+}
+
+fn put_key(out: &mut Vec<u8>, key: &str) -> anyhow::Result<()> {
+    put_u16(out, u16::try_from(key.len()).context("ART profile key too long")?);
+    out.extend_from_slice(key.as_bytes());
+    Ok(())
+}
+
+fn put_deltas<I: IntoIterator<Item = u16>>(out: &mut Vec<u8>, values: I) {
+    let mut last = 0u16;
+    for value in values {
+        put_u16(out, value - last);
+        last = value;
+    }
+}
+
+// Hot methods as delta-encoded indexes, each without inline caches.
+fn hot_methods(profile: &DexProfile) -> Vec<u8> {
+    let hot = profile
+        .methods
+        .iter()
+        .filter(|(_, flags)| *flags & FLAG_HOT != 0)
+        .map(|(method, _)| *method);
+    let mut out = Vec::new();
+    let mut last = 0u16;
+    for method in hot {
+        put_u16(&mut out, method - last);
+        put_u16(&mut out, 0);
+        last = method;
+    }
+    out
+}
+
+// Startup bits for every method id, then post-startup bits.
+fn method_bitmap(profile: &DexProfile) -> Vec<u8> {
+    let count = profile.num_method_ids as usize;
+    let mut bitmap = vec![0u8; method_bitmap_len(profile.num_method_ids)];
+    for (method, flags) in &profile.methods {
+        let method = *method as usize;
+        if method >= count {
+            continue;
+        }
+        if flags & FLAG_STARTUP != 0 {
+            set_bit(&mut bitmap, method);
+        }
+        if flags & FLAG_POST_STARTUP != 0 {
+            set_bit(&mut bitmap, count + method);
+        }
+    }
+    bitmap
+}
+
+// The 010 format read by API 28-30.
+pub fn write_p(profiles: &[DexProfile]) -> anyhow::Result<Vec<u8>> {
+    let dex_count = u8::try_from(profiles.len()).context("too many dex files for a 010 profile")?;
+    let mut body = Vec::new();
+    let mut regions = Vec::with_capacity(profiles.len());
+    for profile in profiles {
+        let region = hot_methods(profile);
+        put_u16(&mut body, u16::try_from(profile.key.len()).context("ART profile key too long")?);
+        put_u16(&mut body, u16::try_from(profile.classes.len()).context("too many profiled classes")?);
+        put_u32(&mut body, region.len() as u32);
+        put_u32(&mut body, profile.checksum);
+        put_u32(&mut body, profile.num_method_ids);
+        body.extend_from_slice(profile.key.as_bytes());
+        regions.push(region);
+    }
+    for (profile, region) in profiles.iter().zip(regions) {
+        body.extend_from_slice(&region);
+        put_deltas(&mut body, profile.classes.iter().copied());
+        body.extend_from_slice(&method_bitmap(profile));
+    }
+
+    let compressed = zlib(&body)?;
+    let mut out = Vec::with_capacity(17 + compressed.len());
+    out.extend_from_slice(MAGIC);
+    out.extend_from_slice(VERSION_P);
+    out.push(dex_count);
+    put_u32(&mut out, body.len() as u32);
+    put_u32(&mut out, compressed.len() as u32);
+    out.extend_from_slice(&compressed);
+    Ok(out)
+}
+
+// The sectioned 015 format read from API 31 on. The dex section is stored as
+// is, the class and method sections are zlib-compressed.
+pub fn write_s(profiles: &[DexProfile]) -> anyhow::Result<Vec<u8>> {
+    let mut dex_files = Vec::new();
+    put_u16(&mut dex_files, u16::try_from(profiles.len()).context("too many dex files for a 015 profile")?);
+    for profile in profiles {
+        put_u32(&mut dex_files, profile.checksum);
+        put_u32(&mut dex_files, profile.num_type_ids);
+        put_u32(&mut dex_files, profile.num_method_ids);
+        put_key(&mut dex_files, &profile.key)?;
+    }
+
+    let mut classes = Vec::new();
+    let mut methods = Vec::new();
+    for (index, profile) in profiles.iter().enumerate() {
+        if !profile.classes.is_empty() {
+            put_u16(&mut classes, index as u16);
+            put_u16(&mut classes, u16::try_from(profile.classes.len()).context("too many profiled classes")?);
+            put_deltas(&mut classes, profile.classes.iter().copied());
+        }
+        if !profile.methods.is_empty() {
+            // Both bitmap flags are always present, so the bitmap has the
+            // same layout as in 010.
+            let bitmap = method_bitmap(profile);
+            let hot = hot_methods(profile);
+            put_u16(&mut methods, index as u16);
+            put_u32(&mut methods, (2 + bitmap.len() + hot.len()) as u32);
+            put_u16(&mut methods, FLAG_HOT | FLAG_STARTUP | FLAG_POST_STARTUP);
+            methods.extend_from_slice(&bitmap);
+            methods.extend_from_slice(&hot);
+        }
+    }
+
+    // (type, stored bytes, inflated size or 0 when stored as is)
+    let mut sections = vec![(SECTION_DEX_FILES, dex_files, 0u32)];
+    if !classes.is_empty() {
+        sections.push((SECTION_CLASSES, zlib(&classes)?, classes.len() as u32));
+    }
+    if !methods.is_empty() {
+        sections.push((SECTION_METHODS, zlib(&methods)?, methods.len() as u32));
+    }
+
+    let mut out = Vec::new();
+    out.extend_from_slice(MAGIC);
+    out.extend_from_slice(VERSION_S);
+    put_u32(&mut out, sections.len() as u32);
+    let mut offset = out.len() + sections.len() * 16;
+    for (section_type, data, inflated_size) in &sections {
+        put_u32(&mut out, *section_type);
+        put_u32(&mut out, offset as u32);
+        put_u32(&mut out, data.len() as u32);
+        put_u32(&mut out, *inflated_size);
+        offset += data.len();
+    }
+    for (_, data, _) in &sections {
+        out.extend_from_slice(data);
+    }
+    Ok(out)
+}
+
+#[cfg(test)]
+pub fn test_profile(key: &str, checksum: u32, num_method_ids: u32) -> DexProfile {
+    DexProfile {
+        key: key.to_string(),
+        checksum,
+        num_type_ids: 0,
+        num_method_ids,
+        classes: vec![0, 2],
+        methods: BTreeMap::from([(1, FLAG_HOT | FLAG_STARTUP), (3, FLAG_POST_STARTUP), (4, FLAG_HOT)]),
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{dex_name, parse, retarget, test_profile, write_p, write_s, LandedDex, SECTION_DEX_FILES};
+    use flate2::read::ZlibDecoder;
+    use std::io::Read;
+
+    #[test]
+    fn p_profiles_round_trip_without_inline_caches() {
+        let profiles = vec![test_profile("classes.dex", 11, 8), test_profile("base.apk!classes2.dex", 22, 5)];
+        let written = write_p(&profiles).unwrap();
+        assert_eq!(&written[..8], b"pro\0010\0");
+        assert_eq!(parse(&written).unwrap(), profiles);
+        assert!(parse(&write_s(&profiles).unwrap()).is_err());
+    }
+
+    #[test]
+    fn parse_skips_inline_caches_of_hot_methods() {
+        let mut body = Vec::new();
+        let key = b"classes.dex";
+        // Line header: key size, class count, method region size, checksum,
+        // method ids.
+        body.extend_from_slice(&(key.len() as u16).to_le_bytes());
+        body.extend_from_slice(&0u16.to_le_bytes());
+        body.extend_from_slice(&18u32.to_le_bytes());
+        body.extend_from_slice(&7u32.to_le_bytes());
+        body.extend_from_slice(&4u32.to_le_bytes());
+        body.extend_from_slice(key);
+        // Method 2 with one megamorphic and one monomorphic inline cache.
+        body.extend_from_slice(&[2, 0, 2, 0]);
+        body.extend_from_slice(&[9, 0, 7]);
+        body.extend_from_slice(&[12, 0, 1, 0, 1, 5, 0]);
+        body.extend_from_slice(&[1, 0, 0, 0]);
+        // Method bitmap: method 0 is startup.
+        body.push(0b0000_0001);
+
+        let mut profile = b"pro\0010\0\x01".to_vec();
+        let compressed = super::zlib(&body).unwrap();
+        profile.extend_from_slice(&(body.len() as u32).to_le_bytes());
+        profile.extend_from_slice(&(compressed.len() as u32).to_le_bytes());
+        profile.extend_from_slice(&compressed);
+
+        let parsed = parse(&profile).unwrap();
+        assert_eq!(parsed.len(), 1);
+        let methods: Vec<(u16, u16)> = parsed[0].methods.iter().map(|(m, f)| (*m, *f)).collect();
+        assert_eq!(methods, vec![(0, 2), (2, 1), (3, 1)]);
+    }
+
+    #[test]
+    fn retarget_keys_matching_lines_by_landed_name() {
+        let profiles = vec![
+            test_profile("base.apk!classes.dex", 11, 8),
+            test_profile("classes2.dex", 22, 5),
+            test_profile("classes3.dex", 33, 5),
+        ];
+        let (kept, dropped) = retarget(profiles, |name| match name {
+            "classes2.dex" => Some(LandedDex {
+                name: "0123.dex".to_string(),
+                checksum: 22,
+                num_type_ids: 1,
+                num_method_ids: 5,
+            }),
+            // Rebuilt since the profile was recorded.
+            "classes3.dex" => Some(LandedDex {
+                name: "4567.dex".to_string(),
+                checksum: 34,
+                num_type_ids: 3,
+                num_method_ids: 5,
+            }),
+            _ => None,
+        });
+        assert_eq!(dropped, vec!["base.apk!classes.dex".to_string(), "classes3.dex".to_string()]);
+        assert_eq!(kept.len(), 1);
+        assert_eq!((kept[0].key.as_str(), kept[0].num_type_ids), ("0123.dex", 1));
+        // Type index 2 is out of range for a dex with one type id.
+        assert_eq!(kept[0].classes, vec![0]);
+        assert_eq!(dex_name("/data/app/base.apk:classes4.dex"), "classes4.dex");
+    }
+
+    #[test]
+    fn s_profiles_store_dex_section_and_compress_the_others() {
+        let mut profile = test_profile("0123.dex", 22, 5);
+        profile.num_type_ids = 3;
+        let written = write_s(&[profile]).unwrap();
+        assert_eq!(&written[..8], b"pro\0015\0");
+        let u32_at = |at: usize| u32::from_le_bytes(written[at..at + 4].try_into().unwrap());
+        assert_eq!(u32_at(8), 3);
+
+        // Dex section: count, checksum, type ids, method ids, key.
+        assert_eq!((u32_at(12), u32_at(24)), (SECTION_DEX_FILES, 0));
+        let dex_at = u32_at(16) as usize;
+        let dex_len = u32_at(20) as usize;
+        let mut expected = vec![1, 0, 22, 0, 0, 0, 3, 0, 0, 0, 5, 0, 0, 0, 8, 0];
+        expected.extend_from_slice(b"0123.dex");
+        assert_eq!(&written[dex_at..dex_at + dex_len], expected.as_slice());
+
+        // Methods section: index, following size, flags, 2 bitmap bytes for
+        // 5 methods, then hot methods 1 and 4 without inline caches.
+        let methods_at = u32_at(48) as usize;
+        let mut methods = Vec::new();
+        ZlibDecoder::new(&written[methods_at..methods_at + u32_at(52) as usize])
+            .read_to_end(&mut methods)
+            .unwrap();
+        assert_eq!(methods.len(), u32_at(56) as usize);
+        assert_eq!(methods, vec![0, 0, 12, 0, 0, 0, 7, 0, 0b0000_0010, 0b0000_0001, 1, 0, 0, 0, 3, 0, 0, 0]);
+        assert_eq!(written.len(), methods_at + u32_at(52) as usize);
+    }
+}
@@ -36,6 +36,58 @@ class PackBuildFlowTests(unittest.TestCase):
         actions = [call.args[1] for call in run_checked_command.call_args_list]
         self.assertEqual(actions, ["Build Shell (Native)"])
 
+    def test_build_shell_selects_log_profile_for_cargo_and_gradle(self):
+        with mock.patch("pack.find_java_cmd", return_value="/usr/bin/java"), mock.patch(
+            "pack.java_home_from_cmd", return_value="/fake/java/home"
+        ), mock.patch(
+            "pack.run_checked_command"
+        ) as run_checked_command, mock.patch(
+            "pack.subprocess.run",
+            return_value=SimpleNamespace(returncode=0, stdout="", stderr=""),
+        ) as subprocess_run, mock.patch(
+            "pack.os.path.exists", return_value=True
+        ), mock.patch.dict(
+            "pack.os.environ", {"PATH": "/usr/bin", "ANDROID_NDK_HOME": "/fake/ndk"}, clear=False
+        ):
+            pack.build_shell("debug")
+            pack.build_shell()
+
+        debug_cargo, release_cargo = [call.args[0] for call in run_checked_command.call_args_list]
+        self.assertEqual(debug_cargo[-3:], ["--no-default-features", "--features", "debug-log"])
+        self.assertEqual(release_cargo[-1], "--release")
+
+        debug_gradle, release_gradle = [call.args[0] for call in subprocess_run.call_args_list]
+        self.assertIn("-PshellLogProfile=debug", debug_gradle)
+        self.assertIn("-PshellLogProfile=release", release_gradle)
+
+    def test_build_shell_adds_trace_feature_for_cargo_and_gradle(self):
+        with mock.patch("pack.find_java_cmd", return_value="/usr/bin/java"), mock.patch(
+            "pack.java_home_from_cmd", return_value="/fake/java/home"
+        ), mock.patch(
+            "pack.run_checked_command"
+        ) as run_checked_command, mock.patch(
+            "pack.subprocess.run",
+            return_value=SimpleNamespace(returncode=0, stdout="", stderr=""),
+        ) as subprocess_run, mock.patch(
+            "pack.os.path.exists", return_value=True
+        ), mock.patch.dict(
+            "pack.os.environ", {"PATH": "/usr/bin", "ANDROID_NDK_HOME": "/fake/ndk"}, clear=False
+        ):
+            pack.build_shell("debug", trace=True)
+            pack.build_shell()
+
+        traced_cargo, plain_cargo = [call.args[0] for call in run_checked_command.call_args_list]
+        self.assertEqual(traced_cargo[-5:], ["--no-default-features", "--features", "debug-log", "--features", "trace"])
+        self.assertNotIn("trace", plain_cargo)
+
+        traced_gradle, plain_gradle = [call.args[0] for call in subprocess_run.call_args_list]
+        self.assertIn("-PshellTrace=true", traced_gradle)
+        self.assertIn("-PshellTrace=false", plain_gradle)
+
+    def test_cargo_log_profile_args_rejects_unknown_profile(self):
+        with self.assertRaises(ValueError):
+            pack.cargo_log_profile_args("verbose")
+
 
 if __name__ == "__main__":
     unittest.main()
@@ -0,0 +1,119 @@
+import os
+import tempfile
+import unittest
+import zipfile
+from pathlib import Path
+from unittest import mock
+
+import pack
+
+
+SMALI_CLASSES = {
+    "com/example/App": (
+        ".class public Lcom/example/App;\n"
+        ".super Landroid/app/Application;\n"
+        ".field private helper:Lcom/example/Helper;\n"
+    ),
+    "com/example/Helper": (
+        ".class public Lcom/example/Helper;\n"
+        ".super Ljava/lang/Object;\n"
+        ".method public run()V\n"
+        "    invoke-static {}, Lcom/example/util/Log;->d()V\n"
+        ".end method\n"
+    ),
+    "com/example/util/Log": ".class public final Lcom/example/util/Log;\n.super Ljava/lang/Object;\n",
+    "com/example/feature/Screen": (
+        ".class public Lcom/example/feature/Screen;\n"
+        ".super Ljava/lang/Object;\n"
+        ".field private app:Lcom/example/App;\n"
+    ),
+}
+
+
+def write_smali_tree(root: str) -> None:
+    for relative, text in SMALI_CLASSES.items():
+        path = Path(root, "classes", f"{relative}.smali")
+        path.parent.mkdir(parents=True, exist_ok=True)
+        path.write_text(text, encoding="utf-8")
+
+
+class PackDexSplitTests(unittest.TestCase):
+    def test_closure_follows_app_references_and_ignores_framework_types(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            write_smali_tree(temp_dir)
+            classes = pack.index_smali_classes(temp_dir)
+
+        self.assertEqual(len(classes), 4)
+        refs = {descriptor: refs for descriptor, (_, refs) in classes.items()}
+        closure = pack.compute_keep_class_closure(refs, ["com.example.App"], [])
+
+        self.assertEqual(closure, {"Lcom/example/App;", "Lcom/example/Helper;", "Lcom/example/util/Log;"})
+
+    def test_closure_roots_include_classes_under_keep_prefixes(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            write_smali_tree(temp_dir)
+            classes = pack.index_smali_classes(temp_dir)
+
+        refs = {descriptor: refs for descriptor, (_, refs) in classes.items()}
+        closure = pack.compute_keep_class_closure(refs, [], ["com.example.util"])
+        self.assertEqual(closure, {"Lcom/example/util/Log;"})
+        self.assertEqual(pack.compute_keep_class_closure(refs, ["com.missing.Type"], []), set())
+
+    def test_duplicate_classes_resolve_to_the_first_dex_on_the_class_path(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            for dex_dir in ["classes10", "classes2", "classes"]:
+                path = Path(temp_dir, dex_dir, "com/example/Dup.smali")
+                path.parent.mkdir(parents=True, exist_ok=True)
+                path.write_text(".class public Lcom/example/Dup;\n.super Ljava/lang/Object;\n", encoding="utf-8")
+            for dex_dir in ["classes10", "classes2"]:
+                path = Path(temp_dir, dex_dir, "com/example/Later.smali")
+                path.write_text(".class public Lcom/example/Later;\n.super Ljava/lang/Object;\n", encoding="utf-8")
+            Path(temp_dir, "notes").mkdir()
+            classes = pack.index_smali_classes(temp_dir)
+
+            self.assertEqual(Path(classes["Lcom/example/Dup;"][0]).relative_to(temp_dir).parts[0], "classes")
+            self.assertEqual(Path(classes["Lcom/example/Later;"][0]).relative_to(temp_dir).parts[0], "classes2")
+        self.assertEqual(
+            sorted(["classes10.dex", "classes2.dex", "classes.dex"], key=pack.dex_class_path_order),
+            ["classes.dex", "classes2.dex", "classes10.dex"],
+        )
+
+    def test_build_keep_class_dex_assembles_only_the_closure(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            target_apk = os.path.join(temp_dir, "target.apk")
+            with zipfile.ZipFile(target_apk, "w") as apk_zip:
+                apk_zip.writestr("classes.dex", b"dex")
+                apk_zip.writestr("res/raw/other.bin", b"other")
+
+            assembled: list[str] = []
+
+            def fake_run(command, action):
+                if command[3] == "d":
+                    write_smali_tree(command[6])
+                else:
+                    assembled.extend(sorted(os.listdir(command[4])))
+                    Path(command[6]).write_bytes(b"keep-dex")
+
+            with mock.patch("pack.find_java_cmd", return_value="java"), mock.patch(
+                "pack.find_smali_jars", return_value=("smali.jar", "baksmali.jar")
+            ), mock.patch("pack.run_checked_command", side_effect=fake_run):
+                keep_dex = pack.build_keep_class_dex(target_apk, ["com.example.Helper"], [], temp_dir)
+
+            self.assertIsNotNone(keep_dex)
+            self.assertEqual(Path(keep_dex).read_bytes(), b"keep-dex")
+            self.assertEqual(assembled, ["0.smali", "1.smali"])
+
+    def test_build_keep_class_dex_falls_back_when_tools_fail(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            target_apk = os.path.join(temp_dir, "target.apk")
+            with zipfile.ZipFile(target_apk, "w") as apk_zip:
+                apk_zip.writestr("classes.dex", b"dex")
+
+            with mock.patch("pack.find_java_cmd", return_value="java"), mock.patch(
+                "pack.find_smali_jars", return_value=("smali.jar", "baksmali.jar")
+            ), mock.patch("pack.run_checked_command", side_effect=RuntimeError("baksmali failed")):
+                self.assertIsNone(pack.build_keep_class_dex(target_apk, ["com.example.App"], [], temp_dir))
+
+
+if __name__ == "__main__":
+    unittest.main()
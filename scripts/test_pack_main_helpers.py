@@ -1,3 +1,4 @@
+import hashlib
 import unittest
 import tempfile
 import os
@@ -205,6 +206,128 @@ class PackMainHelpersTests(unittest.TestCase):
             self.assertTrue(entry1.exists())
             self.assertTrue(entry3.exists())
 
+    def test_resolve_log_options_defaults_to_release_without_delay(self):
+        args = SimpleNamespace(log_profile=None, log_delay_ms=None)
+        self.assertEqual(pack.resolve_log_options(args, {}), ("release", 0))
+
+    def test_resolve_log_options_reads_debug_profile_from_config(self):
+        args = SimpleNamespace(log_profile=None, log_delay_ms=None)
+        config = {"log_profile": "debug", "log_delay_ms": 250}
+        self.assertEqual(pack.resolve_log_options(args, config), ("debug", 250))
+
+    def test_resolve_log_options_drops_delay_for_release_profile(self):
+        args = SimpleNamespace(log_profile="release", log_delay_ms=500)
+        self.assertEqual(pack.resolve_log_options(args, {}), ("release", 0))
+
+    def test_generate_config_writes_startup_log_delay(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            config_path = os.path.join(temp_dir, "config.rs")
+            pack.generate_config(config_path, bytes(32), log_delay_ms=300)
+            content = Path(config_path).read_text(encoding="utf-8")
+
+        self.assertIn("pub const STARTUP_LOG_DELAY_MS: u64 = 300;", content)
+
+    def test_resolve_decrypt_threads_prefers_cli_then_config_then_default(self):
+        self.assertEqual(pack.resolve_decrypt_threads(SimpleNamespace(decrypt_threads=2), {"decrypt_threads": 6}), 2)
+        self.assertEqual(pack.resolve_decrypt_threads(SimpleNamespace(decrypt_threads=None), {"decrypt_threads": 6}), 6)
+        self.assertEqual(
+            pack.resolve_decrypt_threads(SimpleNamespace(decrypt_threads=0), {}), pack.DEFAULT_DECRYPT_THREADS
+        )
+
+    def test_generate_config_writes_decrypt_thread_cap(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            config_path = os.path.join(temp_dir, "config.rs")
+            pack.generate_config(config_path, bytes(32), decrypt_threads=2)
+            content = Path(config_path).read_text(encoding="utf-8")
+
+        self.assertIn("pub const MAX_DECRYPT_THREADS: usize = 2;", content)
+        self.assertIn("pub const IN_MEMORY_DEX: bool = false;", content)
+        self.assertIn("pub const IN_MEMORY_LIBS: bool = false;", content)
+
+    def test_generate_config_writes_in_memory_dex_flag(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            config_path = os.path.join(temp_dir, "config.rs")
+            pack.generate_config(config_path, bytes(32), dex_load_mode="memory")
+            content = Path(config_path).read_text(encoding="utf-8")
+
+        self.assertIn("pub const IN_MEMORY_DEX: bool = true;", content)
+
+    def test_generate_config_writes_in_memory_libs_flag(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            config_path = os.path.join(temp_dir, "config.rs")
+            pack.generate_config(config_path, bytes(32), lib_load_mode="memory")
+            content = Path(config_path).read_text(encoding="utf-8")
+
+        self.assertIn("pub const IN_MEMORY_LIBS: bool = true;", content)
+        self.assertIn("pub const IN_MEMORY_DEX: bool = false;", content)
+
+    def test_resolve_startup_profile_ignores_missing_files(self):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            profile = os.path.join(temp_dir, "baseline-prof.txt")
+            Path(profile).write_text("HSPLcom/example/App;->onCreate()V\n", encoding="utf-8")
+
+            from_config = pack.resolve_startup_profile(SimpleNamespace(startup_profile=None), {"startup_profile": profile})
+            missing = pack.resolve_startup_profile(
+                SimpleNamespace(startup_profile=os.path.join(temp_dir, "missing.txt")), {"startup_profile": profile}
+            )
+
+        self.assertEqual(from_config, os.path.abspath(profile))
+        self.assertIsNone(missing)
+        self.assertIsNone(pack.resolve_startup_profile(SimpleNamespace(startup_profile=None), {}))
+
+    def test_resolve_payload_cipher_prefers_cli_then_config_then_default(self):
+        self.assertEqual(
+            pack.resolve_payload_cipher(SimpleNamespace(payload_cipher="both"), {"payload_cipher": "per-abi"}), "both"
+        )
+        self.assertEqual(
+            pack.resolve_payload_cipher(SimpleNamespace(payload_cipher=None), {"payload_cipher": "per-abi"}), "per-abi"
+        )
+        self.assertEqual(pack.resolve_payload_cipher(SimpleNamespace(payload_cipher=None), {}), "aes-256-gcm")
+        with self.assertRaises(ValueError):
+            pack.resolve_payload_cipher(SimpleNamespace(payload_cipher=None), {"payload_cipher": "rc4"})
+
+    def test_resolve_dex_load_mode_prefers_cli_then_config_then_default(self):
+        self.assertEqual(
+            pack.resolve_dex_load_mode(SimpleNamespace(dex_load_mode="file"), {"dex_load_mode": "memory"}), "file"
+        )
+        self.assertEqual(
+            pack.resolve_dex_load_mode(SimpleNamespace(dex_load_mode=None), {"dex_load_mode": "memory"}), "memory"
+        )
+        self.assertEqual(pack.resolve_dex_load_mode(SimpleNamespace(dex_load_mode=None), {}), "file")
+        with self.assertRaises(ValueError):
+            pack.resolve_dex_load_mode(SimpleNamespace(dex_load_mode=None), {"dex_load_mode": "mmap"})
+
+    def test_resolve_lib_load_mode_prefers_cli_then_config_then_default(self):
+        self.assertEqual(
+            pack.resolve_lib_load_mode(SimpleNamespace(lib_load_mode="file"), {"lib_load_mode": "memory"}), "file"
+        )
+        self.assertEqual(
+            pack.resolve_lib_load_mode(SimpleNamespace(lib_load_mode=None), {"lib_load_mode": "memory"}), "memory"
+        )
+        self.assertEqual(pack.resolve_lib_load_mode(SimpleNamespace(lib_load_mode=None), {}), "file")
+        with self.assertRaises(ValueError):
+            pack.resolve_lib_load_mode(SimpleNamespace(lib_load_mode=None), {"lib_load_mode": "dlopen"})
+
+    def test_calculate_payload_hash_commits_to_header_and_index_when_entries_have_digests(self):
+        index = b"index-with-entry-digests"
+        fields = (2).to_bytes(2, "little") + (0x0002).to_bytes(2, "little") + (65536).to_bytes(4, "little")
+        fields += (1).to_bytes(4, "little") + len(index).to_bytes(4, "little")
+        digests_payload = b"KAPP" + fields + index + b"sealed-entry-data"
+        plain_payload = b"KAPP" + fields[:2] + (0).to_bytes(2, "little") + fields[4:] + index + b"sealed"
+
+        with tempfile.TemporaryDirectory() as temp_dir:
+            digests_path = os.path.join(temp_dir, "digests.bin")
+            plain_path = os.path.join(temp_dir, "plain.bin")
+            Path(digests_path).write_bytes(digests_payload)
+            Path(plain_path).write_bytes(plain_payload)
+
+            self.assertEqual(pack.calculate_payload_hash(digests_path), hashlib.sha256(fields + index).digest())
+            self.assertEqual(pack.calculate_payload_hash(plain_path), hashlib.sha256(plain_payload).digest())
+
+            Path(digests_path).write_bytes(b"KAPP" + fields + index[:4])
+            with self.assertRaises(ValueError):
+                pack.calculate_payload_hash(digests_path)
+
 
 if __name__ == "__main__":
     unittest.main()